@@ -0,0 +1,409 @@
+// BeamMoments.java
+//
+// 2-D beam analysis of a rectangular region of an image: centroid, widths,
+// rotation and integrated intensity from the image moments, and an optional
+// 2-D Gaussian fit.  The pixels are processed in parallel stripes of rows.
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Computes the moments of the pixels in a rectangle, after subtracting a background
+ * level taken from the border of the rectangle.  Pixels that are not more than NOISE_CLIP
+ * standard deviations of the border above the background count as zero; otherwise the noise
+ * of the large number of background pixels would dominate the second moments.
+ * The rows of the rectangle are divided into one stripe per thread, each stripe accumulates
+ * its own sums, and the sums are combined at the end, so the result does not depend on the
+ * number of threads except for rounding.
+ * <p>
+ * An instance owns a thread pool and reuses its stripe tasks, so one instance should be
+ * created per analysis and used from one thread at a time.  Call shutdown() when done.
+ */
+public class BeamMoments
+{
+    /**
+     * The result of one analysis, in image pixel coordinates.
+     * Angles are in radians, measured from the +x axis towards +y, which is
+     * clockwise on the screen because y increases downwards.
+     */
+    public static final class Result
+    {
+        public final double background;
+        public final double noise;
+        public final double intensity;
+        public final double centroidX;
+        public final double centroidY;
+        public final double sigmaX;
+        public final double sigmaY;
+        public final double covarianceXY;
+        public final double majorSigma;
+        public final double minorSigma;
+        public final double angle;
+
+        Result(double background, double noise, double s0, double sx, double sy, double sxx, double syy, double sxy,
+               double originX, double originY)
+        {
+            this.background = background;
+            this.noise = noise;
+            intensity = s0;
+            if (s0 > 0) {
+                double mx = sx / s0;
+                double my = sy / s0;
+                double vxx = Math.max(0, sxx / s0 - mx * mx);
+                double vyy = Math.max(0, syy / s0 - my * my);
+                double vxy = sxy / s0 - mx * my;
+                centroidX = originX + mx;
+                centroidY = originY + my;
+                sigmaX = Math.sqrt(vxx);
+                sigmaY = Math.sqrt(vyy);
+                covarianceXY = vxy;
+                // Eigenvalues of the covariance matrix give the widths along the principal axes
+                double mean = 0.5 * (vxx + vyy);
+                double diff = Math.sqrt(0.25 * (vxx - vyy) * (vxx - vyy) + vxy * vxy);
+                majorSigma = Math.sqrt(mean + diff);
+                minorSigma = Math.sqrt(Math.max(0, mean - diff));
+                angle = 0.5 * Math.atan2(2 * vxy, vxx - vyy);
+            } else {
+                centroidX = centroidY = Double.NaN;
+                sigmaX = sigmaY = covarianceXY = Double.NaN;
+                majorSigma = minorSigma = angle = Double.NaN;
+            }
+        }
+    }
+
+    /** The parameters of the 2-D Gaussian fit, in the order returned by fitGaussian() */
+    public static final String[] FIT_PARAMS = {"Background", "Amplitude", "X0", "Y0", "SigmaMajor", "SigmaMinor", "Angle"};
+
+    /** Pixels must be this many standard deviations of the border above the background to count */
+    public static final double NOISE_CLIP = 3;
+
+    /** The fit uses the rectangle binned down to at most this many points */
+    public static final int MAX_FIT_POINTS = 4096;
+
+    private final ExecutorService executor;
+    private final List<Stripe> stripes = new ArrayList<Stripe>();
+    private final List<BinStripe> binStripes = new ArrayList<BinStripe>();
+    private final LMSolver solver = new LMSolver(7);
+    private final Gaussian2DModel model = new Gaussian2DModel();
+    private final double[] lower = new double[7];
+    private final double[] upper = new double[7];
+    private double[] binned = new double[0];
+
+    // The input of the current analysis, shared by the stripe tasks
+    private Object pixels;
+    private int imageWidth;
+    private Rectangle rect;
+    private double background;
+    private double noise;
+    private double threshold;
+    private int bin, binWidth;
+
+    /**
+     * Constructor
+     * @param numThreads The number of stripes and threads, at least 1.
+     */
+    public BeamMoments(int numThreads)
+    {
+        numThreads = Math.max(1, numThreads);
+        executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BeamMoments");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (int i = 0; i < numThreads; i++) {
+            stripes.add(new Stripe());
+            binStripes.add(new BinStripe());
+        }
+    }
+
+    /**
+     * Stop the threads.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * Compute the moments of the pixels in a rectangle.
+     * @param ip The image.  Byte, short, float and RGB (as the mean of the channels) are supported.
+     * @param r The rectangle, which must lie inside the image.
+     * @return The result.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for the stripes.
+     */
+    public Result compute(ImageProcessor ip, Rectangle r) throws InterruptedException
+    {
+        pixels = ip.getPixels();
+        imageWidth = ip.getWidth();
+        rect = r;
+        borderStatistics();
+        threshold = NOISE_CLIP * noise;
+        int numStripes = Math.min(stripes.size(), r.height);
+        int rowsPerStripe = (r.height + numStripes - 1) / numStripes;
+        List<Stripe> tasks = stripes.subList(0, numStripes);
+        for (int i = 0; i < numStripes; i++) {
+            Stripe s = tasks.get(i);
+            s.firstRow = i * rowsPerStripe;
+            s.lastRow = Math.min(r.height, (i + 1) * rowsPerStripe);
+        }
+        invokeAll(tasks);
+        double s0 = 0, sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+        for (Stripe s : tasks) {
+            s0 += s.s0;
+            sx += s.sx;
+            sy += s.sy;
+            sxx += s.sxx;
+            syy += s.syy;
+            sxy += s.sxy;
+        }
+        // Pixel i covers [i, i+1), so its center is at i + 0.5
+        return new Result(background, noise, s0, sx, sy, sxx, syy, sxy, r.x + 0.5, r.y + 0.5);
+    }
+
+    /**
+     * Fit a rotated 2-D Gaussian with a constant background to the rectangle, starting from the moments.
+     * To keep the cost independent of the size of the rectangle, the fit uses the rectangle
+     * binned so that it has at most MAX_FIT_POINTS points.
+     * @param ip The image.
+     * @param r The rectangle, which must lie inside the image.
+     * @param m The moments of the same rectangle, from compute().
+     * @param maxIterations The maximum number of Levenberg-Marquardt iterations.
+     * @return The parameters named in FIT_PARAMS, in image pixel coordinates, or null if the moments are not usable.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for the stripes.
+     */
+    public double[] fitGaussian(ImageProcessor ip, Rectangle r, Result m, int maxIterations) throws InterruptedException
+    {
+        if (!(m.intensity > 0) || !(m.majorSigma > 0)) return null;
+        pixels = ip.getPixels();
+        imageWidth = ip.getWidth();
+        rect = r;
+        bin = (int)Math.ceil(Math.sqrt((double)r.width * r.height / MAX_FIT_POINTS));
+        binWidth = r.width / bin;
+        int binHeight = r.height / bin;
+        if (binWidth < 3 || binHeight < 3) return null;
+        if (binned.length < binWidth * binHeight) binned = new double[binWidth * binHeight];
+        int numStripes = Math.min(binStripes.size(), binHeight);
+        int rowsPerStripe = (binHeight + numStripes - 1) / numStripes;
+        List<BinStripe> tasks = binStripes.subList(0, numStripes);
+        for (int i = 0; i < numStripes; i++) {
+            BinStripe s = tasks.get(i);
+            s.firstRow = i * rowsPerStripe;
+            s.lastRow = Math.min(binHeight, (i + 1) * rowsPerStripe);
+        }
+        invokeAll(tasks);
+
+        // Binned coordinates: bin (i, j) covers image pixels [r.x + i*bin, r.x + (i+1)*bin)
+        double peak = 0;
+        for (int i = 0; i < binWidth * binHeight; i++) peak = Math.max(peak, binned[i]);
+        double[] p = {
+            m.background,
+            peak - m.background,
+            (m.centroidX - r.x) / bin,
+            (m.centroidY - r.y) / bin,
+            Math.max(0.5, m.majorSigma / bin),
+            Math.max(0.5, m.minorSigma / bin),
+            m.angle
+        };
+        double size = Math.max(binWidth, binHeight);
+        lower[0] = Double.NEGATIVE_INFINITY; upper[0] = Double.POSITIVE_INFINITY;
+        lower[1] = 0;                        upper[1] = Double.POSITIVE_INFINITY;
+        lower[2] = -binWidth;                upper[2] = 2 * binWidth;
+        lower[3] = -binHeight;               upper[3] = 2 * binHeight;
+        lower[4] = 0.25;                     upper[4] = size;
+        lower[5] = 0.25;                     upper[5] = size;
+        lower[6] = -2 * Math.PI;             upper[6] = 2 * Math.PI;
+        solver.setBounds(lower, upper);
+        model.width = binWidth;
+        solver.solve(model, binned, null, binWidth * binHeight, p, maxIterations);
+
+        // Report the major axis first, with the angle in (-pi/2, pi/2]
+        double major = p[4], minor = p[5], angle = p[6];
+        if (minor > major) {
+            major = p[5];
+            minor = p[4];
+            angle += Math.PI / 2;
+        }
+        angle = Math.atan(Math.tan(angle));
+        return new double[] {
+            p[0], p[1], r.x + (p[2] + 0.5) * bin, r.y + (p[3] + 0.5) * bin, major * bin, minor * bin, angle
+        };
+    }
+
+    private void invokeAll(List<? extends Callable<Void>> tasks) throws InterruptedException
+    {
+        try {
+            for (java.util.concurrent.Future<Void> f : executor.invokeAll(tasks)) f.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // The mean and standard deviation of the pixels on the border of the rectangle
+    private void borderStatistics()
+    {
+        Rectangle r = rect;
+        double sum = 0, sum2 = 0;
+        int count = 0;
+        for (int i = 0; i < r.width; i++) {
+            double a = pixel(r.x + i, r.y);
+            double b = pixel(r.x + i, r.y + r.height - 1);
+            sum += a + b;
+            sum2 += a * a + b * b;
+            count += 2;
+        }
+        for (int j = 1; j < r.height - 1; j++) {
+            double a = pixel(r.x, r.y + j);
+            double b = pixel(r.x + r.width - 1, r.y + j);
+            sum += a + b;
+            sum2 += a * a + b * b;
+            count += 2;
+        }
+        background = sum / count;
+        noise = Math.sqrt(Math.max(0, sum2 / count - background * background));
+    }
+
+    private double pixel(int x, int y)
+    {
+        int index = y * imageWidth + x;
+        if (pixels instanceof byte[]) return ((byte[])pixels)[index] & 0xff;
+        if (pixels instanceof short[]) return ((short[])pixels)[index] & 0xffff;
+        if (pixels instanceof float[]) return ((float[])pixels)[index];
+        int c = ((int[])pixels)[index];
+        return (((c >> 16) & 0xff) + ((c >> 8) & 0xff) + (c & 0xff)) / 3.0;
+    }
+
+    // Copy one row of the rectangle into a double array, so the inner loops do not test the pixel type
+    private void readRow(int row, double[] out)
+    {
+        int offset = (rect.y + row) * imageWidth + rect.x;
+        int w = rect.width;
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            for (int i = 0; i < w; i++) out[i] = p[offset + i] & 0xff;
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            for (int i = 0; i < w; i++) out[i] = p[offset + i] & 0xffff;
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[])pixels;
+            for (int i = 0; i < w; i++) out[i] = p[offset + i];
+        } else {
+            int[] p = (int[])pixels;
+            for (int i = 0; i < w; i++) {
+                int c = p[offset + i];
+                out[i] = (((c >> 16) & 0xff) + ((c >> 8) & 0xff) + (c & 0xff)) / 3.0;
+            }
+        }
+    }
+
+    /**
+     * Accumulates the background-subtracted, noise-clipped moments of a range of rows, relative to the rectangle origin.
+     */
+    private final class Stripe implements Callable<Void>
+    {
+        int firstRow, lastRow;
+        double s0, sx, sy, sxx, syy, sxy;
+        private double[] row = new double[0];
+
+        public Void call()
+        {
+            int w = rect.width;
+            if (row.length < w) row = new double[w];
+            double b = background;
+            double clip = threshold;
+            double t0 = 0, tx = 0, ty = 0, txx = 0, tyy = 0, txy = 0;
+            for (int j = firstRow; j < lastRow; j++) {
+                readRow(j, row);
+                double r0 = 0, rx = 0, rxx = 0;
+                for (int i = 0; i < w; i++) {
+                    double v = row[i] - b;
+                    if (v <= clip) continue;
+                    r0 += v;
+                    rx += v * i;
+                    rxx += v * i * (double)i;
+                }
+                // The per-row sums give the y moments without another pass
+                t0 += r0;
+                tx += rx;
+                txx += rxx;
+                ty += r0 * j;
+                tyy += r0 * j * (double)j;
+                txy += rx * j;
+            }
+            s0 = t0; sx = tx; sy = ty; sxx = txx; syy = tyy; sxy = txy;
+            return null;
+        }
+    }
+
+    /**
+     * Averages bin x bin blocks of pixels for a range of binned rows.
+     */
+    private final class BinStripe implements Callable<Void>
+    {
+        int firstRow, lastRow;
+        private double[] row = new double[0];
+
+        public Void call()
+        {
+            int w = rect.width;
+            if (row.length < w) row = new double[w];
+            double norm = 1.0 / (bin * bin);
+            for (int j = firstRow; j < lastRow; j++) {
+                int out = j * binWidth;
+                for (int i = 0; i < binWidth; i++) binned[out + i] = 0;
+                for (int k = 0; k < bin; k++) {
+                    readRow(j * bin + k, row);
+                    for (int i = 0; i < binWidth; i++) {
+                        double sum = 0;
+                        int first = i * bin;
+                        for (int l = 0; l < bin; l++) sum += row[first + l];
+                        binned[out + i] += sum;
+                    }
+                }
+                for (int i = 0; i < binWidth; i++) binned[out + i] *= norm;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * f = B + A*exp(-(u^2/sx^2 + v^2/sy^2)/2) with u, v the coordinates rotated by theta about (x0, y0).
+     * Parameters B, A, x0, y0, sx, sy, theta.  Point i is at (i % width, i / width).
+     */
+    private static final class Gaussian2DModel implements LMSolver.Model
+    {
+        int width;
+
+        public double evaluate(double[] p, int i, double[] gradient)
+        {
+            double dx = (i % width) - p[2];
+            double dy = (i / width) - p[3];
+            double cos = Math.cos(p[6]);
+            double sin = Math.sin(p[6]);
+            double u = dx * cos + dy * sin;
+            double v = -dx * sin + dy * cos;
+            double ax = 1 / (p[4] * p[4]);
+            double ay = 1 / (p[5] * p[5]);
+            double g = Math.exp(-0.5 * (u * u * ax + v * v * ay));
+            if (gradient != null) {
+                double ag = p[1] * g;
+                gradient[0] = 1;
+                gradient[1] = g;
+                gradient[2] = ag * (u * cos * ax - v * sin * ay);
+                gradient[3] = ag * (u * sin * ax + v * cos * ay);
+                gradient[4] = ag * u * u * ax / p[4];
+                gradient[5] = ag * v * v * ay / p[5];
+                gradient[6] = -ag * u * v * (ax - ay);
+            }
+            return p[0] + p[1] * g;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import ij.*;
+import ij.plugin.PlugIn;
+import ij.process.*;
+import ij.measure.*;
+import ij.gui.*;
+import java.awt.*;
+
+/**
+ * This plugin continuously analyzes the beam in a rectangular selection of a live image.
+ * Each time the image or the selection changes it computes the centroid, the RMS widths in X and Y,
+ * the widths along the principal axes, the rotation angle and the integrated intensity from the
+ * image moments, after subtracting the mean of the border of the selection as the background
+ * and ignoring pixels within BeamMoments.NOISE_CLIP standard deviations of the border noise.
+ * Optionally a rotated 2-D Gaussian is also fitted, starting from the moments.
+ *
+ * The pixels are processed in parallel stripes (see BeamMoments), so the analysis keeps up with
+ * the image stream.  On the image of a viewer that publishes on a FrameBus every frame the viewer
+ * receives is analyzed, also the frames that the display skips; when the analysis falls behind by
+ * more than FrameBus.MAX_QUEUED frames the newer ones are dropped, and the "Dropped" column counts
+ * them.  On other images the images that arrive during an analysis are merged: the next analysis
+ * uses the newest image.  The results table and the 2-sigma ellipse overlay are redrawn at most
+ * DISPLAY_RATE times per second.
+ *
+ * Angles are in degrees, measured from the X axis towards Y, which is clockwise on the screen.
+ */
+public class Beam_Analyzer implements PlugIn, ImageListener, RoiListener, Runnable, FrameBus.Subscriber {
+    //ImageListener: listens to changes (updateAndDraw) and closing of an image
+    //RoiListener: listens to changes of the selection
+    //Runnable: for background thread
+    //FrameBus.Subscriber: receives every frame of a viewer, also those that are not displayed
+    private ImagePlus imp;                  //the ImagePlus that we listen to
+    private Thread bgThread;                //thread for the analysis (in the background)
+    private boolean doUpdate;               //tells the background thread to update
+    private FrameBus.Subscription subscription; //every frame of the viewer of imp, if it publishes them
+    private final Object analysisLock = new Object(); //one analysis at a time, from the frames or the selection
+    private boolean isClosed;               //set when the background thread exits; no analysis after that
+    private BeamMoments moments;
+    private boolean doFit;
+    private ResultsTable rt;
+    private long lastDisplay;               //time the results were last shown, nanoseconds
+    private long rateStart;                 //start of the current rate measurement, nanoseconds
+    private int rateCount;                  //analyses since rateStart
+    private double analysisRate;            //analyses per second
+    private double analysisTime;            //time of one analysis, smoothed, milliseconds
+    private String lastError;               //the last failure logged, so a repeated one is logged once
+    private static final double DISPLAY_RATE = 10;
+    private static final int MAX_FIT_ITERATIONS = 20;
+    private static final String TABLE_TITLE = "Beam Analysis";
+    private static final String FIT_PREF = "beam_analyzer.fit";
+    private static final String THREADS_PREF = "beam_analyzer.threads";
+
+    /* Initialization and first analysis. Later on, updates are triggered by the listeners **/
+    public void run(String arg) {
+        imp = WindowManager.getCurrentImage();
+        if (imp==null) {
+            IJ.noImage(); return;
+        }
+        if (!isSelection()) {
+            IJ.error("Beam Analyzer","Rectangular Selection Required"); return;
+        }
+        GenericDialog gd = new GenericDialog("Beam Analyzer");
+        gd.addCheckbox("Fit 2-D Gaussian", Prefs.get(FIT_PREF, false));
+        gd.addNumericField("Threads:", Prefs.get(THREADS_PREF, Prefs.getThreads()), 0);
+        gd.showDialog();
+        if (gd.wasCanceled()) return;
+        doFit = gd.getNextBoolean();
+        int threads = Math.max(1, (int)gd.getNextNumber());
+        Prefs.set(FIT_PREF, doFit);
+        Prefs.set(THREADS_PREF, threads);
+        moments = new BeamMoments(threads);
+        rt = new ResultsTable();
+                                            // thread for the analysis in the background
+        bgThread = new Thread(this, "Beam Analyzer");
+        bgThread.start();
+        FrameBus bus = FrameBus.find(imp.getTitle());
+        if (bus != null)
+            subscription = bus.subscribe(this, false, null);
+        imp.addImageListener(this);
+        Roi.addRoiListener(this);
+        synchronized(this) {
+            doUpdate = true;
+            notify();
+        }
+    }
+
+    public void imageOpened(ImagePlus imp) {}
+
+    // this listener is activated if the image content is changed (by imp.updateAndDraw);
+    // with a subscription the frames come from the bus instead
+    public synchronized void imageUpdated(ImagePlus imp) {
+        if (imp == this.imp && subscription == null) {
+            doUpdate = true;
+            notify();
+        }
+    }
+
+    // this listener is activated if the selection is moved, resized or deleted
+    public synchronized void roiModified(ImagePlus imp, int id) {
+        if (imp == this.imp) {
+            doUpdate = true;
+            notify();
+        }
+    }
+
+    // if the image we are listening to is closed, exit
+    public void imageClosed(ImagePlus imp) {
+        if (imp == this.imp) {
+            imp.removeImageListener(this);
+            Roi.removeRoiListener(this);
+            if (subscription != null)
+                subscription.close();
+            bgThread.interrupt();
+        }
+    }
+
+    // this listener is activated for each frame of the viewer that shows the image, on its own thread
+    public void onFrame(FrameBus.Frame f) {
+        try {
+            analyzeAndLog(f.getProcessor());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the background thread for the analysis.
+    public void run() {
+        try {
+            while (true) {
+                synchronized(this) {
+                    while (!doUpdate) wait();       //notify wakes up the thread
+                    doUpdate = false;
+                }
+                analyzeAndLog(imp.getProcessor());
+            }
+        } catch (InterruptedException e) {          //interrupted tells the thread to exit
+        } finally {
+            synchronized(analysisLock) {
+                isClosed = true;
+                moments.shutdown();
+            }
+        }
+    }
+
+    /** analyze an image unless the plugin has stopped; a failure is logged once until an analysis succeeds */
+    void analyzeAndLog(ImageProcessor ip) throws InterruptedException {
+        synchronized(analysisLock) {
+            if (isClosed) return;
+            try {
+                analyze(ip);
+                lastError = null;
+            } catch (RuntimeException e) {          //a failed stripe; log it and go on with the next image
+                String error = e.getCause() != null ? e.getCause().toString() : e.toString();
+                if (!error.equals(lastError)) IJ.log("Beam Analyzer: analysis failed: "+error);
+                lastError = error;
+            }
+        }
+    }
+
+    /** analyze the selection of an image, the current one or a frame, and show the results if they are due */
+    void analyze(ImageProcessor ip) throws InterruptedException {
+        if (!isSelection()) return;
+        Roi roi = imp.getRoi();
+        if (ip == null || roi == null) return;      //these may change asynchronously
+        Rectangle r = roi.getBounds().intersection(new Rectangle(ip.getWidth(), ip.getHeight()));
+        if (r.width < 1 || r.height < 1) return;
+        long start = System.nanoTime();
+        BeamMoments.Result m = moments.compute(ip, r);
+        double[] fit = doFit ? moments.fitGaussian(ip, r, m, MAX_FIT_ITERATIONS) : null;
+        long now = System.nanoTime();
+        double ms = (now - start)*1e-6;
+        analysisTime = analysisTime==0 ? ms : 0.9*analysisTime + 0.1*ms;
+        rateCount++;
+        if (rateStart == 0) rateStart = now;
+        double elapsed = (now - rateStart)*1e-9;
+        if (elapsed >= 1) {
+            analysisRate = rateCount/elapsed;
+            rateCount = 0;
+            rateStart = now;
+        }
+        if ((now - lastDisplay)*1e-9 < 1/DISPLAY_RATE) return;
+        lastDisplay = now;
+        showResults(m, fit);
+    }
+
+    /** show the results in the table and draw the beam ellipse on the image */
+    void showResults(BeamMoments.Result m, double[] fit) {
+        rt.reset();
+        rt.incrementCounter();
+        rt.addValue("Intensity", m.intensity);
+        rt.addValue("Background", m.background);
+        rt.addValue("Noise", m.noise);
+        rt.addValue("X", m.centroidX);
+        rt.addValue("Y", m.centroidY);
+        rt.addValue("SigmaX", m.sigmaX);
+        rt.addValue("SigmaY", m.sigmaY);
+        rt.addValue("SigmaMajor", m.majorSigma);
+        rt.addValue("SigmaMinor", m.minorSigma);
+        rt.addValue("Angle", Math.toDegrees(m.angle));
+        if (fit != null) {
+            for (int i=0; i<BeamMoments.FIT_PARAMS.length; i++) {
+                double v = (i == BeamMoments.FIT_PARAMS.length-1) ? Math.toDegrees(fit[i]) : fit[i];
+                rt.addValue("Fit "+BeamMoments.FIT_PARAMS[i], v);
+            }
+        }
+        rt.addValue("Time (ms)", analysisTime);
+        rt.addValue("Rate (Hz)", analysisRate);
+        if (subscription != null)
+            rt.addValue("Dropped", subscription.getDroppedFrames());
+        rt.show(TABLE_TITLE);
+
+        Overlay overlay = new Overlay();
+        Roi ellipse = getEllipse(m.centroidX, m.centroidY, m.majorSigma, m.minorSigma, m.angle);
+        if (ellipse != null) {
+            ellipse.setStrokeColor(Color.YELLOW);
+            overlay.add(ellipse);
+        }
+        if (fit != null) {
+            ellipse = getEllipse(fit[2], fit[3], fit[4], fit[5], fit[6]);
+            if (ellipse != null) {
+                ellipse.setStrokeColor(Color.RED);
+                overlay.add(ellipse);
+            }
+        }
+        imp.setOverlay(overlay);
+    }
+
+    /** returns the 2-sigma ellipse of a beam, or null if the widths are not usable */
+    static Roi getEllipse(double x, double y, double major, double minor, double angle) {
+        if (!(major > 0) || !(minor > 0) || Double.isNaN(x) || Double.isNaN(y)) return null;
+        double dx = 2*major*Math.cos(angle);
+        double dy = 2*major*Math.sin(angle);
+        return new EllipseRoi(x-dx, y-dy, x+dx, y+dy, minor/major);
+    }
+
+    /** returns true if there is a rectangular selection */
+    boolean isSelection() {
+        if (imp==null)
+            return false;
+        Roi roi = imp.getRoi();
+        if (roi==null)
+            return false;
+        return roi.getType()==Roi.RECTANGLE;
+    }
+}
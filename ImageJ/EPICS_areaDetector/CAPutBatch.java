@@ -0,0 +1,201 @@
+// CAPutBatch.java
+//
+// Issues a group of Channel Access puts together, flushes them with a single
+// flushIO(), and optionally waits for all of the put callbacks at once.
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import gov.aps.jca.CAException;
+import gov.aps.jca.CAStatus;
+import gov.aps.jca.Channel;
+import gov.aps.jca.Context;
+import gov.aps.jca.TimeoutException;
+import gov.aps.jca.event.PutEvent;
+import gov.aps.jca.event.PutListener;
+
+/**
+ * A batch of puts to one or more channels.
+ * Calling put() and pendIO() for each value costs one network round trip per value.
+ * This class sends all of the values in one flush, so the total time is close to
+ * a single round trip, and the IOC receives the values back to back.
+ * The puts are issued in the order they were added.
+ * execute() waits for the IOC to confirm every put; flush() only sends them, for values
+ * that are published continuously, where the next update replaces a lost one.
+ */
+public class CAPutBatch
+{
+    private static final int INT = 0;
+    private static final int DOUBLE = 1;
+    private static final int STRING = 2;
+
+    private static class Entry
+    {
+        final Channel channel;
+        final int type;
+        final double number;
+        final String string;
+        Entry(Channel channel, int type, double number, String string)
+        {
+            this.channel = channel;
+            this.type = type;
+            this.number = number;
+            this.string = string;
+        }
+    }
+
+    private final Context ctxt;
+    private final ArrayList<Entry> entries = new ArrayList<Entry>();
+    private double elapsedTime = 0.;
+
+    /**
+     * Constructor
+     * @param ctxt The Channel Access context the channels belong to.
+     */
+    public CAPutBatch(Context ctxt)
+    {
+        this.ctxt = ctxt;
+    }
+
+    /**
+     * Add an integer put to the batch.
+     * @param ch The channel to write.
+     * @param value The value to write.
+     */
+    public void add(Channel ch, int value)
+    {
+        entries.add(new Entry(ch, INT, value, null));
+    }
+
+    /**
+     * Add a double put to the batch.
+     * @param ch The channel to write.
+     * @param value The value to write.
+     */
+    public void add(Channel ch, double value)
+    {
+        entries.add(new Entry(ch, DOUBLE, value, null));
+    }
+
+    /**
+     * Add a string put to the batch.
+     * @param ch The channel to write.
+     * @param value The value to write.
+     */
+    public void add(Channel ch, String value)
+    {
+        entries.add(new Entry(ch, STRING, 0., value));
+    }
+
+    /**
+     * @return The number of puts in the batch.
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Remove all puts from the batch so it can be reused.
+     */
+    public void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * @return The time in seconds taken by the last call to execute() or flush().
+     */
+    public double getElapsedTime()
+    {
+        return elapsedTime;
+    }
+
+    /**
+     * Issue every put in the batch without completion callbacks and flush once.
+     * This does not wait for the IOC, so it costs no round trip and may be called
+     * from any thread.
+     * @throws CAException If a put could not be issued.
+     * @throws IllegalStateException If a channel is not connected.
+     */
+    public void flush() throws CAException, IllegalStateException
+    {
+        long startTime = System.nanoTime();
+        for (Entry e : entries) {
+            switch (e.type) {
+                case INT:
+                    e.channel.put((int)e.number);
+                    break;
+                case DOUBLE:
+                    e.channel.put(e.number);
+                    break;
+                case STRING:
+                    e.channel.put(e.string);
+                    break;
+            }
+        }
+        ctxt.flushIO();
+        elapsedTime = (System.nanoTime() - startTime) / 1e9;
+    }
+
+    /**
+     * Issue every put in the batch with a completion callback, flush once,
+     * and wait until all of the callbacks have arrived.
+     * This must not be called from a Channel Access callback thread.
+     * @param timeout The maximum time in seconds to wait for all puts to complete.
+     * @throws TimeoutException If some puts did not complete within the timeout.
+     * @throws CAException If a put could not be issued or the IOC reported a failure.
+     * @throws IllegalStateException If a channel is not connected.
+     */
+    public void execute(double timeout) throws TimeoutException, CAException, IllegalStateException
+    {
+        long startTime = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(entries.size());
+        final CAStatus[] failure = new CAStatus[1];
+        final String[] failedChannel = new String[1];
+        PutListener listener = new PutListener() {
+            public void putCompleted(PutEvent ev) {
+                CAStatus status = ev.getStatus();
+                if (status == null || !status.isSuccessful()) {
+                    synchronized (failure) {
+                        if (failure[0] == null) {
+                            failure[0] = status;
+                            failedChannel[0] = ((Channel)ev.getSource()).getName();
+                        }
+                    }
+                }
+                done.countDown();
+            }
+        };
+        for (Entry e : entries) {
+            switch (e.type) {
+                case INT:
+                    e.channel.put((int)e.number, listener);
+                    break;
+                case DOUBLE:
+                    e.channel.put(e.number, listener);
+                    break;
+                case STRING:
+                    e.channel.put(e.string, listener);
+                    break;
+            }
+        }
+        ctxt.flushIO();
+        try {
+            if (!done.await((long)(timeout * 1e9), TimeUnit.NANOSECONDS)) {
+                throw new TimeoutException((entries.size() - done.getCount()) + " of " + entries.size()
+                                           + " puts completed in " + timeout + " seconds");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TimeoutException("Interrupted waiting for puts to complete", ex);
+        } finally {
+            elapsedTime = (System.nanoTime() - startTime) / 1e9;
+        }
+        synchronized (failure) {
+            if (failedChannel[0] != null) {
+                throw new CAException("Put to " + failedChannel[0] + " failed: " + failure[0]);
+            }
+        }
+    }
+}
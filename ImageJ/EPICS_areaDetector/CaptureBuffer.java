@@ -0,0 +1,321 @@
+// CaptureBuffer.java
+//
+// Bounded ring-buffer capture of live frames for the "Capture to Stack" option
+// of the viewer plugins.
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Properties;
+
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+
+/**
+ * A ring buffer of frames with preallocated pixel arrays.
+ * <p>
+ * The constructor allocates every slot, so the number of frames is fixed by a byte budget and a maximum
+ * frame count, and add() only copies the pixels into the oldest slot: capturing a pre-trigger history at
+ * the full frame rate costs no allocation.  The budget is also limited to MAX_HEAP_FRACTION of the heap
+ * that is free when the buffer is created, so capturing cannot exhaust the heap.
+ * <p>
+ * trigger() freezes the buffer, at once or after a number of post-trigger frames; after that add() ignores
+ * frames.  toStack() then hands the frames, oldest first, to an ImageStack without copying them, optionally
+ * keeping only the frames of the last few seconds.  The buffer cannot be used after toStack().
+ * <p>
+ * All methods are synchronized, so one thread can add frames while another triggers and reads the buffer.
+ */
+public class CaptureBuffer implements FrameCapture
+{
+    /** The largest fraction of the free heap that a buffer will allocate */
+    public static final double MAX_HEAP_FRACTION = 0.75;
+
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final Object[] slots;
+    private final long[] ids;
+    private final long[] times;
+    private final double maxSeconds;
+    private int next;           // index of the next slot to write
+    private int count;          // number of valid slots
+    private int postTrigger;    // frames still to capture after a trigger, -1 if not triggered
+    private boolean released;
+
+    /**
+     * The capture settings of a viewer, kept in its properties file.
+     */
+    public static class Settings
+    {
+        /** The byte budget in MB */
+        public double budgetMB = 1024;
+        /** The maximum number of frames, 0 for as many as the budget allows */
+        public int maxFrames = 0;
+        /** Keep only the frames of the last maxSeconds seconds, 0 for all */
+        public double maxSeconds = 0;
+        /** The number of frames captured after a trigger */
+        public int postTriggerFrames = 0;
+        /** Keep the frames LZ4-compressed in memory (CompressedStack) instead of in the ring buffer */
+        public boolean compress = false;
+        /** Capture to a memory-mapped file (MappedStack) instead of the ring buffer */
+        public boolean toDisk = false;
+        /** The directory of the capture files */
+        public String directory = System.getProperty("java.io.tmpdir");
+        /** The size limit of a capture file in GB */
+        public double diskBudgetGB = 16;
+
+        /**
+         * Read the settings, keeping the current value of any that are missing.
+         * @param properties The properties of the viewer.
+         */
+        public void load(Properties properties)
+        {
+            budgetMB = parse(properties.getProperty("captureBudgetMB"), budgetMB);
+            maxFrames = (int)parse(properties.getProperty("captureMaxFrames"), maxFrames);
+            maxSeconds = parse(properties.getProperty("captureSeconds"), maxSeconds);
+            postTriggerFrames = (int)parse(properties.getProperty("capturePostTrigger"), postTriggerFrames);
+            compress = Boolean.parseBoolean(properties.getProperty("captureCompress", "" + compress));
+            toDisk = Boolean.parseBoolean(properties.getProperty("captureToDisk", "" + toDisk));
+            directory = properties.getProperty("captureDirectory", directory);
+            diskBudgetGB = parse(properties.getProperty("captureDiskBudgetGB"), diskBudgetGB);
+        }
+
+        /**
+         * @param properties The properties of the viewer, which receive the settings.
+         */
+        public void save(Properties properties)
+        {
+            properties.setProperty("captureBudgetMB", "" + budgetMB);
+            properties.setProperty("captureMaxFrames", "" + maxFrames);
+            properties.setProperty("captureSeconds", "" + maxSeconds);
+            properties.setProperty("capturePostTrigger", "" + postTriggerFrames);
+            properties.setProperty("captureCompress", "" + compress);
+            properties.setProperty("captureToDisk", "" + toDisk);
+            properties.setProperty("captureDirectory", directory);
+            properties.setProperty("captureDiskBudgetGB", "" + diskBudgetGB);
+        }
+
+        /**
+         * Let the user edit the settings.
+         * @param title The dialog title.
+         * @return false if the dialog was canceled.
+         */
+        public boolean showDialog(String title)
+        {
+            GenericDialog gd = new GenericDialog(title);
+            gd.addNumericField("Memory budget:", budgetMB, 0, 8, "MB");
+            gd.addNumericField("Maximum frames:", maxFrames, 0, 8, "(0 = budget only)");
+            gd.addNumericField("Keep last:", maxSeconds, 1, 8, "s (0 = all)");
+            gd.addNumericField("Frames after trigger:", postTriggerFrames, 0, 8, "");
+            gd.addCheckbox("Compress in memory (LZ4)", compress);
+            gd.addCheckbox("Capture to disk (memory-mapped file)", toDisk);
+            gd.addDirectoryField("Directory:", directory);
+            gd.addNumericField("File size limit:", diskBudgetGB, 1, 8, "GB");
+            gd.showDialog();
+            if (gd.wasCanceled()) return false;
+            budgetMB = Math.max(1, gd.getNextNumber());
+            maxFrames = Math.max(0, (int)gd.getNextNumber());
+            maxSeconds = Math.max(0, gd.getNextNumber());
+            postTriggerFrames = Math.max(0, (int)gd.getNextNumber());
+            compress = gd.getNextBoolean();
+            toDisk = gd.getNextBoolean();
+            directory = gd.getNextString();
+            diskBudgetGB = Math.max(0.001, gd.getNextNumber());
+            return true;
+        }
+
+        /**
+         * Make the capture these settings select: a MappedStack in a new file in the directory named from
+         * the image name and the time, a CompressedStack, or a CaptureBuffer.
+         * @param width The frame width.
+         * @param height The frame height.
+         * @param bitDepth 8, 16, 32 (float) or 24 (RGB).
+         * @param name The image name.
+         * @return The capture, with all its storage allocated.
+         * @throws IOException If the capture file cannot be created.
+         */
+        public FrameCapture create(int width, int height, int bitDepth, String name) throws IOException
+        {
+            if (!toDisk) {
+                if (compress) return new CompressedStack(width, height, bitDepth, this);
+                return new CaptureBuffer(width, height, bitDepth, this);
+            }
+            String time = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+            File file = new File(directory, name.replaceAll("[^A-Za-z0-9_.-]", "_") + "_" + time + ".raw");
+            return new MappedStack(file, width, height, bitDepth, this);
+        }
+
+        private static double parse(String s, double defaultValue)
+        {
+            if (s == null) return defaultValue;
+            try {
+                return Double.parseDouble(s);
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+    }
+
+    /**
+     * Constructor.  Allocates all the slots.
+     * @param width The frame width.
+     * @param height The frame height.
+     * @param bitDepth 8, 16, 32 (float) or 24 (RGB), as ImagePlus.getBitDepth() returns it.
+     * @param settings The byte budget, maximum number of frames and time to keep.
+     */
+    public CaptureBuffer(int width, int height, int bitDepth, Settings settings)
+    {
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        maxSeconds = settings.maxSeconds;
+        int capacity = getCapacity(width, height, bitDepth, settings);
+        slots = new Object[capacity];
+        for (int i = 0; i < capacity; i++) slots[i] = newPixels(width * height, bitDepth);
+        ids = new long[capacity];
+        times = new long[capacity];
+        postTrigger = -1;
+    }
+
+    /**
+     * @return The number of frames that a buffer with these settings holds: the budget, limited to
+     *         MAX_HEAP_FRACTION of the free heap, divided by the frame size, and at most settings.maxFrames.
+     *         At least 1.
+     */
+    public static int getCapacity(int width, int height, int bitDepth, Settings settings)
+    {
+        long frameBytes = getFrameBytes(width, height, bitDepth);
+        Runtime runtime = Runtime.getRuntime();
+        long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        double budget = Math.min(settings.budgetMB * 1024 * 1024, MAX_HEAP_FRACTION * freeHeap);
+        long capacity = (long)(budget / frameBytes);
+        if (settings.maxFrames > 0) capacity = Math.min(capacity, settings.maxFrames);
+        return (int)Math.max(1, Math.min(capacity, Integer.MAX_VALUE - 8));
+    }
+
+    /**
+     * @return The bytes of one frame.
+     */
+    public static long getFrameBytes(int width, int height, int bitDepth)
+    {
+        return (long)width * height * (bitDepth == 8 ? 1 : bitDepth == 16 ? 2 : 4);
+    }
+
+    /**
+     * @return true if frames of this size and type can be added.
+     */
+    public boolean matches(int width, int height, int bitDepth)
+    {
+        return width == this.width && height == this.height && bitDepth == this.bitDepth;
+    }
+
+    /**
+     * @return The number of frames the buffer holds.
+     */
+    public int getCapacity()
+    {
+        return slots.length;
+    }
+
+    /**
+     * @return The number of frames captured, at most getCapacity().
+     */
+    public synchronized int size()
+    {
+        return count;
+    }
+
+    /**
+     * Copy a frame into the buffer, overwriting the oldest frame if it is full.
+     * @param pixels The pixels, a byte[], short[], float[] or int[] of width*height elements matching the bit depth.
+     * @param id The frame number, for the slice label.
+     * @return false if the buffer is frozen and the frame was ignored.
+     */
+    public synchronized boolean add(Object pixels, long id)
+    {
+        if (released || postTrigger == 0) return false;
+        int i = next;
+        System.arraycopy(pixels, 0, slots[i], 0, width * height);
+        ids[i] = id;
+        times[i] = System.nanoTime();
+        next = (i + 1 == slots.length) ? 0 : i + 1;
+        if (count < slots.length) count++;
+        if (postTrigger > 0) postTrigger--;
+        return true;
+    }
+
+    /**
+     * Freeze the buffer after a number of further frames.
+     * A second trigger does not delay a trigger that is already counting down.
+     * @param postFrames The number of frames to capture before freezing, 0 to freeze now.
+     */
+    public synchronized void trigger(int postFrames)
+    {
+        postFrames = Math.max(0, postFrames);
+        if (postTrigger < 0 || postFrames < postTrigger) postTrigger = postFrames;
+    }
+
+    /**
+     * @return true if the buffer has been triggered and all post-trigger frames have been captured.
+     */
+    public synchronized boolean isFrozen()
+    {
+        return postTrigger == 0;
+    }
+
+    /**
+     * @return true if trigger() has been called.
+     */
+    public synchronized boolean isTriggered()
+    {
+        return postTrigger >= 0;
+    }
+
+    /**
+     * Freeze the buffer and give its frames to a stack, oldest first.  The pixel arrays are not copied,
+     * so the buffer is released and ignores further frames.
+     * @param labelPrefix The start of the slice labels, which end with the frame number.
+     * @return The stack, or null if no frames were captured.
+     */
+    public synchronized ImageStack toStack(String labelPrefix)
+    {
+        postTrigger = 0;
+        if (released || count == 0) {
+            released = true;
+            return null;
+        }
+        released = true;
+        int first = next - count;
+        if (first < 0) first += slots.length;
+        long newest = times[next == 0 ? slots.length - 1 : next - 1];
+        ImageStack stack = new ImageStack(width, height);
+        for (int k = 0; k < count; k++) {
+            int i = first + k;
+            if (i >= slots.length) i -= slots.length;
+            if (maxSeconds > 0 && (newest - times[i]) * 1e-9 > maxSeconds) continue;
+            stack.addSlice(labelPrefix + ids[i], slots[i]);
+        }
+        for (int i = 0; i < slots.length; i++) slots[i] = null;
+        return stack;
+    }
+
+    /**
+     * Freeze the buffer and release its slots without making a stack.
+     */
+    public synchronized void close()
+    {
+        postTrigger = 0;
+        released = true;
+        for (int i = 0; i < slots.length; i++) slots[i] = null;
+    }
+
+    private static Object newPixels(int n, int bitDepth)
+    {
+        switch (bitDepth) {
+            case 8: return new byte[n];
+            case 16: return new short[n];
+            case 24: return new int[n];
+            default: return new float[n];
+        }
+    }
+}
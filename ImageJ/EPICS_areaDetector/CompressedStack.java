@@ -0,0 +1,484 @@
+// CompressedStack.java
+//
+// Compressed in-memory capture for the "Capture to Stack" option of the viewer
+// plugins: every frame is kept LZ4-compressed, so the same heap holds several
+// times more history than CaptureBuffer.
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * A ring of LZ4-compressed frames in one preallocated byte arena, which ImageJ sees as a virtual stack.
+ * <p>
+ * add() only copies the pixels into a preallocated staging buffer, shuffling their bytes (see
+ * LZ4.shuffle()) on the way, and returns; up to MAX_COMPRESSORS background threads compress the staged
+ * frames and append them to the arena in the order they were added, dropping the oldest frames when it
+ * is full.  There are two more staging buffers than threads; if the compressors fall that far behind,
+ * add() waits for them, so no frame is lost.  Frames that were received with the lz4 codec can be added
+ * as they are with addCompressed(), which skips compression.
+ * <p>
+ * The arena has the byte budget of the settings, limited to CaptureBuffer.MAX_HEAP_FRACTION of the free
+ * heap like a CaptureBuffer, so the number of frames it holds depends on how well they compress.
+ * <p>
+ * After toStack() the slices are decompressed when ImageJ asks for them, into an LRU cache of the last
+ * CACHE_SLICES slices, so stepping back and forth through nearby slices does not decompress them again.
+ * Edits to a slice last while it is in the cache.  close() discards a capture that is not wanted: it stops
+ * the compressors and drops the arena.
+ */
+public class CompressedStack extends VirtualStack implements FrameCapture
+{
+    /** The largest number of compressor threads, which is also limited to half the processors */
+    public static final int MAX_COMPRESSORS = 4;
+    /** The number of decompressed slices kept */
+    public static final int CACHE_SLICES = 8;
+    // The number of index entries allows for frames compressed up to this ratio
+    private static final int MAX_RATIO = 64;
+
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final int frameBytes;
+    private final double maxSeconds;
+    private byte[] arena;               // null after close()
+    private final int[] offsets;
+    private final int[] lengths;
+    private final boolean[] shuffled;
+    private final long[] ids;
+    private final long[] times;
+    private int first;          // index entry of the oldest frame
+    private int count;          // number of frames in the arena
+    private int shown;          // index entry of slice 1, set by toStack()
+    private int shownCount;     // number of slices, set by toStack()
+    private int writeOffset;    // where the next frame goes in the arena
+    private int pending;        // frames added but not yet in the arena
+    private long nextSequence;  // the sequence number of the next frame added
+    private long nextStore;     // the sequence number of the next frame to store
+    private int postTrigger;    // frames still to capture after a trigger, -1 if not triggered
+    private long rawBytes;      // uncompressed bytes of the frames in the arena
+    private long storedBytes;   // compressed bytes of the frames in the arena
+    private boolean stacked;    // toStack() has been called
+    private String labelPrefix = "";
+    private final BlockingQueue<Staged> free;
+    private final BlockingQueue<Staged> staged;
+    private final Thread[] compressors;
+    private final byte[] scratch;
+    private final Map<Integer, Object> cache = new LinkedHashMap<Integer, Object>(CACHE_SLICES * 2, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer, Object> eldest) {
+            return size() > CACHE_SLICES;
+        }
+    };
+
+    // A frame waiting for the compressor
+    private static class Staged
+    {
+        final byte[] data;
+        int length;
+        boolean compressed;
+        long sequence;
+        long id;
+        long time;
+
+        Staged(int size)
+        {
+            data = new byte[size];
+        }
+    }
+
+    /**
+     * Constructor.  Allocates the arena and the staging buffers and starts the compressor threads.
+     * @param width The frame width.
+     * @param height The frame height.
+     * @param bitDepth 8, 16, 32 (float) or 24 (RGB), as ImagePlus.getBitDepth() returns it.
+     * @param settings The byte budget, maximum number of frames and time to keep.
+     */
+    public CompressedStack(int width, int height, int bitDepth, CaptureBuffer.Settings settings)
+    {
+        super(width, height);
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        maxSeconds = settings.maxSeconds;
+        long bytes = CaptureBuffer.getFrameBytes(width, height, bitDepth);
+        if (bytes > Integer.MAX_VALUE / 2) throw new IllegalArgumentException("Frame larger than 1 GB");
+        frameBytes = (int)bytes;
+        int stagingBytes = LZ4.maxCompressedLength(frameBytes);
+        Runtime runtime = Runtime.getRuntime();
+        int numThreads = Math.max(1, Math.min(MAX_COMPRESSORS, runtime.availableProcessors() / 2));
+        int numStaging = numThreads + 2;
+        // Each thread also has an output buffer, and getPixels() one for decompressing
+        long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        double budget = Math.min(settings.budgetMB * 1024 * 1024,
+            CaptureBuffer.MAX_HEAP_FRACTION * freeHeap - (numStaging + numThreads + 1.0) * stagingBytes);
+        arena = new byte[(int)Math.max(stagingBytes, Math.min(budget, Integer.MAX_VALUE - 8))];
+        long capacity = Math.max(1, arena.length / Math.max(1, frameBytes / MAX_RATIO));
+        if (settings.maxFrames > 0) capacity = Math.min(capacity, settings.maxFrames);
+        capacity = Math.min(capacity, 1 << 24);
+        offsets = new int[(int)capacity];
+        lengths = new int[(int)capacity];
+        shuffled = new boolean[(int)capacity];
+        ids = new long[(int)capacity];
+        times = new long[(int)capacity];
+        free = new ArrayBlockingQueue<Staged>(numStaging);
+        staged = new ArrayBlockingQueue<Staged>(numStaging);
+        for (int i = 0; i < numStaging; i++) free.add(new Staged(stagingBytes));
+        scratch = new byte[stagingBytes];
+        postTrigger = -1;
+        compressors = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            compressors[i] = new Thread(new Runnable() {
+                public void run() {
+                    compress();
+                }
+            }, "CompressedStack");
+            compressors[i].setDaemon(true);
+            compressors[i].start();
+        }
+    }
+
+    public boolean matches(int width, int height, int bitDepth)
+    {
+        return width == this.width && height == this.height && bitDepth == this.bitDepth;
+    }
+
+    /**
+     * @return The largest number of frames the arena can index; how many it holds depends on the compression.
+     */
+    public int getCapacity()
+    {
+        return ids.length;
+    }
+
+    /**
+     * @return The size of the arena in bytes.
+     */
+    public synchronized long getArenaBytes()
+    {
+        return arena == null ? 0 : arena.length;
+    }
+
+    /**
+     * @return The uncompressed size of the frames in the arena divided by their compressed size, 0 if empty.
+     */
+    public synchronized double getCompressionRatio()
+    {
+        return storedBytes == 0 ? 0 : (double)rawBytes / storedBytes;
+    }
+
+    /**
+     * @return The number of frames captured, or of slices after toStack().
+     */
+    public synchronized int size()
+    {
+        return stacked ? shownCount : count + pending;
+    }
+
+    public int getSize()
+    {
+        return size();
+    }
+
+    /**
+     * Stage a frame for compression, waiting if the compressors are too far behind.
+     */
+    public boolean add(Object pixels, long id)
+    {
+        Staged s = take();
+        if (s == null) return false;
+        LZ4.shuffle(pixels, s.data);
+        s.length = frameBytes;
+        s.compressed = false;
+        return put(s, id);
+    }
+
+    /**
+     * Add a frame that is already LZ4-compressed, such as the value of an NTNDArray with the lz4 codec.
+     * @param data The LZ4 block of the frame's pixels in the native byte order, without shuffling.
+     * @param length The length of the block.
+     * @param id The frame number, for the slice label.
+     * @return false if the capture is frozen and the frame was ignored.
+     * @throws IllegalArgumentException If the block is longer than any block of a frame can be.
+     */
+    public boolean addCompressed(byte[] data, int length, long id)
+    {
+        if (length > LZ4.maxCompressedLength(frameBytes))
+            throw new IllegalArgumentException("Compressed frame of " + length + " bytes is larger than possible");
+        Staged s = take();
+        if (s == null) return false;
+        System.arraycopy(data, 0, s.data, 0, length);
+        s.length = length;
+        s.compressed = true;
+        return put(s, id);
+    }
+
+    public synchronized void trigger(int postFrames)
+    {
+        postFrames = Math.max(0, postFrames);
+        if (postTrigger < 0 || postFrames < postTrigger) postTrigger = postFrames;
+    }
+
+    public synchronized boolean isFrozen()
+    {
+        return postTrigger == 0;
+    }
+
+    /**
+     * Freeze the capture, wait for the compressors to store the staged frames and return this stack, which
+     * starts at the first frame of the last settings.maxSeconds seconds if that is set.
+     */
+    public synchronized ImageStack toStack(String labelPrefix)
+    {
+        postTrigger = 0;
+        this.labelPrefix = labelPrefix;
+        boolean interrupted = false;
+        while (pending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        for (Thread t : compressors) t.interrupt();
+        if (interrupted) Thread.currentThread().interrupt();
+        stacked = true;
+        shown = first;
+        shownCount = count;
+        if (maxSeconds > 0 && count > 0) {
+            long newest = times[index(count - 1)];
+            while (shownCount > 1 && (newest - times[shown]) * 1e-9 > maxSeconds) {
+                shown = next(shown);
+                shownCount--;
+            }
+        }
+        return count == 0 ? null : this;
+    }
+
+    /**
+     * Freeze the capture, stop the compressors and drop the arena and the frames, without making a stack.
+     * An add() waiting for the compressors returns without adding its frame.
+     */
+    public synchronized void close()
+    {
+        postTrigger = 0;
+        for (Thread t : compressors) t.interrupt();
+        staged.drainTo(free);
+        arena = null;
+        cache.clear();
+        count = pending = shownCount = 0;
+        rawBytes = storedBytes = 0;
+        notifyAll();
+    }
+
+    public int getBitDepth()
+    {
+        return bitDepth;
+    }
+
+    public synchronized String getSliceLabel(int n)
+    {
+        return labelPrefix + ids[entry(n)];
+    }
+
+    public void setSliceLabel(String label, int n)
+    {
+    }
+
+    public String getFileName(int n)
+    {
+        return getSliceLabel(n);
+    }
+
+    /**
+     * @return A processor with the pixels of slice n, 1 &lt;= n &lt;= getSize().
+     */
+    public ImageProcessor getProcessor(int n)
+    {
+        Object pixels = getPixels(n);
+        switch (bitDepth) {
+            case 8: return new ByteProcessor(width, height, (byte[])pixels);
+            case 16: return new ShortProcessor(width, height, (short[])pixels, null);
+            case 24: return new ColorProcessor(width, height, (int[])pixels);
+            default: return new FloatProcessor(width, height, (float[])pixels);
+        }
+    }
+
+    /**
+     * @return The pixels of slice n, 1 &lt;= n &lt;= getSize(), decompressed unless they are in the cache.
+     */
+    public synchronized Object getPixels(int n)
+    {
+        Object pixels = cache.get(n);
+        if (pixels != null) return pixels;
+        int i = entry(n);
+        int length = LZ4.decompress(arena, offsets[i], lengths[i], scratch, 0, frameBytes);
+        if (length != frameBytes) throw new IllegalStateException("Slice " + n + ": decompressed " + length + " bytes, expected " + frameBytes);
+        pixels = newPixels();
+        if (shuffled[i]) {
+            LZ4.unshuffle(scratch, pixels);
+        } else {
+            ByteBuffer bytes = ByteBuffer.wrap(scratch, 0, frameBytes).order(ByteOrder.nativeOrder());
+            switch (bitDepth) {
+                case 8: bytes.get((byte[])pixels); break;
+                case 16: bytes.asShortBuffer().get((short[])pixels); break;
+                case 24: bytes.asIntBuffer().get((int[])pixels); break;
+                default: bytes.asFloatBuffer().get((float[])pixels); break;
+            }
+        }
+        cache.put(n, pixels);
+        return pixels;
+    }
+
+    /**
+     * Replace the pixels of slice n in the cache.  They are lost when the slice leaves the cache.
+     */
+    public synchronized void setPixels(Object pixels, int n)
+    {
+        entry(n);
+        cache.put(n, pixels);
+    }
+
+    public String toString()
+    {
+        return String.format("%dx%d, %d-bit, %d frames, %.1f MB compressed %.1f:1", width, height, bitDepth,
+            size(), storedBytes / 1048576., getCompressionRatio());
+    }
+
+    // Get a free staging buffer, or null if the capture is frozen
+    private Staged take()
+    {
+        synchronized (this) {
+            if (postTrigger == 0) return null;
+        }
+        try {
+            return free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // Hand a staging buffer to the compressors
+    private boolean put(Staged s, long id)
+    {
+        synchronized (this) {
+            if (postTrigger == 0) {
+                free.add(s);
+                return false;
+            }
+            s.sequence = nextSequence++;
+            s.id = id;
+            s.time = System.nanoTime();
+            pending++;
+            if (postTrigger > 0) postTrigger--;
+            staged.add(s);
+        }
+        return true;
+    }
+
+    // A compressor thread
+    private void compress()
+    {
+        LZ4 lz4 = new LZ4();
+        byte[] out = new byte[LZ4.maxCompressedLength(frameBytes)];
+        while (true) {
+            Staged s;
+            try {
+                s = staged.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (s.compressed)
+                    store(s.data, s.length, false, s);
+                else
+                    store(out, lz4.compress(s.data, 0, s.length, out, 0), true, s);
+            } catch (InterruptedException e) {
+                return;
+            }
+            free.add(s);
+        }
+    }
+
+    // Append a compressed frame to the arena after the frames added before it,
+    // dropping the oldest frames to make room
+    private synchronized void store(byte[] data, int length, boolean isShuffled, Staged s) throws InterruptedException
+    {
+        while (arena != null && s.sequence != nextStore) wait();
+        if (arena == null) return;      // closed
+        if (writeOffset + length > arena.length) {
+            // Drop the frames left at the end of the arena by the last lap, then wrap
+            while (count > 0 && offsets[first] >= writeOffset) drop();
+            writeOffset = 0;
+        }
+        while (count > 0 && (count == ids.length || overlaps(first, writeOffset, length))) drop();
+        System.arraycopy(data, 0, arena, writeOffset, length);
+        int i = index(count);
+        offsets[i] = writeOffset;
+        lengths[i] = length;
+        shuffled[i] = isShuffled;
+        ids[i] = s.id;
+        times[i] = s.time;
+        count++;
+        nextStore++;
+        writeOffset += length;
+        rawBytes += frameBytes;
+        storedBytes += length;
+        pending--;
+        notifyAll();
+    }
+
+    private void drop()
+    {
+        rawBytes -= frameBytes;
+        storedBytes -= lengths[first];
+        first = next(first);
+        count--;
+    }
+
+    private boolean overlaps(int i, int offset, int length)
+    {
+        return offsets[i] < offset + length && offset < offsets[i] + lengths[i];
+    }
+
+    // The index entry of the k-th oldest frame
+    private int index(int k)
+    {
+        int i = first + k;
+        return i >= ids.length ? i - ids.length : i;
+    }
+
+    private int next(int i)
+    {
+        return i + 1 == ids.length ? 0 : i + 1;
+    }
+
+    // The index entry of slice n
+    private int entry(int n)
+    {
+        if (n < 1 || n > shownCount)
+            throw new IllegalArgumentException("Argument out of range: " + n);
+        int i = shown + n - 1;
+        return i >= ids.length ? i - ids.length : i;
+    }
+
+    private Object newPixels()
+    {
+        int n = width * height;
+        switch (bitDepth) {
+            case 8: return new byte[n];
+            case 16: return new short[n];
+            case 24: return new int[n];
+            default: return new float[n];
+        }
+    }
+}
@@ -0,0 +1,88 @@
+// ConnectionCounter.java
+//
+// Tracks the connection state of a group of Channel Access channels using
+// ConnectionListener callbacks rather than polling getConnectionState().
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import gov.aps.jca.Channel;
+import gov.aps.jca.event.ConnectionEvent;
+import gov.aps.jca.event.ConnectionListener;
+
+/**
+ * Aggregate connection state for a group of channels.
+ * Pass this object as the ConnectionListener when creating each channel in the group.
+ * The number of connected channels is maintained atomically in the callbacks,
+ * so isConnected() is a constant time read that can be called for every frame.
+ */
+public class ConnectionCounter implements ConnectionListener
+{
+    /**
+     * Called when the group changes between all channels connected and not all connected.
+     */
+    public interface Listener
+    {
+        void groupConnectionChanged(boolean connected);
+    }
+
+    private final int numChannels;
+    private final Listener listener;
+    private final AtomicInteger numConnected = new AtomicInteger(0);
+    private final Set<Channel> connectedChannels = ConcurrentHashMap.newKeySet();
+    private volatile boolean isConnected = false;
+    private volatile boolean isClosed = false;
+
+    /**
+     * Constructor
+     * @param numChannels The number of channels in the group.
+     * @param listener Notified when the aggregate state changes, may be null.
+     * It is called from a Channel Access callback thread, so it must return quickly
+     * and must not call pendIO.
+     */
+    public ConnectionCounter(int numChannels, Listener listener)
+    {
+        this.numChannels = numChannels;
+        this.listener = listener;
+    }
+
+    public void connectionChanged(ConnectionEvent ev)
+    {
+        if (isClosed) return;
+        Channel ch = (Channel)ev.getSource();
+        if (ev.isConnected()) {
+            if (connectedChannels.add(ch)) numConnected.incrementAndGet();
+        } else {
+            if (connectedChannels.remove(ch)) numConnected.decrementAndGet();
+        }
+        update();
+    }
+
+    // The count is re-read under the lock so that callbacks racing on different
+    // threads cannot leave isConnected out of step with numConnected
+    private synchronized void update()
+    {
+        boolean allConnected = (numConnected.get() == numChannels);
+        if (isClosed || allConnected == isConnected) return;
+        isConnected = allConnected;
+        if (listener != null) listener.groupConnectionChanged(allConnected);
+    }
+
+    /**
+     * Ignore all further callbacks, used before the channels in the group are destroyed.  The channels
+     * keep this object as their ConnectionListener until they are destroyed, so callbacks can still
+     * arrive; after close() they no longer change the state or reach the listener.
+     */
+    public void close()
+    {
+        isClosed = true;
+    }
+
+    /**
+     * @return true if every channel in the group is connected.
+     */
+    public boolean isConnected()
+    {
+        return isConnected;
+    }
+}
@@ -0,0 +1,135 @@
+// CoordinateTransform.java
+//
+// An exact integer affine transform between the pixel coordinates of two
+// images, used to map regions through a chain of areaDetector plugins.
+import java.awt.Rectangle;
+
+/**
+ * An immutable 2-D affine transform with integer coefficients:
+ * <pre>
+ *   x' = xx*x + xy*y + x0
+ *   y' = yx*x + yy*y + y0
+ * </pre>
+ * Coordinates are pixel edges, so the pixel with index i covers [i, i+1).  A reversal of an
+ * image of width W is therefore x' = W - x, and a rectangle maps to a rectangle by mapping two
+ * of its corners.
+ * <p>
+ * Mapping from a binned or cropped image back towards the sensor only multiplies and adds,
+ * so the transforms are exact.
+ */
+public final class CoordinateTransform
+{
+    private final long xx, xy, x0;
+    private final long yx, yy, y0;
+
+    public static final CoordinateTransform IDENTITY = new CoordinateTransform(1, 0, 0, 0, 1, 0);
+
+    private CoordinateTransform(long xx, long xy, long x0, long yx, long yy, long y0)
+    {
+        this.xx = xx;
+        this.xy = xy;
+        this.x0 = x0;
+        this.yx = yx;
+        this.yy = yy;
+        this.y0 = y0;
+    }
+
+    /**
+     * @param dx The offset added to x.
+     * @param dy The offset added to y.
+     * @return A transform that adds an offset.
+     */
+    public static CoordinateTransform translation(long dx, long dy)
+    {
+        return new CoordinateTransform(1, 0, dx, 0, 1, dy);
+    }
+
+    /**
+     * @param sx The factor x is multiplied by, for example a binning factor.
+     * @param sy The factor y is multiplied by.
+     * @return A transform that scales each axis.
+     */
+    public static CoordinateTransform scale(long sx, long sy)
+    {
+        return new CoordinateTransform(sx, 0, 0, 0, sy, 0);
+    }
+
+    /**
+     * @param reverseX Reverse the X axis.
+     * @param reverseY Reverse the Y axis.
+     * @param sizeX The width of the image being reversed.
+     * @param sizeY The height of the image being reversed.
+     * @return A transform that reverses the selected axes of an image.
+     */
+    public static CoordinateTransform reflection(boolean reverseX, boolean reverseY, long sizeX, long sizeY)
+    {
+        return new CoordinateTransform(reverseX ? -1 : 1, 0, reverseX ? sizeX : 0,
+                                       0, reverseY ? -1 : 1, reverseY ? sizeY : 0);
+    }
+
+    /**
+     * @return A transform that exchanges the X and Y axes.
+     */
+    public static CoordinateTransform swapAxes()
+    {
+        return new CoordinateTransform(0, 1, 0, 1, 0, 0);
+    }
+
+    /**
+     * Composes two transforms.
+     * @param next The transform to apply after this one.
+     * @return A transform equivalent to applying this transform and then next.
+     */
+    public CoordinateTransform then(CoordinateTransform next)
+    {
+        return new CoordinateTransform(
+            next.xx * xx + next.xy * yx,
+            next.xx * xy + next.xy * yy,
+            next.xx * x0 + next.xy * y0 + next.x0,
+            next.yx * xx + next.yy * yx,
+            next.yx * xy + next.yy * yy,
+            next.yx * x0 + next.yy * y0 + next.y0);
+    }
+
+    /**
+     * Maps a rectangle of pixels.
+     * @param r The rectangle to map.
+     * @return The mapped rectangle.
+     */
+    public Rectangle map(Rectangle r)
+    {
+        long x1 = (long)r.x, y1 = (long)r.y;
+        long x2 = x1 + r.width, y2 = y1 + r.height;
+        long ax = xx * x1 + xy * y1 + x0, bx = xx * x2 + xy * y2 + x0;
+        long ay = yx * x1 + yy * y1 + y0, by = yx * x2 + yy * y2 + y0;
+        long minX = Math.min(ax, bx), maxX = Math.max(ax, bx);
+        long minY = Math.min(ay, by), maxY = Math.max(ay, by);
+        return new Rectangle((int)minX, (int)minY, (int)(maxX - minX), (int)(maxY - minY));
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof CoordinateTransform)) return false;
+        CoordinateTransform t = (CoordinateTransform)o;
+        return xx == t.xx && xy == t.xy && x0 == t.x0 && yx == t.yx && yy == t.yy && y0 == t.y0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        long h = xx;
+        h = 31 * h + xy;
+        h = 31 * h + x0;
+        h = 31 * h + yx;
+        h = 31 * h + yy;
+        h = 31 * h + y0;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "x'=" + xx + "*x + " + xy + "*y + " + x0 + " y'=" + yx + "*x + " + yy + "*y + " + y0;
+    }
+}
@@ -22,14 +22,23 @@ import java.util.*;
  * Version 2009-Jun-09: obeys 'fixed y axis scale' in Edit>Options>Profile Plot Options
  */
 public class Dynamic_Profiler
-        implements PlugIn, MouseListener, MouseMotionListener, KeyListener, ImageListener, Runnable {
+        implements PlugIn, MouseListener, MouseMotionListener, KeyListener, ImageListener, RoiListener, Runnable,
+        FrameBus.Subscriber {
     //MouseListener, MouseMotionListener, KeyListener: to detect changes to the selection of an ImagePlus
     //ImageListener: listens to changes (updateAndDraw) and closing of an image
+    //RoiListener: listens to changes of the selection, after they have been made
     //Runnable: for background thread
+    //FrameBus.Subscriber: receives the frames of a viewer, also those that are not displayed
     private ImagePlus imp;                  //the ImagePlus that we listen to and the last one
     private ImagePlus plotImage;            //where we plot the profile
+    private Plot plot;                      //the plot, whose data are replaced on each update
     private Thread bgThread;                //thread for plotting (in the background)
     private boolean doUpdate;               //tells the background thread to update
+    private FrameBus.Subscription subscription; //the newest frames of the viewer of imp, if it publishes them
+    private FrameBus.Frame frame;           //the newest frame from the viewer, null if none yet
+    private final ProfileExtractor extractor = new ProfileExtractor();
+    private double[] x;                     //x axis of the last profile
+    private String xLabel, yLabel;
 
     /* Initialization and plot for the first time. Later on, updates are triggered by the listeners **/
     public void run(String arg) {
@@ -40,13 +49,15 @@ public class Dynamic_Profiler
         if (!isSelection()) {
             IJ.error("Dynamic Profiler","Line or Rectangular Selection Required"); return;
         }
-        ImageProcessor ip = getProfilePlot();  // get a profile
-        if (ip==null) {                     // no profile?
+        if (!getProfile()) {                // no profile?
             IJ.error("Dynamic Profiler","No Profile Obtained"); return;
         }
                                             // new plot window
-        plotImage = new ImagePlus("Profile of "+imp.getShortTitle(), ip);
-        plotImage.show();
+        plot = new Plot("Profile of "+imp.getShortTitle(), xLabel, yLabel);
+        plot.add("line", x, extractor.getProfile());
+        setPlotLimits();
+        plot.show();
+        plotImage = plot.getImagePlus();
         IJ.wait(50);
         positionPlotWindow();
                                             // thread for plotting in the background
@@ -54,6 +65,9 @@ public class Dynamic_Profiler
         bgThread.setPriority(Math.max(bgThread.getPriority()-3, Thread.MIN_PRIORITY));
         bgThread.start();
         createListeners();
+        FrameBus bus = FrameBus.find(imp.getTitle());
+        if (bus != null)
+            subscription = bus.subscribe(this, true, null);
     }
 
     // these listeners are activated if the selection is changed in the corresponding ImagePlus
@@ -70,6 +84,14 @@ public class Dynamic_Profiler
     public void keyReleased(KeyEvent e) {}
     public void imageOpened(ImagePlus imp) {}
 
+    // this listener is activated when the selection has been moved, resized or changed
+    public synchronized void roiModified(ImagePlus imp, int id) {
+        if (imp == this.imp) {
+            doUpdate = true;
+            notify();
+        }
+    }
+
     // this listener is activated if the image content is changed (by imp.updateAndDraw)
     public synchronized void imageUpdated(ImagePlus imp) {
         if (imp == this.imp) { 
@@ -80,6 +102,14 @@ public class Dynamic_Profiler
         }
     }
 
+    // this listener is activated for each new frame of the viewer that shows the image, on its own thread
+    public synchronized void onFrame(FrameBus.Frame f) {
+        if (frame != null) frame.release();
+        frame = f.retain();
+        doUpdate = true;
+        notify();
+    }
+
     // if either the plot image or the image we are listening to is closed, exit
     public void imageClosed(ImagePlus imp) {
         if (imp == this.imp || imp == plotImage) {
@@ -91,9 +121,7 @@ public class Dynamic_Profiler
     // the background thread for plotting.
     public void run() {
         while (true) {
-            IJ.wait(50);                            //delay to make sure the roi has been updated
-            ImageProcessor ip = getProfilePlot();
-            if (ip != null) plotImage.setProcessor(null, ip);
+            if (getProfile()) updatePlot();
             synchronized(this) {
                 if (doUpdate) {
                     doUpdate = false;               //and loop again
@@ -120,6 +148,7 @@ public class Dynamic_Profiler
         canvas.addKeyListener(this);
         imp.addImageListener(this);
         plotImage.addImageListener(this);
+        Roi.addRoiListener(this);
     }
 
     private void removeListeners() {
@@ -130,6 +159,20 @@ public class Dynamic_Profiler
         canvas.removeKeyListener(this);
         imp.removeImageListener(this);
         plotImage.removeImageListener(this);
+        Roi.removeRoiListener(this);
+        if (subscription != null)
+            subscription.close();
+        synchronized(this) {
+            if (frame != null) frame.release();
+            frame = null;
+        }
+    }
+
+    /** returns the newest frame from the viewer, retained, if it has the size of the image, otherwise null */
+    synchronized FrameBus.Frame getFrame(ImageProcessor ip) {
+        if (frame == null || frame.width != ip.getWidth() || frame.height != ip.getHeight())
+            return null;
+        return frame.retain();
     }
 
     /** Place the plot window to the right of the image window */
@@ -152,21 +195,22 @@ public class Dynamic_Profiler
         canvas.requestFocus();
     }
 
-    /** get a profile, analyze it and return a plot (or null if not possible) */
-    ImageProcessor getProfilePlot() {
-        if (!isSelection()) return null;
+    /** get the profile of the selection and its x axis and labels, returns false if not possible */
+    boolean getProfile() {
+        if (!isSelection()) return false;
         ImageProcessor ip = imp.getProcessor();
         Roi roi = imp.getRoi();
-        if (ip == null || roi == null) return null; //these may change asynchronously
-        if (roi.getType() == Roi.LINE)
-            ip.setInterpolate(PlotWindow.interpolate);
-        else
-            ip.setInterpolate(false);
-        ProfilePlot profileP = new ProfilePlot(imp, Prefs.verticalProfile);//get the profile
-        if (profileP == null) return null;
-        double[] profile = profileP.getProfile();
-        if (profile==null || profile.length<2)
-            return null;
+        if (ip == null || roi == null) return false; //these may change asynchronously
+        FrameBus.Frame f = getFrame(ip);            //the newest frame, which may not be displayed yet
+        int n;
+        try {
+            n = extractor.extract(f != null ? f.getProcessor() : ip, roi, Prefs.verticalProfile,
+                                  roi.getType()==Roi.LINE && PlotWindow.interpolate);
+        } finally {
+            if (f != null) f.release();
+        }
+        if (n<2)
+            return false;
         String xUnit = "pixels";                    //the following code is mainly for x calibration
         double xInc = 1;
         Calibration cal = imp.getCalibration();
@@ -176,35 +220,42 @@ public class Dynamic_Profiler
                 double dx = cal.pixelWidth*(line.x2 - line.x1);
                 double dy = cal.pixelHeight*(line.y2 - line.y1);
                 double length = Math.sqrt(dx*dx + dy*dy);
-                xInc = length/(profile.length-1);
+                xInc = length/(n-1);
                 xUnit = cal.getUnits();
             }
         } else if (roi.getType() == Roi.RECTANGLE) {
             if (cal != null) {
-                xInc = roi.getBounds().getWidth()*cal.pixelWidth/(profile.length-1);
+                xInc = Prefs.verticalProfile ? roi.getBounds().getHeight()*cal.pixelHeight/(n-1)
+                                             : roi.getBounds().getWidth()*cal.pixelWidth/(n-1);
                 xUnit = cal.getUnits();
             }
-        } else return null;
-        String xLabel = "Distance (" + xUnit + ")";
-        String yLabel = (cal !=null && cal.getValueUnit()!=null && !cal.getValueUnit().equals("Gray Value")) ?
+        } else return false;
+        xLabel = "Distance (" + xUnit + ")";
+        yLabel = (cal !=null && cal.getValueUnit()!=null && !cal.getValueUnit().equals("Gray Value")) ?
             "Value ("+cal.getValueUnit()+")" : "Value";
+        x = extractor.getX(0, xInc);
+        return true;
+    }
 
-        int n = profile.length;                 // create the x axis
-        double[] x = new double[n];
-        for (int i=0; i<n; i++)
-            x[i] = i*xInc;
+    /** replace the data of the plot with the last profile and redraw it */
+    void updatePlot() {
+        plot.setXYLabels(xLabel, yLabel);
+        plot.setColor(Color.BLACK);
+        plot.replace(0, "line", x, extractor.getProfile());
+        setPlotLimits();
+    }
 
-        Plot plot = new Plot("profile", xLabel, yLabel, x, profile);
+    /** set the plot limits to the data or to the fixed y range, which redraws a plot that is shown */
+    void setPlotLimits() {
         double fixedMin = ProfilePlot.getFixedMin();
         double fixedMax = ProfilePlot.getFixedMax();
         if (fixedMin!=0 || fixedMax!=0) {
             double[] a = Tools.getMinMax(x);
             plot.setLimits(a[0],a[1], fixedMin, fixedMax);
-        }
-        return plot.getProcessor();
+        } else
+            plot.setLimitsToFit(true);
     }
 
-
     /** returns true if there is a simple line selection or rectangular selection */
     boolean isSelection() {
         if (imp==null)
@@ -9,12 +9,17 @@ import ij.*;
 import ij.process.*;
 import java.awt.*;
 import ij.plugin.*;
+import ij.gui.ImageCanvas;
 import ij.gui.ImageWindow;
 import ij.gui.Roi;
+import ij.gui.RoiListener;
+import ij.plugin.frame.RoiManager;
 import java.io.*;
 import java.text.*;
 import java.awt.event.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.swing.*;
 import javax.swing.border.*;
 
@@ -33,6 +38,7 @@ public class EPICS_AD_Controller implements PlugIn {
     private static final short ROTATE_90_MIRROR = 5;
     private static final short ROTATE_180_MIRROR = 6;
     private static final short ROTATE_270_MIRROR = 7;
+    private static final String MULTI_ROI_OUTPUT = "Multi-ROI";
     private ImagePlus imgPlus;
     private ImageProcessor imgProc;
 
@@ -60,28 +66,31 @@ public class EPICS_AD_Controller implements PlugIn {
     Channel ch_binCamY_RBV;       //This is the amount of binning for the CCD readout in Y
     Channel ch_reverseCamX_RBV;
     Channel ch_reverseCamY_RBV;
-    /* These are EPICS channel objects for the ROI plugin */
-    Channel ch_minRoiX;           //This is the start of the ROI in X
-    Channel ch_minRoiY;           //This is the start of the ROI in Y
-    Channel ch_minRoiX_RBV;       //This is the readback value of X in the ROI
-    Channel ch_minRoiY_RBV;       //This is the readback value of Y in the ROI
-    Channel ch_binRoiX;           //This is the binning of the ROI in the X dimension
-    Channel ch_binRoiY;           //This is the binning of the ROI in the Y dimension
-    Channel ch_sizeRoiX;          //This is the size of the ROI in the X dimension
-    Channel ch_sizeRoiY;          //This is the size of the ROI in the Y dimension
-    Channel ch_sizeRoiArrayX_RBV; //This is the size of the image array for the ROI in X
-    Channel ch_sizeRoiArrayY_RBV; //This is the size of the image array for the ROI in Y
-    Channel ch_reverseRoiX_RBV;       //This is reverse flag for the ROI in X
-    Channel ch_reverseRoiY_RBV;       //This is reverse flag for the ROI in Y
-    /* These are EPICS channel objects for the Transform plugin */
-    Channel ch_transType;         //This represents the way the image is flipped or rotated.
-    Channel ch_transArrayX_RBV;
-    Channel ch_transArrayY_RBV;
+    /* These are the transform and ROI plugins, in the order their PV prefixes are listed */
+    volatile TransformPlugin[] transformPlugins = new TransformPlugin[0];
+    volatile ROIPlugin[] roiPlugins = new ROIPlugin[0];
     /* These are EPICS channel objects for the Overlay plugin */
     Channel ch_minOverlayX;       //This is the position of the overlay in X
     Channel ch_minOverlayY;       //This is the position of the overlay in Y
     Channel ch_sizeOverlayX;      //This is the size of the overlay in X 
     Channel ch_sizeOverlayY;      //This is the size of the overlay in Y
+    /* These are EPICS channel objects for the multi-ROI plugins, one element per region */
+    Channel[] ch_minMultiRoiX = new Channel[0];
+    Channel[] ch_minMultiRoiY = new Channel[0];
+    Channel[] ch_sizeMultiRoiX = new Channel[0];
+    Channel[] ch_sizeMultiRoiY = new Channel[0];
+    /* These track the connection state of each group of channels */
+    volatile ConnectionCounter cameraConnection;
+    volatile ConnectionCounter roiConnection;
+    volatile ConnectionCounter transformConnection;
+    volatile ConnectionCounter overlayConnection;
+    volatile ConnectionCounter multiRoiConnection;
+    /* These are the latest parameters of the camera and plugins, maintained by monitors */
+    volatile CameraParameters cameraParameters;
+    private ParameterGroup cameraParameterGroup;
+    /* The composed transforms from image coordinates to each output, rebuilt after the parameters change */
+    private final AtomicLong chainVersion = new AtomicLong();
+    private final Map<String, CachedTransform> transformCache = new ConcurrentHashMap<String, CachedTransform>();
 
     JFrame frame;
     JTextField StatusText;
@@ -89,6 +98,9 @@ public class EPICS_AD_Controller implements PlugIn {
     JTextField transformPrefixText;
     JTextField roiPrefixText;
     JTextField overlayPrefixText;
+    JTextField multiRoiPatternText;
+    JTextField multiRoiCountText;
+    JButton setMultiRoiButton;
     JButton resetCameraReadoutButton;
     JButton resetROIButton;
     JComboBox outputSelectComboBox;
@@ -96,22 +108,33 @@ public class EPICS_AD_Controller implements PlugIn {
     JButton setControlItemButton;
     JCheckBox transformInChainCheckBox;
     JCheckBox ROIInChainCheckBox;
+    JCheckBox liveCheckBox;
+    JTextField cursorText;
 
     boolean isDebugMessages;
     boolean isDebugFile;
     boolean isPluginRunning;
-    boolean isCameraConnected;
-    boolean isRoiConnected;
-    boolean isTransformConnected;
-    boolean isOverlayConnected;
-    boolean isTransformInChain;
-    boolean isROIInChain;
-    String outputSelect;
+    // These are read by the live update thread as well as the event-dispatching thread
+    volatile boolean isCameraConnected;
+    volatile boolean isRoiConnected;
+    volatile boolean isTransformConnected;
+    volatile boolean isOverlayConnected;
+    boolean isMultiRoiConnected;
+    volatile boolean isTransformInChain;
+    volatile boolean isROIInChain;
+    volatile boolean isLiveUpdate;
+    volatile String outputSelect;
+
+    LiveRegionUpdater liveUpdater;
+    LiveRoiListener liveRoiListener;
+    CursorListener cursorListener;
 
     String cameraPrefix;
     String roiPrefix;
     String transformPrefix;
     String overlayPrefix;
+    String multiRoiPattern;
+    int multiRoiCount;
 
     /**
      * This method is called by ImageJ when the user starts the from the menu.
@@ -132,6 +155,8 @@ public class EPICS_AD_Controller implements PlugIn {
             transformPrefix = "13SIM1:Trans1:";
             roiPrefix = "13SIM1:ROI1:";
             overlayPrefix = "13SIM1:Over1:1:";
+            multiRoiPattern = "13SIM1:ROIStat1:%d:";
+            multiRoiCount = 8;
             isTransformInChain = false;
             isROIInChain = false;
             outputSelect = "Camera";
@@ -164,6 +189,16 @@ public class EPICS_AD_Controller implements PlugIn {
             // Connect to PVs from the overlay plugin.
             // This do not need to succeed.
             connectOverlayPVs();
+            // Connect to PVs from the multi-ROI plugins.
+            // This do not need to succeed.
+            connectMultiRoiPVs();
+
+            liveUpdater = new LiveRegionUpdater();
+            liveUpdater.start();
+            liveRoiListener = new LiveRoiListener();
+            Roi.addRoiListener(liveRoiListener);
+            cursorListener = new CursorListener();
+            Toolkit.getDefaultToolkit().addAWTEventListener(cursorListener, AWTEvent.MOUSE_MOTION_EVENT_MASK);
 
             /* This simply polls for new data and updates the image if new data
              * is found.
@@ -180,11 +215,15 @@ public class EPICS_AD_Controller implements PlugIn {
                 logMessage("Closed debug file", true, true);
             }
 
+            Roi.removeRoiListener(liveRoiListener);
+            Toolkit.getDefaultToolkit().removeAWTEventListener(cursorListener);
+            liveUpdater.stop();
             writeProperties();
             disconnectCameraPVs();
             disconnectRoiPVs();
             disconnectTransformPVs();
             disconnectOverlayPVs();
+            disconnectMultiRoiPVs();
             closeEPICSCA();
             IJ.showStatus("Exiting Server");
 
@@ -206,15 +245,15 @@ public class EPICS_AD_Controller implements PlugIn {
     }
 
     public void setROI(int minX, int minY, int sizeX, int sizeY) {
-        if (isRoiConnected) {
+        // The output is the first ROI plugin in the list
+        ROIPlugin[] rois = roiPlugins;
+        if (isRoiConnected && rois.length > 0) {
             try {
-                epicsSetInt(ch_minRoiX, minX);
-                epicsSetInt(ch_minRoiY, minY);
-                epicsSetInt(ch_sizeRoiX, sizeX);
-                epicsSetInt(ch_sizeRoiY, sizeY);
-                if (isDebugMessages) {
-                    logMessage("Set ROI to " + minX + "," + minY + "," + sizeX + "," + sizeY, true, true);
-                }
+                ROIPlugin rp = rois[0];
+                forgetLiveRegion();
+                double time = putRegion(rp.ch_minRoiX, rp.ch_minRoiY, rp.ch_sizeRoiX, rp.ch_sizeRoiY, minX, minY, sizeX, sizeY);
+                logMessage("Set ROI to " + minX + "," + minY + "," + sizeX + "," + sizeY
+                           + String.format(" in %.1f ms", time*1000.), true, isDebugMessages);
             } catch (CAException ex) {
                 IJ.log("CAException: Could not set ROI: " + ex.getMessage());
             } catch (TimeoutException ex) {
@@ -228,33 +267,22 @@ public class EPICS_AD_Controller implements PlugIn {
     }
 
     public void resetROI() {
-        int sizeX;
-        int sizeY;
-
-        try {
-            // Get the maximum size of the CCD
-            sizeX = epicsGetInt(ch_maxSizeCamX);
-            sizeY = epicsGetInt(ch_maxSizeCamY);           
-            setROI(0, 0, sizeX, sizeY);
-        } catch (CAException ex) {
-            IJ.log("CAException: Could not reset ROI: " + ex.getMessage());
-        } catch (TimeoutException ex) {
-            IJ.log("TimeoutException: Could not reset ROI: " + ex.getMessage());
-        } catch (IllegalStateException ex) {
-            IJ.log("IllegalStateException: Could not reset ROI: " + ex.getMessage());
+        // Get the maximum size of the CCD
+        CameraParameters cp = cameraParameters;
+        if (cp == null) {
+            logMessage("resetROI: camera parameters not available", true, true);
+            return;
         }
+        setROI(0, 0, cp.maxSizeX, cp.maxSizeY);
     }
     
     public void setOverlay(int minX, int minY, int sizeX, int sizeY) {
         if (isOverlayConnected) {
             try {
-                epicsSetInt(ch_minOverlayX, minX);
-                epicsSetInt(ch_minOverlayY, minY);
-                epicsSetInt(ch_sizeOverlayX, sizeX);
-                epicsSetInt(ch_sizeOverlayY, sizeY);
-                if (isDebugMessages) {
-                    logMessage("Set overlay to " + minX + "," + minY + "," + sizeX + "," + sizeY, true, true);
-                }
+                forgetLiveRegion();
+                double time = putRegion(ch_minOverlayX, ch_minOverlayY, ch_sizeOverlayX, ch_sizeOverlayY, minX, minY, sizeX, sizeY);
+                logMessage("Set overlay to " + minX + "," + minY + "," + sizeX + "," + sizeY
+                           + String.format(" in %.1f ms", time*1000.), true, isDebugMessages);
             } catch (CAException ex) {
                 IJ.log("CAException: Could not set overlay: " + ex.getMessage());
             } catch (TimeoutException ex) {
@@ -270,13 +298,10 @@ public class EPICS_AD_Controller implements PlugIn {
     public void setCameraRegion(int minX, int minY, int sizeX, int sizeY) {
         if (isCameraConnected) {
             try {
-                epicsSetInt(ch_minCamX, minX);
-                epicsSetInt(ch_minCamY, minY);
-                epicsSetInt(ch_sizeCamX, sizeX);
-                epicsSetInt(ch_sizeCamY, sizeY);
-                if (isDebugMessages) {
-                    logMessage("Set camera region to " + minX + "," + minY + "," + sizeX + "," + sizeY, true, true);
-                }
+                forgetLiveRegion();
+                double time = putRegion(ch_minCamX, ch_minCamY, ch_sizeCamX, ch_sizeCamY, minX, minY, sizeX, sizeY);
+                logMessage("Set camera region to " + minX + "," + minY + "," + sizeX + "," + sizeY
+                           + String.format(" in %.1f ms", time*1000.), true, isDebugMessages);
             } catch (CAException ex) {
                 IJ.log("CAException: Could not set camera region: " + ex.getMessage());
             } catch (TimeoutException ex) {
@@ -288,19 +313,22 @@ public class EPICS_AD_Controller implements PlugIn {
             logMessage("setCameraRegion: camera not connected", true, true);
         }
     }
+
+    // A manual write changes the output behind the live updater's back, so its next region must be written
+    private void forgetLiveRegion() {
+        if (liveUpdater != null) liveUpdater.forgetLastRegion();
+    }
       
     public void resetCameraRegion() {
-        int sizeX;
-        int sizeY;
-
+        // Get the maximum size of the CCD
+        CameraParameters cp = cameraParameters;
+        if (cp == null) {
+            logMessage("resetCameraRegion: camera parameters not available", true, true);
+            return;
+        }
         try {
-            // Get the maximum size of the CCD
-            sizeX = epicsGetInt(ch_maxSizeCamX);
-            sizeY = epicsGetInt(ch_maxSizeCamY);           
-            epicsSetInt(ch_minCamX, 0);
-            epicsSetInt(ch_minCamY, 0);
-            epicsSetInt(ch_sizeCamX, sizeX);
-            epicsSetInt(ch_sizeCamY, sizeY);
+            forgetLiveRegion();
+            putRegion(ch_minCamX, ch_minCamY, ch_sizeCamX, ch_sizeCamY, 0, 0, cp.maxSizeX, cp.maxSizeY);
         } catch (CAException ex) {
             IJ.log("CAException: Could not reset camera region to full: " + ex.getMessage());
         } catch (TimeoutException ex) {
@@ -329,84 +357,199 @@ public class EPICS_AD_Controller implements PlugIn {
     public void setSelectedItem() {
         Roi roi;
         Rectangle rect;
-        int minX, minY, sizeX, sizeY, binX, binY, itemp;
-        CameraParameters cp=null;   
-        TransformParameters tp=null;   
-        ROIParameters rp=null;   
+        Rectangle region;
 
         roi = getROI();
         if (roi == null) return;
         rect = roi.getBounds();
-        minX = (int) rect.getX();
-        minY = (int) rect.getY();
-        sizeX = (int) rect.getWidth();
-        sizeY = (int) rect.getHeight();
-        logMessage("Input ROI: minX="+String.valueOf(minX)+" minY="+String.valueOf(minY)+
-                        " sizeX="+String.valueOf(sizeX)+" sizeY="+String.valueOf(sizeX), true, true);
-        // Compute the coordinates based on transformations in the camera, transform plugin, and roi plugin
-        if (isCameraConnected) {
-            cp = new CameraParameters();
-        }    
-        if (isTransformConnected && isTransformInChain) {
-            tp = new TransformParameters();
+        logMessage("Input ROI: minX="+String.valueOf(rect.x)+" minY="+String.valueOf(rect.y)+
+                        " sizeX="+String.valueOf(rect.width)+" sizeY="+String.valueOf(rect.height), true, true);
+        region = computeOutputRegion(rect, outputSelect);
+        if (region == null) return;
+        if (outputSelect.equals("Camera")) {
+            setCameraRegion(region.x, region.y, region.width, region.height);
+        } else if (outputSelect.equals("ROI")) {
+            setROI(region.x, region.y, region.width, region.height);
+        } else if (outputSelect.equals("Overlay")) {
+            setOverlay(region.x, region.y, region.width, region.height);
         }
-        if (isRoiConnected && isROIInChain) {
-            rp = new ROIParameters();
-        }    
-
-        if (outputSelect.equals("Camera") && isCameraConnected) {
-            if (rp != null) {
-                // The ROI is in the chain, so we need to undo its effect on image
-                // We require that the ROI is showing the entire image, only need to consider bin and reverse
-                if (rp.reverseX) minX = rp.imageSizeX - sizeX - minX - 1;
-                if (rp.reverseY) minY = rp.imageSizeY - sizeY - minY - 1;
-                minX *= rp.binX;
-                minY *= rp.binY;
-                sizeX *= rp.binX;
-                sizeY *= rp.binY;
-            }
-            if (tp != null) {
-                // The transform plugin is in the chain, so we need to undo its effect on image
-                if (tp.reverseX) minX = tp.imageSizeX - sizeX - minX - 1;
-                if (tp.reverseY) minY = tp.imageSizeY - sizeY - minY - 1;
-                if (tp.swapAxes) {
-                    itemp = minX;
-                    minX = minY;
-                    minY = itemp;
-                    itemp = sizeX;
-                    sizeX = sizeY;
-                    sizeY = itemp;
-                }
-            }            
-            if (cp != null) {
-                // Correct for the current camera settings on the image
-                if (cp.reverseX) minX = cp.imageSizeX - sizeX - minX - 1;
-                if (cp.reverseY) minY = cp.imageSizeY - sizeY - minY - 1;
-                minX = minX*cp.binX + cp.minX;
-                minY = minY*cp.binY + cp.minY;
-                sizeX *= cp.binX;
-                sizeY *= cp.binY;
-            }
-
-            setCameraRegion(minX, minY, sizeX, sizeY);
-        } else if (outputSelect.equals("ROI") && isRoiConnected) {
-            if (rp != null) {
-                // The ROI is in the chain, so we need to undo its effect on image
-                if (rp.reverseX) minX = rp.imageSizeX - sizeX - minX - 1;
-                if (rp.reverseY) minY = rp.imageSizeY - sizeY - minY - 1;
-                minX *= rp.binX;
-                minY *= rp.binY;
-                sizeX *= rp.binX;
-                sizeY *= rp.binY;
-            }
-            setROI(minX, minY, sizeX, sizeY);
-        } else if (outputSelect.equals("Overlay") && isOverlayConnected) {
+    }
+
+    /**
+     * Writes the bounds of every ROI in the ROI Manager to the multi-ROI plugins.
+     * ROI i in the manager is written to the plugin whose prefix is the pattern with %d replaced by i+1.
+     * All of the puts are sent as a single batch, so the time per region falls as the number of regions grows.
+     */
+    public void setMultipleROIs() {
+        Roi[] rois;
+        CachedTransform chain;
+        CAPutBatch batch;
+        int numRegions;
+
+        if (!isMultiRoiConnected) {
+            logMessage("setMultipleROIs: multi-ROI PVs not connected", true, true);
+            return;
+        }
+        RoiManager manager = RoiManager.getInstance();
+        if (manager == null || manager.getCount() == 0) {
+            logMessage("No ROIs in the ROI Manager", true, true);
+            return;
+        }
+        rois = manager.getRoisAsArray();
+        chain = getOutputTransform(MULTI_ROI_OUTPUT);
+        if (chain.transform == null) {
+            logMessage(chain.error, true, true);
+            return;
+        }
+        numRegions = Math.min(rois.length, ch_minMultiRoiX.length);
+        if (rois.length > numRegions) {
+            logMessage("ROI Manager has " + rois.length + " ROIs, only the first " + numRegions + " are written", true, true);
+        }
+        batch = new CAPutBatch(ctxt);
+        for (int i = 0; i < numRegions; i++) {
+            Rectangle region = chain.transform.map(rois[i].getBounds());
+            batch.add(ch_minMultiRoiX[i], region.x);
+            batch.add(ch_minMultiRoiY[i], region.y);
+            batch.add(ch_sizeMultiRoiX[i], region.width);
+            batch.add(ch_sizeMultiRoiY[i], region.height);
+            if (isDebugMessages) {
+                logMessage("Region " + (i+1) + ": " + region.x + "," + region.y + "," + region.width + "," + region.height,
+                           false, true);
+            }
+        }
+        try {
+            batch.execute(5.0);
+            double time = batch.getElapsedTime();
+            logMessage(String.format("Set %d regions in %.1f ms (%.2f ms per region)",
+                                     numRegions, time*1000., time*1000./numRegions), true, isDebugMessages);
+        } catch (CAException ex) {
+            IJ.log("CAException: Could not set regions: " + ex.getMessage());
+        } catch (TimeoutException ex) {
+            IJ.log("TimeoutException: Could not set regions: " + ex.getMessage());
+        } catch (IllegalStateException ex) {
+            IJ.log("IllegalStateException: Could not set regions: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Computes the region to write to the selected output from a rectangle in the image.
+     * This corrects for the camera, transform plugins, and ROI plugins, using the parameters
+     * maintained by monitors, so it does not do any network I/O.
+     * 
+     * @param rect      The rectangle in image coordinates.
+     * @param output    The output, "Camera", "ROI", or "Overlay".
+     * @return          The region in the coordinates of the output, or null if the output is
+     *                  not connected or its parameters have not been received yet.
+     */
+    public Rectangle computeOutputRegion(Rectangle rect, String output) {
+        CachedTransform chain = getOutputTransform(output);
+        if (chain.transform == null) {
+            logMessage(chain.error, true, true);
+            return null;
+        }
+        return chain.transform.map(rect);
+    }
+
+    /**
+     * Returns the transform from image coordinates to the coordinates of an output.
+     * The composed transform is cached until the parameters or the chain change,
+     * so this is cheap enough to call on every mouse move.
+     * 
+     * @param output    The output, "Camera", "ROI", "Overlay", or MULTI_ROI_OUTPUT.
+     * @return          The transform, or the reason it is not available.
+     */
+    private CachedTransform getOutputTransform(String output) {
+        // Read the version before building so a change made while building forces a rebuild next time
+        long version = chainVersion.get();
+        CachedTransform cached = transformCache.get(output);
+        if (cached != null && cached.version == version) return cached;
+        cached = buildOutputTransform(output, version);
+        transformCache.put(output, cached);
+        if (isDebugMessages && cached.transform != null) {
+            logMessage("Image to " + output + " transform: " + cached.transform, false, true);
+        }
+        return cached;
+    }
+
+    /**
+     * Marks the cached transforms as out of date.  This is called whenever the parameters of the
+     * camera or a plugin change, and when a plugin is connected, disconnected, or put in the chain.
+     */
+    private void invalidateChain() {
+        chainVersion.incrementAndGet();
+    }
+
+    /**
+     * Composes the transforms of each stage of the chain.  The chain is the camera, then the transform
+     * plugins, then the ROI plugins, each in the order their prefixes are listed.  The image is the output
+     * of the last plugin in the chain, so the stages are undone from the end of the chain backwards.
+     */
+    private CachedTransform buildOutputTransform(String output, long version) {
+        CoordinateTransform t = CoordinateTransform.IDENTITY;
+
+        if (output.equals("Overlay")) {
+            if (!isOverlayConnected) return new CachedTransform(version, null, output + " not connected");
             // Since the overlay comes after the transform and the ROI we don't need to
             // correct for them in computing coordinates
-            setOverlay(minX, minY, sizeX, sizeY);
+            return new CachedTransform(version, t, null);
+        }
+        if (!(output.equals("Camera") && isCameraConnected) && !(output.equals("ROI") && isRoiConnected)
+            && !output.equals(MULTI_ROI_OUTPUT)) {
+            return new CachedTransform(version, null, output + " not connected");
+        }
+        if (isRoiConnected && isROIInChain) {
+            ROIPlugin[] rois = roiPlugins;
+            for (int i = rois.length - 1; i >= 0; i--) {
+                ROIParameters rp = rois[i].parameters;
+                if (rp == null) return new CachedTransform(version, null, "ROI parameters not available for " + rois[i].prefix);
+                t = t.then(rp.transform);
+            }
+        }
+        // The ROI output is the first ROI plugin, so its coordinates are those of the image it receives.
+        // The multi-ROI plugins are taken to receive the same image as the first ROI plugin.
+        if (output.equals("ROI") || output.equals(MULTI_ROI_OUTPUT)) return new CachedTransform(version, t, null);
+        if (isTransformConnected && isTransformInChain) {
+            TransformPlugin[] transforms = transformPlugins;
+            for (int i = transforms.length - 1; i >= 0; i--) {
+                TransformParameters tp = transforms[i].parameters;
+                if (tp == null) return new CachedTransform(version, null, "Transform parameters not available for " + transforms[i].prefix);
+                t = t.then(tp.transform);
+            }
+        }
+        CameraParameters cp = cameraParameters;
+        if (cp == null) return new CachedTransform(version, null, "Camera parameters not available");
+        return new CachedTransform(version, t.then(cp.transform), null);
+    }
+
+    /**
+     * This class holds a composed transform and the version of the parameters it was built from.
+     */
+    private static final class CachedTransform {
+        public final long version;
+        public final CoordinateTransform transform;
+        public final String error;
+        public CachedTransform(long version, CoordinateTransform transform, String error) {
+            this.version = version;
+            this.transform = transform;
+            this.error = error;
         }
     }
 
+    /**
+     * Splits a PV prefix field that lists one or more prefixes separated by commas.
+     * 
+     * @param prefixes  The contents of the field.
+     * @return          The prefixes, with empty entries removed.
+     */
+    private static String[] splitPrefixes(String prefixes) {
+        ArrayList<String> list = new ArrayList<String>();
+        for (String prefix : prefixes.split(",")) {
+            prefix = prefix.trim();
+            if (prefix.length() > 0) list.add(prefix);
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
     /**
      * This method creates the PV objects for the camera.
      */
@@ -428,20 +571,38 @@ public class EPICS_AD_Controller implements PlugIn {
                 jca.listProperties(debugPrintStream);
             }
             
-            ch_minCamX = createEPICSChannel(cameraPrefix + "MinX");
-            ch_minCamY = createEPICSChannel(cameraPrefix + "MinY");
-            ch_minCamX_RBV = createEPICSChannel(cameraPrefix + "MinX_RBV");
-            ch_minCamY_RBV = createEPICSChannel(cameraPrefix + "MinY_RBV");
-            ch_sizeCamX = createEPICSChannel(cameraPrefix + "SizeX");
-            ch_sizeCamY = createEPICSChannel(cameraPrefix + "SizeY");
-            ch_sizeCamArrayX_RBV = createEPICSChannel(cameraPrefix + "ArraySizeX_RBV");
-            ch_sizeCamArrayY_RBV = createEPICSChannel(cameraPrefix + "ArraySizeY_RBV");
-            ch_maxSizeCamX = createEPICSChannel(cameraPrefix + "MaxSizeX_RBV");
-            ch_maxSizeCamY = createEPICSChannel(cameraPrefix + "MaxSizeY_RBV");
-            ch_binCamX_RBV = createEPICSChannel(cameraPrefix + "BinX_RBV");
-            ch_binCamY_RBV = createEPICSChannel(cameraPrefix + "BinY_RBV");
-            ch_reverseCamX_RBV = createEPICSChannel(cameraPrefix + "ReverseX_RBV");
-            ch_reverseCamY_RBV = createEPICSChannel(cameraPrefix + "ReverseY_RBV");
+            GroupConnectionListener listener = new GroupConnectionListener(new Runnable() {
+                @Override
+                public void run() {
+                    checkCameraPVConnections();
+                }
+            });
+            cameraConnection = new ConnectionCounter(14, listener);
+            ch_minCamX = createEPICSChannel(cameraPrefix + "MinX", cameraConnection);
+            ch_minCamY = createEPICSChannel(cameraPrefix + "MinY", cameraConnection);
+            ch_minCamX_RBV = createEPICSChannel(cameraPrefix + "MinX_RBV", cameraConnection);
+            ch_minCamY_RBV = createEPICSChannel(cameraPrefix + "MinY_RBV", cameraConnection);
+            ch_sizeCamX = createEPICSChannel(cameraPrefix + "SizeX", cameraConnection);
+            ch_sizeCamY = createEPICSChannel(cameraPrefix + "SizeY", cameraConnection);
+            ch_sizeCamArrayX_RBV = createEPICSChannel(cameraPrefix + "ArraySizeX_RBV", cameraConnection);
+            ch_sizeCamArrayY_RBV = createEPICSChannel(cameraPrefix + "ArraySizeY_RBV", cameraConnection);
+            ch_maxSizeCamX = createEPICSChannel(cameraPrefix + "MaxSizeX_RBV", cameraConnection);
+            ch_maxSizeCamY = createEPICSChannel(cameraPrefix + "MaxSizeY_RBV", cameraConnection);
+            ch_binCamX_RBV = createEPICSChannel(cameraPrefix + "BinX_RBV", cameraConnection);
+            ch_binCamY_RBV = createEPICSChannel(cameraPrefix + "BinY_RBV", cameraConnection);
+            ch_reverseCamX_RBV = createEPICSChannel(cameraPrefix + "ReverseX_RBV", cameraConnection);
+            ch_reverseCamY_RBV = createEPICSChannel(cameraPrefix + "ReverseY_RBV", cameraConnection);
+            cameraParameterGroup = new ParameterGroup(ch_minCamX_RBV, ch_minCamY_RBV, ch_binCamX_RBV, ch_binCamY_RBV,
+                                                      ch_sizeCamArrayX_RBV, ch_sizeCamArrayY_RBV,
+                                                      ch_reverseCamX_RBV, ch_reverseCamY_RBV,
+                                                      ch_maxSizeCamX, ch_maxSizeCamY) {
+                @Override
+                protected void publish(int[] values) {
+                    cameraParameters = new CameraParameters(values);
+                    invalidateChain();
+                }
+            };
+            listener.setParameters(cameraConnection, cameraParameterGroup);
             
             ctxt.flushIO();
             checkCameraPVConnections();
@@ -459,9 +620,23 @@ public class EPICS_AD_Controller implements PlugIn {
         try {
             transformPrefix = transformPrefixText.getText();
             logMessage("Trying to connect to EPICS PVs: " + transformPrefix, true, true);
-            ch_transType = createEPICSChannel(transformPrefix + "Type");
-            ch_transArrayX_RBV = createEPICSChannel(transformPrefix + "ArraySizeX_RBV");
-            ch_transArrayY_RBV = createEPICSChannel(transformPrefix + "ArraySizeY_RBV");
+            GroupConnectionListener listener = new GroupConnectionListener(new Runnable() {
+                @Override
+                public void run() {
+                    checkTransformPVConnections();
+                }
+            });
+            // The prefix field can list several transform plugins
+            String[] prefixes = splitPrefixes(transformPrefix);
+            transformConnection = new ConnectionCounter(3 * prefixes.length, listener);
+            TransformPlugin[] plugins = new TransformPlugin[prefixes.length];
+            ParameterGroup[] groups = new ParameterGroup[prefixes.length];
+            transformPlugins = plugins;
+            for (int i = 0; i < prefixes.length; i++) {
+                plugins[i] = new TransformPlugin(prefixes[i], transformConnection);
+                groups[i] = plugins[i].parameterGroup;
+            }
+            listener.setParameters(transformConnection, groups);
             ctxt.flushIO();
             checkTransformPVConnections();         
         } catch (Exception ex) {
@@ -477,18 +652,23 @@ public class EPICS_AD_Controller implements PlugIn {
         try {
             roiPrefix = roiPrefixText.getText();
             logMessage("Trying to connect to EPICS PVs: " + roiPrefix, true, true);           
-            ch_minRoiX = createEPICSChannel(roiPrefix + "MinX");
-            ch_minRoiY = createEPICSChannel(roiPrefix + "MinY");
-            ch_minRoiX_RBV = createEPICSChannel(roiPrefix + "MinX_RBV");
-            ch_minRoiY_RBV = createEPICSChannel(roiPrefix + "MinY_RBV");
-            ch_binRoiX = createEPICSChannel(roiPrefix + "BinX");
-            ch_binRoiY = createEPICSChannel(roiPrefix + "BinY");
-            ch_reverseRoiX_RBV = createEPICSChannel(roiPrefix + "ReverseX_RBV");
-            ch_reverseRoiY_RBV = createEPICSChannel(roiPrefix + "ReverseY_RBV");
-            ch_sizeRoiX = createEPICSChannel(roiPrefix + "SizeX");
-            ch_sizeRoiY = createEPICSChannel(roiPrefix + "SizeY");
-            ch_sizeRoiArrayX_RBV = createEPICSChannel(roiPrefix + "ArraySizeX_RBV");
-            ch_sizeRoiArrayY_RBV = createEPICSChannel(roiPrefix + "ArraySizeY_RBV");            
+            GroupConnectionListener listener = new GroupConnectionListener(new Runnable() {
+                @Override
+                public void run() {
+                    checkRoiPVConnections();
+                }
+            });
+            // The prefix field can list several ROI plugins
+            String[] prefixes = splitPrefixes(roiPrefix);
+            roiConnection = new ConnectionCounter(12 * prefixes.length, listener);
+            ROIPlugin[] plugins = new ROIPlugin[prefixes.length];
+            ParameterGroup[] groups = new ParameterGroup[prefixes.length];
+            roiPlugins = plugins;
+            for (int i = 0; i < prefixes.length; i++) {
+                plugins[i] = new ROIPlugin(prefixes[i], roiConnection);
+                groups[i] = plugins[i].parameterGroup;
+            }
+            listener.setParameters(roiConnection, groups);
             ctxt.flushIO();
             checkRoiPVConnections();            
         } catch (Exception ex) {
@@ -504,10 +684,16 @@ public class EPICS_AD_Controller implements PlugIn {
         try {
             overlayPrefix = overlayPrefixText.getText();
             logMessage("Trying to connect to EPICS PVs: " + overlayPrefix, true, true);            
-            ch_minOverlayX = createEPICSChannel(overlayPrefix + "PositionX");
-            ch_minOverlayY = createEPICSChannel(overlayPrefix + "PositionY");
-            ch_sizeOverlayX = createEPICSChannel(overlayPrefix + "SizeX");
-            ch_sizeOverlayY = createEPICSChannel(overlayPrefix + "SizeY");            
+            overlayConnection = new ConnectionCounter(4, new GroupConnectionListener(new Runnable() {
+                @Override
+                public void run() {
+                    checkOverlayPVConnections();
+                }
+            }));
+            ch_minOverlayX = createEPICSChannel(overlayPrefix + "PositionX", overlayConnection);
+            ch_minOverlayY = createEPICSChannel(overlayPrefix + "PositionY", overlayConnection);
+            ch_sizeOverlayX = createEPICSChannel(overlayPrefix + "SizeX", overlayConnection);
+            ch_sizeOverlayY = createEPICSChannel(overlayPrefix + "SizeY", overlayConnection);            
             ctxt.flushIO();
             checkOverlayPVConnections();            
         } catch (Exception ex) {
@@ -516,11 +702,56 @@ public class EPICS_AD_Controller implements PlugIn {
         }  
     }
 
+    /**
+     * This method creates the PV objects for the multi-ROI plugins.
+     * The connection requests for all of the regions are sent with a single flush.
+     */
+    public void connectMultiRoiPVs() {
+        try {
+            multiRoiPattern = multiRoiPatternText.getText().trim();
+            multiRoiCount = Integer.parseInt(multiRoiCountText.getText().trim());
+            if (!multiRoiPattern.contains("%d")) {
+                throw new IllegalArgumentException("Multi-ROI PV pattern must contain %d");
+            }
+            logMessage("Trying to connect to EPICS PVs: " + multiRoiPattern + " for " + multiRoiCount + " regions", true, true);
+            multiRoiConnection = new ConnectionCounter(4 * multiRoiCount, new GroupConnectionListener(new Runnable() {
+                @Override
+                public void run() {
+                    checkMultiRoiPVConnections();
+                }
+            }));
+            ch_minMultiRoiX = new Channel[multiRoiCount];
+            ch_minMultiRoiY = new Channel[multiRoiCount];
+            ch_sizeMultiRoiX = new Channel[multiRoiCount];
+            ch_sizeMultiRoiY = new Channel[multiRoiCount];
+            for (int i = 0; i < multiRoiCount; i++) {
+                String prefix = multiRoiPattern.replace("%d", String.valueOf(i + 1));
+                ch_minMultiRoiX[i] = ctxt.createChannel(prefix + "MinX", multiRoiConnection);
+                ch_minMultiRoiY[i] = ctxt.createChannel(prefix + "MinY", multiRoiConnection);
+                ch_sizeMultiRoiX[i] = ctxt.createChannel(prefix + "SizeX", multiRoiConnection);
+                ch_sizeMultiRoiY[i] = ctxt.createChannel(prefix + "SizeY", multiRoiConnection);
+            }
+            ctxt.flushIO();
+            checkMultiRoiPVConnections();
+        } catch (Exception ex) {
+            logMessage("Exception: Cannot connect to EPICS multi-ROI PV:" + ex.getMessage(), true, true);
+            checkMultiRoiPVConnections();
+        }
+    }
+
     /**
      * This method destroys the PV objects for the camera.
      */
     public void disconnectCameraPVs() {
         try {
+            // Close the counter first so callbacks from the destroyed channels are ignored
+            closeConnection(cameraConnection);
+            cameraConnection = null;
+            // Clear the monitors before the snapshot so a late value cannot publish it again
+            if (cameraParameterGroup != null) cameraParameterGroup.close();
+            cameraParameterGroup = null;
+            cameraParameters = null;
+            invalidateChain();
             ch_minCamX.destroy();
             ch_minCamY.destroy();
             ch_minCamX_RBV.destroy();
@@ -551,9 +782,15 @@ public class EPICS_AD_Controller implements PlugIn {
      */
     public void disconnectTransformPVs() {
         try {
-            ch_transType.destroy();
-            ch_transArrayX_RBV.destroy();
-            ch_transArrayY_RBV.destroy();
+            // Close the counter first so callbacks from the destroyed channels are ignored
+            closeConnection(transformConnection);
+            transformConnection = null;
+            TransformPlugin[] plugins = transformPlugins;
+            transformPlugins = new TransformPlugin[0];
+            invalidateChain();
+            for (TransformPlugin plugin : plugins) {
+                if (plugin != null) plugin.destroy();
+            }
             isTransformConnected = false;            
             logMessage("Disconnected from EPICS transform PVs OK", true, true);
         } catch (CAException ex) {
@@ -570,18 +807,15 @@ public class EPICS_AD_Controller implements PlugIn {
      */
     public void disconnectRoiPVs() {
         try {
-            ch_minRoiX.destroy();
-            ch_minRoiY.destroy();
-            ch_minRoiX_RBV.destroy();
-            ch_minRoiY_RBV.destroy();
-            ch_binRoiX.destroy();
-            ch_binRoiY.destroy();
-            ch_reverseRoiX_RBV.destroy();
-            ch_reverseRoiY_RBV.destroy();
-            ch_sizeRoiX.destroy();
-            ch_sizeRoiY.destroy();
-            ch_sizeRoiArrayX_RBV.destroy();
-            ch_sizeRoiArrayY_RBV.destroy();
+            // Close the counter first so callbacks from the destroyed channels are ignored
+            closeConnection(roiConnection);
+            roiConnection = null;
+            ROIPlugin[] plugins = roiPlugins;
+            roiPlugins = new ROIPlugin[0];
+            invalidateChain();
+            for (ROIPlugin plugin : plugins) {
+                if (plugin != null) plugin.destroy();
+            }
             isRoiConnected = false;            
             logMessage("Disconnected from EPICS ROI PVs OK", true, true);
         } catch (CAException ex) {
@@ -598,6 +832,10 @@ public class EPICS_AD_Controller implements PlugIn {
      */
     public void disconnectOverlayPVs() {
         try {
+            // Close the counter first so callbacks from the destroyed channels are ignored
+            closeConnection(overlayConnection);
+            overlayConnection = null;
+            invalidateChain();
             ch_minOverlayX.destroy();
             ch_minOverlayY.destroy();
             ch_sizeOverlayX.destroy();
@@ -613,6 +851,33 @@ public class EPICS_AD_Controller implements PlugIn {
         }
     }
 
+    /**
+     * This method destroys the PV objects for the multi-ROI plugins.
+     */
+    public void disconnectMultiRoiPVs() {
+        try {
+            // Close the counter first so callbacks from the destroyed channels are ignored
+            closeConnection(multiRoiConnection);
+            multiRoiConnection = null;
+            Channel[][] groups = {ch_minMultiRoiX, ch_minMultiRoiY, ch_sizeMultiRoiX, ch_sizeMultiRoiY};
+            for (Channel[] group : groups) {
+                for (Channel ch : group) {
+                    if (ch != null) ch.destroy();
+                }
+            }
+            ch_minMultiRoiX = new Channel[0];
+            ch_minMultiRoiY = new Channel[0];
+            ch_sizeMultiRoiX = new Channel[0];
+            ch_sizeMultiRoiY = new Channel[0];
+            isMultiRoiConnected = false;
+            logMessage("Disconnected from EPICS multi-ROI PVs OK", true, true);
+        } catch (CAException ex) {
+            logMessage("CAException: Cannot disconnect from EPICS multi-ROI PV:" + ex.getMessage(), true, true);
+        } catch (IllegalStateException ex) {
+            logMessage("IllegalStateException: Cannot disconnect from EPICS multi-ROI PV:" + ex.getMessage(), true, true);
+        }
+    }
+
     /**
      * This method creates the channel access context and initializes it.
      */
@@ -644,12 +909,14 @@ public class EPICS_AD_Controller implements PlugIn {
      * returns it.
      * 
      * @param chname      A string that is the name of the PV.
+     * @param cl          The ConnectionCounter for the group the channel belongs to.
      * @return
      * @throws Exception 
      */
-    public Channel createEPICSChannel(String chname) throws Exception {
+    public Channel createEPICSChannel(String chname, ConnectionListener cl) throws Exception {
         // Create the Channel to connect to the PV.
-        Channel ch = ctxt.createChannel(chname);
+        // The listener is registered before the connection request is sent so no transition is missed.
+        Channel ch = ctxt.createChannel(chname, cl);
 
         // send the request and wait for the channel to connect to the PV.
         ctxt.pendIO(2.0);
@@ -669,27 +936,63 @@ public class EPICS_AD_Controller implements PlugIn {
     }
 
 
+    /**
+     * This class updates the GUI on the event-dispatching thread when a group
+     * of channels connects or disconnects.
+     */
+    // stops a group's counter from reacting to the callbacks of channels about to be destroyed
+    private static void closeConnection(ConnectionCounter counter) {
+        if (counter != null) counter.close();
+    }
+
+    private class GroupConnectionListener implements ConnectionCounter.Listener {
+        private final Runnable check;
+        private volatile ParameterGroup[] parameters;
+        public GroupConnectionListener(Runnable check) {
+            this.check = check;
+        }
+        /**
+         * Sets the parameters to monitor once the group is connected.
+         * 
+         * @param counter     The ConnectionCounter this object is listening to.
+         * @param parameters  The groups of parameter PVs, one for each plugin.
+         */
+        public void setParameters(ConnectionCounter counter, ParameterGroup... parameters) {
+            this.parameters = parameters;
+            if (counter.isConnected()) {
+                for (ParameterGroup p : parameters) p.subscribe();
+            }
+        }
+        @Override
+        public void groupConnectionChanged(boolean connected) {
+            ParameterGroup[] groups = parameters;
+            if (connected && groups != null) {
+                for (ParameterGroup p : groups) p.subscribe();
+            }
+            SwingUtilities.invokeLater(check);
+        }
+    }
+
+    /**
+     * Returns the aggregate connection state of a group of channels.
+     * This is maintained by ConnectionListener callbacks, so it does not access the channels.
+     * 
+     * @param counter   The ConnectionCounter for the group, may be null.
+     * @return
+     */
+    private boolean isConnected(ConnectionCounter counter) {
+        return counter != null && counter.isConnected();
+    }
+
     /**
      * This method checks that the PV objects for the camera both exist
      * and are connected to the underlying PVs.
      */
     public void checkCameraPVConnections() {
         boolean cameraConnected;
-        cameraConnected = 
-              (ch_minCamX != null && ch_minCamX.getConnectionState() == Channel.ConnectionState.CONNECTED
-            && ch_minCamY != null && ch_minCamY.getConnectionState() == Channel.ConnectionState.CONNECTED
-            && ch_minCamX_RBV != null && ch_minCamX_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED
-            && ch_minCamY_RBV != null && ch_minCamY_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED
-            && ch_sizeCamX != null && ch_sizeCamX.getConnectionState() == Channel.ConnectionState.CONNECTED
-            && ch_sizeCamY != null && ch_sizeCamY.getConnectionState() == Channel.ConnectionState.CONNECTED
-            && ch_maxSizeCamX != null && ch_maxSizeCamX.getConnectionState() == Channel.ConnectionState.CONNECTED
-            && ch_maxSizeCamY != null && ch_maxSizeCamY.getConnectionState() == Channel.ConnectionState.CONNECTED
-            && ch_binCamX_RBV != null && ch_binCamX_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED
-            && ch_binCamY_RBV != null && ch_binCamY_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED
-            && ch_reverseCamX_RBV != null && ch_reverseCamX_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED
-            && ch_reverseCamY_RBV != null && ch_reverseCamY_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED
-            && ch_sizeCamArrayX_RBV != null && ch_sizeCamArrayX_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED
-            && ch_sizeCamArrayY_RBV != null && ch_sizeCamArrayY_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED);
+
+        invalidateChain();
+        cameraConnected = isConnected(cameraConnection);
 
         if (cameraConnected & !isCameraConnected) {
             isCameraConnected = true;
@@ -709,11 +1012,11 @@ public class EPICS_AD_Controller implements PlugIn {
      */
     public void checkTransformPVConnections() {
         boolean transformConnected;
+
+        invalidateChain();
         
         try {
-            transformConnected = (ch_transType != null && ch_transType.getConnectionState() == Channel.ConnectionState.CONNECTED
-                               && ch_transArrayX_RBV != null && ch_transArrayX_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED
-                               && ch_transArrayY_RBV != null && ch_transArrayY_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED);
+            transformConnected = isConnected(transformConnection);
             if (transformConnected & !isTransformConnected) {
                 isTransformConnected = true;
                 logMessage("Connection to EPICS transform PVs OK", true, true);
@@ -743,19 +1046,9 @@ public class EPICS_AD_Controller implements PlugIn {
     public void checkRoiPVConnections() {
         boolean roiConnected;
 
-        roiConnected = 
-                  (ch_minRoiX != null && ch_minRoiX.getConnectionState() == Channel.ConnectionState.CONNECTED
-                && ch_minRoiY != null && ch_minRoiY.getConnectionState() == Channel.ConnectionState.CONNECTED
-                && ch_minRoiX_RBV != null && ch_minRoiX_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED
-                && ch_minRoiY_RBV != null && ch_minRoiY_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED
-                && ch_binRoiX != null && ch_binRoiX.getConnectionState() == Channel.ConnectionState.CONNECTED
-                && ch_binRoiY != null && ch_binRoiY.getConnectionState() == Channel.ConnectionState.CONNECTED
-                && ch_reverseRoiX_RBV != null && ch_reverseRoiX_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED
-                && ch_reverseRoiY_RBV != null && ch_reverseRoiY_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED
-                && ch_sizeRoiX != null && ch_sizeRoiX.getConnectionState() == Channel.ConnectionState.CONNECTED
-                && ch_sizeRoiY != null && ch_sizeRoiY.getConnectionState() == Channel.ConnectionState.CONNECTED
-                && ch_sizeRoiArrayX_RBV != null && ch_sizeRoiArrayX_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED
-                && ch_sizeRoiArrayY_RBV != null && ch_sizeRoiArrayY_RBV.getConnectionState() == Channel.ConnectionState.CONNECTED);
+        invalidateChain();
+
+        roiConnected = isConnected(roiConnection);
         if (roiConnected & !isRoiConnected) {
             isRoiConnected = true;
             logMessage("Connection to EPICS ROI PVs OK", true, true);
@@ -775,12 +1068,10 @@ public class EPICS_AD_Controller implements PlugIn {
     public void checkOverlayPVConnections() {
         boolean overlayConnected;
 
+        invalidateChain();
+
         try {
-            overlayConnected = 
-                      (ch_minOverlayX != null && ch_minOverlayX.getConnectionState() == Channel.ConnectionState.CONNECTED
-                    && ch_minOverlayY != null && ch_minOverlayY.getConnectionState() == Channel.ConnectionState.CONNECTED
-                    && ch_sizeOverlayX != null && ch_sizeOverlayX.getConnectionState() == Channel.ConnectionState.CONNECTED
-                    && ch_sizeOverlayY != null && ch_sizeOverlayY.getConnectionState() == Channel.ConnectionState.CONNECTED);
+            overlayConnected = isConnected(overlayConnection);
             if (overlayConnected & !isOverlayConnected) {
                 epicsGetInt(ch_minOverlayX);
                 epicsGetInt(ch_minOverlayY);
@@ -811,6 +1102,28 @@ public class EPICS_AD_Controller implements PlugIn {
         }
     }
 
+    /**
+     * This method checks that the PV objects for the multi-ROI plugins both exist
+     * and are connected to the underlying PVs.
+     */
+    public void checkMultiRoiPVConnections() {
+        boolean multiRoiConnected;
+
+        multiRoiConnected = isConnected(multiRoiConnection);
+        if (multiRoiConnected & !isMultiRoiConnected) {
+            isMultiRoiConnected = true;
+            logMessage("Connection to EPICS multi-ROI PVs OK", true, true);
+            multiRoiPatternText.setBackground(Color.green);
+            setMultiRoiButton.setEnabled(true);
+        }
+        if (!multiRoiConnected) {
+            isMultiRoiConnected = false;
+            logMessage("Cannot connect to EPICS multi-ROI PVs", true, true);
+            multiRoiPatternText.setBackground(Color.red);
+            setMultiRoiButton.setEnabled(false);
+        }
+    }
+
     /**
      * Read an integer value from a PV and return it.
      * 
@@ -867,150 +1180,534 @@ public class EPICS_AD_Controller implements PlugIn {
         ctxt.pendIO(5.0);
     }
 
+    /**
+     * Write the position and size of a region as a single batch of puts.
+     * All four puts are flushed together and the completions are awaited together,
+     * so this costs one network round trip rather than four.
+     * 
+     * @param chMinX    The channel for the start of the region in X.
+     * @param chMinY    The channel for the start of the region in Y.
+     * @param chSizeX   The channel for the size of the region in X.
+     * @param chSizeY   The channel for the size of the region in Y.
+     * @param minX      The start of the region in X.
+     * @param minY      The start of the region in Y.
+     * @param sizeX     The size of the region in X.
+     * @param sizeY     The size of the region in Y.
+     * @return          The time in seconds taken to complete the puts.
+     * @throws gov.aps.jca.TimeoutException
+     * @throws gov.aps.jca.CAException
+     * @throws IllegalStateException 
+     */
+    public double putRegion(Channel chMinX, Channel chMinY, Channel chSizeX, Channel chSizeY,
+                            int minX, int minY, int sizeX, int sizeY) throws TimeoutException, CAException, IllegalStateException {
+        CAPutBatch batch = new CAPutBatch(ctxt);
+        batch.add(chMinX, minX);
+        batch.add(chMinY, minY);
+        batch.add(chSizeX, sizeX);
+        batch.add(chSizeY, sizeY);
+        batch.execute(5.0);
+        return batch.getElapsedTime();
+    }
+
+    /**
+     * This class listens for changes to ImageJ ROIs and passes the bounds of the ROI in
+     * the current image to the live updater.  It runs on the event-dispatching thread,
+     * so it only records the rectangle and returns.
+     */
+    private class LiveRoiListener implements RoiListener {
+        @Override
+        public void roiModified(ImagePlus imp, int id) {
+            if (!isLiveUpdate || imp == null || id == RoiListener.DELETED) return;
+            if (imp != WindowManager.getCurrentImage()) return;
+            Roi roi = imp.getRoi();
+            if (roi == null) return;
+            liveUpdater.submit(roi.getBounds(), outputSelect);
+        }
+    }
 
     /**
-     * This class is used to determine the effect of the transform plugin
+     * This class writes ROI positions to the output PVs on its own thread while the ROI is dragged.
+     * Positions that arrive while a batch of puts is in flight are coalesced, so only the newest one
+     * is written, and batches are started at most MAX_RATE times per second.
      */
-    private class TransformParameters {
-        private int imageSizeX;
-        private int imageSizeY;
-        private boolean swapAxes;
-        private boolean reverseX;
-        private boolean reverseY;
-        public TransformParameters() {
-            this.read();
-        }
-  
-        public void read() {
-            int transformType = NONE;
+    private class LiveRegionUpdater implements Runnable {
+        private static final double MAX_RATE = 20.;
+        private final long minIntervalNs = (long)(1e9 / MAX_RATE);
+        private Rectangle pendingRect = null;
+        private String pendingOutput = null;
+        private volatile Rectangle lastRegion = null;
+        private volatile String lastOutput = null;
+        private volatile boolean isRunning = false;
+        private Thread thread;
+
+        public void start() {
+            isRunning = true;
+            thread = new Thread(this, "EPICS_AD_Controller live update");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void stop() {
+            isRunning = false;
+            thread.interrupt();
+        }
+
+        /**
+         * Records the latest rectangle, replacing any rectangle that has not been written yet.
+         * 
+         * @param rect      The rectangle in image coordinates.
+         * @param output    The output, "Camera", "ROI", or "Overlay".
+         */
+        public synchronized void submit(Rectangle rect, String output) {
+            pendingRect = rect;
+            pendingOutput = output;
+            notify();
+        }
+
+        /**
+         * Forgets the last region written, so the next one is written even if it is the same.
+         * Called after the output was set some other way.
+         */
+        public void forgetLastRegion() {
+            lastRegion = null;
+        }
+
+        @Override
+        public void run() {
+            long lastStart = 0;
+            while (isRunning) {
+                Rectangle rect;
+                String output;
+                try {
+                    synchronized (this) {
+                        while (pendingRect == null) wait();
+                    }
+                    // Wait out the rest of the interval so that positions arriving meanwhile are coalesced
+                    long delay = lastStart + minIntervalNs - System.nanoTime();
+                    if (delay > 0) Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                synchronized (this) {
+                    rect = pendingRect;
+                    output = pendingOutput;
+                    pendingRect = null;
+                }
+                lastStart = System.nanoTime();
+                writeRegion(rect, output);
+            }
+        }
+
+        private void writeRegion(Rectangle rect, String output) {
+            // Problems are only shown on the status line, they would flood the log while dragging
+            CachedTransform chain = getOutputTransform(output);
+            if (chain.transform == null) {
+                logMessage(chain.error, true, false);
+                return;
+            }
+            Rectangle region = chain.transform.map(rect);
+            // Dragging produces many events that do not change the region
+            if (region.equals(lastRegion) && output.equals(lastOutput)) return;
             try {
-                transformType = epicsGetEnum(ch_transType);
-                imageSizeX = epicsGetInt(ch_transArrayX_RBV);
-                imageSizeY = epicsGetInt(ch_transArrayY_RBV);
+                double time;
+                if (output.equals("Camera")) {
+                    time = putRegion(ch_minCamX, ch_minCamY, ch_sizeCamX, ch_sizeCamY,
+                                     region.x, region.y, region.width, region.height);
+                } else if (output.equals("ROI")) {
+                    ROIPlugin[] rois = roiPlugins;
+                    if (rois.length == 0) return;
+                    time = putRegion(rois[0].ch_minRoiX, rois[0].ch_minRoiY, rois[0].ch_sizeRoiX, rois[0].ch_sizeRoiY,
+                                     region.x, region.y, region.width, region.height);
+                } else if (output.equals("Overlay")) {
+                    time = putRegion(ch_minOverlayX, ch_minOverlayY, ch_sizeOverlayX, ch_sizeOverlayY,
+                                     region.x, region.y, region.width, region.height);
+                } else {
+                    return;
+                }
+                lastRegion = region;
+                lastOutput = output;
+                logMessage("Live " + output + " " + region.x + "," + region.y + "," + region.width + "," + region.height
+                           + String.format(" in %.1f ms", time*1000.), true, false);
             } catch (CAException ex) {
-                IJ.log("TransformParameters CAException: Could not get parameters from " + transformPrefix + ": " + ex.getMessage());
+                logMessage("CAException: Could not set live " + output + ": " + ex.getMessage(), true, true);
             } catch (TimeoutException ex) {
-                IJ.log("TransformParameters TimeoutException: Could not get parameters from " + transformPrefix + ": " + ex.getMessage());
+                logMessage("TimeoutException: Could not set live " + output + ": " + ex.getMessage(), true, true);
             } catch (IllegalStateException ex) {
-                IJ.log("TransformParameters IllegalStateException: Could not get parameters from " + transformPrefix + ": " + ex.getMessage());
+                logMessage("IllegalStateException: Could not set live " + output + ": " + ex.getMessage(), true, true);
+            }
+        }
+    }
+
+    /**
+     * This class displays the sensor pixel under the cursor as the mouse moves over any image.
+     * It runs on the event-dispatching thread and only uses the cached transform to the camera.
+     */
+    private class CursorListener implements AWTEventListener {
+        @Override
+        public void eventDispatched(AWTEvent event) {
+            if (cursorText == null || !(event.getSource() instanceof ImageCanvas)) return;
+            MouseEvent e = (MouseEvent) event;
+            ImageCanvas canvas = (ImageCanvas) e.getSource();
+            int x = canvas.offScreenX(e.getX());
+            int y = canvas.offScreenY(e.getY());
+            CachedTransform chain = getOutputTransform("Camera");
+            if (chain.transform == null) {
+                cursorText.setText(chain.error);
+                return;
             }
+            // A binned image pixel covers several sensor pixels
+            Rectangle sensor = chain.transform.map(new Rectangle(x, y, 1, 1));
+            String text = "Image " + x + "," + y + "  Sensor " + sensor.x + "," + sensor.y;
+            if (sensor.width > 1 || sensor.height > 1) text += " (" + sensor.width + "x" + sensor.height + ")";
+            cursorText.setText(text);
+        }
+    }
+
+    /**
+     * This class holds the PV objects for one transform plugin.
+     */
+    private class TransformPlugin {
+        public final String prefix;
+        public final Channel ch_transType;         //This represents the way the image is flipped or rotated.
+        public final Channel ch_transArrayX_RBV;
+        public final Channel ch_transArrayY_RBV;
+        public final ParameterGroup parameterGroup;
+        public volatile TransformParameters parameters;
+
+        public TransformPlugin(String prefix, ConnectionCounter connection) throws Exception {
+            this.prefix = prefix;
+            ch_transType = createEPICSChannel(prefix + "Type", connection);
+            ch_transArrayX_RBV = createEPICSChannel(prefix + "ArraySizeX_RBV", connection);
+            ch_transArrayY_RBV = createEPICSChannel(prefix + "ArraySizeY_RBV", connection);
+            parameterGroup = new ParameterGroup(ch_transType, ch_transArrayX_RBV, ch_transArrayY_RBV) {
+                @Override
+                protected void publish(int[] values) {
+                    TransformParameters tp = new TransformParameters(values);
+                    if (!tp.isValidType) {
+                        IJ.log("TransformParameters: found no matching transform type " + tp.transformType);
+                    }
+                    parameters = tp;
+                    invalidateChain();
+                }
+            };
+        }
 
+        public void destroy() throws CAException {
+            parameterGroup.close();
+            ch_transType.destroy();
+            ch_transArrayX_RBV.destroy();
+            ch_transArrayY_RBV.destroy();
+        }
+    }
+
+    /**
+     * This class holds the PV objects for one ROI plugin.
+     */
+    private class ROIPlugin {
+        public final String prefix;
+        public final Channel ch_minRoiX;           //This is the start of the ROI in X
+        public final Channel ch_minRoiY;           //This is the start of the ROI in Y
+        public final Channel ch_minRoiX_RBV;       //This is the readback value of X in the ROI
+        public final Channel ch_minRoiY_RBV;       //This is the readback value of Y in the ROI
+        public final Channel ch_binRoiX;           //This is the binning of the ROI in the X dimension
+        public final Channel ch_binRoiY;           //This is the binning of the ROI in the Y dimension
+        public final Channel ch_sizeRoiX;          //This is the size of the ROI in the X dimension
+        public final Channel ch_sizeRoiY;          //This is the size of the ROI in the Y dimension
+        public final Channel ch_sizeRoiArrayX_RBV; //This is the size of the image array for the ROI in X
+        public final Channel ch_sizeRoiArrayY_RBV; //This is the size of the image array for the ROI in Y
+        public final Channel ch_reverseRoiX_RBV;   //This is reverse flag for the ROI in X
+        public final Channel ch_reverseRoiY_RBV;   //This is reverse flag for the ROI in Y
+        public final ParameterGroup parameterGroup;
+        public volatile ROIParameters parameters;
+
+        public ROIPlugin(String prefix, ConnectionCounter connection) throws Exception {
+            this.prefix = prefix;
+            ch_minRoiX = createEPICSChannel(prefix + "MinX", connection);
+            ch_minRoiY = createEPICSChannel(prefix + "MinY", connection);
+            ch_minRoiX_RBV = createEPICSChannel(prefix + "MinX_RBV", connection);
+            ch_minRoiY_RBV = createEPICSChannel(prefix + "MinY_RBV", connection);
+            ch_binRoiX = createEPICSChannel(prefix + "BinX", connection);
+            ch_binRoiY = createEPICSChannel(prefix + "BinY", connection);
+            ch_reverseRoiX_RBV = createEPICSChannel(prefix + "ReverseX_RBV", connection);
+            ch_reverseRoiY_RBV = createEPICSChannel(prefix + "ReverseY_RBV", connection);
+            ch_sizeRoiX = createEPICSChannel(prefix + "SizeX", connection);
+            ch_sizeRoiY = createEPICSChannel(prefix + "SizeY", connection);
+            ch_sizeRoiArrayX_RBV = createEPICSChannel(prefix + "ArraySizeX_RBV", connection);
+            ch_sizeRoiArrayY_RBV = createEPICSChannel(prefix + "ArraySizeY_RBV", connection);
+            parameterGroup = new ParameterGroup(ch_minRoiX_RBV, ch_minRoiY_RBV, ch_binRoiX, ch_binRoiY,
+                                                ch_reverseRoiX_RBV, ch_reverseRoiY_RBV,
+                                                ch_sizeRoiArrayX_RBV, ch_sizeRoiArrayY_RBV) {
+                @Override
+                protected void publish(int[] values) {
+                    parameters = new ROIParameters(values);
+                    invalidateChain();
+                }
+            };
+        }
+
+        public void destroy() throws CAException {
+            parameterGroup.close();
+            ch_minRoiX.destroy();
+            ch_minRoiY.destroy();
+            ch_minRoiX_RBV.destroy();
+            ch_minRoiY_RBV.destroy();
+            ch_binRoiX.destroy();
+            ch_binRoiY.destroy();
+            ch_reverseRoiX_RBV.destroy();
+            ch_reverseRoiY_RBV.destroy();
+            ch_sizeRoiX.destroy();
+            ch_sizeRoiY.destroy();
+            ch_sizeRoiArrayX_RBV.destroy();
+            ch_sizeRoiArrayY_RBV.destroy();
+        }
+    }
+
+    /**
+     * This class keeps the latest values of a group of integer PVs using monitors.
+     * Each time a value changes a new immutable snapshot is built from the values
+     * and published, so reading the parameters never waits on the network.
+     */
+    private abstract class ParameterGroup {
+        private final Channel[] channels;
+        private final Monitor[] monitors;
+        private final int[] values;
+        private final boolean[] received;
+        private int numReceived = 0;
+        private boolean isSubscribed = false;
+        private boolean isClosed = false;
+
+        public ParameterGroup(Channel... channels) {
+            this.channels = channels;
+            monitors = new Monitor[channels.length];
+            values = new int[channels.length];
+            received = new boolean[channels.length];
+        }
+
+        /**
+         * Adds a monitor on each channel.  This is done once, when the group first connects;
+         * Channel Access restores the monitors itself after a reconnect.
+         * It does not block, so it can be called from a Channel Access callback.
+         */
+        public synchronized void subscribe() {
+            if (isSubscribed || isClosed) return;
+            try {
+                for (int i = 0; i < channels.length; i++) {
+                    if (monitors[i] == null) {
+                        monitors[i] = channels[i].addMonitor(DBRType.INT, 1, Monitor.VALUE, new ValueListener(i));
+                    }
+                }
+                ctxt.flushIO();
+                isSubscribed = true;
+            } catch (CAException ex) {
+                IJ.log("ParameterGroup CAException: Could not add monitors: " + ex.getMessage());
+            } catch (IllegalStateException ex) {
+                IJ.log("ParameterGroup IllegalStateException: Could not add monitors: " + ex.getMessage());
+            }
+        }
+
+        /**
+         * Clears the monitors and stops publishing.  Events already on their way are ignored,
+         * so once this returns the group never publishes again.  Call it before destroying
+         * the channels.
+         */
+        public synchronized void close() {
+            if (isClosed) return;
+            isClosed = true;
+            for (int i = 0; i < monitors.length; i++) {
+                if (monitors[i] == null) continue;
+                try {
+                    monitors[i].clear();
+                } catch (CAException ex) {
+                    IJ.log("ParameterGroup CAException: Could not clear monitor: " + ex.getMessage());
+                } catch (IllegalStateException ex) {
+                    // the channel is already gone, which also removes its monitors
+                }
+                monitors[i] = null;
+            }
+        }
+
+        private synchronized void valueChanged(int index, int value) {
+            if (isClosed) return;
+            values[index] = value;
+            if (!received[index]) {
+                received[index] = true;
+                numReceived++;
+            }
+            // Only publish once every value has arrived so a snapshot is never partly filled in
+            if (numReceived == values.length) {
+                publish(values.clone());
+            }
+        }
+
+        /**
+         * Builds a snapshot from the latest values and stores it.
+         * 
+         * @param values    A private copy of the values in the order of the channels.
+         */
+        protected abstract void publish(int[] values);
+
+        private class ValueListener implements MonitorListener {
+            private final int index;
+            public ValueListener(int index) {
+                this.index = index;
+            }
+            @Override
+            public void monitorChanged(MonitorEvent ev) {
+                if (ev.getStatus() == null || !ev.getStatus().isSuccessful()) return;
+                DBR_Int x = (DBR_Int) ev.getDBR();
+                valueChanged(index, x.getIntValue()[0]);
+            }
+        }
+    }
+
+    /**
+     * This class is used to determine the effect of the transform plugin.
+     * It is an immutable snapshot of the transform parameters.
+     */
+    private static final class TransformParameters {
+        public final int transformType;
+        public final int imageSizeX;
+        public final int imageSizeY;
+        public final boolean swapAxes;
+        public final boolean reverseX;
+        public final boolean reverseY;
+        public final boolean isValidType;
+        /* Maps the output image of the plugin to its input image */
+        public final CoordinateTransform transform;
+
+        /**
+         * @param values    Type, ArraySizeX_RBV, ArraySizeY_RBV
+         */
+        public TransformParameters(int[] values) {
+            boolean swap = false;
+            boolean revX = false;
+            boolean revY = false;
+            boolean valid = true;
+            transformType = values[0];
+            imageSizeX = values[1];
+            imageSizeY = values[2];
             switch (transformType) {                    
                 case NONE:
-                    swapAxes = false;
-                    reverseX = false;
-                    reverseY = false;
                     break;
                 case ROTATE_90:
-                    swapAxes = true;
-                    reverseX = true;
-                    reverseY = false;
+                    swap = true;
+                    revX = true;
                     break;
                 case ROTATE_270:
-                    swapAxes = true;
-                    reverseX = false;
-                    reverseY = true;
+                    swap = true;
+                    revY = true;
                     break;
                 case ROTATE_180:
-                    swapAxes = false;
-                    reverseX = true;
-                    reverseY = true;
+                    revX = true;
+                    revY = true;
                     break;
                 case ROTATE_90_MIRROR:
-                    swapAxes = true;
-                    reverseX = false;
-                    reverseY = false;
+                    swap = true;
                     break;
                case ROTATE_270_MIRROR:
-                    swapAxes = true;
-                    reverseX = true;
-                    reverseY = true;
+                    swap = true;
+                    revX = true;
+                    revY = true;
                     break;
                case MIRROR:
-                    swapAxes = false;
-                    reverseX = true;
-                    reverseY = false;
+                    revX = true;
                     break;
                case ROTATE_180_MIRROR:
-                    swapAxes = false;
-                    reverseX = false;
-                    reverseY = true;
+                    revY = true;
                     break;
                 default:
-                    logMessage("TransformParameters: found no matching transform type", true, true);
+                    valid = false;
                     break;
             }
-            if (isDebugMessages)
-                logMessage("TransformParameters swapAxes="+String.valueOf(swapAxes)+
-                                              " reverseX="+String.valueOf(reverseX)+
-                                              " reverseY="+String.valueOf(reverseY), true, true);
+            swapAxes = swap;
+            reverseX = revX;
+            reverseY = revY;
+            isValidType = valid;
+            // The reversal is in the output image, before the axes are swapped back
+            CoordinateTransform t = CoordinateTransform.reflection(reverseX, reverseY, imageSizeX, imageSizeY);
+            if (swapAxes) t = t.then(CoordinateTransform.swapAxes());
+            transform = t;
+        }
+
+        @Override
+        public String toString() {
+            return "TransformParameters swapAxes="+String.valueOf(swapAxes)+
+                   " reverseX="+String.valueOf(reverseX)+
+                   " reverseY="+String.valueOf(reverseY);
         }
     }
 
     /**
-     * This class is used to determine the effect of the ROI plugin
+     * This class is used to determine the effect of the ROI plugin.
+     * It is an immutable snapshot of the ROI parameters.
      */
-    private class ROIParameters {
-        public int minX;
-        public int minY;
-        public int binX;
-        public int binY;
-        public boolean reverseX;
-        public boolean reverseY;
-        public int imageSizeX;
-        public int imageSizeY;
-        public ROIParameters() {
-            this.read();
-        }
-        public void read() {
-            try {
-                minX = epicsGetInt(ch_minRoiX_RBV);
-                minY = epicsGetInt(ch_minRoiY_RBV);
-                binX = epicsGetInt(ch_binRoiX);
-                binY = epicsGetInt(ch_binRoiY);
-                reverseX = epicsGetInt(ch_reverseRoiX_RBV) != 0;
-                reverseY = epicsGetInt(ch_reverseRoiY_RBV) != 0;
-                imageSizeX = epicsGetInt(ch_sizeRoiArrayX_RBV);
-                imageSizeY = epicsGetInt(ch_sizeRoiArrayY_RBV);
-            } catch (CAException ex) {
-                IJ.log("ROIParameters CAException: Could not get parameters from " + roiPrefix + ": " + ex.getMessage());
-            } catch (TimeoutException ex) {
-                IJ.log("ROIParameters TimeoutException: Could not get parameters from " + roiPrefix + ": " + ex.getMessage());
-            } catch (IllegalStateException ex) {
-                IJ.log("ROIParameters IllegalStateException: Could not get parameters from " + roiPrefix + ": " + ex.getMessage());
-            }
+    private static final class ROIParameters {
+        public final int minX;
+        public final int minY;
+        public final int binX;
+        public final int binY;
+        public final boolean reverseX;
+        public final boolean reverseY;
+        public final int imageSizeX;
+        public final int imageSizeY;
+        /* Maps the output image of the plugin to its input image */
+        public final CoordinateTransform transform;
+
+        /**
+         * @param values    MinX_RBV, MinY_RBV, BinX, BinY, ReverseX_RBV, ReverseY_RBV,
+         *                  ArraySizeX_RBV, ArraySizeY_RBV
+         */
+        public ROIParameters(int[] values) {
+            minX = values[0];
+            minY = values[1];
+            binX = values[2];
+            binY = values[3];
+            reverseX = values[4] != 0;
+            reverseY = values[5] != 0;
+            imageSizeX = values[6];
+            imageSizeY = values[7];
+            transform = CoordinateTransform.reflection(reverseX, reverseY, imageSizeX, imageSizeY)
+                        .then(CoordinateTransform.scale(binX, binY))
+                        .then(CoordinateTransform.translation(minX, minY));
         }
     }
 
-    private class CameraParameters {
-        public int minX;
-        public int minY;
-        public int imageSizeX;
-        public int imageSizeY;
-        public int binX;
-        public int binY;
-        public boolean reverseX;
-        public boolean reverseY;
-        public CameraParameters() {
-            this.read();
-        }
-        public void read() {
-            try {
-                minX = epicsGetInt(ch_minCamX_RBV);
-                minY = epicsGetInt(ch_minCamY_RBV);
-                binX = epicsGetInt(ch_binCamX_RBV);
-                binY = epicsGetInt(ch_binCamY_RBV);
-                imageSizeX = epicsGetInt(ch_sizeCamArrayX_RBV);
-                imageSizeY = epicsGetInt(ch_sizeCamArrayY_RBV);
-                reverseX = epicsGetInt(ch_reverseCamX_RBV) != 0;
-                reverseY = epicsGetInt(ch_reverseCamY_RBV) != 0;
-            } catch (CAException ex) {
-                IJ.log("ROIParameters CAException: Could not get parameters from " + cameraPrefix + ": " + ex.getMessage());
-            } catch (TimeoutException ex) {
-                IJ.log("ROIParameters TimeoutException: Could not get parameters from " + cameraPrefix + ": " + ex.getMessage());
-            } catch (IllegalStateException ex) {
-                IJ.log("ROIParameters IllegalStateException: Could not get parameters from " + cameraPrefix + ": " + ex.getMessage());
-            }
+    /**
+     * This class is used to determine the effect of the camera readout.
+     * It is an immutable snapshot of the camera parameters.
+     */
+    private static final class CameraParameters {
+        public final int minX;
+        public final int minY;
+        public final int imageSizeX;
+        public final int imageSizeY;
+        public final int binX;
+        public final int binY;
+        public final boolean reverseX;
+        public final boolean reverseY;
+        public final int maxSizeX;
+        public final int maxSizeY;
+        /* Maps the image to the sensor */
+        public final CoordinateTransform transform;
+
+        /**
+         * @param values    MinX_RBV, MinY_RBV, BinX_RBV, BinY_RBV, ArraySizeX_RBV, ArraySizeY_RBV,
+         *                  ReverseX_RBV, ReverseY_RBV, MaxSizeX_RBV, MaxSizeY_RBV
+         */
+        public CameraParameters(int[] values) {
+            minX = values[0];
+            minY = values[1];
+            binX = values[2];
+            binY = values[3];
+            imageSizeX = values[4];
+            imageSizeY = values[5];
+            reverseX = values[6] != 0;
+            reverseY = values[7] != 0;
+            maxSizeX = values[8];
+            maxSizeY = values[9];
+            transform = CoordinateTransform.reflection(reverseX, reverseY, imageSizeX, imageSizeY)
+                        .then(CoordinateTransform.scale(binX, binY))
+                        .then(CoordinateTransform.translation(minX, minY));
         }
     }
 
@@ -1027,10 +1724,20 @@ public class EPICS_AD_Controller implements PlugIn {
         transformPrefixText = new JTextField(transformPrefix, 15);
         roiPrefixText = new JTextField(roiPrefix, 15);
         overlayPrefixText = new JTextField(overlayPrefix, 15);
+        transformPrefixText.setToolTipText("One or more prefixes separated by commas, in the order of the plugins in the chain");
+        roiPrefixText.setToolTipText("One or more prefixes separated by commas, in the order of the plugins in the chain");
+        multiRoiPatternText = new JTextField(multiRoiPattern, 15);
+        multiRoiPatternText.setToolTipText("PV prefix of the ROI or ROIStat plugin for each region, %d is replaced by the region number");
+        multiRoiCountText = new JTextField(String.valueOf(multiRoiCount), 4);
+        setMultiRoiButton = new JButton("Set From ROI Manager");
+        cursorText = new JTextField(50);
+        cursorText.setEditable(false);
         resetCameraReadoutButton = new JButton("Reset camera region");
         resetROIButton = new JButton("Reset ROI");
         transformInChainCheckBox = new JCheckBox("Transform Plugin In Chain", isTransformInChain);
         ROIInChainCheckBox = new JCheckBox("ROI Plugin In Chain", isROIInChain);
+        liveCheckBox = new JCheckBox("Live", false);
+        liveCheckBox.setToolTipText("Write the output PVs while the ImageJ ROI is moved or resized");
         outputSelectComboBox = new JComboBox(outputSelectChoices);
         outputSelectComboBox.setSelectedItem(outputSelect);
         setControlItemButton = new JButton("Set");
@@ -1089,11 +1796,41 @@ public class EPICS_AD_Controller implements PlugIn {
         c.gridx++;
         panel.add(ROIInChainCheckBox, c);
         c.gridx++;
+        c.anchor = GridBagConstraints.WEST;
+        panel.add(liveCheckBox, c);
+
+        // Fourth row
+        c.gridy = 3;
+        c.gridx = 0;
+        c.anchor = GridBagConstraints.EAST;
+        panel.add(new JLabel("Multi-ROI PV Pattern"), c);
+        c.gridx++;
+        c.anchor = GridBagConstraints.CENTER;
+        panel.add(multiRoiPatternText, c);
+        c.gridx++;
+        c.anchor = GridBagConstraints.EAST;
+        panel.add(new JLabel("Regions"), c);
+        c.gridx++;
+        c.anchor = GridBagConstraints.WEST;
+        panel.add(multiRoiCountText, c);
+        c.gridx++;
+        panel.add(setMultiRoiButton, c);
 
         // Fifth row
         c.gridy = 4;
         c.gridx = 0;
         c.anchor = GridBagConstraints.EAST;
+        panel.add(new JLabel("Cursor: "), c);
+        c.gridx++;
+        c.gridwidth = 7;
+        c.anchor = GridBagConstraints.WEST;
+        panel.add(cursorText, c);
+        c.gridwidth = 1;
+
+        // Sixth row
+        c.gridy = 5;
+        c.gridx = 0;
+        c.anchor = GridBagConstraints.EAST;
         panel.add(new JLabel("Status: "), c);
         c.gridx++;
         c.gridwidth = 7;
@@ -1145,6 +1882,25 @@ public class EPICS_AD_Controller implements PlugIn {
             }
         });
 
+        ActionListener multiRoiListener = new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent event) {
+                if (isDebugMessages)
+                    IJ.log("Multi-ROI pattern changed");
+                disconnectMultiRoiPVs();
+                connectMultiRoiPVs();
+            }
+        };
+        multiRoiPatternText.addActionListener(multiRoiListener);
+        multiRoiCountText.addActionListener(multiRoiListener);
+
+        setMultiRoiButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent event) {
+                setMultipleROIs();
+            }
+        });
+
         resetCameraReadoutButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent event) {
@@ -1163,6 +1919,7 @@ public class EPICS_AD_Controller implements PlugIn {
             @Override
             public void itemStateChanged(ItemEvent e) {
                 isTransformInChain = (e.getStateChange() == ItemEvent.SELECTED);
+                invalidateChain();
             }
         });
 
@@ -1170,6 +1927,7 @@ public class EPICS_AD_Controller implements PlugIn {
             @Override
             public void itemStateChanged(ItemEvent e) {
                 isROIInChain = (e.getStateChange() == ItemEvent.SELECTED);
+                invalidateChain();
             }
         });
 
@@ -1180,6 +1938,14 @@ public class EPICS_AD_Controller implements PlugIn {
             }
         });                
 
+        liveCheckBox.addItemListener(new ItemListener () {
+            @Override
+            public void itemStateChanged(ItemEvent e) {
+                isLiveUpdate = (e.getStateChange() == ItemEvent.SELECTED);
+                logMessage("Live update " + (isLiveUpdate ? "on" : "off"), true, true);
+            }
+        });
+
         setControlItemButton.addActionListener(new ActionListener () {
             @Override
             public void actionPerformed(ActionEvent event) {
@@ -1213,12 +1979,22 @@ public class EPICS_AD_Controller implements PlugIn {
     public void logMessage(String message, boolean logDisplay, boolean logFile) {
         Date date = new Date();
         SimpleDateFormat simpleDate = new SimpleDateFormat("d/M/y k:m:s.S");
-        String completeMessage;
+        final String completeMessage;
 
         completeMessage = simpleDate.format(date) + ": " + message;
         if (logDisplay) {
             // StatusText won't exist until the GUI is created, so early logMessage calls won't have it
-            if (StatusText != null) StatusText.setText(completeMessage);
+            if (SwingUtilities.isEventDispatchThread()) {
+                if (StatusText != null) StatusText.setText(completeMessage);
+            } else {
+                // Messages also come from the live updater and Channel Access threads
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (StatusText != null) StatusText.setText(completeMessage);
+                    }
+                });
+            }
         }
         if (logFile) {
             IJ.log(completeMessage);
@@ -1257,6 +2033,14 @@ public class EPICS_AD_Controller implements PlugIn {
             if (temp != null) {
                 overlayPrefix = temp;
             }
+            temp = properties.getProperty("multiRoiPattern");
+            if (temp != null) {
+                multiRoiPattern = temp;
+            }
+            temp = properties.getProperty("multiRoiCount");
+            if (temp != null) {
+                multiRoiCount = Integer.parseInt(temp);
+            }
             temp = properties.getProperty("isTransformInChain");
             if (temp != null) {
                 isTransformInChain = Boolean.parseBoolean(temp);
@@ -1287,6 +2071,8 @@ public class EPICS_AD_Controller implements PlugIn {
             properties.setProperty("transformPrefix", transformPrefix);
             properties.setProperty("roiPrefix", roiPrefix);
             properties.setProperty("overlayPrefix", overlayPrefix);
+            properties.setProperty("multiRoiPattern", multiRoiPattern);
+            properties.setProperty("multiRoiCount", String.valueOf(multiRoiCount));
             properties.setProperty("isTransformInChain", String.valueOf(isTransformInChain));
             properties.setProperty("isROIInChain", String.valueOf(isROIInChain));
             properties.setProperty("outputSelect", outputSelect);
@@ -23,7 +23,6 @@ import gov.aps.jca.event.*;
 public class EPICS_AD_Viewer implements PlugIn
 {
     ImagePlus img;
-    ImageStack imageStack;
     Object snapBackup = null;
     Object altSnapBackup = null;
     int imageSizeX = 0;
@@ -57,6 +56,7 @@ public class EPICS_AD_Viewer implements PlugIn
     Channel ch_dataType;
     Channel ch_image;
     Channel ch_image_id;
+    ConnectionCounter connectionCounter;
     volatile int ArrayCounter;
 
     JFrame frame;
@@ -71,14 +71,28 @@ public class EPICS_AD_Viewer implements PlugIn
     JButton startButton;
     JButton stopButton;
     JButton snapButton;
+    JButton triggerButton;
+    JCheckBox captureCheckBox;
     JCheckBox logCheckBox;
+    JCheckBox tiffCheckBox;
+
+    // Capture to Stack: a ring buffer or a mapped file, allocated on a helper thread once capture is armed and frames arrive
+    FrameCapture captureBuffer;
+    CaptureBuffer.Settings captureSettings = new CaptureBuffer.Settings();
+    final Object captureLock = new Object();
+    boolean isCaptureAllocating = false;    // a helper thread is allocating captureBuffer
+    int captureGeneration = 0;              // counts the stops, so a buffer allocated before one is not used
+
+    // Save TIFF: every frame streamed to a TIFF file on a background thread
+    volatile TiffStreamWriter tiffWriter;
+    String tiffDirectory = System.getProperty("java.io.tmpdir");
+    double tiffBufferMB = 256;
 
     boolean isDebugMessages;
     boolean isDebugFile;
     boolean isDisplayImages;
     boolean isPluginRunning;
-    boolean isSaveToStack;
-    boolean isNewStack;
+    volatile boolean isSaveToStack;
     boolean isConnected;
     boolean isLogOn;
     boolean firstLog;
@@ -97,7 +111,6 @@ public class EPICS_AD_Viewer implements PlugIn
             isPluginRunning = true;
             isNewImageAvailable = false;
             isSaveToStack = false;
-            isNewStack = false;
             isLogOn = false;
             firstLog=false;
             Date date = new Date();
@@ -149,6 +162,8 @@ public class EPICS_AD_Viewer implements PlugIn
             }
 
             timer.stop();
+            stopTiff();
+            discardCapture();
             writeProperties();
             disconnectPVs();
             closeEPICSCA();
@@ -216,13 +231,14 @@ public class EPICS_AD_Viewer implements PlugIn
                 debugPrintStream.println();
                 jca.listProperties(debugPrintStream);
             }
-            ch_nx = createEPICSChannel(PVPrefix + "ArraySize0_RBV");
-            ch_ny = createEPICSChannel(PVPrefix + "ArraySize1_RBV");
-            ch_nz = createEPICSChannel(PVPrefix + "ArraySize2_RBV");
-            ch_colorMode = createEPICSChannel(PVPrefix + "ColorMode_RBV");
-            ch_dataType = createEPICSChannel(PVPrefix + "DataType_RBV");
-            ch_image = createEPICSChannel(PVPrefix + "ArrayData");
-            ch_image_id = createEPICSChannel(PVPrefix + "ArrayCounter_RBV");
+            connectionCounter = new ConnectionCounter(7, new ViewerConnectionListener());
+            ch_nx = createEPICSChannel(PVPrefix + "ArraySize0_RBV", connectionCounter);
+            ch_ny = createEPICSChannel(PVPrefix + "ArraySize1_RBV", connectionCounter);
+            ch_nz = createEPICSChannel(PVPrefix + "ArraySize2_RBV", connectionCounter);
+            ch_colorMode = createEPICSChannel(PVPrefix + "ColorMode_RBV", connectionCounter);
+            ch_dataType = createEPICSChannel(PVPrefix + "DataType_RBV", connectionCounter);
+            ch_image = createEPICSChannel(PVPrefix + "ArrayData", connectionCounter);
+            ch_image_id = createEPICSChannel(PVPrefix + "ArrayCounter_RBV", connectionCounter);
             ch_image_id.addMonitor(
                     Monitor.VALUE,
                     new newArrayCounterCallback()
@@ -240,6 +256,9 @@ public class EPICS_AD_Viewer implements PlugIn
     {
         try
         {
+            // Close the old counter first so callbacks from the destroyed channels are ignored
+            if (connectionCounter != null) connectionCounter.close();
+            connectionCounter = null;
             ch_nx.destroy();
             ch_ny.destroy();
             ch_nz.destroy();
@@ -282,10 +301,11 @@ public class EPICS_AD_Viewer implements PlugIn
         ctxt.destroy();
     }
 
-    public Channel createEPICSChannel(String chname) throws Exception
+    public Channel createEPICSChannel(String chname, ConnectionListener cl) throws Exception
     {
         // Create the Channel to connect to the PV.
-        Channel ch = ctxt.createChannel(chname);
+        // The listener is registered before the connection request is sent so no transition is missed.
+        Channel ch = ctxt.createChannel(chname, cl);
 
         // send the request and wait for the channel to connect to the PV.
         ctxt.pendIO(2.0);
@@ -321,18 +341,49 @@ public class EPICS_AD_Viewer implements PlugIn
         }
     }
 
+    public class ViewerConnectionListener implements ConnectionCounter.Listener
+    {
+        public void groupConnectionChanged(boolean connected)
+        {
+            if (connected)
+            {
+                // Resume streaming immediately rather than waiting for the next ArrayCounter monitor
+                isNewImageAvailable = true;
+                synchronized (EPICS_AD_Viewer.this) {
+                    EPICS_AD_Viewer.this.notify();
+                }
+            }
+            javax.swing.SwingUtilities.invokeLater(
+                    new Runnable()
+                    {
+                        public void run()
+                        {
+                            checkConnections();
+                        }
+                    }
+            );
+        }
+    }
+
+    /**
+     * Returns the aggregate connection state of the PVs.
+     * This is maintained by ConnectionListener callbacks so it is cheap enough to call for every frame.
+     */
+    public boolean isPVsConnected()
+    {
+        ConnectionCounter counter = connectionCounter;
+        return counter != null && counter.isConnected();
+    }
+
+    /**
+     * Updates the GUI to reflect the connection state of the PVs.
+     */
     public void checkConnections()
     {
         boolean connected;
         try
         {
-            connected = (ch_nx != null && ch_nx.getConnectionState() == Channel.ConnectionState.CONNECTED &&
-                    ch_ny != null && ch_ny.getConnectionState() == Channel.ConnectionState.CONNECTED &&
-                    ch_nz != null && ch_nz.getConnectionState() == Channel.ConnectionState.CONNECTED &&
-                    ch_colorMode != null && ch_colorMode.getConnectionState() == Channel.ConnectionState.CONNECTED &&
-                    ch_dataType != null && ch_dataType.getConnectionState() == Channel.ConnectionState.CONNECTED &&
-                    ch_image != null && ch_image.getConnectionState() == Channel.ConnectionState.CONNECTED &&
-                    ch_image_id != null && ch_image_id.getConnectionState() == Channel.ConnectionState.CONNECTED);
+            connected = isPVsConnected();
             if (connected && !isConnected)
             {
                 isConnected = true;
@@ -363,8 +414,7 @@ public class EPICS_AD_Viewer implements PlugIn
     {
         try
         {
-            checkConnections();
-            if (!isConnected) return;
+            if (!isPVsConnected()) return;
             int nx = epicsGetInt(ch_nx);
             int ny = epicsGetInt(ch_ny);
             int nz = epicsGetInt(ch_nz);
@@ -398,9 +448,6 @@ public class EPICS_AD_Viewer implements PlugIn
                 NZText.setText("" + imageSizeZ);
             }
 
-            // If we are making a new stack close the window
-            if (isNewStack) makeNewWindow = true;
-
             // If we need to make a new window then close the current one if it exists
             if (makeNewWindow)
             {
@@ -455,19 +502,6 @@ public class EPICS_AD_Viewer implements PlugIn
                 madeNewWindow = true;
             }
 
-            if (isNewStack)
-            {
-                imageStack = new ImageStack(img.getWidth(), img.getHeight());
-                imageStack.addSlice(PVPrefix + ArrayCounter, img.getProcessor());
-                // Note: we need to add this first slice twice in order to get the slider bar
-                // on the window - ImageJ won't put it there if there is only 1 slice.
-                imageStack.addSlice(PVPrefix + ArrayCounter, img.getProcessor());
-                img.close();
-                img = new ImagePlus(PVPrefix, imageStack);
-                img.show();
-                isNewStack = false;
-            }
-
             if (isDebugMessages) IJ.log("about to get pixels");
             if (colorMode == 0 || colorMode == 1)
             {
@@ -553,6 +587,13 @@ public class EPICS_AD_Viewer implements PlugIn
                 }
                 img.getProcessor().setPixels(pixels);
             }
+            // Capture the image as received, before the log
+            if (isSaveToStack) captureFrame(ArrayCounter);
+            TiffStreamWriter tw = tiffWriter;
+            if (tw != null) streamFrame(tw);
+            FrameBus bus = FrameBus.get(PVPrefix);
+            if (bus.hasSubscribers())
+                bus.publish(img.getWidth(), img.getHeight(), img.getBitDepth(), img.getProcessor().getPixels(), ArrayCounter, 0);
             if (isLogOn)
             {
                 img.getProcessor().snapshot();
@@ -567,11 +608,6 @@ public class EPICS_AD_Viewer implements PlugIn
                     firstLog = false;
                 }
             }
-            if (isSaveToStack)
-            {
-                img.getStack().addSlice(PVPrefix + ArrayCounter, img.getProcessor().duplicate());
-            }
-            img.setSlice(img.getNSlices());
             img.show();
             img.updateAndDraw();
             ImageCanvas ic = img.getCanvas();
@@ -591,6 +627,238 @@ public class EPICS_AD_Viewer implements PlugIn
     }
 
 
+    /**
+     * Copy the image into the capture buffer.  The buffer is allocated on a helper thread, started by the
+     * first frame after capture is armed, and again if the image size or type changes, after the frames
+     * captured so far have been shown; frames are skipped until it is ready.  When the buffer freezes
+     * after a trigger, capture is turned off, which shows the captured stack.
+     */
+    void captureFrame(int arrayCounter)
+    {
+        ImageStack stack = null;
+        synchronized (captureLock)
+        {
+            if (!isSaveToStack) return;
+            int width = img.getWidth(), height = img.getHeight(), bitDepth = img.getBitDepth();
+            if (captureBuffer != null && !captureBuffer.matches(width, height, bitDepth))
+            {
+                logMessage("Capture: image size or type changed, restarting", true, true);
+                stack = captureBuffer.toStack(PVPrefix);
+                captureBuffer = null;
+            }
+            if (captureBuffer == null)
+            {
+                if (!isCaptureAllocating) allocateCapture(width, height, bitDepth);
+            }
+            else
+            {
+                captureBuffer.add(img.getProcessor().getPixels(), arrayCounter);
+                if (captureBuffer.isFrozen()) uncheckCapture();
+            }
+        }
+        showCapture(stack);
+    }
+
+    /**
+     * Allocate the capture buffer on a helper thread: a buffer of up to the whole memory budget would hold
+     * up the image thread.  The buffer is used if capture is still on, with no stop in between, when it is
+     * ready, and closed otherwise.  Called with captureLock held.
+     */
+    void allocateCapture(final int width, final int height, final int bitDepth)
+    {
+        isCaptureAllocating = true;
+        final int generation = captureGeneration;
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                FrameCapture capture = null;
+                String error = null;
+                try
+                {
+                    capture = captureSettings.create(width, height, bitDepth, PVPrefix);
+                }
+                catch (Exception ex)
+                {
+                    error = ex.getMessage();
+                }
+                catch (OutOfMemoryError ex)
+                {
+                    error = "not enough memory for the capture buffer";
+                }
+                boolean isWanted;
+                synchronized (captureLock)
+                {
+                    isCaptureAllocating = false;
+                    isWanted = isSaveToStack && generation == captureGeneration;
+                    if (isWanted && capture != null) captureBuffer = capture;
+                    if (isWanted && capture == null) isSaveToStack = false;
+                }
+                if (!isWanted)
+                {
+                    if (capture != null) capture.close();
+                    return;
+                }
+                if (capture == null)
+                {
+                    logMessage("Capture failed: " + error, true, true);
+                    uncheckCapture();
+                    return;
+                }
+                String where = (capture instanceof MappedStack) ? " in " + ((MappedStack)capture).getFile() : "";
+                if (capture instanceof CompressedStack)
+                    logMessage(String.format("Capture armed: %.1f MB, LZ4-compressed",
+                        ((CompressedStack)capture).getArenaBytes() / 1048576.), true, true);
+                else
+                    logMessage(String.format("Capture armed: %d frames, %.1f MB", capture.getCapacity(),
+                        capture.getCapacity() * CaptureBuffer.getFrameBytes(width, height, bitDepth) / 1048576.)
+                        + where, true, true);
+            }
+        }, "EPICS_AD_Viewer capture");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Turn capture off from any thread, which shows the captured stack.
+     */
+    void uncheckCapture()
+    {
+        javax.swing.SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                captureCheckBox.setSelected(false);
+            }
+        });
+    }
+
+    /**
+     * Stop capturing and take the captured frames out of the capture buffer.
+     * @return The stack, or null if nothing was captured.
+     */
+    ImageStack stopCapture()
+    {
+        synchronized (captureLock)
+        {
+            isSaveToStack = false;
+            captureGeneration++;
+            if (captureBuffer == null) return null;
+            ImageStack stack = captureBuffer.toStack(PVPrefix);
+            captureBuffer = null;
+            return stack;
+        }
+    }
+
+    /**
+     * Stop capturing and release the capture buffer without showing it, when the plugin exits.
+     */
+    void discardCapture()
+    {
+        FrameCapture capture;
+        synchronized (captureLock)
+        {
+            isSaveToStack = false;
+            captureGeneration++;
+            capture = captureBuffer;
+            captureBuffer = null;
+        }
+        // Outside the lock, so that an add() waiting for the compressors is released
+        if (capture != null) capture.close();
+    }
+
+    /**
+     * Queue the image for the TIFF file.  If the image size or type changes, or writing fails,
+     * the file is closed.
+     */
+    void streamFrame(TiffStreamWriter tw)
+    {
+        try
+        {
+            if (!tw.matches(img.getWidth(), img.getHeight(), img.getBitDepth()))
+            {
+                logMessage("Save TIFF: image size or type changed, closing " + tw.getFile(), true, true);
+                uncheckTiff();
+                return;
+            }
+            tw.write(img.getProcessor().getPixels());
+        }
+        catch (Exception ex)
+        {
+            logMessage("Save TIFF failed: " + ex.getMessage(), true, true);
+            uncheckTiff();
+        }
+    }
+
+    void uncheckTiff()
+    {
+        javax.swing.SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                tiffCheckBox.setSelected(false);
+            }
+        });
+    }
+
+    /**
+     * Ask for the directory and start streaming frames to a new TIFF file.  The file is created
+     * for the current image size and type.
+     * @return false if the dialog was canceled or the file could not be created.
+     */
+    boolean startTiff()
+    {
+        if (img == null)
+        {
+            logMessage("Save TIFF: no image yet", true, true);
+            return false;
+        }
+        GenericDialog gd = new GenericDialog("Save TIFF");
+        gd.addDirectoryField("Directory:", tiffDirectory);
+        gd.addNumericField("Write buffer:", tiffBufferMB, 0, 8, "MB");
+        gd.showDialog();
+        if (gd.wasCanceled()) return false;
+        tiffDirectory = gd.getNextString();
+        tiffBufferMB = Math.max(1, gd.getNextNumber());
+        String time = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        File file = new File(tiffDirectory,
+            PVPrefix.replaceAll("[^A-Za-z0-9_.-]", "_") + "_" + time + TiffStreamWriter.EXTENSION);
+        try
+        {
+            tiffWriter = new TiffStreamWriter(file, img.getWidth(), img.getHeight(), img.getBitDepth(), tiffBufferMB);
+        }
+        catch (Exception ex)
+        {
+            logMessage("Cannot create " + file + ": " + ex.getMessage(), true, true);
+            return false;
+        }
+        logMessage("Saving TIFF to " + file, true, true);
+        return true;
+    }
+
+    void stopTiff()
+    {
+        TiffStreamWriter tw = tiffWriter;
+        if (tw == null) return;
+        tiffWriter = null;
+        try
+        {
+            tw.close();
+            logMessage(String.format("Saved %d frames, %.1f MB, %.1f MB/s, %d dropped, to %s", tw.getFrameCount(),
+                tw.getBytesWritten() / 1048576., tw.getMBPerSecond(), tw.getDroppedFrames(), tw.getFile()), true, true);
+        }
+        catch (Exception ex)
+        {
+            logMessage("Closing TIFF file failed: " + ex.getMessage(), true, true);
+        }
+    }
+
+    void showCapture(ImageStack stack)
+    {
+        if (stack == null) return;
+        new ImagePlus(PVPrefix + " capture", stack).show();
+        logMessage("Captured " + stack.getSize() + " frames"
+            + ((stack instanceof MappedStack) ? " in " + ((MappedStack)stack).getFile() : "")
+            + ((stack instanceof CompressedStack) ? String.format(", compressed %.1f:1", ((CompressedStack)stack).getCompressionRatio()) : ""),
+            true, true);
+    }
+
     public int epicsGetInt(Channel ch) throws Exception
     {
         if (isDebugMessages)
@@ -666,8 +934,11 @@ public class EPICS_AD_Viewer implements PlugIn
         stopButton = new JButton("Stop");
         stopButton.setEnabled(false);
         snapButton = new JButton("Snap");
-        JCheckBox captureCheckBox = new JCheckBox("");
+        captureCheckBox = new JCheckBox("");
+        triggerButton = new JButton("Trigger");
+        JButton captureSettingsButton = new JButton("Capture Settings");
         logCheckBox = new JCheckBox("");
+        tiffCheckBox = new JCheckBox("");
 
         frame = new JFrame("Image J EPICS_AD_Viewer Plugin");
         JPanel panel = new JPanel(new BorderLayout());
@@ -696,6 +967,8 @@ public class EPICS_AD_Viewer implements PlugIn
         panel.add(new JLabel("Capture to Stack"), c);
         c.gridx = 9;
         panel.add(new JLabel("Log"), c);
+        c.gridx = 12;
+        panel.add(new JLabel("Save TIFF"), c);
 
         // Middle row
         // These widgets should be centered
@@ -721,6 +994,12 @@ public class EPICS_AD_Viewer implements PlugIn
         panel.add(stopButton, c);
         c.gridx = 9;
         panel.add(logCheckBox, c);
+        c.gridx = 10;
+        panel.add(triggerButton, c);
+        c.gridx = 11;
+        panel.add(captureSettingsButton, c);
+        c.gridx = 12;
+        panel.add(tiffCheckBox, c);
 
         // Bottom row
         c.gridy = 2;
@@ -743,7 +1022,6 @@ public class EPICS_AD_Viewer implements PlugIn
         {
             public void actionPerformed(ActionEvent event)
             {
-                checkConnections();
                 long time = new Date().getTime();
                 double fps = 1000. * numImageUpdates / (double)(time - prevTime);
                 NumberFormat form = DecimalFormat.getInstance();
@@ -860,10 +1138,9 @@ public class EPICS_AD_Viewer implements PlugIn
                                             public void itemStateChanged(ItemEvent e) {
                                                 if (e.getStateChange() == ItemEvent.SELECTED) {
                                                     isSaveToStack = true;
-                                                    isNewStack = true;
                                                     IJ.log("record on");
                                                 } else {
-                                                    isSaveToStack = false;
+                                                    showCapture(stopCapture());
                                                     IJ.log("record off");
                                                 }
 
@@ -871,6 +1148,46 @@ public class EPICS_AD_Viewer implements PlugIn
                                         }
         );
 
+        tiffCheckBox.addItemListener(new ItemListener()
+        {
+            public void itemStateChanged(ItemEvent e)
+            {
+                if (e.getStateChange() == ItemEvent.SELECTED)
+                {
+                    if (!startTiff()) tiffCheckBox.setSelected(false);
+                }
+                else
+                {
+                    stopTiff();
+                }
+            }
+        });
+
+        triggerButton.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent event)
+            {
+                boolean frozen;
+                synchronized (captureLock)
+                {
+                    if (captureBuffer == null) return;
+                    captureBuffer.trigger(captureSettings.postTriggerFrames);
+                    frozen = captureBuffer.isFrozen();
+                }
+                IJ.log("record triggered");
+                if (frozen) captureCheckBox.setSelected(false);
+            }
+        });
+
+        captureSettingsButton.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent event)
+            {
+                // The new settings apply when capture is next armed
+                captureSettings.showDialog("Capture Settings");
+            }
+        });
+
     }
     private Object takeLog(ImagePlus image){
         image.getProcessor().snapshot();
@@ -933,6 +1250,11 @@ public class EPICS_AD_Viewer implements PlugIn
             file.close();
             temp = properties.getProperty("PVPrefix");
             if (temp != null) PVPrefix = temp;
+            captureSettings.load(properties);
+            temp = properties.getProperty("tiffDirectory");
+            if (temp != null) tiffDirectory = temp;
+            temp = properties.getProperty("tiffBufferMB");
+            if (temp != null) tiffBufferMB = Double.parseDouble(temp);
             IJ.log("Read properties file: " + path + "  PVPrefix= " + PVPrefix);
         }
         catch (Exception ex)
@@ -949,6 +1271,9 @@ public class EPICS_AD_Viewer implements PlugIn
             String fileSep = System.getProperty("file.separator");
             path = System.getProperty("user.home") + fileSep + propertyFile;
             properties.setProperty("PVPrefix", PVPrefix);
+            captureSettings.save(properties);
+            properties.setProperty("tiffDirectory", tiffDirectory);
+            properties.setProperty("tiffBufferMB", "" + tiffBufferMB);
             FileOutputStream file = new FileOutputStream(path);
             properties.store(file, "EPICS_AD_Viewer Properties");
             file.close();
@@ -11,6 +11,7 @@ import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
@@ -37,6 +38,7 @@ import org.epics.pvaClient.PvaClientMonitorData;
 import org.epics.pvdata.factory.ConvertFactory;
 import org.epics.pvdata.pv.Convert;
 import org.epics.pvdata.pv.PVInt;
+import org.epics.pvdata.pv.PVLong;
 import org.epics.pvdata.pv.PVScalar;
 import org.epics.pvdata.pv.PVScalarArray;
 import org.epics.pvdata.pv.PVString;
@@ -48,6 +50,7 @@ import org.epics.pvdata.pv.StructureArrayData;
 
 import ij.*;
 import ij.process.*;
+import ij.gui.GenericDialog;
 import ij.gui.ImageWindow;
 import ij.gui.ImageCanvas;
 import ij.plugin.ContrastEnhancer;
@@ -78,7 +81,6 @@ public class EPICS_NTNDA_Viewer
     private Object snapBackup = null;
     private Object altSnapBackup = null;
     private ImageStatistics stats = null;
-    private ImageStack imageStack = null;
     private int imageSizeX = 0;
     private int imageSizeY = 0;
     private int imageSizeZ = 0;
@@ -96,25 +98,63 @@ public class EPICS_NTNDA_Viewer
     private volatile boolean isStarted = false;
     private volatile boolean isPluginRunning = false;
     private volatile boolean isSaveToStack = false;
-    private volatile boolean isNewStack = false;
     private volatile boolean isLogOn = false;
     private volatile boolean firstLog = false;
     // These are used for the frames/second calculation
     private long prevTime = 0;
     private volatile int numImageUpdates = 0;
+    private final FrameStatistics frameStatistics = new FrameStatistics();
+
+    // The image is drawn at most maxDisplayRate times per second (0 for every frame); a frame that is
+    // not drawn when it arrives is drawn by the display thread when it is due, unless a newer one came
+    private volatile double maxDisplayRate = 60;
+    private long lastDisplayTime = 0;
+    private boolean isDisplayPending = false;
+    private boolean isNewWindowPending = false;
+    private long pendingTimeStamp = 0;     // -1 for a frame of a recording
 
     private NTNDCodec ntndCodec = null;
 
+    // Capture to Stack: a ring buffer, a compressed stack or a mapped file, allocated on a helper thread once capture is armed and frames arrive
+    private FrameCapture captureBuffer = null;
+    private CaptureBuffer.Settings captureSettings = new CaptureBuffer.Settings();
+    private final Object captureLock = new Object();
+    private boolean isCaptureAllocating = false;    // a helper thread is allocating captureBuffer
+    private int captureGeneration = 0;              // counts the stops, so a buffer allocated before one is not used
+    // The lz4 payload of the current array, kept for a compressed capture to store as it is
+    private byte[] capturePayload = new byte[0];
+    private int capturePayloadLength = 0;
+
+    // Record: the arrays as received, without decompressing them
+    private volatile NTNDRecorder recorder = null;
+    private volatile boolean isDisplayWhileRecording = true;
+    private String recordDirectory = System.getProperty("java.io.tmpdir");
+
+    // Save TIFF: every frame streamed to a TIFF file on a background thread
+    private volatile TiffStreamWriter tiffWriter = null;
+    private String tiffDirectory = System.getProperty("java.io.tmpdir");
+    private double tiffBufferMB = 256;
+
+    // Play: a recording shown instead of the live arrays
+    private volatile NTNDPlayer player = null;
+    private String playFile = "";
+
     private JFrame frame = null;
     private JTextField channelNameText = null;
     private JTextField nxText = null;
     private JTextField nyText = null;
     private JTextField nzText = null;
     private JTextField fpsText = null;
+    private JTextField displayRateText = null;
     private JTextField statusText = null;
     private JButton startButton = null;
     private JButton stopButton = null;
     private JButton snapButton = null;
+    private JButton triggerButton = null;
+    private JCheckBox captureCheckBox = null;
+    private JCheckBox recordCheckBox = null;
+    private JCheckBox tiffCheckBox = null;
+    private JCheckBox playCheckBox = null;
     private JCheckBox logCheckBox = null;
 
     private javax.swing.Timer timer = null;
@@ -214,6 +254,7 @@ public class EPICS_NTNDA_Viewer
         stopButton.setEnabled(true);
         snapButton.setEnabled(true);
         startIsTrue = true;
+        frameStatistics.reset();
         if (isChannelConnected) startMonitor();
         logMessage("Display started", true, false);
     }
@@ -226,6 +267,7 @@ public class EPICS_NTNDA_Viewer
         startIsTrue = false;
         if (isChannelConnected) stopMonitor();
         logMessage("Display stopped", true, false);
+        if (frameStatistics.getReceivedFrames() > 0) logMessage("Frames in " + frameStatistics.totals(), false, true);
     }
 
     private void handleEvents()
@@ -242,7 +284,17 @@ public class EPICS_NTNDA_Viewer
         while(gotEvent) {
             if (isDebugMessages) logMessage("calling updateImage", true, true);
             try {
-                boolean result = updateImage(pvaClientMonitor.getData());
+                PvaClientMonitorData monitorData = pvaClientMonitor.getData();
+                PVInt pvUniqueId = monitorData.getPVStructure().getSubField(PVInt.class, "uniqueId");
+                frameStatistics.received(pvUniqueId != null ? pvUniqueId.get() : 0, !monitorData.getOverrunBitSet().isEmpty());
+                NTNDRecorder rec = recorder;
+                if (rec != null) recordArray(rec, monitorData.getPVStructure());
+                boolean result = true;
+                if (rec == null || isDisplayWhileRecording) {
+                    result = updateImage(monitorData.getPVStructure());
+                } else {
+                    numImageUpdates++;
+                }
                 if(!result) {
                     logMessage("updateImage failed",true,true);
                     Thread.sleep(MS_WAIT);
@@ -281,11 +333,15 @@ public class EPICS_NTNDA_Viewer
                 // A very short wait here lets stopMonitor run quickly when needed
                 Thread.sleep(1);
                 synchronized(this) {
-                    if (isStarted && pvaClientMonitor!=null) {
+                    NTNDPlayer p = player;
+                    if (p != null) {
+                        handlePlayback(p);
+                    } else if (isStarted && pvaClientMonitor!=null) {
                         handleEvents();
                     } else {
                         Thread.sleep(MS_WAIT);
                     }
+                    if (isDisplayPending && isDisplayDue()) displayImage();
                 }
             } // isPluginRunning
 
@@ -296,6 +352,10 @@ public class EPICS_NTNDA_Viewer
                 debugFile.close();
                 logMessage("Closed debug file", true, true);
             }
+            stopRecording();
+            stopTiff();
+            stopPlayback();
+            discardCapture();
             disconnectPV();
             timer.stop();
             writeProperties();
@@ -322,11 +382,256 @@ public class EPICS_NTNDA_Viewer
         }
     }
 
+    /**
+     * Show the next frame of a recording when it is due.
+     */
+    private void handlePlayback(NTNDPlayer p)
+    {
+        try
+        {
+            PVStructure pvs = p.poll(MS_WAIT);
+            if (pvs != null)
+            {
+                if (!updateImage(pvs)) logMessage("updateImage failed", true, true);
+            }
+            else if (p.isFinished())
+            {
+                javax.swing.SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        playCheckBox.setSelected(false);
+                    }
+                });
+            }
+        }
+        catch (InterruptedException ex) { }
+        catch (Exception ex)
+        {
+            // the player may have been shut down while this thread was using it
+            if (player == p) logMessage("Playback: " + ex.getMessage(), true, true);
+        }
+    }
+
+    /**
+     * Ask for a recording and how to play it, and start playing it.  The live arrays are not shown
+     * while a recording plays.
+     * @return false if the dialog was canceled or the recording could not be opened.
+     */
+    private boolean startPlayback()
+    {
+        String[] startChoices = {"Frame", "Seconds from start"};
+        GenericDialog gd = new GenericDialog("Play");
+        gd.addFileField("Recording:", playFile);
+        gd.addChoice("Start at:", startChoices, startChoices[0]);
+        gd.addNumericField("Start:", 0, 3);
+        gd.addNumericField("Speed:", 1, 2, 6, "x recorded rate (0 = as fast as possible)");
+        gd.addNumericField("Frame rate:", 0, 1, 6, "frames/s (0 = recorded timing)");
+        gd.addCheckbox("Loop", false);
+        gd.addNumericField("Decoding threads:", Runtime.getRuntime().availableProcessors(), 0);
+        gd.addNumericField("Frames decoded ahead:", 16, 0);
+        gd.showDialog();
+        if (gd.wasCanceled()) return false;
+        playFile = gd.getNextString();
+        boolean startAtTime = gd.getNextChoiceIndex() == 1;
+        double start = gd.getNextNumber();
+        double speed = gd.getNextNumber();
+        double frameRate = gd.getNextNumber();
+        boolean loop = gd.getNextBoolean();
+        int threads = (int)gd.getNextNumber();
+        int prefetch = (int)gd.getNextNumber();
+        NTNDRecording recording;
+        try
+        {
+            recording = new NTNDRecording(new File(playFile));
+        }
+        catch (Exception ex)
+        {
+            logMessage("Cannot open " + playFile + ": " + ex.getMessage(), true, true);
+            return false;
+        }
+        if (recording.getFrameCount() == 0)
+        {
+            logMessage("No frames in " + playFile, true, true);
+            return false;
+        }
+        NTNDPlayer p = new NTNDPlayer(recording, threads, prefetch);
+        p.setSpeed(speed);
+        p.setFrameRate(frameRate);
+        p.setLoop(loop);
+        if (startAtTime)
+            p.seekTime(recording.getTimeStamp(0) + (long)(start * 1e9));
+        else
+            p.seek((int)start);
+        player = p;
+        logMessage("Playing " + recording.getFrameCount() + " frames from " + playFile, true, true);
+        return true;
+    }
+
+    private void stopPlayback()
+    {
+        NTNDPlayer p = player;
+        if (p == null) return;
+        player = null;
+        logMessage("Playback stopped at frame " + p.getCurrentFrame(), true, true);
+        p.shutdown();
+    }
+
+    /**
+     * Write an array to the recording; on an error close the recording.
+     */
+    private void recordArray(NTNDRecorder rec, PVStructure pvs)
+    {
+        try
+        {
+            rec.record(pvs);
+        }
+        catch (Exception ex)
+        {
+            logMessage("Recording failed: " + ex.getMessage(), true, true);
+            javax.swing.SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    recordCheckBox.setSelected(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Ask for the directory of a new recording and start it.
+     * @return false if the dialog was canceled or the files could not be created.
+     */
+    private boolean startRecording()
+    {
+        GenericDialog gd = new GenericDialog("Record");
+        gd.addDirectoryField("Directory:", recordDirectory);
+        gd.addCheckbox("Decompress and display while recording", isDisplayWhileRecording);
+        gd.showDialog();
+        if (gd.wasCanceled()) return false;
+        recordDirectory = gd.getNextString();
+        isDisplayWhileRecording = gd.getNextBoolean();
+        String time = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        File file = new File(recordDirectory,
+            channelName.replaceAll("[^A-Za-z0-9_.-]", "_") + "_" + time + NTNDRecorder.DATA_EXTENSION);
+        try
+        {
+            recorder = new NTNDRecorder(file);
+        }
+        catch (Exception ex)
+        {
+            logMessage("Cannot create " + file + ": " + ex.getMessage(), true, true);
+            return false;
+        }
+        logMessage("Recording to " + file, true, true);
+        return true;
+    }
+
+    private void stopRecording()
+    {
+        NTNDRecorder rec = recorder;
+        if (rec == null) return;
+        recorder = null;
+        try
+        {
+            // record() and close() are synchronized, so this waits for a frame being written
+            double rate = rec.getMBPerSecond();
+            rec.close();
+            logMessage(String.format("Recorded %d frames, %.1f MB, %.1f MB/s to %s", rec.getFrameCount(),
+                rec.getBytesWritten() / 1048576., rate, rec.getFile()), true, true);
+        }
+        catch (Exception ex)
+        {
+            logMessage("Closing recording failed: " + ex.getMessage(), true, true);
+        }
+    }
+
+    /**
+     * Queue the image for the TIFF file.  If the image size or type changes, or writing fails,
+     * the file is closed.
+     */
+    private void streamFrame(TiffStreamWriter tw)
+    {
+        try
+        {
+            if (!tw.matches(img.getWidth(), img.getHeight(), img.getBitDepth()))
+            {
+                logMessage("Save TIFF: image size or type changed, closing " + tw.getFile(), true, true);
+                uncheckTiff();
+                return;
+            }
+            tw.write(img.getProcessor().getPixels());
+        }
+        catch (Exception ex)
+        {
+            logMessage("Save TIFF failed: " + ex.getMessage(), true, true);
+            uncheckTiff();
+        }
+    }
+
+    private void uncheckTiff()
+    {
+        javax.swing.SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                tiffCheckBox.setSelected(false);
+            }
+        });
+    }
+
+    /**
+     * Ask for the directory and start streaming frames to a new TIFF file.  The file is created
+     * for the current image size and type.
+     * @return false if the dialog was canceled or the file could not be created.
+     */
+    private boolean startTiff()
+    {
+        if (img == null)
+        {
+            logMessage("Save TIFF: no image yet", true, true);
+            return false;
+        }
+        GenericDialog gd = new GenericDialog("Save TIFF");
+        gd.addDirectoryField("Directory:", tiffDirectory);
+        gd.addNumericField("Write buffer:", tiffBufferMB, 0, 8, "MB");
+        gd.showDialog();
+        if (gd.wasCanceled()) return false;
+        tiffDirectory = gd.getNextString();
+        tiffBufferMB = Math.max(1, gd.getNextNumber());
+        String time = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        File file = new File(tiffDirectory,
+            channelName.replaceAll("[^A-Za-z0-9_.-]", "_") + "_" + time + TiffStreamWriter.EXTENSION);
+        try
+        {
+            tiffWriter = new TiffStreamWriter(file, img.getWidth(), img.getHeight(), img.getBitDepth(), tiffBufferMB);
+        }
+        catch (Exception ex)
+        {
+            logMessage("Cannot create " + file + ": " + ex.getMessage(), true, true);
+            return false;
+        }
+        logMessage("Saving TIFF to " + file, true, true);
+        return true;
+    }
+
+    private void stopTiff()
+    {
+        TiffStreamWriter tw = tiffWriter;
+        if (tw == null) return;
+        tiffWriter = null;
+        try
+        {
+            tw.close();
+            logMessage(String.format("Saved %d frames, %.1f MB, %.1f MB/s, %d dropped, to %s", tw.getFrameCount(),
+                tw.getBytesWritten() / 1048576., tw.getMBPerSecond(), tw.getDroppedFrames(), tw.getFile()), true, true);
+        }
+        catch (Exception ex)
+        {
+            logMessage("Closing TIFF file failed: " + ex.getMessage(), true, true);
+        }
+    }
+
     private void makeImageCopy()
     {
         ImageProcessor ip = img.getProcessor();
         if (ip == null) return;
-        if(isLogOn) {
+        if(isLogOn && !isDisplayPending) {
             ImageProcessor ipcopy = ip.duplicate();
             ipcopy.setPixels(snapBackup);
             ImagePlus imgcopy = new ImagePlus(channelName + ":" + numImageUpdates, ipcopy);
@@ -340,11 +645,10 @@ public class EPICS_NTNDA_Viewer
     }
 
 
-    private boolean updateImage(PvaClientMonitorData monitorData)
+    private boolean updateImage(PVStructure pvs)
     {
         Point oldWindowLocation =null;
         boolean madeNewWindow = false;
-        PVStructure pvs = monitorData.getPVStructure();
         PVStructureArray dimArray = pvs.getSubField(PVStructureArray.class,"dimension");
         if(dimArray==null) {
             logMessage("dimension not found",true,true);
@@ -373,6 +677,9 @@ public class EPICS_NTNDA_Viewer
         if (ndim>=3)
             nz = dimsint[2];
         int cm = 0;
+        PVInt pvUniqueId = pvs.getSubField(PVInt.class,"uniqueId");
+        int uniqueId = pvUniqueId != null ? pvUniqueId.get() : numImageUpdates;
+        long timeStamp = getTimeStamp(pvs);
         PVStructureArray attrArray = pvs.getSubField(PVStructureArray.class,"attribute");
         if(attrArray!=null) {
             int nattr = attrArray.getLength();
@@ -409,6 +716,18 @@ public class EPICS_NTNDA_Viewer
         PVStructure pvCodecStruct = pvs.getSubField(PVStructure.class,"codec");
         PVString pvCodec = pvCodecStruct.getSubField(PVString.class, "name");
         String codec = pvCodec.get();
+        capturePayloadLength = 0;
+        // The NTNDArray does not say in which byte order the IOC compressed the pixels, so only an 8-bit
+        // payload, which has none, is kept to be stored as it is; wider pixels are captured decoded
+        PVUnion pvCodecParameters = pvCodecStruct.getSubField(PVUnion.class, "parameters");
+        PVInt pvOriginalType = pvCodecParameters != null ? pvCodecParameters.get(PVInt.class) : null;
+        boolean isBytePayload = pvOriginalType != null && pvOriginalType.get() == ScalarType.pvUByte.ordinal();
+        if (codec.equals("lz4") && isBytePayload && captureBuffer instanceof CompressedStack) {
+            PVLong pvCompressedSize = pvs.getSubField(PVLong.class, "compressedSize");
+            int length = pvCompressedSize != null ? (int)pvCompressedSize.get() : imagedata.getLength();
+            if (capturePayload.length < length) capturePayload = new byte[length];
+            capturePayloadLength = convert.toByteArray(imagedata, 0, length, capturePayload, 0);
+        }
         if (!codec.isEmpty()) {
             if(ntndCodec==null) {
                 ntndCodec = new NTNDCodec();
@@ -459,8 +778,6 @@ public class EPICS_NTNDA_Viewer
             nzText.setText("" + imageSizeZ);
         }
 
-        // If we are making a new stack close the window
-        if (isNewStack) makeNewWindow = true;
         if(img==null) makeNewWindow = true;
 
         // If we need to make a new window then close the current one if it exists
@@ -520,18 +837,6 @@ public class EPICS_NTNDA_Viewer
             madeNewWindow = true;
         }
 
-        if (isNewStack)
-        {
-            imageStack = new ImageStack(img.getWidth(), img.getHeight());
-            imageStack.addSlice(channelName + numImageUpdates, img.getProcessor());
-            // Note: we need to add this first slice twice in order to get the slider bar 
-            // on the window - ImageJ won't put it there if there is only 1 slice.
-            imageStack.addSlice(channelName + numImageUpdates, img.getProcessor());
-            img.close();
-            img = new ImagePlus(channelName, imageStack);
-            img.show();
-            isNewStack = false;
-        }
         imagedata = pvUnionValue.get(PVScalarArray.class);
         if(imagedata==null) {
             logMessage("value is not a scalar array",true,true);
@@ -625,6 +930,56 @@ public class EPICS_NTNDA_Viewer
             img.getProcessor().setPixels(pixels);
         }
 
+        // Capture the image as received, before the log
+        if (isSaveToStack) captureFrame(uniqueId);
+        TiffStreamWriter tw = tiffWriter;
+        if (tw != null) streamFrame(tw);
+        FrameBus bus = FrameBus.get(channelName);
+        if (bus.hasSubscribers())
+            bus.publish(img.getWidth(), img.getHeight(), img.getBitDepth(), img.getProcessor().getPixels(), uniqueId, timeStamp);
+        numImageUpdates++;
+        // The statistics are of the live arrays, not of a recording that is played
+        boolean isLive = player == null;
+        if (isLive) frameStatistics.decoded(timeStamp);
+
+        isDisplayPending = true;
+        pendingTimeStamp = isLive ? timeStamp : -1;
+        if (madeNewWindow) isNewWindowPending = true;
+        if (isDisplayDue()) displayImage();
+        return true;
+    }
+
+    /**
+     * @return The timeStamp of an NTNDArray in nanoseconds since 1970, or 0 if it has none.
+     */
+    private static long getTimeStamp(PVStructure pvs)
+    {
+        PVStructure pvTimeStamp = pvs.getSubField(PVStructure.class, "timeStamp");
+        if (pvTimeStamp == null) return 0;
+        PVLong pvSeconds = pvTimeStamp.getSubField(PVLong.class, "secondsPastEpoch");
+        PVInt pvNanoseconds = pvTimeStamp.getSubField(PVInt.class, "nanoseconds");
+        if (pvSeconds == null) return 0;
+        return pvSeconds.get() * 1000000000L + (pvNanoseconds != null ? pvNanoseconds.get() : 0);
+    }
+
+    /**
+     * @return true if the time since the image was last drawn is at least 1/maxDisplayRate.
+     */
+    private boolean isDisplayDue()
+    {
+        double rate = maxDisplayRate;
+        return rate <= 0 || System.nanoTime() - lastDisplayTime >= (long)(1e9 / rate);
+    }
+
+    /**
+     * Draw the newest frame, which updateImage has already put in img.  Only the display thread calls
+     * this, so at high frame rates the frames in between are captured and counted but never drawn.
+     */
+    private void displayImage()
+    {
+        isDisplayPending = false;
+        lastDisplayTime = System.nanoTime();
+        if (img == null) return;
         /*Takes log of image, stores snapshot for Undo if plugin is stopped.
          */
         if (isLogOn) {
@@ -640,11 +995,6 @@ public class EPICS_NTNDA_Viewer
             }
         }
 
-        if (isSaveToStack)
-        {
-            img.getStack().addSlice(channelName + numImageUpdates, img.getProcessor().duplicate());
-        }
-        img.setSlice(img.getNSlices());
         img.show();
         img.updateAndDraw();
         ImageCanvas ic = img.getCanvas();
@@ -652,10 +1002,163 @@ public class EPICS_NTNDA_Viewer
         if (loc!=null)
             img.mouseMoved(loc.x,loc.y);
         img.updateStatusbarValue();
-        numImageUpdates++;
+        if (pendingTimeStamp >= 0) frameStatistics.displayed(pendingTimeStamp);
         // Automatically set brightness and contrast if we made a new window
-        if (madeNewWindow) new ContrastEnhancer().stretchHistogram(img, 0.5);
-        return true;
+        if (isNewWindowPending) new ContrastEnhancer().stretchHistogram(img, 0.5);
+        isNewWindowPending = false;
+    }
+
+    /**
+     * Copy the image into the capture buffer.  The buffer is allocated on a helper thread, started by the
+     * first frame after capture is armed, and again if the image size or type changes, after the frames
+     * captured so far have been shown; frames are skipped until it is ready.  When the buffer freezes
+     * after a trigger, capture is turned off, which shows the captured stack.
+     */
+    private void captureFrame(int uniqueId)
+    {
+        ImageStack stack = null;
+        synchronized (captureLock)
+        {
+            if (!isSaveToStack) return;
+            int width = img.getWidth(), height = img.getHeight(), bitDepth = img.getBitDepth();
+            if (captureBuffer != null && !captureBuffer.matches(width, height, bitDepth))
+            {
+                logMessage("Capture: image size or type changed, restarting", true, true);
+                stack = captureBuffer.toStack(channelName + ":");
+                captureBuffer = null;
+            }
+            if (captureBuffer == null)
+            {
+                if (!isCaptureAllocating) allocateCapture(width, height, bitDepth);
+            }
+            else
+            {
+                // An lz4 payload of unconverted pixels is stored without compressing the pixels again
+                boolean unconverted = (colorMode == 0 || colorMode == 1) && dataType == ScalarType.pvUByte;
+                if (capturePayloadLength > 0 && unconverted && captureBuffer instanceof CompressedStack)
+                    ((CompressedStack)captureBuffer).addCompressed(capturePayload, capturePayloadLength, uniqueId);
+                else
+                    captureBuffer.add(img.getProcessor().getPixels(), uniqueId);
+                if (captureBuffer.isFrozen()) uncheckCapture();
+            }
+        }
+        showCapture(stack);
+    }
+
+    /**
+     * Allocate the capture buffer on a helper thread: a buffer of up to the whole memory budget would hold
+     * up the image thread.  The buffer is used if capture is still on, with no stop in between, when it is
+     * ready, and closed otherwise.  Called with captureLock held.
+     */
+    private void allocateCapture(final int width, final int height, final int bitDepth)
+    {
+        isCaptureAllocating = true;
+        final int generation = captureGeneration;
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                FrameCapture capture = null;
+                String error = null;
+                try
+                {
+                    capture = captureSettings.create(width, height, bitDepth, channelName);
+                }
+                catch (Exception ex)
+                {
+                    error = ex.getMessage();
+                }
+                catch (OutOfMemoryError ex)
+                {
+                    error = "not enough memory for the capture buffer";
+                }
+                boolean isWanted;
+                synchronized (captureLock)
+                {
+                    isCaptureAllocating = false;
+                    isWanted = isSaveToStack && generation == captureGeneration;
+                    if (isWanted && capture != null) captureBuffer = capture;
+                    if (isWanted && capture == null) isSaveToStack = false;
+                }
+                if (!isWanted)
+                {
+                    if (capture != null) capture.close();
+                    return;
+                }
+                if (capture == null)
+                {
+                    logMessage("Capture failed: " + error, true, true);
+                    uncheckCapture();
+                    return;
+                }
+                String where = (capture instanceof MappedStack) ? " in " + ((MappedStack)capture).getFile() : "";
+                if (capture instanceof CompressedStack)
+                    logMessage(String.format("Capture armed: %.1f MB, LZ4-compressed",
+                        ((CompressedStack)capture).getArenaBytes() / 1048576.), true, true);
+                else
+                    logMessage(String.format("Capture armed: %d frames, %.1f MB", capture.getCapacity(),
+                        capture.getCapacity() * CaptureBuffer.getFrameBytes(width, height, bitDepth) / 1048576.)
+                        + where, true, true);
+            }
+        }, "EPICS_NTNDA_Viewer capture");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Turn capture off from any thread, which shows the captured stack.
+     */
+    private void uncheckCapture()
+    {
+        javax.swing.SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                captureCheckBox.setSelected(false);
+            }
+        });
+    }
+
+    /**
+     * Stop capturing and take the captured frames out of the capture buffer.
+     * @return The stack, or null if nothing was captured.
+     */
+    private ImageStack stopCapture()
+    {
+        synchronized (captureLock)
+        {
+            isSaveToStack = false;
+            captureGeneration++;
+            if (captureBuffer == null) return null;
+            ImageStack stack = captureBuffer.toStack(channelName + ":");
+            captureBuffer = null;
+            return stack;
+        }
+    }
+
+    /**
+     * Stop capturing and release the capture buffer without showing it, when the plugin exits.
+     */
+    private void discardCapture()
+    {
+        FrameCapture capture;
+        synchronized (captureLock)
+        {
+            isSaveToStack = false;
+            captureGeneration++;
+            capture = captureBuffer;
+            captureBuffer = null;
+        }
+        // Outside the lock, so that an add() waiting for the compressors is released
+        if (capture != null) capture.close();
+    }
+
+    private void showCapture(ImageStack stack)
+    {
+        if (stack == null) return;
+        new ImagePlus(channelName + " capture", stack).show();
+        logMessage("Captured " + stack.getSize() + " frames"
+            + ((stack instanceof MappedStack) ? " in " + ((MappedStack)stack).getFile() : "")
+            + ((stack instanceof CompressedStack) ? String.format(", compressed %.1f:1", ((CompressedStack)stack).getCompressionRatio()) : ""),
+            true, true);
     }
 
     /**
@@ -678,6 +1181,8 @@ public class EPICS_NTNDA_Viewer
         fpsText = new JTextField(6);
         fpsText.setEditable(false);
         fpsText.setHorizontalAlignment(JTextField.CENTER);
+        displayRateText = new JTextField("" + maxDisplayRate, 6);
+        displayRateText.setHorizontalAlignment(JTextField.CENTER);
         statusText = new JTextField(57);
         statusText.setEditable(false);
 
@@ -685,7 +1190,12 @@ public class EPICS_NTNDA_Viewer
         startButton = new JButton("Start");
         stopButton = new JButton("Stop");
         snapButton = new JButton("Snap");
-        JCheckBox captureCheckBox = new JCheckBox("");
+        captureCheckBox = new JCheckBox("");
+        triggerButton = new JButton("Trigger");
+        JButton captureSettingsButton = new JButton("Capture Settings");
+        recordCheckBox = new JCheckBox("");
+        playCheckBox = new JCheckBox("");
+        tiffCheckBox = new JCheckBox("");
         logCheckBox = new JCheckBox("");
 
         frame = new JFrame("Image J EPICS_NTNDA_Viewer Plugin");
@@ -715,6 +1225,14 @@ public class EPICS_NTNDA_Viewer
         panel.add(new JLabel("Capture to Stack"), c);
         c.gridx = 8;
         panel.add(new JLabel("Log"), c);
+        c.gridx = 12;
+        panel.add(new JLabel("Record"), c);
+        c.gridx = 13;
+        panel.add(new JLabel("Play"), c);
+        c.gridx = 14;
+        panel.add(new JLabel("Save TIFF"), c);
+        c.gridx = 15;
+        panel.add(new JLabel("Max display/s"), c);
 
         // Middle row
         // These widgets should be centered
@@ -740,6 +1258,18 @@ public class EPICS_NTNDA_Viewer
         panel.add(logCheckBox, c);
         c.gridx = 9;
         panel.add(snapButton, c);
+        c.gridx = 10;
+        panel.add(triggerButton, c);
+        c.gridx = 11;
+        panel.add(captureSettingsButton, c);
+        c.gridx = 12;
+        panel.add(recordCheckBox, c);
+        c.gridx = 13;
+        panel.add(playCheckBox, c);
+        c.gridx = 14;
+        panel.add(tiffCheckBox, c);
+        c.gridx = 15;
+        panel.add(displayRateText, c);
 
         // Bottom row
         c.gridy = 2;
@@ -767,14 +1297,37 @@ public class EPICS_NTNDA_Viewer
                 NumberFormat form = DecimalFormat.getInstance();
                 ((DecimalFormat)form).applyPattern("0.0");
                 fpsText.setText("" + form.format(fps));
+                String statistics = frameStatistics.interval();
                 if (isPluginRunning && isStarted && numImageUpdates > 0)
-                    logMessage(String.format("Received %d images in %.2f sec", numImageUpdates, elapsedTime), true, false);
+                {
+                    logMessage("Frames in " + statistics, true, false);
+                    statusText.setToolTipText(statistics);
+                }
                 prevTime = time;
                 numImageUpdates = 0;
             }
         });
         timer.start();
 
+        displayRateText.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent event)
+            {
+                try
+                {
+                    double rate = Double.parseDouble(displayRateText.getText().trim());
+                    if (rate < 0) throw new NumberFormatException();
+                    maxDisplayRate = rate;
+                    logMessage(rate > 0 ? "Display limited to " + rate + " frames/s" : "Display every frame", true, false);
+                }
+                catch (NumberFormatException ex)
+                {
+                    logMessage("Max display/s must be a number >= 0, 0 for every frame", true, false);
+                    displayRateText.setText("" + maxDisplayRate);
+                }
+            }
+        });
+
         channelNameText.addActionListener(new ActionListener()
         {
             public void actionPerformed(ActionEvent event)
@@ -876,17 +1429,86 @@ public class EPICS_NTNDA_Viewer
                 if (e.getStateChange() == ItemEvent.SELECTED)
                 {
                     isSaveToStack = true;
-                    isNewStack = true;
                     logMessage("Capture on", true, true);
                 }
                 else
                 {
-                    isSaveToStack = false;
+                    showCapture(stopCapture());
                     logMessage("Capture off", true, true);
                 }
 
             }
         });
+
+        triggerButton.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent event)
+            {
+                boolean frozen;
+                synchronized (captureLock)
+                {
+                    if (captureBuffer == null) return;
+                    captureBuffer.trigger(captureSettings.postTriggerFrames);
+                    frozen = captureBuffer.isFrozen();
+                }
+                logMessage("Capture triggered", true, true);
+                if (frozen) captureCheckBox.setSelected(false);
+            }
+        });
+
+        recordCheckBox.addItemListener(new ItemListener()
+        {
+            public void itemStateChanged(ItemEvent e)
+            {
+                if (e.getStateChange() == ItemEvent.SELECTED)
+                {
+                    if (!startRecording()) recordCheckBox.setSelected(false);
+                }
+                else
+                {
+                    stopRecording();
+                }
+            }
+        });
+
+        tiffCheckBox.addItemListener(new ItemListener()
+        {
+            public void itemStateChanged(ItemEvent e)
+            {
+                if (e.getStateChange() == ItemEvent.SELECTED)
+                {
+                    if (!startTiff()) tiffCheckBox.setSelected(false);
+                }
+                else
+                {
+                    stopTiff();
+                }
+            }
+        });
+
+        playCheckBox.addItemListener(new ItemListener()
+        {
+            public void itemStateChanged(ItemEvent e)
+            {
+                if (e.getStateChange() == ItemEvent.SELECTED)
+                {
+                    if (!startPlayback()) playCheckBox.setSelected(false);
+                }
+                else
+                {
+                    stopPlayback();
+                }
+            }
+        });
+
+        captureSettingsButton.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent event)
+            {
+                // The new settings apply when capture is next armed
+                captureSettings.showDialog("Capture Settings");
+            }
+        });
     }
 
     private Object takeLog(ImagePlus image){
@@ -946,6 +1568,18 @@ public class EPICS_NTNDA_Viewer
             file.close();
             temp = properties.getProperty("channelName");
             if (temp != null) channelName = temp;
+            captureSettings.load(properties);
+            temp = properties.getProperty("recordDirectory");
+            if (temp != null) recordDirectory = temp;
+            isDisplayWhileRecording = !"false".equals(properties.getProperty("recordDisplay"));
+            temp = properties.getProperty("playFile");
+            if (temp != null) playFile = temp;
+            temp = properties.getProperty("tiffDirectory");
+            if (temp != null) tiffDirectory = temp;
+            temp = properties.getProperty("tiffBufferMB");
+            if (temp != null) tiffBufferMB = Double.parseDouble(temp);
+            temp = properties.getProperty("maxDisplayRate");
+            if (temp != null) maxDisplayRate = Double.parseDouble(temp);
             IJ.log("Read properties file: " + path + "  channelName= " + channelName);
         }
         catch (Exception ex)
@@ -962,6 +1596,13 @@ public class EPICS_NTNDA_Viewer
             String fileSep = System.getProperty("file.separator");
             path = System.getProperty("user.home") + fileSep + propertyFile;
             properties.setProperty("channelName", channelName);
+            captureSettings.save(properties);
+            properties.setProperty("recordDirectory", recordDirectory);
+            properties.setProperty("recordDisplay", "" + isDisplayWhileRecording);
+            properties.setProperty("playFile", playFile);
+            properties.setProperty("tiffDirectory", tiffDirectory);
+            properties.setProperty("tiffBufferMB", "" + tiffBufferMB);
+            properties.setProperty("maxDisplayRate", "" + maxDisplayRate);
             FileOutputStream file = new FileOutputStream(path);
             properties.store(file, "EPICS_NTNDA_Viewer Properties");
             file.close();
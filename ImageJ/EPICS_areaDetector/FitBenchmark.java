@@ -0,0 +1,245 @@
+// FitBenchmark.java
+//
+// Compares the speed and accuracy of the Gaussian and slit fitting methods used
+// by the profile plugins on a set of simulated beam profiles.
+//
+// Run with compile_FitBenchmark and run_FitBenchmark.
+import java.util.Random;
+
+import ij.gui.Plot;
+import ij.measure.CurveFitter;
+import ij.measure.Minimizer;
+import ij.measure.UserFunction;
+import ij.util.IJMath;
+
+public class FitBenchmark
+{
+    // Each case is: number of points, sigma as a fraction of the profile length,
+    // peak height above background, background, noise standard deviation
+    private static final double[][] CASES = {
+        { 256, 0.05, 1000, 100,  10},
+        { 256, 0.15, 1000, 100,  50},
+        {1024, 0.02, 5000, 500,  20},
+        {1024, 0.10,  200, 100,  10},
+        {4096, 0.01, 1000, 100,  10},
+        {4096, 0.05, 1000, 100,  30},
+        {4096, 0.15, 3000, 1000, 100},
+    };
+    private static final int PROFILES_PER_CASE = 50;
+    private static final int WARMUP_FITS = 200;
+    // The CurveFitter slit fit takes up to seconds per profile
+    private static final int SLIT_WARMUP_FITS = 5;
+
+    private static final String[] METHODS = {"CurveFitter", "Estimate", "Estimate + LM step"};
+
+    // Each slit case is: number of points, width as a fraction of the profile length, edge sigma in points,
+    // height (negative for a dark slit), background, noise standard deviation
+    private static final double[][] SLIT_CASES = {
+        { 256, 0.20, 2,  1000,  100, 10},
+        { 256, 0.10, 5,   500,   50, 20},
+        {1024, 0.30, 8,  2000,  200, 30},
+        {1024, 0.05, 3,  1000,  100, 50},
+        {1024, 0.20, 4, -1000, 1500, 20},
+        {2048, 0.25, 10, 3000,  300, 50},
+    };
+    private static final String[] SLIT_METHODS = {"CurveFitter (custom)", "SlitFitter"};
+    private static final String SLIT_EQUATION = "y = a+b*x+e/2*Math.erf((x-c+d/2)/(f*Math.sqrt(2)))-e/2*Math.erf((x-c-d/2)/(f*Math.sqrt(2)))";
+
+    public static void main(String[] args)
+    {
+        Random random = new Random(1);
+        GaussianEstimator estimator = new GaussianEstimator();
+        double[] params = new double[GaussianEstimator.NUM_PARAMS];
+
+        System.out.println("Gaussian fit benchmark, " + PROFILES_PER_CASE + " profiles per case");
+        System.out.println("Errors are RMS, center in points and sigma as a fraction of the true sigma");
+        System.out.println(String.format("%6s %6s %6s  %-20s %12s %12s %12s",
+                           "Points", "Sigma", "SNR", "Method", "Time (us)", "Center err", "Sigma err"));
+        for (double[] c : CASES) {
+            int n = (int)c[0];
+            double[] x = new double[n];
+            double[] y = new double[n];
+            for (int i = 0; i < n; i++) x[i] = i;
+            for (int method = 0; method < METHODS.length; method++) {
+                // Warm up the JIT before timing
+                for (int k = 0; k < WARMUP_FITS; k++) {
+                    simulate(c, x, y, random);
+                    fit(method, estimator, x, y, params);
+                }
+                long totalTime = 0;
+                double centerError = 0, sigmaError = 0;
+                for (int k = 0; k < PROFILES_PER_CASE; k++) {
+                    double[] truth = simulate(c, x, y, random);
+                    long start = System.nanoTime();
+                    fit(method, estimator, x, y, params);
+                    totalTime += System.nanoTime() - start;
+                    double dc = params[2] - truth[2];
+                    double ds = (Math.abs(params[3]) - truth[3]) / truth[3];
+                    centerError += dc * dc;
+                    sigmaError += ds * ds;
+                }
+                System.out.println(String.format("%6d %6.1f %6.0f  %-20s %12.1f %12.4f %12.4f",
+                                   n, c[1] * n, c[2] / c[4], METHODS[method],
+                                   totalTime / 1e3 / PROFILES_PER_CASE,
+                                   Math.sqrt(centerError / PROFILES_PER_CASE),
+                                   Math.sqrt(sigmaError / PROFILES_PER_CASE)));
+            }
+        }
+        System.out.println();
+        benchmarkSlits(random);
+    }
+
+    // A fit converges if its goodness is at least SlitFitter.MIN_GOODNESS and the center is within a point
+    private static void benchmarkSlits(Random random)
+    {
+        SlitFitter fitter = new SlitFitter();
+        double[] params = new double[SlitFitter.NUM_PARAMS];
+        System.out.println("Slit fit benchmark, " + PROFILES_PER_CASE + " profiles per case");
+        System.out.println("Errors are RMS over converged fits, center in points and width as a fraction of the true width");
+        System.out.println(String.format("%6s %6s %6s %6s  %-20s %12s %10s %10s %12s %12s",
+                           "Points", "Width", "Edge", "SNR", "Method", "Time (us)", "Conv (%)", "Iter", "Center err", "Width err"));
+        for (double[] c : SLIT_CASES) {
+            int n = (int)c[0];
+            double[] x = new double[n];
+            double[] y = new double[n];
+            for (int i = 0; i < n; i++) x[i] = i;
+            for (int method = 0; method < SLIT_METHODS.length; method++) {
+                for (int k = 0; k < SLIT_WARMUP_FITS; k++) {
+                    simulateSlit(c, x, y, random);
+                    fitSlit(method, fitter, x, y, c[3] > 0, params);
+                }
+                long totalTime = 0;
+                int converged = 0;
+                long iterations = 0;
+                double centerError = 0, widthError = 0;
+                for (int k = 0; k < PROFILES_PER_CASE; k++) {
+                    double[] truth = simulateSlit(c, x, y, random);
+                    long start = System.nanoTime();
+                    iterations += fitSlit(method, fitter, x, y, c[3] > 0, params);
+                    totalTime += System.nanoTime() - start;
+                    double[] fit = new double[n];
+                    for (int i = 0; i < n; i++) fit[i] = SlitFitter.f(params, x[i]);
+                    double dc = params[2] - truth[2];
+                    double dw = (params[3] - truth[3]) / truth[3];
+                    if (FitHistory.goodness(y, fit, n, SlitFitter.NUM_PARAMS) >= SlitFitter.MIN_GOODNESS && Math.abs(dc) < 1) {
+                        converged++;
+                        centerError += dc * dc;
+                        widthError += dw * dw;
+                    }
+                }
+                System.out.println(String.format("%6d %6.0f %6.1f %6.0f  %-20s %12.1f %10.0f %10.1f %12.4f %12.4f",
+                                   n, c[1] * n, c[2], Math.abs(c[3]) / c[5], SLIT_METHODS[method],
+                                   totalTime / 1e3 / PROFILES_PER_CASE,
+                                   100.0 * converged / PROFILES_PER_CASE,
+                                   (double)iterations / PROFILES_PER_CASE,
+                                   converged > 0 ? Math.sqrt(centerError / converged) : Double.NaN,
+                                   converged > 0 ? Math.sqrt(widthError / converged) : Double.NaN));
+            }
+        }
+    }
+
+    // Fit a slit and return the number of iterations
+    private static int fitSlit(int method, SlitFitter fitter, double[] x, double[] y, boolean positive, double[] params)
+    {
+        if (method == 1) {
+            fitter.fit(x, y, x.length, positive, params);
+            return fitter.getIterations();
+        }
+        // LiveFitter_EPICSUserCalc before SlitFitter: CurveFitter.doCustomFit with the bounds checked
+        // in the user function against the plot limits, retried while the goodness is below 0.7
+        final Plot plot = new Plot("Slit", "x", "y");
+        double yMax = y[0];
+        double yMin = y[0];
+        for (int i = 0; i < y.length; i++) {
+            if (y[i] > yMax) yMax = y[i];
+            if (y[i] < yMin) yMin = y[i];
+        }
+        plot.setLimits(x[0], x[x.length-1], yMin, yMax);
+        double cEst1 = 0, cEst2 = 0, eEst = 0;
+        for (int i = 0; i < y.length; i++) {
+            cEst1 += (y[i]-yMin)*x[i];
+            cEst2 += y[i]-yMin;
+            eEst += y[i];
+        }
+        final int pos = positive ? 1 : 0;
+        double[] initialParams = new double[6];
+        if (pos == 1) initialParams[0] = yMin;
+        else initialParams[0] = (yMax-yMin)/2.0;
+        if (initialParams[0] < 0 || initialParams[0] > yMax) initialParams[0] = 1;
+        initialParams[1] = 0;
+        initialParams[2] = cEst1/cEst2;
+        initialParams[4] = (eEst - x.length*yMin)/x.length;
+        initialParams[3] = (eEst - x.length*yMin)/initialParams[4];
+        initialParams[5] = 5;
+        if ((pos == 0 && initialParams[4] > 0) || (pos == 1 && initialParams[4] < 0)) initialParams[4] *= -1;
+        CurveFitter cf = new CurveFitter(x, y);
+        double goodness = 0.0;
+        int attempts = 0;
+        int iterations = 0;
+        while (goodness < 0.7 && attempts < 4) {
+            cf.doCustomFit(new UserFunction() {
+                public double userFunction(double[] params, double x) {
+                    double[] limits = plot.getLimits();
+                    double xMin = limits[0];
+                    double xMax = limits[1];
+                    double yMax = limits[3];
+                    if (params[0] > yMax) return Double.NaN;
+                    if (params[0] < 0) return Double.NaN;
+                    if (params[1] > 3) return Double.NaN;
+                    if (params[1] < -3) return Double.NaN;
+                    if (params[2] > xMax) return Double.NaN;
+                    if (params[2] < 0) return Double.NaN;
+                    if (params[3] > xMax - xMin) return Double.NaN;
+                    if (params[3] < 0.01) return Double.NaN;
+                    if (params[4] >= yMax) return Double.NaN;
+                    if (params[4] < 1 && pos == 1) return Double.NaN;
+                    if (params[4] > -1 && pos == 0) return Double.NaN;
+                    if (params[5] > 30) return Double.NaN;
+                    if (params[5] < 0.5) return Double.NaN;
+                    return params[0] + params[1] * x + params[4] / 2 * IJMath.erf((x - params[2] + params[3] / 2) / (params[5] * Math.pow(2, 0.5))) - params[4] / 2 * IJMath.erf((x - params[2] - params[3] / 2) / (params[5] * Math.pow(2, 0.5)));
+                }}, 6, SLIT_EQUATION, initialParams, null, false);
+            goodness = cf.getFitGoodness();
+            iterations += cf.getIterations();
+            initialParams[0] *= 0.9;
+            attempts++;
+        }
+        System.arraycopy(cf.getStatus() == Minimizer.SUCCESS ? cf.getParams() : initialParams, 0, params, 0, 6);
+        return iterations;
+    }
+
+    // Fill y with a noisy slit with a random center and return the true parameters
+    private static double[] simulateSlit(double[] c, double[] x, double[] y, Random random)
+    {
+        int n = x.length;
+        double center = n * (0.35 + 0.3 * random.nextDouble());
+        double[] truth = {c[4], 0, center, c[1] * n, c[3], c[2]};
+        for (int i = 0; i < n; i++) {
+            y[i] = SlitFitter.f(truth, x[i]) + c[5] * random.nextGaussian();
+        }
+        return truth;
+    }
+
+    private static void fit(int method, GaussianEstimator estimator, double[] x, double[] y, double[] params)
+    {
+        if (method == 0) {
+            CurveFitter cv = new CurveFitter(x, y);
+            cv.doFit(CurveFitter.GAUSSIAN);
+            System.arraycopy(cv.getParams(), 0, params, 0, GaussianEstimator.NUM_PARAMS);
+        } else {
+            estimator.setPolish(method == 2);
+            estimator.estimate(x, y, x.length, params);
+        }
+    }
+
+    // Fill y with a noisy Gaussian with a random center and return the true parameters
+    private static double[] simulate(double[] c, double[] x, double[] y, Random random)
+    {
+        int n = x.length;
+        double center = n * (0.3 + 0.4 * random.nextDouble());
+        double[] truth = {c[3], c[3] + c[2], center, c[1] * n};
+        for (int i = 0; i < n; i++) {
+            y[i] = GaussianEstimator.f(truth, x[i]) + c[4] * random.nextGaussian();
+        }
+        return truth;
+    }
+}
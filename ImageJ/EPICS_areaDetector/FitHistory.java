@@ -0,0 +1,222 @@
+// FitHistory.java
+//
+// A fixed-capacity history of timestamped fit results from the live fitting
+// plugins, for trend plots and export.
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * A ring buffer of fit results.  Each entry is a timestamp and the values of COLUMNS.
+ * The buffer holds the last getCapacity() entries; older entries are overwritten.
+ * Entries are stored in primitive arrays allocated by the constructor, so memory is bounded
+ * and append() never allocates.  All methods are synchronized, so the fitting thread can append
+ * while another thread plots or exports.
+ * <p>
+ * Timestamps are nanoseconds since the epoch, taken from System.nanoTime() so that they
+ * increase monotonically, and anchored to the wall clock when the history is created.
+ * <p>
+ * The binary export is big-endian (java.io.DataOutputStream): the 4 bytes "FITH", an int format
+ * version (1), an int number of columns, each column name in modified UTF-8 (writeUTF), an int
+ * number of entries, then for each entry, oldest first, a long timestamp and a double per column.
+ */
+public class FitHistory
+{
+    public static final int CENTER = 0;
+    public static final int FWHM = 1;
+    public static final int AMPLITUDE = 2;
+    public static final int BACKGROUND = 3;
+    public static final int GOODNESS = 4;
+    /** The column names, indexed by CENTER, FWHM, AMPLITUDE, BACKGROUND and GOODNESS */
+    public static final String[] COLUMNS = {"Center", "FWHM", "Amplitude", "Background", "Goodness"};
+
+    private static final int BINARY_VERSION = 1;
+
+    private final long[] times;
+    private final double[][] values;
+    private final long epochOffset;
+    private int next;       // index of the next entry to write
+    private int count;      // number of valid entries
+
+    /**
+     * Constructor
+     * @param capacity The maximum number of entries kept, at least 1.
+     */
+    public FitHistory(int capacity)
+    {
+        capacity = Math.max(1, capacity);
+        times = new long[capacity];
+        values = new double[COLUMNS.length][capacity];
+        epochOffset = System.currentTimeMillis() * 1000000L - System.nanoTime();
+    }
+
+    /**
+     * @return The maximum number of entries kept.
+     */
+    public int getCapacity()
+    {
+        return times.length;
+    }
+
+    /**
+     * @return The number of entries, at most getCapacity().
+     */
+    public synchronized int size()
+    {
+        return count;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear()
+    {
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * Add an entry with the current time, overwriting the oldest entry if the buffer is full.
+     * Values that a fit does not provide should be NaN.
+     */
+    public synchronized void append(double center, double fwhm, double amplitude, double background, double goodness)
+    {
+        int i = next;
+        times[i] = epochOffset + System.nanoTime();
+        values[CENTER][i] = center;
+        values[FWHM][i] = fwhm;
+        values[AMPLITUDE][i] = amplitude;
+        values[BACKGROUND][i] = background;
+        values[GOODNESS][i] = goodness;
+        next = (i + 1 == times.length) ? 0 : i + 1;
+        if (count < times.length) count++;
+    }
+
+    /**
+     * Copy the entries, oldest first, into arrays supplied by the caller.
+     * @param t Receives the time of each entry in seconds relative to the newest entry, so it is
+     *          0 for the newest and negative for older ones; may be null.
+     * @param column The column to copy.
+     * @param v Receives the values of the column; may be null.
+     * @return The number of entries copied, which is at most the length of the arrays.
+     */
+    public synchronized int copy(double[] t, int column, double[] v)
+    {
+        int n = count;
+        if (t != null) n = Math.min(n, t.length);
+        if (v != null) n = Math.min(n, v.length);
+        int capacity = times.length;
+        int first = next - n;
+        if (first < 0) first += capacity;
+        long newest = times[next == 0 ? capacity - 1 : next - 1];
+        for (int k = 0; k < n; k++) {
+            int i = first + k;
+            if (i >= capacity) i -= capacity;
+            if (t != null) t[k] = (times[i] - newest) * 1e-9;
+            if (v != null) v[k] = values[column][i];
+        }
+        return n;
+    }
+
+    /**
+     * Write the entries, oldest first, as comma separated values with a header line.
+     * The first two columns are the time in seconds since the epoch and since the oldest entry.
+     * @param path The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeCSV(String path) throws IOException
+    {
+        Snapshot s = snapshot();
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(path)));
+        try {
+            out.print("EpochTime,ElapsedTime");
+            for (String name : COLUMNS) out.print("," + name);
+            out.println();
+            for (int k = 0; k < s.times.length; k++) {
+                out.print(String.format("%.6f,%.6f", s.times[k] * 1e-9, (s.times[k] - s.times[0]) * 1e-9));
+                for (int c = 0; c < COLUMNS.length; c++) out.print("," + s.values[c][k]);
+                out.println();
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) throw new IOException("Error writing " + path);
+    }
+
+    /**
+     * Write the entries in the binary format described in the class comment.
+     * @param path The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeBinary(String path) throws IOException
+    {
+        Snapshot s = snapshot();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            out.writeBytes("FITH");
+            out.writeInt(BINARY_VERSION);
+            out.writeInt(COLUMNS.length);
+            for (String name : COLUMNS) out.writeUTF(name);
+            out.writeInt(s.times.length);
+            for (int k = 0; k < s.times.length; k++) {
+                out.writeLong(s.times[k]);
+                for (int c = 0; c < COLUMNS.length; c++) out.writeDouble(s.values[c][k]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The fit goodness as ImageJ's CurveFitter.getFitGoodness() defines it: 1 - SSE/SSD, where SSD is the
+     * sum of squared deviations of the data from their mean, each corrected for the degrees of freedom.
+     * For fits that do not go through CurveFitter.
+     * @param y The data.
+     * @param fit The fitted values.
+     * @param n The number of points.
+     * @param numParams The number of fit parameters.
+     * @return The goodness, 1 for a perfect fit, or NaN if it is not defined.
+     */
+    public static double goodness(double[] y, double[] fit, int n, int numParams)
+    {
+        if (n <= numParams) return Double.NaN;
+        double sum = 0, sum2 = 0, sse = 0;
+        for (int i = 0; i < n; i++) {
+            sum += y[i];
+            sum2 += y[i] * y[i];
+            double r = y[i] - fit[i];
+            sse += r * r;
+        }
+        double ssd = sum2 - sum * sum / n;
+        if (!(ssd > 0)) return Double.NaN;
+        return 1.0 - (sse / (n - numParams)) / ssd * (n - 1);
+    }
+
+    // A copy of the entries, oldest first, so files are written without holding the lock
+    private static class Snapshot
+    {
+        long[] times;
+        double[][] values;
+    }
+
+    private synchronized Snapshot snapshot()
+    {
+        Snapshot s = new Snapshot();
+        int capacity = times.length;
+        int first = next - count;
+        if (first < 0) first += capacity;
+        s.times = new long[count];
+        s.values = new double[COLUMNS.length][count];
+        for (int k = 0; k < count; k++) {
+            int i = first + k;
+            if (i >= capacity) i -= capacity;
+            s.times[k] = times[i];
+            for (int c = 0; c < COLUMNS.length; c++) s.values[c][k] = values[c][i];
+        }
+        return s;
+    }
+}
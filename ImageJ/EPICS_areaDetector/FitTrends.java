@@ -0,0 +1,166 @@
+// FitTrends.java
+//
+// Live trend plots of a FitHistory, and a small dialog to choose the plots
+// and to export or clear the history.
+import java.awt.Checkbox;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.ItemEvent;
+import java.awt.event.ItemListener;
+import java.io.IOException;
+import java.util.Vector;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.NonBlockingGenericDialog;
+import ij.gui.Plot;
+import ij.io.SaveDialog;
+
+/**
+ * Shows one plot per selected FitHistory column against time, with the newest entry at time 0.
+ * update() is called after each fit; it redraws the plots at most UPDATE_RATE times per second,
+ * replacing the data of the existing plots.
+ * <p>
+ * showControls() opens a non-blocking dialog with a checkbox for each column's trend plot
+ * and buttons to save the history as CSV or binary and to clear it.
+ */
+public class FitTrends
+{
+    /** The maximum number of plot updates per second */
+    public static final double UPDATE_RATE = 2;
+
+    private final FitHistory history;
+    private final String title;
+    private final Plot[] plots = new Plot[FitHistory.COLUMNS.length];
+    private double[] t = new double[0];
+    private double[] v = new double[0];
+    private long lastUpdate;
+
+    /**
+     * Constructor
+     * @param history The history to plot.
+     * @param title The start of the plot titles, for example the name of the plugin and image.
+     */
+    public FitTrends(FitHistory history, String title)
+    {
+        this.history = history;
+        this.title = title;
+    }
+
+    /**
+     * @return The history that is plotted.
+     */
+    public FitHistory getHistory()
+    {
+        return history;
+    }
+
+    /**
+     * Open the dialog to choose the trend plots and export the history.
+     * It does not block the caller.
+     */
+    public void showControls()
+    {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                final NonBlockingGenericDialog gd = new NonBlockingGenericDialog("Fit History: " + title);
+                gd.addMessage("Capacity " + history.getCapacity() + " fits");
+                for (int c = 0; c < FitHistory.COLUMNS.length; c++)
+                    gd.addCheckbox("Plot " + FitHistory.COLUMNS[c], isShown(c));
+                gd.addButton("Save CSV...", new ActionListener() {
+                    public void actionPerformed(ActionEvent e) { save(true); }
+                });
+                gd.addButton("Save Binary...", new ActionListener() {
+                    public void actionPerformed(ActionEvent e) { save(false); }
+                });
+                gd.addButton("Clear", new ActionListener() {
+                    public void actionPerformed(ActionEvent e) { history.clear(); }
+                });
+                Vector<?> boxes = gd.getCheckboxes();
+                for (int c = 0; c < boxes.size(); c++) {
+                    final int column = c;
+                    final Checkbox box = (Checkbox)boxes.get(c);
+                    box.addItemListener(new ItemListener() {
+                        public void itemStateChanged(ItemEvent e) { setShown(column, box.getState()); }
+                    });
+                }
+                gd.hideCancelButton();
+                gd.setOKLabel("Close");
+                gd.showDialog();
+            }
+        }, "FitTrends controls");
+        thread.start();
+    }
+
+    /**
+     * Redraw the trend plots if they have not been redrawn for 1/UPDATE_RATE seconds.
+     */
+    public synchronized void update()
+    {
+        long now = System.nanoTime();
+        if ((now - lastUpdate) * 1e-9 < 1 / UPDATE_RATE) return;
+        lastUpdate = now;
+        for (int c = 0; c < plots.length; c++) {
+            if (plots[c] == null) continue;
+            ImagePlus imp = plots[c].getImagePlus();
+            if (imp == null || imp.getWindow() == null) {
+                plots[c] = null;                // the user closed it
+                continue;
+            }
+            copyColumn(c);
+            plots[c].replace(0, "line", t, v);
+            plots[c].setLimitsToFit(true);
+        }
+    }
+
+    private synchronized boolean isShown(int column)
+    {
+        return plots[column] != null;
+    }
+
+    private synchronized void setShown(int column, boolean show)
+    {
+        if (show && plots[column] == null) {
+            copyColumn(column);
+            Plot plot = new Plot(title + " " + FitHistory.COLUMNS[column], "Time (s)", FitHistory.COLUMNS[column]);
+            plot.add("line", t, v);
+            plot.show();
+            plots[column] = plot;
+        } else if (!show && plots[column] != null) {
+            ImagePlus imp = plots[column].getImagePlus();
+            if (imp != null && imp.getWindow() != null) imp.getWindow().close();
+            plots[column] = null;
+        }
+    }
+
+    // Copy a column into t and v, which are reallocated only when the number of entries changes
+    private void copyColumn(int column)
+    {
+        int n = Math.max(1, history.size());
+        if (t.length != n) {
+            t = new double[n];
+            v = new double[n];
+        }
+        if (history.copy(t, column, v) == 0) {
+            t[0] = 0;
+            v[0] = Double.NaN;
+        }
+    }
+
+    private void save(boolean csv)
+    {
+        SaveDialog sd = new SaveDialog(csv ? "Save Fit History as CSV" : "Save Fit History",
+                                       "FitHistory", csv ? ".csv" : ".bin");
+        if (sd.getFileName() == null) return;
+        String path = sd.getDirectory() + sd.getFileName();
+        try {
+            if (csv)
+                history.writeCSV(path);
+            else
+                history.writeBinary(path);
+            IJ.showStatus("Saved " + history.size() + " fits to " + path);
+        } catch (IOException e) {
+            IJ.error("Fit History", "Could not save " + path + ": " + e.getMessage());
+        }
+    }
+}
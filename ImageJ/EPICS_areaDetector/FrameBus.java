@@ -0,0 +1,393 @@
+// FrameBus.java
+//
+// Passes the frames that a viewer receives to analysis plugins in the same
+// ImageJ, on their own threads and independently of the display.
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * A publish/subscribe channel for the frames of one image source.
+ * <p>
+ * The viewers publish every frame they receive on the bus named after their image, before the frame is
+ * drawn, so subscribers see frames that the display skips and keep receiving them when the image window
+ * is replaced.  publish() copies the pixels into a Frame, which is immutable and reference counted: each
+ * subscription holds a reference until its subscriber has returned, and a subscriber that keeps a frame
+ * calls retain() and later release().  When the last reference is released the pixel array goes back to
+ * the bus and is reused for a later frame, so a busy bus does not allocate an array per frame.
+ * <p>
+ * A subscriber is called on the Executor it gives, or on a thread of its own, one frame at a time and in
+ * order.  A latest-only subscription holds at most one waiting frame, which a newer frame replaces, so a
+ * slow subscriber always gets the newest frame.  An all-frames subscription queues up to MAX_QUEUED frames
+ * and counts the frames that arrive while the queue is full as dropped.  Nothing is copied while a bus has
+ * no subscribers.
+ */
+public class FrameBus
+{
+    /** The most frames waiting for an all-frames subscriber */
+    public static final int MAX_QUEUED = 64;
+
+    // Arrays kept for reuse, of the size of the last frame
+    private static final int MAX_POOLED = 4;
+
+    private static final Map<String, FrameBus> buses = new HashMap<String, FrameBus>();
+
+    private final String name;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final ArrayDeque<Object> pool = new ArrayDeque<Object>();
+    private volatile long publishedFrames = 0;
+
+    /**
+     * Receives frames.
+     */
+    public interface Subscriber
+    {
+        /**
+         * Called with each frame delivered.  The frame is released when this returns; call
+         * frame.retain() to keep it longer.
+         */
+        void onFrame(Frame frame);
+    }
+
+    /**
+     * One frame: pixels that are never changed, the dimensions and type, the uniqueId and the timeStamp.
+     */
+    public static class Frame
+    {
+        /** The width and height in pixels */
+        public final int width, height;
+        /** 8 (byte[]), 16 (short[]), 24 (RGB, int[]) or 32 (float[]), as ImagePlus.getBitDepth() */
+        public final int bitDepth;
+        /** The uniqueId of the NTNDArray, or the array counter */
+        public final int uniqueId;
+        /** The source timeStamp in nanoseconds since 1970, or the time the frame arrived if it has none */
+        public final long timeStamp;
+
+        private final Object pixels;
+        private final FrameBus bus;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        Frame(FrameBus bus, int width, int height, int bitDepth, Object pixels, int uniqueId, long timeStamp)
+        {
+            this.bus = bus;
+            this.width = width;
+            this.height = height;
+            this.bitDepth = bitDepth;
+            this.pixels = pixels;
+            this.uniqueId = uniqueId;
+            this.timeStamp = timeStamp;
+        }
+
+        /**
+         * @return The pixels, which must not be changed.
+         */
+        public Object getPixels()
+        {
+            return pixels;
+        }
+
+        /**
+         * @return A processor that shares the pixels of the frame.  Call duplicate() on it before
+         *         changing it.
+         */
+        public ImageProcessor getProcessor()
+        {
+            switch (bitDepth) {
+                case 8: return new ByteProcessor(width, height, (byte[])pixels);
+                case 16: return new ShortProcessor(width, height, (short[])pixels, null);
+                case 24: return new ColorProcessor(width, height, (int[])pixels);
+                default: return new FloatProcessor(width, height, (float[])pixels);
+            }
+        }
+
+        /**
+         * Add a reference to the frame.
+         * @return This frame.
+         * @throws IllegalStateException If the frame has already been released.
+         */
+        public Frame retain()
+        {
+            while (true) {
+                int n = references.get();
+                if (n <= 0) throw new IllegalStateException("Frame " + uniqueId + " has been released");
+                if (references.compareAndSet(n, n + 1)) return this;
+            }
+        }
+
+        /**
+         * Remove a reference.  After the last reference the frame must not be used.
+         */
+        public void release()
+        {
+            int n = references.decrementAndGet();
+            if (n == 0)
+                bus.recycle(pixels);
+            else if (n < 0)
+                throw new IllegalStateException("Frame " + uniqueId + " released too often");
+        }
+    }
+
+    /**
+     * A subscriber and the frames waiting for it.
+     */
+    public class Subscription
+    {
+        private final Subscriber subscriber;
+        private final boolean latestOnly;
+        private final Executor executor;
+        private final ExecutorService ownExecutor;
+        private final ArrayDeque<Frame> queue = new ArrayDeque<Frame>();
+        private boolean isScheduled = false;
+        private boolean isClosed = false;
+        private long deliveredFrames = 0;
+        private long droppedFrames = 0;
+        private final Runnable drain = new Runnable() {
+            public void run() {
+                deliver();
+            }
+        };
+
+        Subscription(Subscriber subscriber, boolean latestOnly, Executor executor)
+        {
+            this.subscriber = subscriber;
+            this.latestOnly = latestOnly;
+            if (executor != null) {
+                this.executor = executor;
+                ownExecutor = null;
+            } else {
+                ownExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "FrameBus " + name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                this.executor = ownExecutor;
+            }
+        }
+
+        /**
+         * @return The bus.
+         */
+        public FrameBus getBus()
+        {
+            return FrameBus.this;
+        }
+
+        /**
+         * @return The frames passed to the subscriber so far.
+         */
+        public synchronized long getDeliveredFrames()
+        {
+            return deliveredFrames;
+        }
+
+        /**
+         * @return The frames an all-frames subscription dropped because its queue was full.  A latest-only
+         *         subscription drops none; the frames it skips are replaced, not dropped.
+         */
+        public synchronized long getDroppedFrames()
+        {
+            return droppedFrames;
+        }
+
+        /**
+         * Stop receiving frames.  The frames waiting are released, and the subscriber's own thread, if the
+         * bus made one, ends after the frame it may be processing.
+         */
+        public void close()
+        {
+            subscriptions.remove(this);
+            synchronized (this) {
+                if (isClosed) return;
+                isClosed = true;
+                while (!queue.isEmpty()) queue.poll().release();
+            }
+            if (ownExecutor != null) ownExecutor.shutdown();
+        }
+
+        void offer(Frame frame)
+        {
+            synchronized (this) {
+                if (isClosed) return;
+                if (latestOnly) {
+                    Frame old = queue.poll();
+                    if (old != null) old.release();
+                } else if (queue.size() >= MAX_QUEUED) {
+                    droppedFrames++;
+                    return;
+                }
+                queue.add(frame.retain());
+                if (isScheduled) return;
+                isScheduled = true;
+            }
+            try {
+                executor.execute(drain);
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        // Pass the waiting frames to the subscriber, on the executor
+        private void deliver()
+        {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    frame = isClosed ? null : queue.poll();
+                    if (frame == null) {
+                        isScheduled = false;
+                        return;
+                    }
+                    deliveredFrames++;
+                }
+                try {
+                    subscriber.onFrame(frame);
+                } catch (RuntimeException e) {
+                    IJ.log("FrameBus " + name + ": subscriber failed: " + e);
+                } finally {
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    private FrameBus(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * @param name The name of the source, the title of the image the viewer shows.
+     * @return The bus of the source, created if there is none.
+     */
+    public static FrameBus get(String name)
+    {
+        synchronized (buses) {
+            FrameBus bus = buses.get(name);
+            if (bus == null) {
+                bus = new FrameBus(name);
+                buses.put(name, bus);
+            }
+            return bus;
+        }
+    }
+
+    /**
+     * @param name The name of the source, the title of the image the viewer shows.
+     * @return The bus of the source, or null if no viewer has published on it.
+     */
+    public static FrameBus find(String name)
+    {
+        synchronized (buses) {
+            return buses.get(name);
+        }
+    }
+
+    /**
+     * @return The names of the buses.
+     */
+    public static List<String> getNames()
+    {
+        synchronized (buses) {
+            return new ArrayList<String>(buses.keySet());
+        }
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return true if a frame published now would be delivered to anyone.
+     */
+    public boolean hasSubscribers()
+    {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * @return The frames published so far.
+     */
+    public long getPublishedFrames()
+    {
+        return publishedFrames;
+    }
+
+    /**
+     * Subscribe to the frames published from now on.
+     * @param subscriber The subscriber.
+     * @param latestOnly true to be given only the newest frame when the subscriber is busy, false to be
+     *        given every frame, up to MAX_QUEUED waiting.
+     * @param executor Runs the subscriber, or null for a thread of its own.
+     * @return The subscription, to close when done.
+     */
+    public Subscription subscribe(Subscriber subscriber, boolean latestOnly, Executor executor)
+    {
+        Subscription s = new Subscription(subscriber, latestOnly, executor);
+        subscriptions.add(s);
+        return s;
+    }
+
+    /**
+     * Publish a copy of a frame to the subscribers.  Does nothing if there are none.
+     * @param width The width.
+     * @param height The height.
+     * @param bitDepth 8, 16, 24 or 32.
+     * @param pixels A byte[], short[], int[] or float[] of width*height pixels, which is copied.
+     * @param uniqueId The uniqueId or array counter.
+     * @param timeStamp The source timeStamp in nanoseconds since 1970, or 0 for now.
+     */
+    public void publish(int width, int height, int bitDepth, Object pixels, int uniqueId, long timeStamp)
+    {
+        if (subscriptions.isEmpty()) return;
+        int size = width * height;
+        Object copy = obtain(pixels, size);
+        System.arraycopy(pixels, 0, copy, 0, size);
+        if (timeStamp == 0) timeStamp = System.currentTimeMillis() * 1000000L;
+        Frame frame = new Frame(this, width, height, bitDepth, copy, uniqueId, timeStamp);
+        publishedFrames++;
+        for (Subscription s : subscriptions) s.offer(frame);
+        frame.release();
+    }
+
+    // A pooled array of the type of pixels and the size, or a new one
+    private Object obtain(Object pixels, int size)
+    {
+        synchronized (pool) {
+            while (!pool.isEmpty()) {
+                Object a = pool.poll();
+                if (a.getClass() == pixels.getClass() && java.lang.reflect.Array.getLength(a) == size) return a;
+                // the frame size or type changed; the old arrays are dropped
+            }
+        }
+        if (pixels instanceof byte[]) return new byte[size];
+        if (pixels instanceof short[]) return new short[size];
+        if (pixels instanceof int[]) return new int[size];
+        return new float[size];
+    }
+
+    void recycle(Object pixels)
+    {
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED) pool.add(pixels);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+// FrameCapture.java
+//
+// The capture engines behind the "Capture to Stack" option of the viewer plugins.
+import ij.ImageStack;
+
+/**
+ * Captures live frames of a fixed size and type until it is triggered, then gives them to ImageJ as a stack.
+ * CaptureBuffer keeps the most recent frames in memory, CompressedStack keeps them LZ4-compressed in memory
+ * and MappedStack appends them to a memory-mapped file.
+ * CaptureBuffer.Settings.create() makes the one the user selected.
+ * <p>
+ * Implementations are thread safe: one thread adds frames while another triggers and takes the stack.
+ */
+public interface FrameCapture
+{
+    /**
+     * @return true if frames of this size and type can be added.
+     */
+    boolean matches(int width, int height, int bitDepth);
+
+    /**
+     * @return The number of frames the capture holds.
+     */
+    int getCapacity();
+
+    /**
+     * @return The number of frames captured.
+     */
+    int size();
+
+    /**
+     * Copy a frame into the capture.
+     * @param pixels The pixels, a byte[], short[], float[] or int[] of width*height elements matching the bit depth.
+     * @param id The frame number, for the slice label.
+     * @return false if the capture is frozen and the frame was ignored.
+     */
+    boolean add(Object pixels, long id);
+
+    /**
+     * Freeze the capture after a number of further frames.
+     * A second trigger does not delay a trigger that is already counting down.
+     * @param postFrames The number of frames to capture before freezing, 0 to freeze now.
+     */
+    void trigger(int postFrames);
+
+    /**
+     * @return true if the capture is frozen and ignores further frames.
+     */
+    boolean isFrozen();
+
+    /**
+     * Freeze the capture and give its frames to a stack, oldest first.  The capture cannot be used afterwards.
+     * @param labelPrefix The start of the slice labels, which end with the frame number.
+     * @return The stack, or null if no frames were captured.
+     */
+    ImageStack toStack(String labelPrefix);
+
+    /**
+     * Stop capturing and release the memory, threads and file the capture holds, without making a stack.
+     * The frames are lost, except those already written to a capture file.  The capture cannot be used
+     * afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,203 @@
+// FrameStatistics.java
+//
+// Counts the frames a viewer receives, decodes, displays and loses, and
+// measures the latency from the source timeStamp to the client.
+import java.util.Arrays;
+
+/**
+ * Frame counts and latencies of a viewer, to show whether it keeps up with the source.
+ * <p>
+ * Dropped frames are found from the uniqueIds of the frames received: a uniqueId more than one above the
+ * last one means the frames in between never arrived.  A uniqueId that does not increase is taken as a
+ * restart of the acquisition, counted but not as a loss.  Overruns are monitor events that the server had
+ * to combine because the client did not take the previous one in time; each of them also shows up as a
+ * gap in the uniqueIds.
+ * <p>
+ * The latencies are from the timeStamp of a frame, which the IOC sets, to the time the viewer decoded it
+ * and to the time it was drawn, so they include any difference between the clocks of the IOC and the
+ * client.  The percentiles are of the last LATENCY_SAMPLES frames of the interval or of the total; the
+ * maximum is of all of them.
+ * <p>
+ * Counts are kept for the current interval, which interval() ends, and in total since reset().  The
+ * methods are synchronized, so the display thread can count while another thread reports.
+ */
+public class FrameStatistics
+{
+    /** The most latencies kept per interval */
+    public static final int LATENCY_SAMPLES = 8192;
+
+    private Counts total = new Counts();
+    private Counts current = new Counts();
+    private int lastUniqueId;
+    private boolean hasLastUniqueId = false;
+    private long startTime = System.nanoTime();
+    private long intervalStart = startTime;
+
+    // The counts and latency samples of a period
+    private static class Counts
+    {
+        long received, decoded, displayed, dropped, overruns, restarts;
+        final Latencies decodeLatency = new Latencies();
+        final Latencies displayLatency = new Latencies();
+
+        void received(long dropped, boolean overrun, boolean restart)
+        {
+            received++;
+            this.dropped += dropped;
+            if (overrun) overruns++;
+            if (restart) restarts++;
+        }
+    }
+
+    // A ring of latencies in nanoseconds
+    private static class Latencies
+    {
+        final long[] samples = new long[LATENCY_SAMPLES];
+        int count;
+        long next;
+        long max = Long.MIN_VALUE;
+
+        void add(long latency)
+        {
+            samples[(int)(next++ % samples.length)] = latency;
+            count = (int)Math.min(next, samples.length);
+            max = Math.max(max, latency);
+        }
+
+        // {p50, p95, p99, max} in ms, or null if there are no samples
+        double[] percentiles()
+        {
+            if (count == 0) return null;
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return new double[] {at(sorted, 0.50), at(sorted, 0.95), at(sorted, 0.99), max / 1e6};
+        }
+
+        private static double at(long[] sorted, double p)
+        {
+            return sorted[(int)Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)] / 1e6;
+        }
+    }
+
+    /**
+     * Count a frame received from the source.
+     * @param uniqueId The uniqueId of the frame.
+     * @param overrun true if the monitor reported an overrun with this frame.
+     */
+    public synchronized void received(int uniqueId, boolean overrun)
+    {
+        long dropped = 0;
+        boolean restart = false;
+        if (hasLastUniqueId) {
+            long step = (long)uniqueId - lastUniqueId;
+            if (step > 1)
+                dropped = step - 1;
+            else if (step < 1)
+                restart = true;
+        }
+        lastUniqueId = uniqueId;
+        hasLastUniqueId = true;
+        total.received(dropped, overrun, restart);
+        current.received(dropped, overrun, restart);
+    }
+
+    /**
+     * Count a frame that was decoded into the image.
+     * @param timeStamp The source timeStamp in nanoseconds since 1970, or 0 if the frame has none.
+     */
+    public synchronized void decoded(long timeStamp)
+    {
+        total.decoded++;
+        current.decoded++;
+        if (timeStamp == 0) return;
+        long latency = latency(timeStamp);
+        total.decodeLatency.add(latency);
+        current.decodeLatency.add(latency);
+    }
+
+    /**
+     * Count a frame that was drawn.
+     * @param timeStamp The source timeStamp of the frame in nanoseconds since 1970, or 0.
+     */
+    public synchronized void displayed(long timeStamp)
+    {
+        total.displayed++;
+        current.displayed++;
+        if (timeStamp == 0) return;
+        long latency = latency(timeStamp);
+        total.displayLatency.add(latency);
+        current.displayLatency.add(latency);
+    }
+
+    /**
+     * Start counting again, for example for a new channel.
+     */
+    public synchronized void reset()
+    {
+        total = new Counts();
+        current = new Counts();
+        hasLastUniqueId = false;
+        startTime = intervalStart = System.nanoTime();
+    }
+
+    /**
+     * @return The frames lost since reset().
+     */
+    public synchronized long getDroppedFrames()
+    {
+        return total.dropped;
+    }
+
+    /**
+     * @return The frames received since reset().
+     */
+    public synchronized long getReceivedFrames()
+    {
+        return total.received;
+    }
+
+    /**
+     * End the current interval.
+     * @return A summary of the interval.
+     */
+    public synchronized String interval()
+    {
+        long now = System.nanoTime();
+        String s = summary(current, (now - intervalStart) * 1e-9);
+        current = new Counts();
+        intervalStart = now;
+        return s;
+    }
+
+    /**
+     * @return A summary of everything since reset().
+     */
+    public synchronized String totals()
+    {
+        return summary(total, (System.nanoTime() - startTime) * 1e-9);
+    }
+
+    private static String summary(Counts c, double seconds)
+    {
+        StringBuilder s = new StringBuilder(String.format("%.1f s: received %d, decoded %d, displayed %d, dropped %d",
+            seconds, c.received, c.decoded, c.displayed, c.dropped));
+        if (c.dropped > 0)
+            s.append(String.format(" (%.2f%%)", 100. * c.dropped / (c.received + c.dropped)));
+        s.append(", overruns ").append(c.overruns);
+        if (c.restarts > 0) s.append(", restarts ").append(c.restarts);
+        append(s, "decode", c.decodeLatency.percentiles());
+        append(s, "display", c.displayLatency.percentiles());
+        return s.toString();
+    }
+
+    private static void append(StringBuilder s, String name, double[] p)
+    {
+        if (p == null) return;
+        s.append(String.format("; %s latency ms p50 %.1f p95 %.1f p99 %.1f max %.1f", name, p[0], p[1], p[2], p[3]));
+    }
+
+    private static long latency(long timeStamp)
+    {
+        return System.currentTimeMillis() * 1000000L - timeStamp;
+    }
+}
@@ -0,0 +1,247 @@
+// GaussianEstimator.java
+//
+// Fast, non-iterative estimation of the parameters of a Gaussian peak on a
+// constant background, for live beam profiles.
+
+/**
+ * Estimates the parameters of y = a + (b-a)*exp(-(x-c)^2/(2*d^2)), the same form and parameter
+ * order as the ImageJ CurveFitter "Gaussian" fit, so the results can be used in place of a fit.
+ * <p>
+ * The background a is taken from the edges of the profile.  After subtracting it the logarithm
+ * of a Gaussian is a parabola, which is fitted by weighted linear least squares (Caruana's method).
+ * Only the points around the maximum that are more than THRESHOLD of the peak height above the
+ * background are used, since the logarithm of the noise in the tails says nothing about the peak.
+ * The weights are the squared signal, and then the squared model from the first pass (Guo's method),
+ * which keeps the noisy tails from dominating.  This costs two passes over the data and a 3x3 solve.
+ * Optionally one Levenberg-Marquardt step on all four parameters then refines the result.
+ * <p>
+ * An estimator keeps its work arrays between calls, so it is not thread safe; use one per thread.
+ */
+public class GaussianEstimator
+{
+    /** The number of parameters, a, b, c and d */
+    public static final int NUM_PARAMS = 4;
+    /** The fraction of the peak height above the background that points must exceed to be used */
+    public static final double THRESHOLD = 0.1;
+
+    private final LMSolver solver = new LMSolver(NUM_PARAMS);
+    private final GaussianModel model = new GaussianModel();
+    private final double[] normal = new double[9];
+    private final double[] rhs = new double[3];
+    private final double[] q = new double[3];
+    private final double[] prior = new double[3];
+    private boolean polish;
+
+    /**
+     * @param polish If true, refine the closed-form estimate with one Levenberg-Marquardt step.
+     */
+    public void setPolish(boolean polish)
+    {
+        this.polish = polish;
+    }
+
+    /**
+     * @return true if the closed-form estimate is refined with one Levenberg-Marquardt step.
+     */
+    public boolean getPolish()
+    {
+        return polish;
+    }
+
+    /**
+     * Estimate the Gaussian parameters of a profile.
+     * @param x The x coordinates, increasing.
+     * @param y The profile values.
+     * @param n The number of points used from x and y.
+     * @param params Receives {a, b, c, d}; must have at least NUM_PARAMS elements.
+     * @return false if the profile has no peak above the background, in which case
+     *         params holds the moment estimate.
+     */
+    public boolean estimate(double[] x, double[] y, int n, double[] params)
+    {
+        double background = edgeBackground(y, n);
+        int peak = 0;
+        for (int i = 1; i < n; i++)
+            if (y[i] > y[peak]) peak = i;
+        double cutoff = background + THRESHOLD * (y[peak] - background);
+        int first = peak, last = peak;
+        while (first > 0 && y[first - 1] > cutoff) first--;
+        while (last < n - 1 && y[last + 1] > cutoff) last++;
+        if (last - first < 2) {
+            moments(x, y, n, params);
+            return false;
+        }
+        // The parabola is fitted in coordinates centered on the peak, scaled to about +-1,
+        // which keeps the normal equations well conditioned for long profiles
+        double x0 = 0.5 * (x[first] + x[last]);
+        double scale = 0.5 * (x[last] - x[first]);
+        if (!fitLogParabola(x, y, first, last, background, x0, scale, null, q)) {
+            moments(x, y, n, params);
+            return false;
+        }
+        // Second pass weighted by the first estimate
+        System.arraycopy(q, 0, prior, 0, 3);
+        fitLogParabola(x, y, first, last, background, x0, scale, prior, q);
+        if (!(q[2] < 0)) {
+            moments(x, y, n, params);
+            return false;
+        }
+        double u = -q[1] / (2 * q[2]);
+        double sigma = Math.sqrt(-1 / (2 * q[2]));
+        double amplitude = Math.exp(q[0] - q[1] * q[1] / (4 * q[2]));
+        params[0] = background;
+        params[1] = background + amplitude;
+        params[2] = x0 + u * scale;
+        params[3] = sigma * scale;
+        if (polish) refine(x, y, n, params);
+        return true;
+    }
+
+    /**
+     * Refine Gaussian parameters with one Levenberg-Marquardt step on all four parameters.
+     * @param x The x coordinates.
+     * @param y The profile values.
+     * @param n The number of points used from x and y.
+     * @param params The parameters {a, b, c, d} to refine, for example from estimate().
+     */
+    public void refine(double[] x, double[] y, int n, double[] params)
+    {
+        model.x = x;
+        solver.solve(model, y, null, n, params, 1);
+    }
+
+    /**
+     * Initial Gaussian parameters from the minimum, maximum and the moments above the minimum.
+     * @param x The x coordinates.
+     * @param y The profile values.
+     * @param n The number of points used from x and y.
+     * @param params Receives {a, b, c, d}.
+     */
+    public static void moments(double[] x, double[] y, int n, double[] params)
+    {
+        double min = y[0];
+        double max = y[0];
+        for (int i = 1; i < n; i++) {
+            if (y[i] < min) min = y[i];
+            if (y[i] > max) max = y[i];
+        }
+        double sum = 0., mean = 0.;
+        for (int i = 0; i < n; i++) {
+            sum += y[i] - min;
+            mean += x[i] * (y[i] - min);
+        }
+        params[0] = min;
+        params[1] = max;
+        if (!(sum > 0.)) {
+            params[2] = x[n / 2];
+            params[3] = (x[n - 1] - x[0]) / 4;
+            return;
+        }
+        mean /= sum;
+        double var = 0.;
+        for (int i = 0; i < n; i++)
+            var += (x[i] - mean) * (x[i] - mean) * (y[i] - min);
+        params[2] = mean;
+        params[3] = Math.sqrt(var / sum);
+    }
+
+    /**
+     * @param params {a, b, c, d}
+     * @param x The x coordinate.
+     * @return The value of the Gaussian at x.
+     */
+    public static double f(double[] params, double x)
+    {
+        double t = (x - params[2]) / params[3];
+        return params[0] + (params[1] - params[0]) * Math.exp(-0.5 * t * t);
+    }
+
+    // The mean of the first and last 5% of the points, at least 2 at each end
+    private static double edgeBackground(double[] y, int n)
+    {
+        int m = Math.max(2, n / 20);
+        if (2 * m > n) m = n / 2;
+        double sum = 0;
+        for (int i = 0; i < m; i++) sum += y[i] + y[n - 1 - i];
+        return sum / (2 * m);
+    }
+
+    /**
+     * Fit ln(y - background) = q0 + q1*u + q2*u^2 with u = (x - x0)/scale by weighted least squares.
+     * Points at or below the background are skipped.
+     * @param first The first point used.
+     * @param last The last point used.
+     * @param prior If null the weights are (y-background)^2, otherwise the squared model from prior.
+     * @return false if the normal equations are singular.
+     */
+    private boolean fitLogParabola(double[] x, double[] y, int first, int last, double background,
+                                   double x0, double scale, double[] prior, double[] q)
+    {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0;
+        double t0 = 0, t1 = 0, t2 = 0;
+        for (int i = first; i <= last; i++) {
+            double v = y[i] - background;
+            if (v <= 0) continue;
+            double u = (x[i] - x0) / scale;
+            double w;
+            if (prior == null) {
+                w = v * v;
+            } else {
+                double m = Math.exp(prior[0] + u * (prior[1] + u * prior[2]));
+                w = m * m;
+            }
+            double lv = Math.log(v);
+            double u2 = u * u;
+            s0 += w;
+            s1 += w * u;
+            s2 += w * u2;
+            s3 += w * u2 * u;
+            s4 += w * u2 * u2;
+            t0 += w * lv;
+            t1 += w * lv * u;
+            t2 += w * lv * u2;
+        }
+        normal[0] = s0; normal[1] = s1; normal[2] = s2;
+        normal[3] = s1; normal[4] = s2; normal[5] = s3;
+        normal[6] = s2; normal[7] = s3; normal[8] = s4;
+        rhs[0] = t0; rhs[1] = t1; rhs[2] = t2;
+        return solve3(normal, rhs, q);
+    }
+
+    // Solve a 3x3 system by Cramer's rule
+    private static boolean solve3(double[] m, double[] r, double[] out)
+    {
+        double c0 = m[4] * m[8] - m[5] * m[7];
+        double c1 = m[5] * m[6] - m[3] * m[8];
+        double c2 = m[3] * m[7] - m[4] * m[6];
+        double det = m[0] * c0 + m[1] * c1 + m[2] * c2;
+        if (det == 0 || Double.isNaN(det)) return false;
+        out[0] = (r[0] * c0 + m[1] * (m[5] * r[2] - r[1] * m[8]) + m[2] * (r[1] * m[7] - m[4] * r[2])) / det;
+        out[1] = (m[0] * (r[1] * m[8] - m[5] * r[2]) + r[0] * c1 + m[2] * (m[3] * r[2] - r[1] * m[6])) / det;
+        out[2] = (m[0] * (m[4] * r[2] - r[1] * m[7]) + m[1] * (r[1] * m[6] - m[3] * r[2]) + r[0] * c2) / det;
+        return true;
+    }
+
+    /**
+     * The Gaussian with its analytic derivatives, for the Levenberg-Marquardt step.
+     */
+    private static class GaussianModel implements LMSolver.Model
+    {
+        double[] x;
+        public double evaluate(double[] p, int i, double[] gradient)
+        {
+            double dx = x[i] - p[2];
+            double inv = 1 / p[3];
+            double t = dx * inv;
+            double g = Math.exp(-0.5 * t * t);
+            double h = p[1] - p[0];
+            if (gradient != null) {
+                gradient[0] = 1 - g;
+                gradient[1] = g;
+                gradient[2] = h * g * t * inv;
+                gradient[3] = h * g * t * t * inv;
+            }
+            return p[0] + h * g;
+        }
+    }
+}
@@ -1,262 +1,440 @@
-import ij.*;
-import ij.plugin.PlugIn;
-import ij.process.*;
-import ij.measure.*;
-import ij.gui.*;
-import ij.util.Tools;
-import java.awt.*;
-import java.awt.event.*;
-import java.util.*;
-
-/**
- * This plugin continuously plots the profile along a line scan or a rectangle.
- * The profile is updated if the image changes, thus it can be used to monitor
- * the effect of a filter during preview.
- * Plot size etc. are set by Edit>Options>Profile Plot Options
- *
- * Restrictions:
- * - The plot window is not calibrated. Use Analyze>Plot Profile to get a
- *   spatially calibrated plot window where you can do measurements.
- *
- * By Wayne Rasband and Michael Schmid
- * Version 2009-Jun-09: obeys 'fixed y axis scale' in Edit>Options>Profile Plot Options
- */
-public class Gaussian_Profiler
-        implements PlugIn, MouseListener, MouseMotionListener, KeyListener, ImageListener, Runnable {
-    //MouseListener, MouseMotionListener, KeyListener: to detect changes to the selection of an ImagePlus
-    //ImageListener: listens to changes (updateAndDraw) and closing of an image
-    //Runnable: for background thread
-    private ImagePlus imp;                  //the ImagePlus that we listen to and the last one
-    private ImagePlus plotImage;            //where we plot the profile
-    private Thread bgThread;                //thread for plotting (in the background)
-    private boolean doUpdate;               //tells the background thread to update
-
-    /* Initialization and plot for the first time. Later on, updates are triggered by the listeners **/
-    public void run(String arg) {
-        imp = WindowManager.getCurrentImage();
-        if (imp==null) {
-            IJ.noImage(); return;
-        }
-        if (!isSelection()) {
-            IJ.error("Dynamic Profiler","Line or Rectangular Selection Required"); return;
-        }
-        ImageProcessor ip = getProfilePlot();  // get a profile
-        if (ip==null) {                     // no profile?
-            IJ.error("Dynamic Profiler","No Profile Obtained"); return;
-        }
-                                            // new plot window
-        plotImage = new ImagePlus("Profile of "+imp.getShortTitle(), ip);
-        plotImage.show();
-        IJ.wait(50);
-        positionPlotWindow();
-                                            // thread for plotting in the background
-        bgThread = new Thread(this, "Dynamic Profiler Plot");
-        bgThread.setPriority(Math.max(bgThread.getPriority()-3, Thread.MIN_PRIORITY));
-        bgThread.start();
-        createListeners();
-    }
-
-    // these listeners are activated if the selection is changed in the corresponding ImagePlus
-    public synchronized void mousePressed(MouseEvent e) { doUpdate = true; notify(); }   
-    public synchronized void mouseDragged(MouseEvent e) { doUpdate = true; notify(); }
-    public synchronized void mouseClicked(MouseEvent e) { doUpdate = true; notify(); }
-    public synchronized void keyPressed(KeyEvent e) { doUpdate = true; notify(); }
-    // unused listeners concering actions in the corresponding ImagePlus
-    public void mouseReleased(MouseEvent e) {}
-    public void mouseExited(MouseEvent e) {}
-    public void mouseEntered(MouseEvent e) {}
-    public void mouseMoved(MouseEvent e) {}
-    public void keyTyped(KeyEvent e) {}
-    public void keyReleased(KeyEvent e) {}
-    public void imageOpened(ImagePlus imp) {}
-
-    // this listener is activated if the image content is changed (by imp.updateAndDraw)
-    public synchronized void imageUpdated(ImagePlus imp) {
-        if (imp == this.imp) { 
-            if (!isSelection())
-                IJ.run(imp, "Restore Selection", "");
-            doUpdate = true;
-            notify();
-        }
-    }
-
-    // if either the plot image or the image we are listening to is closed, exit
-    public void imageClosed(ImagePlus imp) {
-        if (imp == this.imp || imp == plotImage) {
-            removeListeners();
-            closePlotImage();                       //also terminates the background thread
-        }
-    }
-
-    // the background thread for plotting.
-    public void run() {
-        while (true) {
-            IJ.wait(50);                            //delay to make sure the roi has been updated
-            ImageProcessor ip = getProfilePlot();
-            if (ip != null) plotImage.setProcessor(null, ip);
-            synchronized(this) {
-                if (doUpdate) {
-                    doUpdate = false;               //and loop again
-                } else {
-                    try {wait();}                   //notify wakes up the thread
-                    catch(InterruptedException e) { //interrupted tells the thread to exit
-                        return;
-                    }
-                }
-            }
-        }
-    }
-
-    private synchronized void closePlotImage() {    //close the plot window and terminate the background thread
-        bgThread.interrupt();
-        plotImage.getWindow().close();
-    }
-
-    private void createListeners() {
-        ImageWindow win = imp.getWindow();
-        ImageCanvas canvas = win.getCanvas();
-        canvas.addMouseListener(this);
-        canvas.addMouseMotionListener(this);
-        canvas.addKeyListener(this);
-        imp.addImageListener(this);
-        plotImage.addImageListener(this);
-    }
-
-    private void removeListeners() {
-        ImageWindow win = imp.getWindow();
-        ImageCanvas canvas = win.getCanvas();
-        canvas.removeMouseListener(this);
-        canvas.removeMouseMotionListener(this);
-        canvas.removeKeyListener(this);
-        imp.removeImageListener(this);
-        plotImage.removeImageListener(this);
-    }
-
-    /** Place the plot window to the right of the image window */
-    void positionPlotWindow() {
-        IJ.wait(500);
-        if (plotImage==null || imp==null) return;
-        ImageWindow pwin = plotImage.getWindow();
-        ImageWindow iwin = imp.getWindow();
-        if (pwin==null || iwin==null) return;
-        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
-        Dimension plotSize = pwin.getSize();
-        Dimension imageSize = iwin.getSize();
-        if (plotSize.width==0 || imageSize.width==0) return;
-        Point imageLoc = iwin.getLocation();
-        int x = imageLoc.x+imageSize.width+10;
-        if (x+plotSize.width>screen.width)
-            x = screen.width-plotSize.width;
-        pwin.setLocation(x, imageLoc.y);
-        ImageCanvas canvas = iwin.getCanvas();
-        canvas.requestFocus();
-    }
-
-    /** get a profile, analyze it and return a plot (or null if not possible) */
-    ImageProcessor getProfilePlot() {
-        if (!isSelection()) return null;
-        ImageProcessor ip = imp.getProcessor();
-        Roi roi = imp.getRoi();
-        if (ip == null || roi == null) return null; //these may change asynchronously
-        if (roi.getType() == Roi.LINE)
-            ip.setInterpolate(PlotWindow.interpolate);
-        else
-            ip.setInterpolate(false);
-        ProfilePlot profileP = new ProfilePlot(imp, Prefs.verticalProfile);//get the profile
-        if (profileP == null) return null;
-        double[] profile = profileP.getProfile();
-        if (profile==null || profile.length<2)
-            return null;
-        String xUnit = "pixels";                    //the following code is mainly for x calibration
-        double xInc = 1;
-        Calibration cal = imp.getCalibration();
-        if (roi.getType() == Roi.LINE) {
-            Line line = (Line)roi;
-            if (cal != null) {
-                double dx = cal.pixelWidth*(line.x2 - line.x1);
-                double dy = cal.pixelHeight*(line.y2 - line.y1);
-                double length = Math.sqrt(dx*dx + dy*dy);
-                xInc = length/(profile.length-1);
-                xUnit = cal.getUnits();
-            }
-        } else if (roi.getType() == Roi.RECTANGLE) {
-            if (cal != null) {
-                xInc = roi.getBounds().getWidth()*cal.pixelWidth/(profile.length-1);
-                xUnit = cal.getUnits();
-            }
-        } else return null;
-        String xLabel = "Distance (" + xUnit + ")";
-        String yLabel = (cal !=null && cal.getValueUnit()!=null && !cal.getValueUnit().equals("Gray Value")) ?
-            "Value ("+cal.getValueUnit()+")" : "cts";
-
-        int n = profile.length;                 // create the x axis
-        double[] x = new double[n];
-        for (int i=0; i<n; i++)
-            x[i] = i*xInc;
-
-        Plot plot = new Plot("profile", xLabel, yLabel,x, profile);
-        plot.setColor(Color.BLUE);
-        double fixedMin = ProfilePlot.getFixedMin();
-        double fixedMax = ProfilePlot.getFixedMax();
-        if (fixedMin!=0 || fixedMax!=0) {
-            double[] a = Tools.getMinMax(x);
-            plot.setLimits(a[0],a[1], fixedMin, fixedMax);
-        }
-        plot.addPoints(x, profile,0);
-        // double[] yEbars = new double[n];
-        // for(int i=0;i<profile.length;i++){
-        //     yEbars[i] = (double) Math.round( Math.sqrt(profile[i]));
-        // }
-        //plot.addErrorBars(yEbars);
-        // Fit Gaussian, plot it, & its fit parameters.
-	ImageProcessor plot_ip = plot.getProcessor();
-        CurveFitter cv = new CurveFitter(x, profile);
-        // cv.setMaxIterations(500);
-        // double[] initParams = {1,ip.getStatistics().max,n/2,30};
-        // cv.setInitialParameters(initParams);
-        double sum = 0.;
-        double mean = 0;
-        double max =0.;
-        double min = 1.e5;
-        for(int i =0; i<profile.length;i++){
-        	sum +=profile[i];
-        	mean += x[i] * profile[i];
-        	if (profile[i]<min) min = profile[i];
-        	if (profile[i]>max) max = profile[i];
-        }
-        mean = mean/sum;
-        double var = 0.;
-        for(int i=0;i<profile.length;i++){
-        	var += (x[i]-mean)*(x[i]-mean)*profile[i]/sum;
-        }
-        double std = Math.sqrt(var);
-        cv.doFit(12);
-        double[] fitParams = cv.getParams();
-        double FWHM = Math.round(2* fitParams[3]* Math.sqrt(2*Math.log( 2)));
-        double MaxI = Math.round(fitParams[1]);
-        double Ib = Math.round(fitParams[0]);
-        double I = Math.round(fitParams[1]);
-        double contrast = Math.round(100*(I-Ib)/Ib);
-        double[] xfit = cv.getXPoints();
-        double[] yfit = new double[n];
-        for(int i=0; i<profile.length;i++){
-            yfit[i] = cv.f(fitParams,xfit[i]);
-        }
-        plot.addPoints(xfit, yfit, 2);
-        plot.setColor(Color.RED);
-        String label = "Center = "+Math.round(fitParams[2])+",  FWHM = "+FWHM+", Max(I) = "+MaxI+", BG(I) = "+Ib;
-        plot_ip.drawString(label,100,17);       
-        return plot.getProcessor();
-    }
-
-
-    /** returns true if there is a simple line selection or rectangular selection */
-    boolean isSelection() {
-        if (imp==null)
-            return false;
-        Roi roi = imp.getRoi();
-        if (roi==null)
-            return false;
-        return roi.getType()==Roi.LINE || roi.getType()==Roi.RECTANGLE;
-    }
-}
+import ij.*;
+import ij.plugin.PlugIn;
+import ij.process.*;
+import ij.measure.*;
+import ij.gui.*;
+import ij.util.Tools;
+import java.awt.*;
+import java.awt.event.*;
+import java.util.*;
+
+/**
+ * This plugin continuously plots the profile along a line scan or a rectangle.
+ * The profile is updated if the image changes, thus it can be used to monitor
+ * the effect of a filter during preview.
+ * Plot size etc. are set by Edit>Options>Profile Plot Options
+ *
+ * Restrictions:
+ * - The plot window is not calibrated. Use Analyze>Plot Profile to get a
+ *   spatially calibrated plot window where you can do measurements.
+ *
+ * By Wayne Rasband and Michael Schmid
+ * Version 2009-Jun-09: obeys 'fixed y axis scale' in Edit>Options>Profile Plot Options
+ */
+public class Gaussian_Profiler
+        implements PlugIn, MouseListener, MouseMotionListener, KeyListener, ImageListener, RoiListener, Runnable,
+        FrameBus.Subscriber {
+    //MouseListener, MouseMotionListener, KeyListener: to detect changes to the selection of an ImagePlus
+    //ImageListener: listens to changes (updateAndDraw) and closing of an image
+    //RoiListener: listens to changes of the selection, after they have been made
+    //Runnable: for background thread
+    //FrameBus.Subscriber: receives the frames of a viewer, also those that are not displayed
+    private ImagePlus imp;                  //the ImagePlus that we listen to and the last one
+    private ImagePlus plotImage;            //where we plot the profile
+    private Plot plot;                      //the plot, whose data are replaced on each update
+    private Thread bgThread;                //thread for plotting (in the background)
+    private boolean doUpdate;               //tells the background thread to update
+    private FrameBus.Subscription subscription; //the newest frames of the viewer of imp, if it publishes them
+    private FrameBus.Frame frame;           //the newest frame from the viewer, null if none yet
+    private final ProfileExtractor extractor = new ProfileExtractor();
+    private double[] yFit = new double[0];  //the fitted curve, reused while the profile length is unchanged
+    private static final int MIN_FIT_ITERATIONS = 50;   //lower and upper limits of the iterations per fit
+    private static final int MAX_FIT_ITERATIONS = 2000;
+    private static final double MAX_FIT_TIME = 0.02;    //upper limit of the time per fit, seconds
+    private double[] lastFitParams;         //parameters of the last good fit, to start the next fit
+    private int lastFitLength;              //number of points and x increment of the last good fit
+    private double lastFitXInc;
+    private double secondsPerIteration;     //measured time of one fit iteration, smoothed
+    private long lastImageUpdate;           //time of the last image update or frame, nanoseconds
+    private volatile double frameInterval;  //time between image updates or frames, smoothed, seconds
+    private static final String[] FIT_METHODS = {"Least squares fit", "Fast estimate", "Fast estimate + LM step"};
+    private static final String FIT_METHOD_PREF = "gaussian_profiler.method";
+    private int fitMethod;                  //index in FIT_METHODS
+    private final GaussianEstimator estimator = new GaussianEstimator();
+    private static final String HISTORY_PREF = "gaussian_profiler.history";
+    private FitHistory history;             //recent fit results for the trend plots, null if not recorded
+    private FitTrends trends;
+
+    /* Initialization and plot for the first time. Later on, updates are triggered by the listeners **/
+    public void run(String arg) {
+        imp = WindowManager.getCurrentImage();
+        if (imp==null) {
+            IJ.noImage(); return;
+        }
+        if (!isSelection()) {
+            IJ.error("Dynamic Profiler","Line or Rectangular Selection Required"); return;
+        }
+        GenericDialog gd = new GenericDialog("Gaussian Profiler");
+        gd.addChoice("Fit method:", FIT_METHODS, Prefs.get(FIT_METHOD_PREF, FIT_METHODS[0]));
+        gd.addNumericField("Fit history length:", Prefs.get(HISTORY_PREF, 10000), 0, 8, "fits (0 = off)");
+        boolean isStack = imp.getStackSize() > 1;
+        if (isStack)
+            gd.addCheckbox("Fit every slice of the stack (batch)", false);
+        gd.showDialog();
+        if (gd.wasCanceled()) return;
+        fitMethod = gd.getNextChoiceIndex();
+        int historyLength = (int)gd.getNextNumber();
+        boolean batch = isStack && gd.getNextBoolean();
+        Prefs.set(FIT_METHOD_PREF, FIT_METHODS[fitMethod]);
+        Prefs.set(HISTORY_PREF, Math.max(0, historyLength));
+        if (batch) {
+            fitStack();
+            return;
+        }
+        if (historyLength > 0) {
+            history = new FitHistory(historyLength);
+            trends = new FitTrends(history, "Gaussian Profiler "+imp.getShortTitle());
+        }
+        estimator.setPolish(fitMethod == 2);
+        if (!updateProfilePlot()) {         // get a profile and plot it
+            IJ.error("Dynamic Profiler","No Profile Obtained"); return;
+        }
+                                            // new plot window
+        plot.show();
+        plotImage = plot.getImagePlus();
+        IJ.wait(50);
+        positionPlotWindow();
+                                            // thread for plotting in the background
+        bgThread = new Thread(this, "Dynamic Profiler Plot");
+        bgThread.setPriority(Math.max(bgThread.getPriority()-3, Thread.MIN_PRIORITY));
+        bgThread.start();
+        createListeners();
+        FrameBus bus = FrameBus.find(imp.getTitle());
+        if (bus != null)
+            subscription = bus.subscribe(this, true, null);
+        if (trends != null) trends.showControls();
+    }
+
+    // these listeners are activated if the selection is changed in the corresponding ImagePlus
+    public synchronized void mousePressed(MouseEvent e) { doUpdate = true; notify(); }   
+    public synchronized void mouseDragged(MouseEvent e) { doUpdate = true; notify(); }
+    public synchronized void mouseClicked(MouseEvent e) { doUpdate = true; notify(); }
+    public synchronized void keyPressed(KeyEvent e) { doUpdate = true; notify(); }
+    // unused listeners concering actions in the corresponding ImagePlus
+    public void mouseReleased(MouseEvent e) {}
+    public void mouseExited(MouseEvent e) {}
+    public void mouseEntered(MouseEvent e) {}
+    public void mouseMoved(MouseEvent e) {}
+    public void keyTyped(KeyEvent e) {}
+    public void keyReleased(KeyEvent e) {}
+    public void imageOpened(ImagePlus imp) {}
+
+    // this listener is activated when the selection has been moved, resized or changed
+    public synchronized void roiModified(ImagePlus imp, int id) {
+        if (imp == this.imp) {
+            doUpdate = true;
+            notify();
+        }
+    }
+
+    // this listener is activated if the image content is changed (by imp.updateAndDraw)
+    public synchronized void imageUpdated(ImagePlus imp) {
+        if (imp == this.imp) { 
+            if (subscription == null)               //otherwise the frames from the viewer are timed
+                measureFrameInterval();
+            if (!isSelection())
+                IJ.run(imp, "Restore Selection", "");
+            doUpdate = true;
+            notify();
+        }
+    }
+
+    // this listener is activated for each new frame of the viewer that shows the image, on its own thread
+    public synchronized void onFrame(FrameBus.Frame f) {
+        measureFrameInterval();
+        if (frame != null) frame.release();
+        frame = f.retain();
+        doUpdate = true;
+        notify();
+    }
+
+    private void measureFrameInterval() {
+        long now = System.nanoTime();
+        if (lastImageUpdate != 0) {
+            double interval = (now - lastImageUpdate)*1e-9;
+            frameInterval = frameInterval==0 ? interval : 0.9*frameInterval + 0.1*interval;
+        }
+        lastImageUpdate = now;
+    }
+
+    // if either the plot image or the image we are listening to is closed, exit
+    public void imageClosed(ImagePlus imp) {
+        if (imp == this.imp || imp == plotImage) {
+            removeListeners();
+            closePlotImage();                       //also terminates the background thread
+        }
+    }
+
+    // the background thread for plotting.
+    public void run() {
+        while (true) {
+            updateProfilePlot();
+            synchronized(this) {
+                if (doUpdate) {
+                    doUpdate = false;               //and loop again
+                } else {
+                    try {wait();}                   //notify wakes up the thread
+                    catch(InterruptedException e) { //interrupted tells the thread to exit
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void closePlotImage() {    //close the plot window and terminate the background thread
+        bgThread.interrupt();
+        plotImage.getWindow().close();
+    }
+
+    private void createListeners() {
+        ImageWindow win = imp.getWindow();
+        ImageCanvas canvas = win.getCanvas();
+        canvas.addMouseListener(this);
+        canvas.addMouseMotionListener(this);
+        canvas.addKeyListener(this);
+        imp.addImageListener(this);
+        plotImage.addImageListener(this);
+        Roi.addRoiListener(this);
+    }
+
+    private void removeListeners() {
+        ImageWindow win = imp.getWindow();
+        ImageCanvas canvas = win.getCanvas();
+        canvas.removeMouseListener(this);
+        canvas.removeMouseMotionListener(this);
+        canvas.removeKeyListener(this);
+        imp.removeImageListener(this);
+        plotImage.removeImageListener(this);
+        Roi.removeRoiListener(this);
+        if (subscription != null)
+            subscription.close();
+        synchronized(this) {
+            if (frame != null) frame.release();
+            frame = null;
+        }
+    }
+
+    /** returns the newest frame from the viewer, retained, if it has the size of the image, otherwise null */
+    synchronized FrameBus.Frame getFrame(ImageProcessor ip) {
+        if (frame == null || frame.width != ip.getWidth() || frame.height != ip.getHeight())
+            return null;
+        return frame.retain();
+    }
+
+    /** Place the plot window to the right of the image window */
+    void positionPlotWindow() {
+        IJ.wait(500);
+        if (plotImage==null || imp==null) return;
+        ImageWindow pwin = plotImage.getWindow();
+        ImageWindow iwin = imp.getWindow();
+        if (pwin==null || iwin==null) return;
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        Dimension plotSize = pwin.getSize();
+        Dimension imageSize = iwin.getSize();
+        if (plotSize.width==0 || imageSize.width==0) return;
+        Point imageLoc = iwin.getLocation();
+        int x = imageLoc.x+imageSize.width+10;
+        if (x+plotSize.width>screen.width)
+            x = screen.width-plotSize.width;
+        pwin.setLocation(x, imageLoc.y);
+        ImageCanvas canvas = iwin.getCanvas();
+        canvas.requestFocus();
+    }
+
+    /** get a profile, fit it and create the plot or replace its data (returns false if not possible) */
+    boolean updateProfilePlot() {
+        if (!isSelection()) return false;
+        ImageProcessor ip = imp.getProcessor();
+        Roi roi = imp.getRoi();
+        if (ip == null || roi == null) return false; //these may change asynchronously
+        FrameBus.Frame f = getFrame(ip);            //the newest frame, which may not be displayed yet
+        int n;
+        try {
+            n = extractor.extract(f != null ? f.getProcessor() : ip, roi, Prefs.verticalProfile,
+                                  roi.getType()==Roi.LINE && PlotWindow.interpolate);
+        } finally {
+            if (f != null) f.release();
+        }
+        if (n<2)
+            return false;
+        double[] profile = extractor.getProfile();
+        Calibration cal = imp.getCalibration();
+        String xUnit = cal != null ? cal.getUnits() : "pixels";
+        double xInc = getXInc(roi, n);
+        String xLabel = "Distance (" + xUnit + ")";
+        String yLabel = (cal !=null && cal.getValueUnit()!=null && !cal.getValueUnit().equals("Gray Value")) ?
+            "Value ("+cal.getValueUnit()+")" : "cts";
+        double[] x = extractor.getX(0, xInc);
+
+        // Fit Gaussian, plot it, & its fit parameters.
+        double[] fitParams = fitGaussian(x, profile, xInc);
+        double FWHM = Math.round(2* fitParams[3]* Math.sqrt(2*Math.log( 2)));
+        double MaxI = Math.round(fitParams[1]);
+        double Ib = Math.round(fitParams[0]);
+        if (yFit.length != n) yFit = new double[n];
+        for(int i=0; i<n;i++){
+            yFit[i] = CurveFitter.f(CurveFitter.GAUSSIAN, fitParams, x[i]);
+        }
+        String label = "Center = "+Math.round(fitParams[2])+",  FWHM = "+FWHM+", Max(I) = "+MaxI+", BG(I) = "+Ib;
+        if (history != null) {
+            history.append(fitParams[2], 2*Math.abs(fitParams[3])*Math.sqrt(2*Math.log(2)), fitParams[1]-fitParams[0],
+                           fitParams[0], FitHistory.goodness(profile, yFit, n, GaussianEstimator.NUM_PARAMS));
+            trends.update();
+        }
+
+        // The plot objects are 0: profile line, 1: profile points, 2: fit, 3: label
+        if (plot == null) {
+            plot = new Plot("Profile of "+imp.getShortTitle(), xLabel, yLabel);
+            plot.add("line", x, profile);
+            plot.setColor(Color.BLUE);
+            plot.addPoints(x, profile, Plot.CIRCLE);
+            plot.addPoints(x, yFit, Plot.LINE);
+            plot.setColor(Color.BLACK);
+            plot.addLabel(0, 0, label);
+        } else {
+            plot.setXYLabels(xLabel, yLabel);
+            plot.setColor(Color.BLACK);
+            plot.replace(0, "line", x, profile);
+            plot.setColor(Color.BLUE);
+            plot.replace(1, "circle", x, profile);
+            plot.replace(2, "line", x, yFit);
+            plot.setPlotObjectLabel(3, label);
+        }
+        double fixedMin = ProfilePlot.getFixedMin();
+        double fixedMax = ProfilePlot.getFixedMax();
+        if (fixedMin!=0 || fixedMax!=0) {
+            double[] a = Tools.getMinMax(x);
+            plot.setLimits(a[0],a[1], fixedMin, fixedMax);
+        } else
+            plot.setLimitsToFit(true);              //also redraws the plot once it is shown
+        return true;
+    }
+
+    /** returns the calibrated distance between the n points of the profile of a line or rectangle */
+    double getXInc(Roi roi, int n) {
+        Calibration cal = imp.getCalibration();
+        if (cal == null)
+            return 1;
+        if (roi.getType() == Roi.LINE) {
+            Line line = (Line)roi;
+            double dx = cal.pixelWidth*(line.x2 - line.x1);
+            double dy = cal.pixelHeight*(line.y2 - line.y1);
+            return Math.sqrt(dx*dx + dy*dy)/(n-1);
+        }
+        return Prefs.verticalProfile ? roi.getBounds().getHeight()*cal.pixelHeight/(n-1)
+                                     : roi.getBounds().getWidth()*cal.pixelWidth/(n-1);
+    }
+
+    /** Fit the profile of the selection in every slice of the stack with the chosen method, in parallel,
+     *  and show the results in a table.  Each worker thread has its own estimator. */
+    void fitStack() {
+        Roi roi = imp.getRoi();
+        boolean interpolate = roi.getType()==Roi.LINE && PlotWindow.interpolate;
+        int n = extractor.extract(imp.getProcessor(), roi, Prefs.verticalProfile, interpolate);
+        if (n<2) {
+            IJ.error("Gaussian Profiler","No Profile Obtained"); return;
+        }
+        final int method = fitMethod;
+        StackFitter.ProfileFitFactory factory = new StackFitter.ProfileFitFactory() {
+            public StackFitter.ProfileFit create() {
+                final GaussianEstimator est = new GaussianEstimator();
+                est.setPolish(method == 2);
+                return new StackFitter.ProfileFit() {
+                    public double[] fit(double[] x, double[] y, int n) {
+                        double[] params = new double[GaussianEstimator.NUM_PARAMS];
+                        est.estimate(x, y, n, params);
+                        if (method != 0)
+                            return params;
+                        CurveFitter cv = new CurveFitter(x, y);
+                        cv.setInitialParameters(params);
+                        cv.doFit(CurveFitter.GAUSSIAN);
+                        params = Arrays.copyOf(cv.getParams(), GaussianEstimator.NUM_PARAMS);
+                        return isValidFit(params, x) ? params : null;
+                    }
+                    public double f(double[] params, double x) {
+                        return GaussianEstimator.f(params, x);
+                    }
+                };
+            }
+        };
+        IJ.showStatus("Fitting "+imp.getStackSize()+" slices...");
+        StackFitter.Result result = new StackFitter(Prefs.getThreads()).fitStack(
+            imp.getStack(), roi, Prefs.verticalProfile, interpolate, 0, getXInc(roi, n), factory);
+        ResultsTable rt = result.toResultsTable(new String[] {"Background", "Peak", "Center", "Sigma"});
+        for (int s=0; s<result.params.length; s++) {
+            double[] p = result.params[s];
+            rt.setValue("FWHM", s, p != null ? 2*Math.abs(p[3])*Math.sqrt(2*Math.log(2)) : Double.NaN);
+        }
+        rt.show("Gaussian fits of "+imp.getShortTitle());
+        String message = String.format("Gaussian Profiler: %s, %d slices in %.3f s, %.1f slices/s on %d threads",
+            FIT_METHODS[fitMethod], result.params.length, result.elapsedTime, result.getSlicesPerSecond(), result.parallelism);
+        IJ.log(message);
+        IJ.showStatus(message);
+    }
+
+    /** Fit a Gaussian y = a + (b-a)*exp(-(x-c)^2/(2*d^2)) to the profile and return {a, b, c, d}.
+     *  With the fast methods the closed-form estimate is returned, optionally after one LM step.
+     *  Otherwise the least squares fit starts from the result of the last fit if the profile has
+     *  the same x axis, or from the closed-form estimate.  The number of iterations is limited so that
+     *  a fit takes less than the time between image updates (and never more than MAX_FIT_TIME),
+     *  so the plot is at most one image behind the data. */
+    double[] fitGaussian(double[] x, double[] profile, double xInc) {
+        int n = profile.length;
+        double[] initParams;
+        if (fitMethod != 0) {
+            double[] params = new double[GaussianEstimator.NUM_PARAMS];
+            estimator.estimate(x, profile, n, params);
+            return params;
+        }
+        if (lastFitParams != null && lastFitLength == n && lastFitXInc == xInc)
+            initParams = lastFitParams.clone();
+        else {
+            initParams = new double[GaussianEstimator.NUM_PARAMS];
+            estimator.estimate(x, profile, n, initParams);
+        }
+        double budget = MAX_FIT_TIME;
+        double interval = frameInterval;
+        if (interval > 0 && interval < budget)
+            budget = interval;
+        int maxIterations = MAX_FIT_ITERATIONS;
+        if (secondsPerIteration > 0)
+            maxIterations = (int)Math.max(MIN_FIT_ITERATIONS, Math.min(MAX_FIT_ITERATIONS, budget/secondsPerIteration));
+        CurveFitter cv = new CurveFitter(x, profile);
+        cv.setInitialParameters(initParams);
+        cv.setRestarts(0);                      //a warm start does not need the extra minimizations
+        cv.setMaxIterations(maxIterations);
+        long start = System.nanoTime();
+        cv.doFit(CurveFitter.GAUSSIAN);
+        double elapsed = (System.nanoTime() - start)*1e-9;
+        double perIteration = elapsed/Math.max(1, cv.getIterations());
+        secondsPerIteration = secondsPerIteration==0 ? perIteration : 0.8*secondsPerIteration + 0.2*perIteration;
+        double[] params = Arrays.copyOf(cv.getParams(), 4);
+        // A fit stopped by the budget is still a better start for the next fit than the moments
+        if (isValidFit(params, x)) {
+            lastFitParams = params.clone();
+            lastFitLength = n;
+            lastFitXInc = xInc;
+        } else
+            lastFitParams = null;
+        return params;
+    }
+
+    /** returns true if the fit parameters are finite, the width is positive and the center is near the profile */
+    static boolean isValidFit(double[] params, double[] x) {
+        for (int i=0; i<params.length; i++)
+            if (Double.isNaN(params[i]) || Double.isInfinite(params[i])) return false;
+        double range = x[x.length-1] - x[0];
+        return params[3] > 0 && params[2] > x[0]-range && params[2] < x[x.length-1]+range;
+    }
+
+    /** returns true if there is a simple line selection or rectangular selection */
+    boolean isSelection() {
+        if (imp==null)
+            return false;
+        Roi roi = imp.getRoi();
+        if (roi==null)
+            return false;
+        return roi.getType()==Roi.LINE || roi.getType()==Roi.RECTANGLE;
+    }
+}
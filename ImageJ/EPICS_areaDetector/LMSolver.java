@@ -0,0 +1,244 @@
+// LMSolver.java
+//
+// A small Levenberg-Marquardt least-squares solver with analytic derivatives
+// and simple parameter bounds, used by the live fitting plugins.
+
+/**
+ * Levenberg-Marquardt minimization of the weighted sum of squared residuals
+ * between data values and a model with an analytic Jacobian.
+ * <p>
+ * The model is evaluated by data point index, so the same solver fits 1-D profiles
+ * and 2-D images.  Parameters are kept inside optional bounds by clipping each trial step.
+ * All work arrays are allocated once, so a solver can be reused for every frame
+ * without creating garbage.  A solver is not thread safe; use one per thread.
+ */
+public class LMSolver
+{
+    /**
+     * A model function with analytic partial derivatives.
+     */
+    public interface Model
+    {
+        /**
+         * @param params The current parameters.
+         * @param i The index of the data point.
+         * @param gradient If not null, receives the partial derivatives with respect to each parameter.
+         * @return The model value at data point i.
+         */
+        double evaluate(double[] params, int i, double[] gradient);
+    }
+
+    public static final int SUCCESS = 0;
+    public static final int MAX_ITERATIONS_EXCEEDED = 1;
+    public static final int STEP_FAILED = 2;
+
+    private static final int MAX_LAMBDA_STEPS = 12;
+
+    private final int numParams;
+    private final double[] alpha;      // J^T W J
+    private final double[] beta;       // J^T W r
+    private final double[] matrix;     // alpha with the damped diagonal, factored in place
+    private final double[] delta;
+    private final double[] trial;
+    private final double[] gradient;
+    private double[] lower;
+    private double[] upper;
+    private double tolerance = 1e-8;
+    private double chiSquared;
+    private int iterations;
+    private int status;
+
+    /**
+     * Constructor
+     * @param numParams The number of model parameters.
+     */
+    public LMSolver(int numParams)
+    {
+        this.numParams = numParams;
+        alpha = new double[numParams * numParams];
+        beta = new double[numParams];
+        matrix = new double[numParams * numParams];
+        delta = new double[numParams];
+        trial = new double[numParams];
+        gradient = new double[numParams];
+    }
+
+    /**
+     * Set bounds on the parameters.
+     * @param lower The lower bound of each parameter, or null for no lower bounds.
+     * @param upper The upper bound of each parameter, or null for no upper bounds.
+     */
+    public void setBounds(double[] lower, double[] upper)
+    {
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * @param tolerance The relative decrease in the sum of squares below which the fit has converged.
+     */
+    public void setTolerance(double tolerance)
+    {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Minimize the weighted sum of squares, starting from params.
+     * Each iteration is one accepted step; a step that does not reduce the sum of squares
+     * is retried with more damping before the iteration counts.
+     * @param model The model.
+     * @param y The data values.
+     * @param weights The weight of each data point, or null for equal weights.
+     * @param n The number of data points used from y.
+     * @param params On input the starting parameters, on output the best parameters found.
+     * @param maxIterations The maximum number of accepted steps, 1 for a single polishing step.
+     * @return SUCCESS, MAX_ITERATIONS_EXCEEDED or STEP_FAILED.
+     */
+    public int solve(Model model, double[] y, double[] weights, int n, double[] params, int maxIterations)
+    {
+        clip(params);
+        chiSquared = buildNormalEquations(model, y, weights, n, params);
+        double lambda = 1e-3;
+        iterations = 0;
+        status = MAX_ITERATIONS_EXCEEDED;
+        while (iterations < maxIterations) {
+            boolean accepted = false;
+            boolean solved = false;
+            for (int attempt = 0; attempt < MAX_LAMBDA_STEPS; attempt++) {
+                if (!solveStep(lambda)) {
+                    lambda *= 10;
+                    continue;
+                }
+                solved = true;
+                for (int j = 0; j < numParams; j++) trial[j] = params[j] + delta[j];
+                clip(trial);
+                double trialChiSquared = chiSquared(model, y, weights, n, trial);
+                if (trialChiSquared < chiSquared) {
+                    double decrease = chiSquared - trialChiSquared;
+                    System.arraycopy(trial, 0, params, 0, numParams);
+                    lambda = Math.max(lambda * 0.1, 1e-12);
+                    accepted = true;
+                    iterations++;
+                    if (decrease <= tolerance * trialChiSquared) {
+                        chiSquared = trialChiSquared;
+                        status = SUCCESS;
+                        return status;
+                    }
+                    // The normal equations are only needed if there is another step
+                    if (iterations == maxIterations) {
+                        chiSquared = trialChiSquared;
+                        return status;
+                    }
+                    chiSquared = buildNormalEquations(model, y, weights, n, params);
+                    break;
+                }
+                lambda *= 10;
+            }
+            if (!accepted) {
+                // No step reduces the sum of squares, so this is a minimum within the bounds,
+                // unless the normal equations could not be solved at all
+                status = solved ? SUCCESS : STEP_FAILED;
+                return status;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * @return The weighted sum of squared residuals at the parameters returned by the last solve().
+     */
+    public double getChiSquared()
+    {
+        return chiSquared;
+    }
+
+    /**
+     * @return The number of accepted steps in the last solve().
+     */
+    public int getIterations()
+    {
+        return iterations;
+    }
+
+    /**
+     * @return The status of the last solve().
+     */
+    public int getStatus()
+    {
+        return status;
+    }
+
+    private void clip(double[] p)
+    {
+        for (int j = 0; j < numParams; j++) {
+            if (lower != null && p[j] < lower[j]) p[j] = lower[j];
+            if (upper != null && p[j] > upper[j]) p[j] = upper[j];
+        }
+    }
+
+    private double chiSquared(Model model, double[] y, double[] weights, int n, double[] p)
+    {
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            double r = y[i] - model.evaluate(p, i, null);
+            sum += (weights == null) ? r * r : weights[i] * r * r;
+        }
+        // A model that returns NaN must never look like an improvement
+        return Double.isNaN(sum) ? Double.POSITIVE_INFINITY : sum;
+    }
+
+    private double buildNormalEquations(Model model, double[] y, double[] weights, int n, double[] p)
+    {
+        java.util.Arrays.fill(alpha, 0.);
+        java.util.Arrays.fill(beta, 0.);
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            double r = y[i] - model.evaluate(p, i, gradient);
+            double w = (weights == null) ? 1. : weights[i];
+            sum += w * r * r;
+            for (int j = 0; j < numParams; j++) {
+                double wg = w * gradient[j];
+                beta[j] += wg * r;
+                // Only the lower triangle is accumulated, it is symmetric
+                for (int k = 0; k <= j; k++) alpha[j * numParams + k] += wg * gradient[k];
+            }
+        }
+        for (int j = 0; j < numParams; j++)
+            for (int k = 0; k < j; k++) alpha[k * numParams + j] = alpha[j * numParams + k];
+        return Double.isNaN(sum) ? Double.POSITIVE_INFINITY : sum;
+    }
+
+    // Solve (alpha + lambda*diag(alpha)) delta = beta by Cholesky factorization
+    private boolean solveStep(double lambda)
+    {
+        int m = numParams;
+        System.arraycopy(alpha, 0, matrix, 0, m * m);
+        for (int j = 0; j < m; j++) {
+            double d = alpha[j * m + j];
+            matrix[j * m + j] = (d > 0) ? d * (1 + lambda) : lambda;
+        }
+        for (int j = 0; j < m; j++) {
+            double s = matrix[j * m + j];
+            for (int k = 0; k < j; k++) s -= matrix[j * m + k] * matrix[j * m + k];
+            if (!(s > 0)) return false;
+            double diag = Math.sqrt(s);
+            matrix[j * m + j] = diag;
+            for (int i = j + 1; i < m; i++) {
+                double t = matrix[i * m + j];
+                for (int k = 0; k < j; k++) t -= matrix[i * m + k] * matrix[j * m + k];
+                matrix[i * m + j] = t / diag;
+            }
+        }
+        for (int i = 0; i < m; i++) {
+            double t = beta[i];
+            for (int k = 0; k < i; k++) t -= matrix[i * m + k] * delta[k];
+            delta[i] = t / matrix[i * m + i];
+        }
+        for (int i = m - 1; i >= 0; i--) {
+            double t = delta[i];
+            for (int k = i + 1; k < m; k++) t -= matrix[k * m + i] * delta[k];
+            delta[i] = t / matrix[i * m + i];
+        }
+        return true;
+    }
+}
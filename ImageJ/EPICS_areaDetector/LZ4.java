@@ -0,0 +1,260 @@
+// LZ4.java
+//
+// LZ4 block compression in Java, compatible with LZ4_compress_default() and
+// LZ4_decompress_safe() of the LZ4 library, so that it can read the payloads
+// of NTNDArrays with the lz4 codec without a native library.
+import java.util.Arrays;
+
+/**
+ * Compresses and decompresses the LZ4 block format.
+ * <p>
+ * The compressor is the greedy single-probe hash search of the reference implementation: it looks up
+ * the last position of each 4-byte sequence in a hash table and skips faster through data without
+ * matches.  An instance keeps its hash table between calls, so it is not thread safe; use one per thread.
+ * The decompressor checks every length and offset against the buffers, so corrupt input throws an
+ * IllegalArgumentException instead of reading or writing out of bounds.
+ * <p>
+ * shuffle() and unshuffle() reorder the bytes of multi-byte pixels so that all the first bytes come first,
+ * then all the second bytes and so on, as the shuffle filter of Blosc does.  The high bytes of detector
+ * images change slowly, so shuffled pixels compress much better.
+ */
+public class LZ4
+{
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;     // the last bytes of a block are always literals
+    private static final int MF_LIMIT = 12;         // the last match starts at least this far from the end
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 14;
+    private static final int SKIP_TRIGGER = 6;      // misses before the search step grows
+
+    private final int[] table = new int[1 << HASH_LOG];
+
+    /**
+     * @param length The length of the input.
+     * @return The largest possible length of the compressed input.
+     */
+    public static int maxCompressedLength(int length)
+    {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compress a block.
+     * @param src The input.
+     * @param srcOff The start of the input in src.
+     * @param srcLen The length of the input.
+     * @param dst The output, with room for maxCompressedLength(srcLen) bytes from dstOff.
+     * @param dstOff The start of the output in dst.
+     * @return The length of the compressed block.
+     */
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff)
+    {
+        int end = srcOff + srcLen;
+        int anchor = srcOff;
+        int op = dstOff;
+        if (srcLen >= MF_LIMIT + 1) {
+            Arrays.fill(table, -1);
+            int matchLimit = end - LAST_LITERALS;
+            int mfLimit = end - MF_LIMIT;
+            int ip = srcOff;
+            table[hash(readInt(src, ip))] = ip;
+            ip++;
+            int misses = 0;
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip += 1 + (misses++ >>> SKIP_TRIGGER);
+                    continue;
+                }
+                misses = 0;
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) matchLength++;
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+                ip += matchLength;
+                anchor = ip;
+                if (ip - 2 < mfLimit) table[hash(readInt(src, ip - 2))] = ip - 2;
+            }
+        }
+        // The last literals
+        int literals = end - anchor;
+        int token = op++;
+        if (literals >= 15) {
+            dst[token] = (byte)(15 << 4);
+            op = writeLength(literals - 15, dst, op);
+        } else
+            dst[token] = (byte)(literals << 4);
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals - dstOff;
+    }
+
+    /**
+     * Decompress a block.
+     * @param src The compressed block.
+     * @param srcOff The start of the block in src.
+     * @param srcLen The length of the block.
+     * @param dst The output.
+     * @param dstOff The start of the output in dst.
+     * @param dstLen The room for the output.
+     * @return The length of the decompressed block.
+     * @throws IllegalArgumentException If the block is corrupt or does not fit in dstLen bytes.
+     */
+    public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+    {
+        int ip = srcOff, srcEnd = srcOff + srcLen;
+        int op = dstOff, dstEnd = dstOff + dstLen;
+        try {
+            while (ip < srcEnd) {
+                int token = src[ip++] & 0xff;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (literals > srcEnd - ip || literals > dstEnd - op) throw new IllegalArgumentException("LZ4: literals out of range");
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == srcEnd) break;
+                int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+                ip += 2;
+                int ref = op - offset;
+                if (offset == 0 || ref < dstOff) throw new IllegalArgumentException("LZ4: bad offset");
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                if (matchLength > dstEnd - op) throw new IllegalArgumentException("LZ4: match out of range");
+                // An overlapping match repeats the last offset bytes; copy it in pieces that do not overlap
+                while (matchLength > 0) {
+                    int n = Math.min(offset, matchLength);
+                    System.arraycopy(dst, ref, dst, op, n);
+                    ref += n;
+                    op += n;
+                    matchLength -= n;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("LZ4: truncated block");
+        }
+        return op - dstOff;
+    }
+
+    /**
+     * Reorder the bytes of little-endian pixels: the first byte of every pixel, then the second, and so on.
+     * @param pixels A short[], int[] or float[].
+     * @param dst Receives n*elementSize bytes.
+     */
+    public static void shuffle(Object pixels, byte[] dst)
+    {
+        if (pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            int n = p.length;
+            for (int i = 0; i < n; i++) {
+                int v = p[i];
+                dst[i] = (byte)v;
+                dst[n + i] = (byte)(v >> 8);
+            }
+        } else if (pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            System.arraycopy(p, 0, dst, 0, p.length);
+        } else {
+            int n;
+            int[] ints = pixels instanceof int[] ? (int[])pixels : null;
+            float[] floats = ints == null ? (float[])pixels : null;
+            n = ints != null ? ints.length : floats.length;
+            for (int i = 0; i < n; i++) {
+                int v = ints != null ? ints[i] : Float.floatToRawIntBits(floats[i]);
+                dst[i] = (byte)v;
+                dst[n + i] = (byte)(v >> 8);
+                dst[2 * n + i] = (byte)(v >> 16);
+                dst[3 * n + i] = (byte)(v >> 24);
+            }
+        }
+    }
+
+    /**
+     * The inverse of shuffle().
+     * @param src The shuffled bytes.
+     * @param pixels Receives the pixels: a short[], int[] or float[].
+     */
+    public static void unshuffle(byte[] src, Object pixels)
+    {
+        if (pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            int n = p.length;
+            for (int i = 0; i < n; i++) p[i] = (short)((src[i] & 0xff) | src[n + i] << 8);
+        } else if (pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            System.arraycopy(src, 0, p, 0, p.length);
+        } else {
+            int[] ints = pixels instanceof int[] ? (int[])pixels : null;
+            float[] floats = ints == null ? (float[])pixels : null;
+            int n = ints != null ? ints.length : floats.length;
+            for (int i = 0; i < n; i++) {
+                int v = (src[i] & 0xff) | (src[n + i] & 0xff) << 8 | (src[2 * n + i] & 0xff) << 16 | src[3 * n + i] << 24;
+                if (ints != null)
+                    ints[i] = v;
+                else
+                    floats[i] = Float.intBitsToFloat(v);
+            }
+        }
+    }
+
+    private static int writeSequence(byte[] src, int anchor, int literals, int offset, int matchLength, byte[] dst, int op)
+    {
+        int token = op++;
+        int t;
+        if (literals >= 15) {
+            t = 15 << 4;
+            op = writeLength(literals - 15, dst, op);
+        } else
+            t = literals << 4;
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte)offset;
+        dst[op++] = (byte)(offset >>> 8);
+        int m = matchLength - MIN_MATCH;
+        if (m >= 15) {
+            t |= 15;
+            op = writeLength(m - 15, dst, op);
+        } else
+            t |= m;
+        dst[token] = (byte)t;
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op)
+    {
+        while (length >= 255) {
+            dst[op++] = (byte)255;
+            length -= 255;
+        }
+        dst[op++] = (byte)length;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i)
+    {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | b[i + 3] << 24;
+    }
+
+    private static int hash(int sequence)
+    {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -4,22 +4,23 @@ import ij.*;
 import ij.gui.*;
 import ij.measure.Calibration;
 import ij.measure.CurveFitter;
-import ij.measure.Minimizer;
-import ij.measure.UserFunction;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
-import ij.util.IJMath;
 import ij.util.Tools;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.text.SimpleDateFormat;
 import java.time.YearMonth;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import gov.aps.jca.*;
 import gov.aps.jca.dbr.*;
@@ -31,16 +32,24 @@ import static java.lang.Integer.parseInt;
 // Sections of code from AdViewers' EPICS_AD_Viewer and Gaussian Profiler plugins
 // IF YOU NEED TWO DIFFERENT LIVE FITS AT THE SAME TIME OPEN TWO INSTANCES OF THIS PLUGIN
 
-public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
+public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker, FrameBus.Subscriber {
     ImagePlus imp;
+    private FrameBus.Subscription subscription;    // the newest frames of the viewer of imp, if it publishes them
+    private FrameBus.Frame busFrame;               // the newest frame from the viewer, null if none yet
     private boolean firstTime;
     private boolean plotVertically;
     private Plot plot;
+    private String plotTitle;       // title and font size of plot; it is rebuilt if either changes,
+    private int plotFont;           // otherwise its data are replaced in place
     private PlotWindow win;
+    private final ProfileExtractor extractor = new ProfileExtractor();
+    private double[] yFit = new double[0];
     private JFrame frame = null;
     private JTextField channelNameTextA;
     private JTextField statusText = null;
     private JButton fitButton = null;
+    private JButton historyButton = null;
+    private JButton stackButton = null;
     private JComboBox ffComboBox = null;
     private JComboBox cComboBox = null;
     private JComboBox scComboBox = null;
@@ -48,6 +57,8 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
     private JTextField fsText = null;
     private JComboBox sComboBox = null;
     private JTextField lText = null;
+    private JTextField dbText = null;
+    private JComboBox dbComboBox = null;
     private JCheckBox vCheckbox = null;
     private JCheckBox apsCheckbox = null;
     private boolean absolutePixelScale = true;
@@ -77,20 +88,26 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
     Channel ch_htxt;
     Channel ch_itxt;
     Channel ch_eq;
+    /** the value fields A-I, and the labels INAN-ININ followed by INLN, for the publisher thread */
+    volatile Channel[] valueChannels;
+    volatile Channel[] labelChannels;
+    FitPublisher publisher;
+    /** a fit parameter is written when it has changed by more than this since it was last written */
+    double deadband = 1e-3;
+    boolean isRelativeDeadband = true;
 
     boolean isDebugMessages;
     boolean isDebugFile;
-    boolean isConnected;
+    volatile boolean isConnected;
     boolean isPluginRunning;
-    boolean update;
-    boolean clear;
-    boolean updateLabels;
     double[] params;
     int numParameters;
     String UCPrefix;
 
     FileOutputStream debugFile;
     PrintStream debugPrintStream;
+    Properties properties = new Properties();
+    String propertyFile = "LiveFitter_EPICSUserCalc.properties";
 
     private final static String[] SHAPE_NAMES = new String[] {
             "Circle", "X", "Line", "Box", "Triangle", "+", "Dot", "Connected Circles", "Diamond",
@@ -102,14 +119,21 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
             SHAPE_NAMES[8], SHAPE_NAMES[1], SHAPE_NAMES[6]};
 
     private final static String[] COLOR_CHOICES = new String[] {"Blue", "Black", "Green", "Yellow", "Orange", "Red", "Pink", "Magenta", "Gray"};
+    private final static String[] DEADBAND_CHOICES = new String[] {"Relative", "Absolute"};
     private final static String[] FILL_COLOR_CHOICES = new String[] {"Blue", "White", "Black", "Green", "Yellow", "Orange", "Red", "Pink", "Magenta", "Gray"};
     private final static String[] SORTED_FIT_CHOICES  = new String[] {"Straight Line","2nd Degree Polynomial",
             "3rd Degree Polynomial", "4th Degree Polynomial", "5th Degree Polynomial","6th Degree Polynomial","7th Degree Polynomial",
             "8th Degree Polynomial","Power", "Power (linear regression)", "Exponential", "Exponential (linear regression)", "Exponential with Offset",
             "Exponential Recovery", "Exponential Recovery (no offset)",
             "Log", "y = a+b*ln(x-c)", "Gaussian", "Gaussian (no offset)", "Error Function", "Rodbard", "Rodbard (NIH Image)",
-            "Inverse Rodbard", "Gamma Variate", "Chapman-Richards", "Slit - Positive" , "Slit - Negative"
+            "Inverse Rodbard", "Gamma Variate", "Chapman-Richards", "Slit - Positive" , "Slit - Negative",
+            "Gaussian (fast estimate)", "Gaussian (fast estimate + LM step)"
     };
+    private final GaussianEstimator estimator = new GaussianEstimator();
+    private final SlitFitter slitFitter = new SlitFitter();
+    private static final int HISTORY_LENGTH = 10000;
+    private final FitHistory history = new FitHistory(HISTORY_LENGTH);
+    private final FitTrends trends = new FitTrends(history, "LiveFitter");
 
 
     public void run(String arg) {
@@ -121,9 +145,13 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
             firstTime = true;
             if (firstTime)
                 plotVertically = Prefs.verticalProfile || IJ.altKeyDown();
+            readProperties();
             createAndShowGUI();
             firstTime = false;
             startEPICSCA();
+            publisher = new FitPublisher(ctxt);
+            publisher.setDeadband(deadband, isRelativeDeadband);
+            publisher.start();
             if (isDebugFile) {
                 debugFile = new FileOutputStream(System.getProperty("user.home") + System.getProperty("file.separator") + "IJEPICS_debug.txt");
                 debugPrintStream = new PrintStream(debugFile);
@@ -143,12 +171,19 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
         fsText.setHorizontalAlignment(JTextField.CENTER);
         lText = new JTextField("", 6);
         lText.setEditable(true);
+        dbText = new JTextField("" + deadband, 6);
+        dbText.setEditable(true);
+        dbText.setHorizontalAlignment(JTextField.LEFT);
+        dbComboBox = new JComboBox(DEADBAND_CHOICES);
+        dbComboBox.setSelectedIndex(isRelativeDeadband ? 0 : 1);
         statusText = new JTextField(40);
         statusText.setEditable(false);
 
         channelNameTextA = new JTextField("", 15);
 
         fitButton = new JButton("Display Fit");
+        historyButton = new JButton("History...");
+        stackButton = new JButton("Fit Stack");
 
         ffComboBox = new JComboBox(SORTED_FIT_CHOICES);
         cComboBox = new JComboBox(COLOR_CHOICES);
@@ -189,6 +224,9 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
         c.gridx = 0;
         c.gridy = 6;
         panel.add(new JLabel("Font Size:"), c);
+        c.gridx = 0;
+        c.gridy = 7;
+        panel.add(new JLabel("Deadband:"), c);
         c.gridx = 2;
         c.gridy = 0;
 
@@ -233,12 +271,22 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
         c.gridx = 1;
         c.gridy = 6;
         panel.add(fsText, c);
+        c.gridx = 1;
+        c.gridy = 7;
+        JPanel deadbandPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 2, 0));
+        deadbandPanel.add(dbText);
+        deadbandPanel.add(dbComboBox);
+        panel.add(deadbandPanel, c);
 
         // Last column
         c.anchor = GridBagConstraints.CENTER;
         c.gridx = 2;
         c.gridy = 6;
         panel.add(fitButton, c);
+        c.gridy = 5;
+        panel.add(historyButton, c);
+        c.gridy = 7;
+        panel.add(stackButton, c);
         c.gridy = 0;
         c.anchor = GridBagConstraints.EAST;
         panel.add(apsCheckbox, c);
@@ -250,7 +298,7 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
         panel.add(channelNameTextA, c);
 
         //bottom (status bar)
-        c.gridy = 7;
+        c.gridy = 8;
         c.gridx = 0;
         c.anchor = GridBagConstraints.EAST;
         panel.add(new JLabel("Status: "), c);
@@ -272,6 +320,39 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
             }
         });
 
+        // deadband of the fit parameters written to the userCalc
+        dbText.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                setDeadband();
+            }
+        });
+        dbText.addFocusListener(new FocusAdapter() {
+            public void focusLost(FocusEvent event) {
+                setDeadband();
+            }
+        });
+        dbComboBox.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                setDeadband();
+            }
+        });
+
+        // trend plots and export of the recent fit results
+        historyButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                trends.showControls();
+            }
+        });
+
+        // fits every slice of the current stack, off the event thread
+        stackButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                new Thread(new Runnable() {
+                    public void run() { fitStack(); }
+                }, "LiveFitter_EPICSUserCalc stack").start();
+            }
+        });
+
         // shows/opens plot
         fitButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent event) {
@@ -285,6 +366,9 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
         public void windowClosing(WindowEvent event) {
             try {
                 isPluginRunning = false;
+                if (publisher != null) publisher.stop();
+                writeProperties();
+                unsubscribe();
                 disconnectPVs();
                 closeEPICSCA();
                 frame.setVisible(false);
@@ -301,54 +385,28 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
         }
         ImageProcessor ip = imp.getProcessor();
         if (ip == null || roi == null) return null; //these may change asynchronously
-        if (roi.getType() == Roi.LINE)
-            ip.setInterpolate(PlotWindow.interpolate);
-        else
-            ip.setInterpolate(false);
-        ProfilePlot profileP = new ProfilePlot(imp, Prefs.verticalProfile);//get the profile
-        if (profileP == null) return null;
-        double[] profile = profileP.getProfile();
-        if (profile==null || profile.length<2)
+        FrameBus.Frame f = getFrame(ip);            //the newest frame, which may not be displayed yet
+        int n;
+        try {
+            n = extractor.extract(f != null ? f.getProcessor() : ip, roi, Prefs.verticalProfile,
+                                  roi.getType()==Roi.LINE && PlotWindow.interpolate);
+        } finally {
+            if (f != null) f.release();
+        }
+        if (n<2)
             return null;
-        String xUnit = "pixels";                    //the following code is mainly for x calibration
-        double xInc = 1;
-        double xStart = 0;
+        double[] profile = extractor.getProfile();
         Calibration cal = imp.getCalibration();
         absolutePixelScale = apsCheckbox.isSelected();
-        if (roi.getType() == Roi.LINE) {
-            Line line = (Line)roi;
-            if (cal != null) {
-                double dx = cal.pixelWidth*(line.x2 - line.x1);
-                double dy = cal.pixelHeight*(line.y2 - line.y1);
-                double length = Math.sqrt(dx*dx + dy*dy);
-                xInc = length/(profile.length-1);
-                if (dy == 0.0 && absolutePixelScale ) {
-                    xStart = line.x1d * cal.pixelWidth;
-                } else if (dx == 0.0 && absolutePixelScale) {
-                    xStart = line.y1d * cal.pixelWidth;
-                }
-                xUnit = cal.getUnits();
-            }
-        } else if (roi.getType() == Roi.RECTANGLE) {
-            if (cal != null) {
-                if(!Prefs.verticalProfile) xInc = roi.getBounds().getWidth()*cal.pixelWidth/(profile.length-1);
-                else xInc = roi.getBounds().getHeight()*cal.pixelWidth/(profile.length-1);
-                if (absolutePixelScale) {
-                    if (!Prefs.verticalProfile) xStart = roi.getBounds().x * cal.pixelWidth;
-                    else xStart = roi.getBounds().y * cal.pixelWidth;
-                }
-                xUnit = cal.getUnits();
-            }
-        } else return null;
+        double[] xScale = getXScale(roi, n, cal);
+        if (xScale == null) return null;
+        double xStart = xScale[0];
+        double xInc = xScale[1];
+        String xUnit = cal != null ? cal.getUnits() : "pixels";
         String xLabel = "Distance (" + xUnit + ")";
         String yLabel = (cal !=null && cal.getValueUnit()!=null && !cal.getValueUnit().equals("Gray Value")) ? "Value ("+cal.getValueUnit()+")" : "cts";
 
-        int n = profile.length;                 // create the x axis
-        double[] x = new double[n];
-        for (int i=0; i<n; i++) {
-            if (absolutePixelScale) x[i] = xStart + i * xInc;
-            else x[i] = i * xInc;
-        }
+        double[] x = extractor.getX(xStart, xInc);
 
         String title = imp.getTitle();
         int index = title.lastIndexOf('.');
@@ -357,93 +415,253 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
         String label = lText.getText();
         if(label.equals("")) label = " Fit: " + ffComboBox.getSelectedItem();
         else label = " " + label;
-        Plot plot = new Plot("Profile Plot: "+title + label , xLabel, yLabel);
-        if(this.plot!=null){
-            Dimension oldSize = this.plot.getSize();
-            plot.setSize(oldSize.width, oldSize.height);
-        }
-        this.plot = plot;
+        boolean fontSize = isNumeric(lwText.getText());
+        int font;
+        if(fontSize) font = parseInt(fsText.getText(),12);
+        else font = 12;
 
-        plot.add("Line", x, profile);
-        plot.setColor(Color.BLACK);
+        // The plot objects are 0 and 1: profile, 2: fit, 3: legend
+        String newTitle = "Profile Plot: "+title + label;
+        Plot plot = this.plot;
+        boolean newPlot = firstTime || plot==null || !newTitle.equals(plotTitle) || font!=plotFont;
         double fixedMin = ProfilePlot.getFixedMin();
         double fixedMax = ProfilePlot.getFixedMax();
-        if (fixedMin!=0 || fixedMax!=0) {
-            double[] a = Tools.getMinMax(x);
-            plot.setLimits(a[0],a[1], fixedMin, fixedMax);
-        }
+        if (newPlot) {
+            plot = new Plot(newTitle, xLabel, yLabel);
+            if(this.plot!=null){
+                Dimension oldSize = this.plot.getSize();
+                plot.setSize(oldSize.width, oldSize.height);
+            }
+            this.plot = plot;
+            plotTitle = newTitle;
+            plotFont = font;
 
-        plot.addPoints(x, profile,2);
+            plot.add("Line", x, profile);
+            plot.setColor(Color.BLACK);
+            if (fixedMin!=0 || fixedMax!=0) {
+                double[] a = Tools.getMinMax(x);
+                plot.setLimits(a[0],a[1], fixedMin, fixedMax);
+            }
 
-        CurveFitter cv = new CurveFitter(x, profile);
-        double sum = 0.;
-        double mean = 0;
-        double max =0.;
-        double min = 1.e5;
-        for(int i =0; i<profile.length;i++){
-            sum +=profile[i];
-            mean += x[i] * profile[i];
-            if (profile[i]<min) min = profile[i];
-            if (profile[i]>max) max = profile[i];
-        }
-        mean = mean/sum;
-        double var = 0.;
-        for(int i=0;i<profile.length;i++){
-            var += (x[i]-mean)*(x[i]-mean)*profile[i]/sum;
+            plot.addPoints(x, profile,2);
+        } else {
+            plot.setXYLabels(xLabel, yLabel);
+            plot.setColor(Color.BLACK);
+            plot.replace(0, "line", x, profile);
+            plot.replace(1, "line", x, profile);
         }
+
         String fitName = (String) ffComboBox.getSelectedItem();
-        if (fitName.equals("Slit - Positive")) {
-            fitSlitFunction(cv, x, profile, 1);
+        double[] fitParams;
+        int numParams;
+        String formula;
+        double[] xfit;
+        if (yFit.length != n) yFit = new double[n];
+        double[] yfit = yFit;
+        if (fitName.startsWith("Gaussian (fast estimate")) {
+            // Closed-form estimate, without the CurveFitter minimization
+            estimator.setPolish(fitName.endsWith("LM step)"));
+            fitParams = new double[GaussianEstimator.NUM_PARAMS];
+            estimator.estimate(x, profile, n, fitParams);
+            numParams = GaussianEstimator.NUM_PARAMS;
+            formula = CurveFitter.fList[CurveFitter.GAUSSIAN];
+            xfit = x;
+            for (int i = 0; i < n; i++) {
+                yfit[i] = GaussianEstimator.f(fitParams, xfit[i]);
+            }
         }
-        else if (fitName.equals("Slit - Negative")) {
-            fitSlitFunction(cv, x, profile, 0);
+        else if (fitName.startsWith("Slit")) {
+            // Bounded Levenberg-Marquardt with analytic derivatives
+            fitParams = new double[SlitFitter.NUM_PARAMS];
+            slitFitter.fit(x, profile, n, fitName.equals("Slit - Positive"), fitParams);
+            numParams = SlitFitter.NUM_PARAMS;
+            formula = slitEquation;
+            xfit = x;
+            for (int i = 0; i < n; i++) {
+                yfit[i] = SlitFitter.f(fitParams, xfit[i]);
+            }
         }
         else {
+            CurveFitter cv = new CurveFitter(x, profile);
             cv.doFit(CurveFitter.sortedTypes[ffComboBox.getSelectedIndex()]);
+            fitParams = cv.getParams();
+            numParams = cv.getNumParams();
+            formula = cv.getFormula();
+            xfit = cv.getXPoints();
+            for (int i = 0; i < n; i++) {
+                yfit[i] = cv.f(fitParams, xfit[i]);
+            }
         }
-        double[] fitParams = cv.getParams();
-        double[] xfit = cv.getXPoints();
-        double[] yfit = new double[n];
-        for (int i = 0; i < profile.length; i++) {
-            yfit[i] = cv.f(fitParams, xfit[i]);
-        }
-        plot.addPoints(xfit, yfit, 2);
+        if (newPlot)
+            plot.addPoints(xfit, yfit, 2);
+        else
+            plot.replace(2, "line", xfit, yfit);
 
         String color = (String)cComboBox.getSelectedItem();
         String color2 = (String)scComboBox.getSelectedItem();
         String symbol = (String)sComboBox.getSelectedItem();
         Boolean visible = vCheckbox.isSelected();
         boolean numWidth = isNumeric(lwText.getText());
-        boolean fontSize = isNumeric(lwText.getText());
         double width;
-        int font;
-        if(fontSize) font = parseInt(fsText.getText(),12);
-        else font = 12;
         if(numWidth) width = Tools.parseDouble(lwText.getText(),1.0);
         else width = 1.0;
         if(width<0) width = -width;
         String style = color.trim() + "," + color2.trim() + "," + (float) width + "," + symbol + (visible ? "" : "hidden");
-        int currentObjectIndex = plot.getNumPlotObjects() - 1;
-        plot.setPlotObjectStyle(currentObjectIndex, style);
-        if(isPluginRunning && isConnected) updatePvValues(cv);
+        plot.setPlotObjectStyle(2, style);
+        if(isPluginRunning && isConnected) updatePvValues(fitParams, numParams, formula);
+        recordFit(fitName, fitParams, FitHistory.goodness(profile, yfit, n, numParams));
         String legend = "";
         char pChar = 'a';
-        double[] pVal = cv.getParams();
-        for (int i = 0; i < cv.getNumParams(); i++) {
-            legend += pChar + "=" + IJ.d2s(pVal[i], 3) + "    ";
+        for (int i = 0; i < numParams; i++) {
+            legend += pChar + "=" + IJ.d2s(fitParams[i], 3) + "    ";
             pChar++;
         }
-        legend = legend + "  " + cv.getFormula();
-        plot.setFontSize(font);
-        plot.setColor(Color.MAGENTA);
-        plot.addLabel(0,0,legend);
-        if(!firstTime) {
-            win.drawPlot(plot);
+        legend = legend + "  " + formula;
+        if (newPlot) {
+            plot.setFontSize(font);
             plot.setColor(Color.MAGENTA);
             plot.addLabel(0,0,legend);
+        } else {
+            plot.setPlotObjectLabel(3, legend);
+            if (fixedMin!=0 || fixedMax!=0) {
+                double[] a = Tools.getMinMax(x);
+                plot.setLimits(a[0],a[1], fixedMin, fixedMax);
+            } else
+                plot.setLimitsToFit(true);      //also redraws the plot
+        }
+        if(!firstTime) {
+            win.drawPlot(plot);
         }
         return plot;
     }
+    // the x value of the first profile point and the increment between points, for the profile of roi
+    private double[] getXScale(Roi roi, int n, Calibration cal) {
+        double xInc = 1;
+        double xStart = 0;
+        if (roi.getType() == Roi.LINE) {
+            Line line = (Line)roi;
+            if (cal != null) {
+                double dx = cal.pixelWidth*(line.x2 - line.x1);
+                double dy = cal.pixelHeight*(line.y2 - line.y1);
+                double length = Math.sqrt(dx*dx + dy*dy);
+                xInc = length/(n-1);
+                if (dy == 0.0 && absolutePixelScale ) {
+                    xStart = line.x1d * cal.pixelWidth;
+                } else if (dx == 0.0 && absolutePixelScale) {
+                    xStart = line.y1d * cal.pixelWidth;
+                }
+            }
+        } else if (roi.getType() == Roi.RECTANGLE) {
+            if (cal != null) {
+                if(!Prefs.verticalProfile) xInc = roi.getBounds().getWidth()*cal.pixelWidth/(n-1);
+                else xInc = roi.getBounds().getHeight()*cal.pixelWidth/(n-1);
+                if (absolutePixelScale) {
+                    if (!Prefs.verticalProfile) xStart = roi.getBounds().x * cal.pixelWidth;
+                    else xStart = roi.getBounds().y * cal.pixelWidth;
+                }
+            }
+        } else return null;
+        return new double[] {xStart, xInc};
+    }
+    // fits the selected function to the profile of the selection in every slice of the current stack, in parallel,
+    // and shows the parameters of each slice in a results table
+    private void fitStack(){
+        ImagePlus stackImp = WindowManager.getCurrentImage();
+        Roi roi = stackImp != null ? stackImp.getRoi() : null;
+        if (stackImp == null || roi == null || !(roi.getType()==Roi.LINE || roi.getType()==Roi.RECTANGLE)) {
+            IJ.error("Live Fit", "Straight line or rectangular selection required");
+            return;
+        }
+        if (stackImp.getStackSize() < 2) {
+            IJ.error("Live Fit", "Stack required");
+            return;
+        }
+        final String fitName = (String) ffComboBox.getSelectedItem();
+        int index = ffComboBox.getSelectedIndex();
+        final int fitType = index < CurveFitter.sortedTypes.length ? CurveFitter.sortedTypes[index] : -1;
+        final boolean fastGaussian = fitName.startsWith("Gaussian (fast estimate");
+        final boolean slit = fitName.startsWith("Slit");
+        final boolean positive = fitName.equals("Slit - Positive");
+        final boolean polish = fitName.endsWith("LM step)");
+        boolean interpolate = roi.getType()==Roi.LINE && PlotWindow.interpolate;
+        int n = new ProfileExtractor().extract(stackImp.getProcessor(), roi, Prefs.verticalProfile, interpolate);
+        if (n < 2) return;
+        absolutePixelScale = apsCheckbox.isSelected();
+        double[] xScale = getXScale(roi, n, stackImp.getCalibration());
+        StackFitter.ProfileFitFactory factory = new StackFitter.ProfileFitFactory() {
+            public StackFitter.ProfileFit create() {
+                if (fastGaussian) {
+                    final GaussianEstimator estimator = new GaussianEstimator();
+                    estimator.setPolish(polish);
+                    return new StackFitter.ProfileFit() {
+                        public double[] fit(double[] x, double[] y, int n) {
+                            double[] p = new double[GaussianEstimator.NUM_PARAMS];
+                            estimator.estimate(x, y, n, p);
+                            return p;
+                        }
+                        public double f(double[] p, double x) { return GaussianEstimator.f(p, x); }
+                    };
+                }
+                if (slit) {
+                    final SlitFitter slitFitter = new SlitFitter();
+                    return new StackFitter.ProfileFit() {
+                        public double[] fit(double[] x, double[] y, int n) {
+                            double[] p = new double[SlitFitter.NUM_PARAMS];
+                            slitFitter.fit(x, y, n, positive, p);
+                            return p;
+                        }
+                        public double f(double[] p, double x) { return SlitFitter.f(p, x); }
+                    };
+                }
+                return new StackFitter.ProfileFit() {
+                    public double[] fit(double[] x, double[] y, int n) {
+                        CurveFitter cv = new CurveFitter(x, y);
+                        cv.doFit(fitType);
+                        return Arrays.copyOf(cv.getParams(), cv.getNumParams());
+                    }
+                    public double f(double[] p, double x) { return CurveFitter.f(fitType, p, x); }
+                };
+            }
+        };
+        IJ.showStatus("Fitting " + stackImp.getStackSize() + " slices...");
+        StackFitter.Result result = new StackFitter(Prefs.getThreads()).fitStack(stackImp.getStack(), roi,
+                Prefs.verticalProfile, interpolate, xScale[0], xScale[1], factory);
+        int numParams = fastGaussian ? GaussianEstimator.NUM_PARAMS
+                      : slit ? SlitFitter.NUM_PARAMS : CurveFitter.getNumParams(fitType);
+        String[] names = new String[numParams];
+        for (int i = 0; i < numParams; i++) names[i] = String.valueOf((char)('a' + i));
+        result.toResultsTable(names).show(fitName + " fits of " + stackImp.getTitle());
+        String message = String.format("%d slices in %.3f s, %.1f slices/s on %d threads", result.params.length,
+                result.elapsedTime, result.getSlicesPerSecond(), result.parallelism);
+        statusText.setText(message);
+        IJ.log("LiveFitter " + fitName + ": " + message);
+    }
+    // adds a fit to the history; center, width, amplitude and background are only known for peak and slit fits
+    private void recordFit(String fitName, double[] p, double goodness){
+        double fwhmPerSigma = 2*Math.sqrt(2*Math.log(2));
+        if (fitName.equals("Gaussian") || fitName.startsWith("Gaussian (fast estimate"))
+            history.append(p[2], fwhmPerSigma*Math.abs(p[3]), p[1]-p[0], p[0], goodness);
+        else if (fitName.equals("Gaussian (no offset)"))
+            history.append(p[1], fwhmPerSigma*Math.abs(p[2]), p[0], 0, goodness);
+        else if (fitName.startsWith("Slit"))
+            history.append(p[2], p[3], p[4], p[0], goodness);
+        else
+            history.append(Double.NaN, Double.NaN, Double.NaN, Double.NaN, goodness);
+        trends.update();
+    }
+    // reads the deadband from the GUI and passes it to the publisher; an invalid value is put back
+    private void setDeadband() {
+        double value = Tools.parseDouble(dbText.getText(), Double.NaN);
+        if (!(value >= 0)) {
+            logMessage("Deadband must be a number >= 0: " + dbText.getText(), true, false);
+            dbText.setText("" + deadband);
+            return;
+        }
+        deadband = value;
+        isRelativeDeadband = dbComboBox.getSelectedIndex() == 0;
+        if (publisher != null) publisher.setDeadband(deadband, isRelativeDeadband);
+    }
+
     private boolean isNumeric(String str){
         return str!=null && str.matches("\\d*\\.?\\d+");
     }
@@ -451,70 +669,6 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
         return imp;
     }
 
-//    "y = a+b*x+e/2*Math.erf((x-c+d/2)/(f*2^(1/2)))-e/2*Math.erf((x-c+d/2)/(f*2^(1/2)))"
-    private double[] fitSlitFunction(CurveFitter cf, double[] x, double[] profile, int positive){
-        double yMax = profile[0];
-        double yMin = profile[0];
-        for(int i = 0; i<profile.length; i++){
-            if(profile[i]>yMax) yMax = profile[i];
-            if(profile[i]<yMin) yMin = profile[i];
-        }
-        plot.setLimits(x[0], x[x.length-1], yMin, yMax);
-        double cEst1 = 0;
-        double cEst2 = 0;
-        double eEst = 0;
-        for(int i = 0; i<profile.length; i++) {
-            cEst1 += (profile[i]-yMin)*x[i];
-            cEst2 += profile[i]-yMin;
-            eEst += profile[i];
-        }
-
-        double[] initialParams = new double[6];
-        if(positive==1) initialParams[0] = yMin;
-        else initialParams[0] = (yMax-yMin)/2.0;
-        if(initialParams[0]<0 || initialParams[0]>yMax) initialParams[0] = 1;
-        initialParams[1] = 0;
-        initialParams[2] = cEst1/cEst2;
-//        if(initialParams[2]<0 || initialParams[2]<x[x.length-1]) initialParams[0] = x.length/2+x[0];
-        initialParams[4] = (eEst - x.length*yMin)/x.length;
-        initialParams[3] = (eEst - x.length*yMin)/initialParams[4];
-        initialParams[5] = 5;
-        if((positive==0 && initialParams[4]>0) || (positive==1 && initialParams[4]<0)) initialParams[4] *= -1;
-        double goodness= 0.0;
-        int attempts = 0;
-           while ((goodness <0.7) && attempts<4) {
-                cf.doCustomFit(new UserFunction() {
-                    @Override
-                    public double userFunction(double[] params, double x) {
-//                      xMin, xMax, yMin, yMax
-                        double[] limits = plot.getLimits();
-                        double xMin = limits[0];
-                        double xMax = limits[1];
-//                        double yMin = limits[2];
-                        double yMax = limits[3];
-                        if (params[0] > yMax) return Double.NaN;
-                        if (params[0] < 0) return Double.NaN;
-                        if (params[1] > 3) return Double.NaN;
-                        if (params[1] < -3) return Double.NaN;
-                        if (params[2] > xMax) return Double.NaN;
-                        if (params[2] < 0) return Double.NaN;
-                        if (params[3] > xMax - xMin) return Double.NaN;
-                        if (params[3] < 0.01) return Double.NaN;
-                        if (params[4] >= yMax) return Double.NaN;
-//                      if(params[4] < yMin) return Double.NaN;
-                        if (params[4] < 1 && positive == 1) return Double.NaN;
-                        if (params[4] > -1 && positive == 0) return Double.NaN;
-                        if (params[5] > 30) return Double.NaN;
-                        if (params[5] < 0.5) return Double.NaN;
-                        return params[0] + params[1] * x + params[4] / 2 * IJMath.erf((x - params[2] + params[3] / 2) / (params[5] * Math.pow(2, 0.5))) - params[4] / 2 * IJMath.erf((x - params[2] - params[3] / 2) / (params[5] * Math.pow(2, 0.5)));
-                        }}, 6, slitEquation, initialParams, null, false);
-                        goodness = cf.getFitGoodness();
-                        initialParams[0] *= 0.9;
-                        attempts++;
-                    }
-        return (cf.getStatus() == Minimizer.SUCCESS ? cf.getParams() : initialParams);
-    }
-
     // displays fit plot for the first time, checks to make sure a proper roi and image are selected
     public void newFit(){
         ImagePlus holderImg = imp;
@@ -525,160 +679,216 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
             imp = holderImg;
         }
         else {
+            unsubscribe();
+            // The fit restarts, so the first result writes every userCalc field; firstTime is cleared below
+            if (publisher != null) publisher.invalidate();
             plot = getPlot();
             firstTime = false;
             plot.setPlotMaker(this);
             win = plot.show();
             if (roi != null && roi.getType() == Roi.RECTANGLE)
                 plot.getImagePlus().setProperty("Label", plotVertically ? "vertical" : "horizontal");
+            FrameBus bus = FrameBus.find(imp.getTitle());
+            if (bus != null) subscription = bus.subscribe(this, true, null);
         }
     }
 
-    // sends values to userCalc
-    public void updatePvValues(CurveFitter cf){
-        try {
-            params = cf.getParams();
-            numParameters = cf.getNumParams();
-            boolean connected = isConnected;
-            if (connected) checkConnections();
-            else return;
-            if (!isConnected) return;
-            if(firstTime){
-                clear = true;
-                clearPVS();
-                updateLabelPVs(numParameters, cf.getFormula());
-            }
-            update = true;
-            if(numParameters>=2){
-                ch_a.put(params[0]);
-                ctxt.pendIO(2.0);
-                ch_b.put(params[1]);
-                ctxt.pendIO(2.0);
-            }
-            if(numParameters>=3){
-                ch_c.put(params[2]);
-                ctxt.pendIO(2.0);
-            }
-            if(numParameters>=4){
-                ch_d.put(params[3]);
-                ctxt.pendIO(2.0);
-            }
-            if(numParameters>=5){
-                ch_e.put(params[4]);
-                ctxt.pendIO(2.0);
-            }
-            if(numParameters>=6){
-                ch_f.put(params[5]);
-                ctxt.pendIO(2.0);
-            }
-            if(numParameters>=7){
-                ch_g.put(params[6]);
-                ctxt.pendIO(2.0);
-            }
-            if(numParameters>=8){
-                ch_h.put(params[7]);
-                ctxt.pendIO(2.0);
-            }
-            if(numParameters>=9){
-                ch_i.put(params[8]);
-                ctxt.pendIO(2.0);
-            }
-            update=false;
+    // keeps the newest frame of the viewer of imp and asks a live plot window to fit it, as an image update would
+    public void onFrame(FrameBus.Frame f) {
+        synchronized (this) {
+            if (busFrame != null) busFrame.release();
+            busFrame = f.retain();
         }
-        catch (Exception e) {}
+        PlotWindow w = win;
+        if (w != null) w.imageUpdated(imp);
     }
 
-    // updates parameter label values in userCalc
-    public void updateLabelPVs(int num, String formula){
-        checkConnections();
-        if (!isConnected) return;
-        updateLabels = true;
-        try{
-            if(num>=2) {
-                ch_atxt.put("a");
-                ctxt.pendIO(2.0);
-                ch_btxt.put("b");
-                ctxt.pendIO(2.0);
-            }
-            if(num>=3) {
-                ch_ctxt.put("c");
-                ctxt.pendIO(2.0);
-            }
-            if(num>=4) {
-                ch_dtxt.put("d");
-                ctxt.pendIO(2.0);
+    // the newest frame from the viewer, retained, if it has the size of the image, otherwise null
+    private synchronized FrameBus.Frame getFrame(ImageProcessor ip) {
+        if (busFrame == null || busFrame.width != ip.getWidth() || busFrame.height != ip.getHeight()) return null;
+        return busFrame.retain();
+    }
+
+    private void unsubscribe() {
+        if (subscription != null) subscription.close();
+        subscription = null;
+        synchronized (this) {
+            if (busFrame != null) busFrame.release();
+            busFrame = null;
+        }
+    }
+
+    // sends values to userCalc, on the publisher thread so Channel Access does not hold up the plot
+    public void updatePvValues(double[] fitParams, int numParams, String formula){
+        params = fitParams;
+        numParameters = numParams;
+        if (!isConnected || publisher == null) return;
+        publisher.submit(fitParams, numParams, formula);
+    }
+
+    /**
+     * Writes fit results to the userCalc fields on its own thread.
+     * Only the latest result is kept; results that arrive while a batch is being written replace each other.
+     * Every field that changed is written in one CAPutBatch with a single flush, instead of a put and
+     * pendIO for each field.  A fit parameter is written only when it differs from the value last written
+     * by more than the deadband, either absolute or relative to that value, so parameters that just jitter
+     * with the noise of the frames are not written with every fit; a label is written when it changes.
+     * Fields beyond the number of fit parameters are set to 0 and "", as clearing the userCalc did before.
+     * The connection state shown in the GUI is updated on the event-dispatching thread.
+     */
+    private class FitPublisher implements Runnable {
+        private static final int MAX_PARAMS = 9;
+        private final double[] pendingParams = new double[MAX_PARAMS];
+        private int pendingNum;
+        private String pendingFormula;
+        private boolean pending = false;
+        private boolean pendingForce = false;
+        private double deadband = 0;
+        private boolean isRelative = false;
+        // Values and labels last written, NaN or null when unknown
+        private final double[] lastValues = new double[MAX_PARAMS];
+        private final String[] lastLabels = new String[MAX_PARAMS + 1];
+        private final double[] values = new double[MAX_PARAMS];
+        private final CAPutBatch batch;
+        private volatile boolean isRunning = false;
+        private Thread thread;
+        private final AtomicBoolean isCheckPending = new AtomicBoolean();
+        private final Runnable connectionCheck = new Runnable() {
+            public void run() {
+                isCheckPending.set(false);
+                checkConnections();
             }
-            if(num>=5) {
-                ch_etxt.put("e");
-                ctxt.pendIO(2.0);
+        };
+
+        FitPublisher(Context ctxt) {
+            batch = new CAPutBatch(ctxt);
+            forget();
+        }
+
+        public void start() {
+            isRunning = true;
+            thread = new Thread(this, "LiveFitter_EPICSUserCalc publish");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void stop() {
+            isRunning = false;
+            thread.interrupt();
+        }
+
+        /**
+         * Records the latest fit result, replacing any result that has not been written yet.
+         * 
+         * @param fitParams The fit parameters.
+         * @param num       The number of fit parameters.
+         * @param formula   The fit formula, written to the label of the L field.
+         */
+        public synchronized void submit(double[] fitParams, int num, String formula) {
+            pendingNum = Math.min(num, MAX_PARAMS);
+            System.arraycopy(fitParams, 0, pendingParams, 0, pendingNum);
+            pendingFormula = formula;
+            pending = true;
+            notify();
+        }
+
+        /**
+         * Sets the deadband of the fit parameters.
+         * 
+         * @param deadband   The change of a parameter that is not written, 0 to write every change.
+         * @param isRelative true if the deadband is a fraction of the value last written.
+         */
+        public synchronized void setDeadband(double deadband, boolean isRelative) {
+            this.deadband = deadband;
+            this.isRelative = isRelative;
+        }
+
+        /**
+         * Write every field with the next result, for example after connecting to a new userCalc
+         * or restarting the fit.
+         */
+        public synchronized void invalidate() {
+            pendingForce = true;
+        }
+
+        @Override
+        public void run() {
+            while (isRunning) {
+                int num;
+                String formula;
+                boolean force;
+                double band;
+                boolean relative;
+                try {
+                    synchronized (this) {
+                        while (!pending) wait();
+                        num = pendingNum;
+                        System.arraycopy(pendingParams, 0, values, 0, num);
+                        formula = pendingFormula;
+                        force = pendingForce;
+                        band = deadband;
+                        relative = isRelative;
+                        pending = false;
+                        pendingForce = false;
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                publish(num, formula, force, band, relative);
             }
-            if(num>=6) {
-                ch_ftxt.put("f");
-                ctxt.pendIO(2.0);
+        }
+
+        private void forget() {
+            java.util.Arrays.fill(lastValues, Double.NaN);
+            java.util.Arrays.fill(lastLabels, null);
+        }
+
+        // true if all the channels are connected; Channel Access can be asked from any thread
+        private boolean isConnected(Channel[] chs) {
+            if (chs == null) return false;
+            for (Channel ch : chs) {
+                if (ch.getConnectionState() != Channel.ConnectionState.CONNECTED) return false;
             }
-            if(num>=7) {
-                ch_gtxt.put("g");
-                ctxt.pendIO(2.0);
+            return true;
+        }
+
+        private void publish(int num, String formula, boolean force, double band, boolean relative) {
+            // checkConnections() updates the GUI, so it runs on the event-dispatching thread, once per batch at most
+            if (isCheckPending.compareAndSet(false, true)) SwingUtilities.invokeLater(connectionCheck);
+            Channel[] valueChs = valueChannels;
+            Channel[] labelChs = labelChannels;
+            if (!isConnected(valueChs) || !isConnected(labelChs)) return;
+            if (force) forget();
+            batch.clear();
+            for (int i = 0; i < MAX_PARAMS; i++) {
+                double v = (i < num) ? values[i] : 0.;
+                // the unused fields are cleared exactly; NaN compares false, so unknown values are always written
+                double tolerance = (i >= num) ? 0. : relative ? band * Math.abs(lastValues[i]) : band;
+                if (!(Math.abs(v - lastValues[i]) <= tolerance)) {
+                    batch.add(valueChs[i], v);
+                    lastValues[i] = v;
+                }
+                String label = (i < num) ? String.valueOf((char)('a' + i)) : "";
+                if (!label.equals(lastLabels[i])) {
+                    batch.add(labelChs[i], label);
+                    lastLabels[i] = label;
+                }
             }
-            if(num>=8) {
-                ch_htxt.put("h");
-                ctxt.pendIO(2.0);
+            if (!formula.equals(lastLabels[MAX_PARAMS])) {
+                batch.add(labelChs[MAX_PARAMS], formula);
+                lastLabels[MAX_PARAMS] = formula;
             }
-            if(num==9){
-                ch_itxt.put("i");
-                ctxt.pendIO(2.0);
+            if (batch.size() == 0) return;
+            try {
+                batch.flush();
+            } catch (Exception ex) {
+                // The IOC state is unknown, so write everything next time
+                forget();
+                logMessage("Could not write fit parameters: " + ex.getMessage(), true, false);
             }
-            ch_eq.put(formula);
-            ctxt.pendIO(2.0);
-            updateLabels = false;
         }
-        catch (Exception e) {}
     }
 
-    //clears userCalc - set to 0 or ""
-    public void clearPVS(){
-        checkConnections();
-        if (!isConnected) return;
-        try{
-            ch_a.put(0);
-            ctxt.pendIO(2.0);
-            ch_b.put(0);
-            ctxt.pendIO(2.0);
-            ch_c.put(0);
-            ctxt.pendIO(2.0);
-            ch_d.put(0);
-            ctxt.pendIO(2.0);
-            ch_e.put(0);
-            ctxt.pendIO(2.0);
-            ch_f.put(0);
-            ctxt.pendIO(2.0);
-            ch_g.put(0);
-            ctxt.pendIO(2.0);
-            ch_h.put(0);
-            ctxt.pendIO(2.0);
-            ch_i.put(0);
-            ctxt.pendIO(2.0);
-            ch_atxt.put("");
-            ctxt.pendIO(2.0);
-            ch_btxt.put("");
-            ctxt.pendIO(2.0);
-            ch_ctxt.put("");
-            ctxt.pendIO(2.0);
-            ch_dtxt.put("");
-            ctxt.pendIO(2.0);
-            ch_etxt.put("");
-            ctxt.pendIO(2.0);
-            ch_ftxt.put("");
-            ctxt.pendIO(2.0);
-            ch_gtxt.put("");
-            ctxt.pendIO(2.0);
-            ch_htxt.put("");
-            ctxt.pendIO(2.0);
-            ch_itxt.put("");
-            ctxt.pendIO(2.0);
-        }
-        catch (Exception ee) {}
-    }
     public void connectPVs()
     {
         try
@@ -725,6 +935,9 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
             ch_itxt = createEPICSChannel(UCPrefix +".ININ");
             ch_eq = createEPICSChannel(UCPrefix+".INLN");
             ctxt.flushIO();
+            valueChannels = new Channel[] {ch_a, ch_b, ch_c, ch_d, ch_e, ch_f, ch_g, ch_h, ch_i};
+            labelChannels = new Channel[] {ch_atxt, ch_btxt, ch_ctxt, ch_dtxt, ch_etxt, ch_ftxt, ch_gtxt, ch_htxt, ch_itxt, ch_eq};
+            if (publisher != null) publisher.invalidate();
             checkConnections();
         }
         catch (Exception ex)
@@ -735,6 +948,8 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
 
     public void disconnectPVs()
     {
+        valueChannels = null;
+        labelChannels = null;
         try
         {
             ch_a.destroy();
@@ -870,7 +1085,62 @@ public class LiveFitter_EPICSUserCalc implements PlugIn, PlotMaker {
         String completeMessage;
 
         completeMessage = simpleDate.format(date) + ": " + message;
-        if (logDisplay) statusText.setText(completeMessage);
+        if (logDisplay) {
+            if (SwingUtilities.isEventDispatchThread()) {
+                statusText.setText(completeMessage);
+            } else {
+                // the publisher thread also reports problems
+                final String text = completeMessage;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        statusText.setText(text);
+                    }
+                });
+            }
+        }
         if (logFile) IJ.log(completeMessage);
     }
+
+    public void readProperties()
+    {
+        String temp, path = null;
+
+        try
+        {
+            String fileSep = System.getProperty("file.separator");
+            path = System.getProperty("user.home") + fileSep + propertyFile;
+            FileInputStream file = new FileInputStream(path);
+            properties.load(file);
+            file.close();
+            temp = properties.getProperty("deadband");
+            if (temp != null && Double.parseDouble(temp) >= 0) deadband = Double.parseDouble(temp);
+            temp = properties.getProperty("relativeDeadband");
+            if (temp != null) isRelativeDeadband = Boolean.parseBoolean(temp);
+            IJ.log("Read properties file: " + path + "  deadband= " + deadband);
+        }
+        catch (Exception ex)
+        {
+            IJ.log("readProperties:exception: " + ex.getMessage());
+        }
+    }
+
+    public void writeProperties()
+    {
+        String path;
+        try
+        {
+            String fileSep = System.getProperty("file.separator");
+            path = System.getProperty("user.home") + fileSep + propertyFile;
+            properties.setProperty("deadband", "" + deadband);
+            properties.setProperty("relativeDeadband", "" + isRelativeDeadband);
+            FileOutputStream file = new FileOutputStream(path);
+            properties.store(file, "LiveFitter_EPICSUserCalc Properties");
+            file.close();
+            IJ.log("Wrote properties file: " + path);
+        }
+        catch (Exception ex)
+        {
+            IJ.log("writeProperties:exception: " + ex.getMessage());
+        }
+    }
 }
@@ -0,0 +1,383 @@
+// MappedStack.java
+//
+// Disk-backed capture for the "Capture to Stack" option of the viewer plugins:
+// frames are appended to a preallocated memory-mapped file, which ImageJ then
+// sees as a virtual stack.
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * A virtual stack stored in a memory-mapped file, for captures longer than the heap allows.
+ * <p>
+ * The constructor sets the file to its full size and maps it, so add() only copies the pixels of a frame
+ * into the mapping; the operating system writes the pages to disk in the background.  The frames are
+ * stored one after the other without a header, in the native byte order, so the file can be opened
+ * later with File/Import/Raw.  Each mapping is at most 2 GB and holds whole frames, so files of any
+ * size can be used.
+ * <p>
+ * Frames are appended until the file is full or the capture is triggered; unlike CaptureBuffer it is not
+ * a ring.  The file stays open while frames are added.  toStack() shortens it to the frames written, maps
+ * only those and closes it, so the stack holds no file handle and the mappings go with the stack; a file
+ * without frames is deleted.  getProcessor() copies one slice out of the mapping, so scrubbing through a
+ * stack of any length only uses the heap for the slices that are displayed.  setPixels() writes a slice
+ * back to the file.
+ */
+public class MappedStack extends VirtualStack implements FrameCapture
+{
+    /** The largest fraction of the free disk space that a capture file will use */
+    public static final double MAX_DISK_FRACTION = 0.9;
+
+    private final File file;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final int frameBytes;
+    private final int framesPerSegment;
+    private RandomAccessFile raf;         // open until toStack()
+    private volatile MappedByteBuffer[] segments;
+    private Buffer[] writeViews;          // typed views of the segments for add(), null after toStack()
+    private final long[] ids;
+    private final long[] times;
+    private final double maxSeconds;
+    private int count;          // number of frames written
+    private int first;          // first frame shown in the stack, set by toStack()
+    private int postTrigger;    // frames still to capture after a trigger, -1 if not triggered
+    private String labelPrefix = "";
+
+    /**
+     * Constructor.  Creates the file, replacing any existing file, sets it to its full size and maps it.
+     * @param file The file.
+     * @param width The frame width.
+     * @param height The frame height.
+     * @param bitDepth 8, 16, 32 (float) or 24 (RGB), as ImagePlus.getBitDepth() returns it.
+     * @param settings The file size limit, maximum number of frames and time to keep.
+     * @throws IOException If the file cannot be created or mapped.
+     */
+    public MappedStack(File file, int width, int height, int bitDepth, CaptureBuffer.Settings settings) throws IOException
+    {
+        super(width, height);
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        maxSeconds = settings.maxSeconds;
+        long bytes = CaptureBuffer.getFrameBytes(width, height, bitDepth);
+        if (bytes > Integer.MAX_VALUE) throw new IOException("Frame larger than 2 GB");
+        frameBytes = (int)bytes;
+        int capacity = getCapacity(file, width, height, bitDepth, settings);
+        framesPerSegment = Math.max(1, Integer.MAX_VALUE / frameBytes);
+        raf = new RandomAccessFile(file, "rw");
+        boolean mapped = false;
+        try {
+            raf.setLength(0);
+            raf.setLength((long)capacity * frameBytes);
+            segments = map(raf.getChannel(), capacity);
+            mapped = true;
+        } finally {
+            if (!mapped) raf.close();
+        }
+        writeViews = new Buffer[segments.length];
+        for (int s = 0; s < segments.length; s++) writeViews[s] = typedView(segments[s]);
+        ids = new long[capacity];
+        times = new long[capacity];
+        postTrigger = -1;
+    }
+
+    /**
+     * @return The number of frames that a capture file with these settings holds: the file size limit,
+     *         limited to MAX_DISK_FRACTION of the free space of the directory, divided by the frame size,
+     *         and at most settings.maxFrames.  At least 1.
+     */
+    public static int getCapacity(File file, int width, int height, int bitDepth, CaptureBuffer.Settings settings)
+    {
+        long frameBytes = CaptureBuffer.getFrameBytes(width, height, bitDepth);
+        File dir = file.getAbsoluteFile().getParentFile();
+        double budget = settings.diskBudgetGB * 1024 * 1024 * 1024;
+        if (dir != null && dir.getUsableSpace() > 0)
+            budget = Math.min(budget, MAX_DISK_FRACTION * dir.getUsableSpace());
+        long capacity = (long)(budget / frameBytes);
+        if (settings.maxFrames > 0) capacity = Math.min(capacity, settings.maxFrames);
+        return (int)Math.max(1, Math.min(capacity, Integer.MAX_VALUE - 8));
+    }
+
+    /**
+     * @return The capture file.
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    public boolean matches(int width, int height, int bitDepth)
+    {
+        return width == this.width && height == this.height && bitDepth == this.bitDepth;
+    }
+
+    public int getCapacity()
+    {
+        return ids.length;
+    }
+
+    /**
+     * Copy a frame to the end of the file.  The capture freezes when the file is full.
+     */
+    public synchronized boolean add(Object pixels, long id)
+    {
+        if (postTrigger == 0 || writeViews == null) return false;
+        int n = width * height;
+        int s = count / framesPerSegment;
+        int position = (count - s * framesPerSegment) * n;
+        Buffer view = writeViews[s];
+        view.position(position);
+        switch (bitDepth) {
+            case 8: ((ByteBuffer)view).put((byte[])pixels, 0, n); break;
+            case 16: ((ShortBuffer)view).put((short[])pixels, 0, n); break;
+            case 24: ((IntBuffer)view).put((int[])pixels, 0, n); break;
+            default: ((FloatBuffer)view).put((float[])pixels, 0, n); break;
+        }
+        ids[count] = id;
+        times[count] = System.nanoTime();
+        count++;
+        if (postTrigger > 0) postTrigger--;
+        if (count == ids.length) postTrigger = 0;
+        return true;
+    }
+
+    public synchronized void trigger(int postFrames)
+    {
+        postFrames = Math.max(0, postFrames);
+        if (postTrigger < 0 || postFrames < postTrigger) postTrigger = postFrames;
+    }
+
+    public synchronized boolean isFrozen()
+    {
+        return postTrigger == 0;
+    }
+
+    /**
+     * Freeze the capture, shorten the file to the frames written and close it, and return this stack,
+     * which starts at the first frame of the last settings.maxSeconds seconds if that is set.  The file
+     * is kept, unless it has no frames.
+     */
+    public synchronized ImageStack toStack(String labelPrefix)
+    {
+        postTrigger = 0;
+        this.labelPrefix = labelPrefix;
+        stop();
+        if (count == 0) return null;
+        if (maxSeconds > 0) {
+            long newest = times[count - 1];
+            while (first < count - 1 && (newest - times[first]) * 1e-9 > maxSeconds) first++;
+        }
+        return this;
+    }
+
+    /**
+     * Freeze the capture, shorten the file to the frames written and close it, without making a stack.
+     * The file is kept, unless it has no frames.
+     */
+    public synchronized void close()
+    {
+        postTrigger = 0;
+        stop();
+        segments = new MappedByteBuffer[0];
+        count = first = 0;
+    }
+
+    /**
+     * @return The number of slices of the stack.
+     */
+    public synchronized int size()
+    {
+        return count - first;
+    }
+
+    public int getSize()
+    {
+        return size();
+    }
+
+    public int getBitDepth()
+    {
+        return bitDepth;
+    }
+
+    public synchronized String getSliceLabel(int n)
+    {
+        checkSlice(n);
+        return labelPrefix + ids[first + n - 1];
+    }
+
+    public void setSliceLabel(String label, int n)
+    {
+    }
+
+    public String getFileName(int n)
+    {
+        return getSliceLabel(n);
+    }
+
+    /**
+     * @return A processor with a copy of slice n, 1 &lt;= n &lt;= getSize().
+     */
+    public ImageProcessor getProcessor(int n)
+    {
+        Object pixels = getPixels(n);
+        switch (bitDepth) {
+            case 8: return new ByteProcessor(width, height, (byte[])pixels);
+            case 16: return new ShortProcessor(width, height, (short[])pixels, null);
+            case 24: return new ColorProcessor(width, height, (int[])pixels);
+            default: return new FloatProcessor(width, height, (float[])pixels);
+        }
+    }
+
+    /**
+     * @return A copy of the pixels of slice n, 1 &lt;= n &lt;= getSize().
+     */
+    public Object getPixels(int n)
+    {
+        int frame;
+        synchronized (this) {
+            checkSlice(n);
+            frame = first + n - 1;
+        }
+        int size = width * height;
+        Buffer view = sliceView(frame);
+        switch (bitDepth) {
+            case 8: {
+                byte[] pixels = new byte[size];
+                ((ByteBuffer)view).get(pixels);
+                return pixels;
+            }
+            case 16: {
+                short[] pixels = new short[size];
+                ((ShortBuffer)view).get(pixels);
+                return pixels;
+            }
+            case 24: {
+                int[] pixels = new int[size];
+                ((IntBuffer)view).get(pixels);
+                return pixels;
+            }
+            default: {
+                float[] pixels = new float[size];
+                ((FloatBuffer)view).get(pixels);
+                return pixels;
+            }
+        }
+    }
+
+    /**
+     * Write the pixels of slice n, 1 &lt;= n &lt;= getSize(), back to the file.
+     */
+    public void setPixels(Object pixels, int n)
+    {
+        int frame;
+        synchronized (this) {
+            checkSlice(n);
+            frame = first + n - 1;
+        }
+        Buffer view = sliceView(frame);
+        switch (bitDepth) {
+            case 8: ((ByteBuffer)view).put((byte[])pixels); break;
+            case 16: ((ShortBuffer)view).put((short[])pixels); break;
+            case 24: ((IntBuffer)view).put((int[])pixels); break;
+            default: ((FloatBuffer)view).put((float[])pixels); break;
+        }
+    }
+
+    /**
+     * @return The directory of the capture file, for ImageJ commands that show where a stack came from.
+     */
+    public String getDirectory()
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        return dir != null ? dir.getPath() + File.separator : null;
+    }
+
+    public String toString()
+    {
+        return file.getPath() + ": " + width + "x" + height + ", " + bitDepth + "-bit, " + count + " frames";
+    }
+
+    // Shorten the file to the frames written, map only those for the stack, and close the file
+    private void stop()
+    {
+        if (raf == null) return;
+        writeViews = null;
+        try {
+            raf.setLength((long)count * frameBytes);
+            segments = map(raf.getChannel(), count);
+        } catch (IOException e) {
+            // Some systems do not shorten a file that is still mapped; it then keeps its
+            // preallocated length and the old mappings, and the frames are still at its start
+        } finally {
+            try {
+                raf.close();    // the mappings stay valid
+            } catch (IOException e) {
+            }
+            raf = null;
+        }
+        if (count == 0) {
+            segments = new MappedByteBuffer[0];
+            file.delete();
+        }
+    }
+
+    // Map the first frames of the file, in segments of whole frames of at most 2 GB
+    private MappedByteBuffer[] map(FileChannel channel, int frames) throws IOException
+    {
+        int numSegments = (frames + framesPerSegment - 1) / framesPerSegment;
+        MappedByteBuffer[] mapped = new MappedByteBuffer[numSegments];
+        for (int s = 0; s < numSegments; s++) {
+            long offset = (long)s * framesPerSegment * frameBytes;
+            int n = Math.min(framesPerSegment, frames - s * framesPerSegment);
+            mapped[s] = channel.map(FileChannel.MapMode.READ_WRITE, offset, (long)n * frameBytes);
+        }
+        return mapped;
+    }
+
+    private void checkSlice(int n)
+    {
+        if (n < 1 || n > count - first)
+            throw new IllegalArgumentException("Argument out of range: " + n);
+    }
+
+    // A view of one frame, with its own position, so that slices can be read while frames are added
+    private Buffer sliceView(int frame)
+    {
+        int s = frame / framesPerSegment;
+        ByteBuffer bytes = segments[s].duplicate();
+        bytes.position((frame - s * framesPerSegment) * frameBytes);
+        bytes.limit(bytes.position() + frameBytes);
+        return typedView(bytes.slice());
+    }
+
+    private Buffer typedView(ByteBuffer bytes)
+    {
+        bytes.order(ByteOrder.nativeOrder());
+        switch (bitDepth) {
+            case 8: return bytes;
+            case 16: return bytes.asShortBuffer();
+            case 24: return bytes.asIntBuffer();
+            default: return bytes.asFloatBuffer();
+        }
+    }
+}
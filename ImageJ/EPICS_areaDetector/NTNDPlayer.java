@@ -0,0 +1,236 @@
+// NTNDPlayer.java
+//
+// Plays an NTNDRecording back at a controlled rate, decoding the frames ahead
+// of time on a pool of worker threads.
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.epics.nt.NTNDArray;
+import org.epics.pvdata.pv.PVString;
+import org.epics.pvdata.pv.PVStructure;
+
+/**
+ * Plays back a recording as a sequence of decoded NTNDArrays.
+ * <p>
+ * The player keeps up to "prefetch" frames ahead of the current one in flight on its worker threads.
+ * A worker rebuilds the NTNDArray of its frame from the mapped recording and decompresses it with its own
+ * NTNDCodec, then clears the codec name, so the array can be passed to code that decodes live arrays and
+ * is displayed without being decompressed again.  The frames are returned in order whatever order the
+ * workers finish in.
+ * <p>
+ * poll() returns the next frame when it is due.  With a frame rate set, frames are due at that rate;
+ * otherwise they are due at the intervals of their recorded timeStamps divided by the speed, so a speed
+ * of 1 is real time and 0 is as fast as the frames can be decoded.  seek() and seekTime() move to another
+ * frame and discard the frames decoded ahead.
+ * <p>
+ * poll() and seek() are meant to be called from one thread; the rate and loop settings can be changed
+ * from any thread.  Call shutdown() when done.
+ */
+public class NTNDPlayer
+{
+    // Gaps between recorded timeStamps longer than this are played as MAX_GAP_SECONDS
+    private static final double MAX_GAP_SECONDS = 1;
+
+    private final NTNDRecording recording;
+    private final ExecutorService executor;
+    private final int prefetch;
+    private final ArrayDeque<Future<PVStructure>> queue = new ArrayDeque<Future<PVStructure>>();
+    private final ThreadLocal<NTNDCodec> codecs = new ThreadLocal<NTNDCodec>();
+    private int nextToDecode;       // the next frame to submit to the workers
+    private int current = -1;       // the last frame returned by poll()
+    private long dueTime;           // when the next frame is due, System.nanoTime()
+    private volatile double speed = 1;
+    private volatile double frameRate = 0;
+    private volatile boolean loop = false;
+
+    /**
+     * Constructor
+     * @param recording The recording.
+     * @param numThreads The number of decoding threads, at least 1.
+     * @param prefetch The number of frames decoded ahead, at least 1.
+     */
+    public NTNDPlayer(NTNDRecording recording, int numThreads, int prefetch)
+    {
+        this.recording = recording;
+        this.prefetch = Math.max(1, prefetch);
+        executor = Executors.newFixedThreadPool(Math.max(1, numThreads), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "NTNDPlayer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        seek(0);
+    }
+
+    /**
+     * @return The recording.
+     */
+    public NTNDRecording getRecording()
+    {
+        return recording;
+    }
+
+    /**
+     * @param speed The playback speed relative to the recorded timeStamps, used when no frame rate is set;
+     *              0 plays as fast as possible.
+     */
+    public void setSpeed(double speed)
+    {
+        this.speed = Math.max(0, speed);
+    }
+
+    /**
+     * @param frameRate A fixed playback rate in frames per second, or 0 to follow the recorded timeStamps.
+     */
+    public void setFrameRate(double frameRate)
+    {
+        this.frameRate = Math.max(0, frameRate);
+    }
+
+    /**
+     * @param loop Start again from the first frame after the last one.
+     */
+    public void setLoop(boolean loop)
+    {
+        this.loop = loop;
+    }
+
+    /**
+     * @return The frame last returned by poll(), -1 before the first one.
+     */
+    public int getCurrentFrame()
+    {
+        return current;
+    }
+
+    /**
+     * @return true if the last frame has been played and the player does not loop.
+     */
+    public boolean isFinished()
+    {
+        return queue.isEmpty() && nextToDecode >= recording.getFrameCount() && !loop;
+    }
+
+    /**
+     * Continue playing at a frame.  The frames decoded ahead are discarded.
+     * @param frame The frame, clipped to the recording.
+     */
+    public void seek(int frame)
+    {
+        for (Future<PVStructure> f : queue) f.cancel(false);
+        queue.clear();
+        nextToDecode = Math.max(0, Math.min(frame, recording.getFrameCount()));
+        current = nextToDecode - 1;
+        dueTime = System.nanoTime();
+        fill();
+    }
+
+    /**
+     * Continue playing at the first frame at or after a time.
+     * @param timeStamp The time in nanoseconds since the epoch.
+     */
+    public void seekTime(long timeStamp)
+    {
+        seek(recording.findFrame(timeStamp));
+    }
+
+    /**
+     * Get the next frame if it is due within a time.
+     * @param maxWaitMs The longest time to wait, milliseconds.
+     * @return The decoded NTNDArray of the next frame, or null if it is not due or not decoded within the
+     *         time, or if the player is finished.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     * @throws RuntimeException If the frame could not be decoded.
+     */
+    public PVStructure poll(long maxWaitMs) throws InterruptedException
+    {
+        if (queue.isEmpty()) {
+            if (!loop || recording.getFrameCount() == 0) return null;
+            seek(0);
+        }
+        long deadline = System.nanoTime() + maxWaitMs * 1000000L;
+        long wait = dueTime - System.nanoTime();
+        if (wait > maxWaitMs * 1000000L) {
+            Thread.sleep(maxWaitMs);
+            return null;
+        }
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        PVStructure pvs;
+        try {
+            pvs = queue.peek().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (ExecutionException e) {
+            queue.poll();
+            current++;
+            fill();
+            throw new RuntimeException("Frame " + current + ": " + e.getCause(), e.getCause());
+        }
+        queue.poll();
+        current++;
+        long now = System.nanoTime();
+        // A frame that is late does not make the following frames early
+        dueTime = Math.max(dueTime, now - 1000000000L) + interval(current);
+        fill();
+        return pvs;
+    }
+
+    /**
+     * Stop the threads.
+     */
+    public void shutdown()
+    {
+        for (Future<PVStructure> f : queue) f.cancel(false);
+        queue.clear();
+        executor.shutdownNow();
+    }
+
+    // The time from frame i to the next frame, nanoseconds
+    private long interval(int i)
+    {
+        double rate = frameRate;
+        if (rate > 0) return (long)(1e9 / rate);
+        double s = speed;
+        if (s <= 0 || i + 1 >= recording.getFrameCount()) return 0;
+        long dt = recording.getTimeStamp(i + 1) - recording.getTimeStamp(i);
+        if (dt <= 0) return 0;
+        return (long)(Math.min(dt * 1e-9, MAX_GAP_SECONDS) * 1e9 / s);
+    }
+
+    // Submit frames until prefetch frames are in flight
+    private void fill()
+    {
+        while (queue.size() < prefetch && nextToDecode < recording.getFrameCount()) {
+            final int frame = nextToDecode++;
+            queue.add(executor.submit(new Callable<PVStructure>() {
+                public PVStructure call() {
+                    return decode(frame);
+                }
+            }));
+        }
+    }
+
+    private PVStructure decode(int frame)
+    {
+        PVStructure pvs = NTNDRecording.toNTNDArray(recording.getFrame(frame));
+        NTNDArray ntndArray = NTNDArray.wrapUnsafe(pvs);
+        PVString codecName = ntndArray.getCodec().getSubField(PVString.class, "name");
+        if (codecName.get().isEmpty()) return pvs;
+        NTNDCodec codec = codecs.get();
+        if (codec == null) {
+            codec = new NTNDCodec();
+            codecs.set(codec);
+        }
+        if (!codec.decompress(ntndArray)) throw new RuntimeException("decompress failed: " + codec.getMessage());
+        codecName.put("");
+        return pvs;
+    }
+}
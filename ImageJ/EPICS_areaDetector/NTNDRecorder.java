@@ -0,0 +1,405 @@
+// NTNDRecorder.java
+//
+// Records NTNDArrays to an append-only file exactly as they are received,
+// without decompressing them, with a separate index of the frames.
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.epics.pvdata.factory.ConvertFactory;
+import org.epics.pvdata.pv.ByteArrayData;
+import org.epics.pvdata.pv.Convert;
+import org.epics.pvdata.pv.DoubleArrayData;
+import org.epics.pvdata.pv.FloatArrayData;
+import org.epics.pvdata.pv.IntArrayData;
+import org.epics.pvdata.pv.LongArrayData;
+import org.epics.pvdata.pv.PVByteArray;
+import org.epics.pvdata.pv.PVDoubleArray;
+import org.epics.pvdata.pv.PVFloatArray;
+import org.epics.pvdata.pv.PVInt;
+import org.epics.pvdata.pv.PVIntArray;
+import org.epics.pvdata.pv.PVLongArray;
+import org.epics.pvdata.pv.PVScalar;
+import org.epics.pvdata.pv.PVScalarArray;
+import org.epics.pvdata.pv.PVShortArray;
+import org.epics.pvdata.pv.PVString;
+import org.epics.pvdata.pv.PVStructure;
+import org.epics.pvdata.pv.PVStructureArray;
+import org.epics.pvdata.pv.PVUByteArray;
+import org.epics.pvdata.pv.PVUIntArray;
+import org.epics.pvdata.pv.PVULongArray;
+import org.epics.pvdata.pv.PVUShortArray;
+import org.epics.pvdata.pv.PVUnion;
+import org.epics.pvdata.pv.ScalarType;
+import org.epics.pvdata.pv.ShortArrayData;
+import org.epics.pvdata.pv.StructureArrayData;
+
+/**
+ * Writes NTNDArrays to a recording: a data file with the value of each array as it was received,
+ * compressed or not, and its metadata, and an index file with one fixed-size entry per frame.
+ * <p>
+ * Compressed arrays (codec blosc, lz4, bslz4, jpeg) carry their payload as a byte array, which is written
+ * straight from the pvData array without being decompressed or copied, so recording is limited by the
+ * disk rather than the CPU.  Uncompressed arrays of other types are copied once into a byte buffer in
+ * the native byte order.
+ * <p>
+ * The data file starts with DATA_MAGIC, an int FORMAT_VERSION and a byte that is 1 if the payloads of
+ * uncompressed arrays are little-endian.  Each frame is then a record:
+ * <pre>
+ *   int RECORD_MAGIC, int metadata length, long payload length, metadata, payload
+ * </pre>
+ * The metadata is, in order: int uniqueId; long secondsPastEpoch and int nanoseconds of timeStamp, then
+ * of dataTimeStamp; int ScalarType ordinal of the value array; string codec name (empty if not compressed);
+ * int codec parameter (the ScalarType ordinal of the decompressed array, -1 if none); long compressedSize;
+ * long uncompressedSize; int number of dimensions and, for each, int size, offset, fullSize, binning and
+ * byte reverse; int number of attributes and, for each, string name, descriptor and source, int sourceType,
+ * int ScalarType ordinal of the value (-1 if it is not a scalar) and string value.  Strings are an int
+ * byte count followed by UTF-8; everything but the payload is big-endian.
+ * <p>
+ * The index file starts with INDEX_MAGIC and has one INDEX_ENTRY_BYTES entry per frame, big-endian:
+ * long record offset in the data file, long timeStamp in nanoseconds since the epoch, int uniqueId,
+ * int metadata length and long payload length.  It is written with each frame, so a recording that was
+ * not closed is still complete up to its last frame.
+ * <p>
+ * record() writes on the calling thread, so that the pvData arrays can be written before the monitor
+ * event is released, without copying them.
+ */
+public class NTNDRecorder
+{
+    /** The first bytes of a data file */
+    public static final String DATA_MAGIC = "NTNDREC1";
+    /** The first bytes of an index file */
+    public static final String INDEX_MAGIC = "NTNDIDX1";
+    /** The version of the record layout */
+    public static final int FORMAT_VERSION = 1;
+    /** The first int of each record, "NTND" */
+    public static final int RECORD_MAGIC = 0x4E544E44;
+    /** The length of the record header before the metadata */
+    public static final int RECORD_HEADER_BYTES = 16;
+    /** The length of an index entry */
+    public static final int INDEX_ENTRY_BYTES = 32;
+    /** The extension of data files */
+    public static final String DATA_EXTENSION = ".ntnd";
+    /** The extension of index files */
+    public static final String INDEX_EXTENSION = ".ntndx";
+
+    private static Convert convert = ConvertFactory.getConvert();
+
+    private final File file;
+    private final RandomAccessFile dataFile;
+    private final RandomAccessFile indexFile;
+    private final FileChannel data;
+    private final FileChannel index;
+    private ByteBuffer header = ByteBuffer.allocate(4096);
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+    private ByteBuffer converted = ByteBuffer.allocateDirect(0);
+    private final ByteBuffer[] record = new ByteBuffer[2];
+    private final StructureArrayData structData = new StructureArrayData();
+    private final ByteArrayData byteData = new ByteArrayData();
+    private long position;
+    private int frames;
+    private long bytesWritten;
+    private long startTime;
+    private boolean closed;
+
+    /**
+     * Constructor.  Creates the data file and its index file, replacing any existing files.
+     * @param file The data file; the index file is getIndexFile(file).
+     * @throws IOException If the files cannot be created.
+     */
+    public NTNDRecorder(File file) throws IOException
+    {
+        this.file = file;
+        dataFile = new RandomAccessFile(file, "rw");
+        dataFile.setLength(0);
+        indexFile = new RandomAccessFile(getIndexFile(file), "rw");
+        indexFile.setLength(0);
+        data = dataFile.getChannel();
+        index = indexFile.getChannel();
+        ByteBuffer start = ByteBuffer.allocate(13);
+        start.put(DATA_MAGIC.getBytes(StandardCharsets.US_ASCII));
+        start.putInt(FORMAT_VERSION);
+        start.put((byte)(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0));
+        start.flip();
+        writeFully(data, start);
+        position = data.position();
+        writeFully(index, ByteBuffer.wrap(INDEX_MAGIC.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * @param dataFile A data file.
+     * @return Its index file: the same name with INDEX_EXTENSION instead of DATA_EXTENSION.
+     */
+    public static File getIndexFile(File dataFile)
+    {
+        String name = dataFile.getName();
+        if (name.endsWith(DATA_EXTENSION)) name = name.substring(0, name.length() - DATA_EXTENSION.length());
+        return new File(dataFile.getParentFile(), name + INDEX_EXTENSION);
+    }
+
+    /**
+     * @return The data file.
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return The number of frames recorded.
+     */
+    public synchronized int getFrameCount()
+    {
+        return frames;
+    }
+
+    /**
+     * @return The number of bytes written to the data file, including the metadata.
+     */
+    public synchronized long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * @return The average data rate since the first frame, MB per second.
+     */
+    public synchronized double getMBPerSecond()
+    {
+        double seconds = (System.nanoTime() - startTime) * 1e-9;
+        return frames > 1 && seconds > 0 ? bytesWritten / 1048576. / seconds : 0;
+    }
+
+    /**
+     * Append an NTNDArray to the recording.
+     * @param pvs The NTNDArray, which is not changed.
+     * @return false if the recording is closed or the structure has no array value.
+     * @throws IOException If writing fails.
+     */
+    public synchronized boolean record(PVStructure pvs) throws IOException
+    {
+        if (closed) return false;
+        PVUnion pvUnionValue = pvs.getSubField(PVUnion.class, "value");
+        if (pvUnionValue == null) return false;
+        PVScalarArray value = pvUnionValue.get(PVScalarArray.class);
+        if (value == null) return false;
+        ScalarType valueType = value.getScalarArray().getElementType();
+        ByteBuffer payload = payload(value, valueType);
+        if (payload == null) return false;
+        long payloadLength = payload.remaining();
+
+        header.clear();
+        header.putInt(RECORD_MAGIC);
+        header.putInt(0);                   // metadata length, filled in below
+        header.putLong(payloadLength);
+        int uniqueId = getInt(pvs, "uniqueId", 0);
+        header.putInt(uniqueId);
+        long timeStamp = putTimeStamp(pvs.getSubField(PVStructure.class, "timeStamp"));
+        putTimeStamp(pvs.getSubField(PVStructure.class, "dataTimeStamp"));
+        ensureHeader(4);
+        header.putInt(valueType.ordinal());
+        PVStructure codec = pvs.getSubField(PVStructure.class, "codec");
+        PVString codecName = codec != null ? codec.getSubField(PVString.class, "name") : null;
+        putString(codecName != null ? codecName.get() : "");
+        PVUnion codecParameters = codec != null ? codec.getSubField(PVUnion.class, "parameters") : null;
+        PVInt codecParameter = codecParameters != null ? codecParameters.get(PVInt.class) : null;
+        ensureHeader(20);
+        header.putInt(codecParameter != null ? codecParameter.get() : -1);
+        header.putLong(getLong(pvs, "compressedSize", payloadLength));
+        header.putLong(getLong(pvs, "uncompressedSize", payloadLength));
+        putDimensions(pvs.getSubField(PVStructureArray.class, "dimension"));
+        putAttributes(pvs.getSubField(PVStructureArray.class, "attribute"));
+        int metadataLength = header.position() - RECORD_HEADER_BYTES;
+        header.putInt(4, metadataLength);
+        header.flip();
+
+        if (frames == 0) startTime = System.nanoTime();
+        long recordOffset = position;
+        record[0] = header;
+        record[1] = payload;
+        long length = header.remaining() + payloadLength;
+        long written = 0;
+        while (written < length) written += data.write(record);
+        position += length;
+
+        indexEntry.clear();
+        indexEntry.putLong(recordOffset);
+        indexEntry.putLong(timeStamp);
+        indexEntry.putInt(uniqueId);
+        indexEntry.putInt(metadataLength);
+        indexEntry.putLong(payloadLength);
+        indexEntry.flip();
+        writeFully(index, indexEntry);
+        frames++;
+        bytesWritten += length;
+        return true;
+    }
+
+    /**
+     * Close the files.  Further frames are ignored.
+     * @throws IOException If closing fails.
+     */
+    public synchronized void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        try {
+            dataFile.close();
+        } finally {
+            indexFile.close();
+        }
+    }
+
+    // The value as bytes: the pvData array itself for byte arrays, otherwise a copy in the native order
+    private ByteBuffer payload(PVScalarArray value, ScalarType type)
+    {
+        int n = value.getLength();
+        if (type == ScalarType.pvByte || type == ScalarType.pvUByte) {
+            if (type == ScalarType.pvByte)
+                ((PVByteArray)value).get(0, n, byteData);
+            else
+                ((PVUByteArray)value).get(0, n, byteData);
+            return ByteBuffer.wrap(byteData.data, byteData.offset, n);
+        }
+        int elementBytes;
+        switch (type) {
+            case pvShort: case pvUShort: elementBytes = 2; break;
+            case pvInt: case pvUInt: case pvFloat: elementBytes = 4; break;
+            case pvLong: case pvULong: case pvDouble: elementBytes = 8; break;
+            default: return null;
+        }
+        if (converted.capacity() < (long)n * elementBytes)
+            converted = ByteBuffer.allocateDirect(n * elementBytes);
+        converted.clear();
+        converted.order(ByteOrder.nativeOrder());
+        switch (type) {
+            case pvShort: case pvUShort: {
+                ShortArrayData d = new ShortArrayData();
+                if (type == ScalarType.pvShort) ((PVShortArray)value).get(0, n, d); else ((PVUShortArray)value).get(0, n, d);
+                converted.asShortBuffer().put(d.data, d.offset, n);
+                break;
+            }
+            case pvInt: case pvUInt: {
+                IntArrayData d = new IntArrayData();
+                if (type == ScalarType.pvInt) ((PVIntArray)value).get(0, n, d); else ((PVUIntArray)value).get(0, n, d);
+                converted.asIntBuffer().put(d.data, d.offset, n);
+                break;
+            }
+            case pvLong: case pvULong: {
+                LongArrayData d = new LongArrayData();
+                if (type == ScalarType.pvLong) ((PVLongArray)value).get(0, n, d); else ((PVULongArray)value).get(0, n, d);
+                converted.asLongBuffer().put(d.data, d.offset, n);
+                break;
+            }
+            case pvFloat: {
+                FloatArrayData d = new FloatArrayData();
+                ((PVFloatArray)value).get(0, n, d);
+                converted.asFloatBuffer().put(d.data, d.offset, n);
+                break;
+            }
+            default: {
+                DoubleArrayData d = new DoubleArrayData();
+                ((PVDoubleArray)value).get(0, n, d);
+                converted.asDoubleBuffer().put(d.data, d.offset, n);
+                break;
+            }
+        }
+        converted.limit(n * elementBytes);
+        return converted;
+    }
+
+    // Writes secondsPastEpoch and nanoseconds and returns the time in nanoseconds
+    private long putTimeStamp(PVStructure timeStamp)
+    {
+        long seconds = timeStamp != null ? getLong(timeStamp, "secondsPastEpoch", 0) : 0;
+        int nanoseconds = timeStamp != null ? getInt(timeStamp, "nanoseconds", 0) : 0;
+        ensureHeader(12);
+        header.putLong(seconds);
+        header.putInt(nanoseconds);
+        return seconds * 1000000000L + nanoseconds;
+    }
+
+    private void putDimensions(PVStructureArray dimArray)
+    {
+        int ndim = dimArray != null ? dimArray.getLength() : 0;
+        ensureHeader(4 + 17 * ndim);
+        header.putInt(ndim);
+        if (ndim == 0) return;
+        dimArray.get(0, ndim, structData);
+        for (int i = 0; i < ndim; i++) {
+            PVStructure dim = structData.data[structData.offset + i];
+            header.putInt(getInt(dim, "size", 0));
+            header.putInt(getInt(dim, "offset", 0));
+            header.putInt(getInt(dim, "fullSize", 0));
+            header.putInt(getInt(dim, "binning", 1));
+            PVScalar reverse = dim.getSubField(PVScalar.class, "reverse");
+            header.put((byte)(reverse != null && convert.toString(reverse).equals("true") ? 1 : 0));
+        }
+    }
+
+    private void putAttributes(PVStructureArray attrArray)
+    {
+        int nattr = attrArray != null ? attrArray.getLength() : 0;
+        ensureHeader(4);
+        header.putInt(nattr);
+        if (nattr == 0) return;
+        attrArray.get(0, nattr, structData);
+        for (int i = 0; i < nattr; i++) {
+            PVStructure attr = structData.data[structData.offset + i];
+            putString(getString(attr, "name"));
+            putString(getString(attr, "descriptor"));
+            putString(getString(attr, "source"));
+            PVUnion pvUnion = attr.getSubField(PVUnion.class, "value");
+            PVScalar pvValue = pvUnion != null ? pvUnion.get(PVScalar.class) : null;
+            ensureHeader(8);
+            header.putInt(getInt(attr, "sourceType", 0));
+            header.putInt(pvValue != null ? pvValue.getScalar().getScalarType().ordinal() : -1);
+            putString(pvValue != null ? convert.toString(pvValue) : "");
+        }
+    }
+
+    private void putString(String s)
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        ensureHeader(4 + bytes.length);
+        header.putInt(bytes.length);
+        header.put(bytes);
+    }
+
+    // Grows the metadata buffer, keeping its contents, so that it has room for n more bytes
+    private void ensureHeader(int n)
+    {
+        if (header.remaining() >= n) return;
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * header.capacity(), header.position() + n));
+        header.flip();
+        larger.put(header);
+        header = larger;
+    }
+
+    private static int getInt(PVStructure pvs, String name, int defaultValue)
+    {
+        PVScalar pv = pvs.getSubField(PVScalar.class, name);
+        return pv != null ? convert.toInt(pv) : defaultValue;
+    }
+
+    private static long getLong(PVStructure pvs, String name, long defaultValue)
+    {
+        PVScalar pv = pvs.getSubField(PVScalar.class, name);
+        return pv != null ? convert.toLong(pv) : defaultValue;
+    }
+
+    private static String getString(PVStructure pvs, String name)
+    {
+        PVString pv = pvs.getSubField(PVString.class, name);
+        return pv != null && pv.get() != null ? pv.get() : "";
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+}
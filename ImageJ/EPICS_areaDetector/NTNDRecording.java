@@ -0,0 +1,441 @@
+// NTNDRecording.java
+//
+// Reads the recordings written by NTNDRecorder through memory mappings of the
+// data and index files, and rebuilds NTNDArrays from them.
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.epics.nt.NTNDArray;
+import org.epics.pvdata.factory.ConvertFactory;
+import org.epics.pvdata.factory.PVDataFactory;
+import org.epics.pvdata.pv.Convert;
+import org.epics.pvdata.pv.PVBoolean;
+import org.epics.pvdata.pv.PVByteArray;
+import org.epics.pvdata.pv.PVDataCreate;
+import org.epics.pvdata.pv.PVDoubleArray;
+import org.epics.pvdata.pv.PVFloatArray;
+import org.epics.pvdata.pv.PVInt;
+import org.epics.pvdata.pv.PVIntArray;
+import org.epics.pvdata.pv.PVLong;
+import org.epics.pvdata.pv.PVLongArray;
+import org.epics.pvdata.pv.PVScalar;
+import org.epics.pvdata.pv.PVShortArray;
+import org.epics.pvdata.pv.PVString;
+import org.epics.pvdata.pv.PVStructure;
+import org.epics.pvdata.pv.PVStructureArray;
+import org.epics.pvdata.pv.PVUByteArray;
+import org.epics.pvdata.pv.PVUIntArray;
+import org.epics.pvdata.pv.PVULongArray;
+import org.epics.pvdata.pv.PVUShortArray;
+import org.epics.pvdata.pv.PVUnion;
+import org.epics.pvdata.pv.ScalarType;
+
+/**
+ * A recording written by NTNDRecorder, opened for random access.
+ * <p>
+ * The index file and the data file are memory-mapped when the recording is opened; the data file is mapped
+ * in segments of at most MAX_SEGMENT_BYTES that each hold whole records, so recordings of any size can be
+ * read.  Opening only reads the index.  Frames are found by index, or by timestamp with a binary search
+ * of the index, which assumes that the timestamps do not decrease.
+ * <p>
+ * getFrame() parses the metadata of one record and returns its payload as a view of the mapping, without
+ * copying it; toNTNDArray() rebuilds the NTNDArray as it was received, still compressed, so that it can be
+ * decoded and displayed exactly like a live array.  The methods only read the mappings, so several threads
+ * can read frames at the same time.
+ */
+public class NTNDRecording
+{
+    /** The largest mapping of the data file */
+    public static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private static Convert convert = ConvertFactory.getConvert();
+    private static PVDataCreate pvDataCreate = PVDataFactory.getPVDataCreate();
+    // The fields of the value union of an NTNDArray, by ScalarType ordinal
+    private static final String[] VALUE_FIELDS = {"booleanValue", "byteValue", "shortValue", "intValue", "longValue",
+        "ubyteValue", "ushortValue", "uintValue", "ulongValue", "floatValue", "doubleValue", "stringValue"};
+
+    private final File file;
+    private final ByteBuffer index;
+    private final int frames;
+    private final MappedByteBuffer[] segments;
+    private final long[] segmentStarts;
+    private final ByteOrder payloadOrder;
+
+    /**
+     * One frame of a recording.
+     */
+    public static class Frame
+    {
+        /** The position of the frame in the recording, from 0 */
+        public int index;
+        /** The uniqueId of the array */
+        public int uniqueId;
+        /** timeStamp and dataTimeStamp */
+        public long secondsPastEpoch, dataSecondsPastEpoch;
+        /** timeStamp and dataTimeStamp */
+        public int nanoseconds, dataNanoseconds;
+        /** The type of the value array */
+        public ScalarType valueType;
+        /** The codec name, empty if the payload is not compressed */
+        public String codec;
+        /** The codec parameter: the ScalarType ordinal of the decompressed array, -1 if none */
+        public int codecParameter;
+        /** compressedSize and uncompressedSize */
+        public long compressedSize, uncompressedSize;
+        /** The dimensions: size, offset, fullSize and binning of each */
+        public int[][] dimensions;
+        /** The reverse flag of each dimension */
+        public boolean[] reverse;
+        /** The attributes */
+        public List<Attribute> attributes = new ArrayList<Attribute>();
+        /** The payload, a read-only view of the mapping in the byte order of the recording */
+        public ByteBuffer payload;
+    }
+
+    /**
+     * An attribute of a frame.
+     */
+    public static class Attribute
+    {
+        public String name, descriptor, source, value;
+        public int sourceType;
+        /** The ScalarType ordinal of the value, -1 if it was not a scalar */
+        public int type;
+    }
+
+    /**
+     * Open a recording.
+     * @param file The data file; its index file is NTNDRecorder.getIndexFile(file).
+     * @throws IOException If the files cannot be read or are not a recording.
+     */
+    public NTNDRecording(File file) throws IOException
+    {
+        this.file = file;
+        RandomAccessFile indexFile = new RandomAccessFile(NTNDRecorder.getIndexFile(file), "r");
+        RandomAccessFile dataFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel indexChannel = indexFile.getChannel();
+            int magicLength = NTNDRecorder.INDEX_MAGIC.length();
+            long indexBytes = indexChannel.size() - magicLength;
+            if (indexBytes < 0 || indexBytes / NTNDRecorder.INDEX_ENTRY_BYTES > Integer.MAX_VALUE)
+                throw new IOException("Not a recording index: " + NTNDRecorder.getIndexFile(file));
+            // A frame being written when the recording stopped may have a partial entry
+            frames = (int)(indexBytes / NTNDRecorder.INDEX_ENTRY_BYTES);
+            index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, magicLength + (long)frames * NTNDRecorder.INDEX_ENTRY_BYTES);
+            checkMagic(index, NTNDRecorder.INDEX_MAGIC);
+
+            FileChannel dataChannel = dataFile.getChannel();
+            ByteBuffer start = ByteBuffer.allocate(NTNDRecorder.DATA_MAGIC.length() + 5);
+            while (start.hasRemaining() && dataChannel.read(start) >= 0) { }
+            start.flip();
+            if (start.remaining() < start.capacity()) throw new IOException("Not a recording: " + file);
+            checkMagic(start, NTNDRecorder.DATA_MAGIC);
+            int version = start.getInt();
+            if (version != NTNDRecorder.FORMAT_VERSION) throw new IOException("Unknown recording version " + version);
+            payloadOrder = start.get() == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+            // Segments start at record boundaries, so that no record spans two mappings
+            List<Long> starts = new ArrayList<Long>();
+            List<Long> ends = new ArrayList<Long>();
+            for (int i = 0; i < frames; i++) {
+                long offset = getRecordOffset(i);
+                long end = offset + NTNDRecorder.RECORD_HEADER_BYTES + getMetadataLength(i) + getPayloadLength(i);
+                if (end > dataChannel.size()) throw new IOException("Recording truncated at frame " + i);
+                int last = starts.size() - 1;
+                if (last < 0 || end - starts.get(last) > MAX_SEGMENT_BYTES) {
+                    starts.add(offset);
+                    ends.add(end);
+                } else
+                    ends.set(last, end);
+            }
+            segments = new MappedByteBuffer[starts.size()];
+            segmentStarts = new long[starts.size()];
+            for (int s = 0; s < segments.length; s++) {
+                segmentStarts[s] = starts.get(s);
+                long length = ends.get(s) - segmentStarts[s];
+                if (length > Integer.MAX_VALUE) throw new IOException("Frame larger than 2 GB");
+                segments[s] = dataChannel.map(FileChannel.MapMode.READ_ONLY, segmentStarts[s], length);
+            }
+        } finally {
+            indexFile.close();      // the mappings stay valid
+            dataFile.close();
+        }
+    }
+
+    /**
+     * @return The data file.
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return The number of frames.
+     */
+    public int getFrameCount()
+    {
+        return frames;
+    }
+
+    /**
+     * @return The timeStamp of frame i in nanoseconds since the epoch, 0 if the array had no timeStamp.
+     */
+    public long getTimeStamp(int i)
+    {
+        return index.getLong(entry(i) + 8);
+    }
+
+    /**
+     * @return The uniqueId of frame i.
+     */
+    public int getUniqueId(int i)
+    {
+        return index.getInt(entry(i) + 16);
+    }
+
+    /**
+     * @param timeStamp A time in nanoseconds since the epoch.
+     * @return The first frame with a timeStamp at or after the time, getFrameCount() if there is none.
+     */
+    public int findFrame(long timeStamp)
+    {
+        int low = 0, high = frames;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getTimeStamp(middle) < timeStamp)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Read the metadata of a frame.
+     * @param i The frame, 0 &lt;= i &lt; getFrameCount().
+     * @return The frame, with its payload as a view of the mapping.
+     */
+    public Frame getFrame(int i)
+    {
+        long offset = getRecordOffset(i);
+        int s = segmentOf(offset);
+        ByteBuffer record = segments[s].duplicate();
+        record.position((int)(offset - segmentStarts[s]));
+        if (record.getInt() != NTNDRecorder.RECORD_MAGIC) throw new IllegalStateException("Bad record " + i + " in " + file);
+        int metadataLength = record.getInt();
+        long payloadLength = record.getLong();
+        Frame frame = new Frame();
+        frame.index = i;
+        frame.uniqueId = record.getInt();
+        frame.secondsPastEpoch = record.getLong();
+        frame.nanoseconds = record.getInt();
+        frame.dataSecondsPastEpoch = record.getLong();
+        frame.dataNanoseconds = record.getInt();
+        frame.valueType = ScalarType.values()[record.getInt()];
+        frame.codec = getString(record);
+        frame.codecParameter = record.getInt();
+        frame.compressedSize = record.getLong();
+        frame.uncompressedSize = record.getLong();
+        int ndim = record.getInt();
+        frame.dimensions = new int[ndim][4];
+        frame.reverse = new boolean[ndim];
+        for (int d = 0; d < ndim; d++) {
+            for (int k = 0; k < 4; k++) frame.dimensions[d][k] = record.getInt();
+            frame.reverse[d] = record.get() != 0;
+        }
+        int nattr = record.getInt();
+        for (int a = 0; a < nattr; a++) {
+            Attribute attribute = new Attribute();
+            attribute.name = getString(record);
+            attribute.descriptor = getString(record);
+            attribute.source = getString(record);
+            attribute.sourceType = record.getInt();
+            attribute.type = record.getInt();
+            attribute.value = getString(record);
+            frame.attributes.add(attribute);
+        }
+        record.position((int)(offset - segmentStarts[s]) + NTNDRecorder.RECORD_HEADER_BYTES + metadataLength);
+        record.limit(record.position() + (int)payloadLength);
+        frame.payload = record.slice().asReadOnlyBuffer();
+        frame.payload.order(payloadOrder);
+        return frame;
+    }
+
+    /**
+     * Rebuild the NTNDArray of a frame as it was received.  The payload is copied into the value array.
+     * @param frame A frame from getFrame().
+     * @return The NTNDArray, with a timeStamp.
+     */
+    public static PVStructure toNTNDArray(Frame frame)
+    {
+        NTNDArray ntndArray = NTNDArray.createBuilder().addTimeStamp().create();
+        PVStructure pvs = ntndArray.getPVStructure();
+        setValue(ntndArray.getValue(), frame.valueType, frame.payload.duplicate().order(frame.payload.order()));
+        PVStructure codec = ntndArray.getCodec();
+        codec.getSubField(PVString.class, "name").put(frame.codec);
+        if (frame.codecParameter >= 0) {
+            PVInt parameter = (PVInt)pvDataCreate.createPVScalar(ScalarType.pvInt);
+            parameter.put(frame.codecParameter);
+            codec.getSubField(PVUnion.class, "parameters").set(parameter);
+        }
+        ntndArray.getCompressedDataSize().put(frame.compressedSize);
+        ntndArray.getUncompressedDataSize().put(frame.uncompressedSize);
+        ntndArray.getUniqueId().put(frame.uniqueId);
+        setTimeStamp(ntndArray.getTimeStamp(), frame.secondsPastEpoch, frame.nanoseconds);
+        setTimeStamp(ntndArray.getDataTimeStamp(), frame.dataSecondsPastEpoch, frame.dataNanoseconds);
+
+        PVStructureArray dimArray = ntndArray.getDimension();
+        PVStructure[] dims = new PVStructure[frame.dimensions.length];
+        for (int d = 0; d < dims.length; d++) {
+            dims[d] = pvDataCreate.createPVStructure(dimArray.getStructureArray().getStructure());
+            dims[d].getSubField(PVInt.class, "size").put(frame.dimensions[d][0]);
+            dims[d].getSubField(PVInt.class, "offset").put(frame.dimensions[d][1]);
+            dims[d].getSubField(PVInt.class, "fullSize").put(frame.dimensions[d][2]);
+            dims[d].getSubField(PVInt.class, "binning").put(frame.dimensions[d][3]);
+            dims[d].getSubField(PVBoolean.class, "reverse").put(frame.reverse[d]);
+        }
+        dimArray.put(0, dims.length, dims, 0);
+
+        PVStructureArray attrArray = ntndArray.getAttribute();
+        PVStructure[] attrs = new PVStructure[frame.attributes.size()];
+        for (int a = 0; a < attrs.length; a++) {
+            Attribute attribute = frame.attributes.get(a);
+            attrs[a] = pvDataCreate.createPVStructure(attrArray.getStructureArray().getStructure());
+            attrs[a].getSubField(PVString.class, "name").put(attribute.name);
+            attrs[a].getSubField(PVString.class, "descriptor").put(attribute.descriptor);
+            attrs[a].getSubField(PVString.class, "source").put(attribute.source);
+            attrs[a].getSubField(PVInt.class, "sourceType").put(attribute.sourceType);
+            if (attribute.type >= 0) {
+                PVScalar value = pvDataCreate.createPVScalar(ScalarType.values()[attribute.type]);
+                convert.fromString(value, attribute.value);
+                attrs[a].getSubField(PVUnion.class, "value").set(value);
+            }
+        }
+        attrArray.put(0, attrs.length, attrs, 0);
+        return pvs;
+    }
+
+    // Copies the payload into a new array of the value type and selects it in the value union
+    private static void setValue(PVUnion value, ScalarType type, ByteBuffer payload)
+    {
+        int bytes = payload.remaining();
+        switch (type) {
+            case pvByte: case pvUByte: {
+                byte[] data = new byte[bytes];
+                payload.get(data);
+                if (type == ScalarType.pvByte)
+                    value.select(PVByteArray.class, VALUE_FIELDS[type.ordinal()]).shareData(data);
+                else
+                    value.select(PVUByteArray.class, VALUE_FIELDS[type.ordinal()]).shareData(data);
+                break;
+            }
+            case pvShort: case pvUShort: {
+                short[] data = new short[bytes / 2];
+                payload.asShortBuffer().get(data);
+                if (type == ScalarType.pvShort)
+                    value.select(PVShortArray.class, VALUE_FIELDS[type.ordinal()]).shareData(data);
+                else
+                    value.select(PVUShortArray.class, VALUE_FIELDS[type.ordinal()]).shareData(data);
+                break;
+            }
+            case pvInt: case pvUInt: {
+                int[] data = new int[bytes / 4];
+                payload.asIntBuffer().get(data);
+                if (type == ScalarType.pvInt)
+                    value.select(PVIntArray.class, VALUE_FIELDS[type.ordinal()]).shareData(data);
+                else
+                    value.select(PVUIntArray.class, VALUE_FIELDS[type.ordinal()]).shareData(data);
+                break;
+            }
+            case pvLong: case pvULong: {
+                long[] data = new long[bytes / 8];
+                payload.asLongBuffer().get(data);
+                if (type == ScalarType.pvLong)
+                    value.select(PVLongArray.class, VALUE_FIELDS[type.ordinal()]).shareData(data);
+                else
+                    value.select(PVULongArray.class, VALUE_FIELDS[type.ordinal()]).shareData(data);
+                break;
+            }
+            case pvFloat: {
+                float[] data = new float[bytes / 4];
+                payload.asFloatBuffer().get(data);
+                value.select(PVFloatArray.class, VALUE_FIELDS[type.ordinal()]).shareData(data);
+                break;
+            }
+            case pvDouble: {
+                double[] data = new double[bytes / 8];
+                payload.asDoubleBuffer().get(data);
+                value.select(PVDoubleArray.class, VALUE_FIELDS[type.ordinal()]).shareData(data);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported value type " + type);
+        }
+    }
+
+    private static void setTimeStamp(PVStructure timeStamp, long seconds, int nanoseconds)
+    {
+        if (timeStamp == null) return;
+        timeStamp.getSubField(PVLong.class, "secondsPastEpoch").put(seconds);
+        timeStamp.getSubField(PVInt.class, "nanoseconds").put(nanoseconds);
+    }
+
+    private int entry(int i)
+    {
+        if (i < 0 || i >= frames) throw new IndexOutOfBoundsException("Frame " + i + " of " + frames);
+        return NTNDRecorder.INDEX_MAGIC.length() + i * NTNDRecorder.INDEX_ENTRY_BYTES;
+    }
+
+    private long getRecordOffset(int i)
+    {
+        return index.getLong(entry(i));
+    }
+
+    private int getMetadataLength(int i)
+    {
+        return index.getInt(entry(i) + 20);
+    }
+
+    private long getPayloadLength(int i)
+    {
+        return index.getLong(entry(i) + 24);
+    }
+
+    // The last segment that starts at or before the offset
+    private int segmentOf(long offset)
+    {
+        int low = 0, high = segmentStarts.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segmentStarts[middle] <= offset)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+
+    private static String getString(ByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void checkMagic(ByteBuffer buffer, String magic) throws IOException
+    {
+        byte[] bytes = new byte[magic.length()];
+        buffer.get(bytes);
+        if (!magic.equals(new String(bytes, StandardCharsets.US_ASCII))) throw new IOException("Not a recording: missing " + magic);
+    }
+}
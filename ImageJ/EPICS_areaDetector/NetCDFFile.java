@@ -0,0 +1,364 @@
+// NetCDFFile.java
+//
+// The header of a NetCDF classic or 64-bit offset file, such as the files
+// written by NDFileNetCDF, read without any NetCDF library.
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The dimensions, attributes and variables of a NetCDF classic (CDF-1) or 64-bit offset (CDF-2) file.
+ * <p>
+ * Only the header is read, so opening takes the same time for files of any size; the data of a variable
+ * starts at Variable.begin, and for record variables each record adds getRecordSize() bytes.  The data are
+ * big-endian as the format requires.  A header that claims streaming (an unknown number of records) gets
+ * its record count from the file length.
+ */
+public class NetCDFFile
+{
+    /** External type codes */
+    public static final int NC_BYTE = 1, NC_CHAR = 2, NC_SHORT = 3, NC_INT = 4, NC_FLOAT = 5, NC_DOUBLE = 6;
+
+    private static final int NC_DIMENSION = 10, NC_VARIABLE = 11, NC_ATTRIBUTE = 12;
+    private static final int STREAMING = -1;
+    private static final int HEADER_GUESS = 64 * 1024;
+
+    private final File file;
+    private final long length;
+    private int version;        // 1 classic, 2 64-bit offset
+    private long numRecords;
+    private long recordSize;
+    private final List<Dimension> dimensions = new ArrayList<Dimension>();
+    private final List<Attribute> attributes = new ArrayList<Attribute>();
+    private final List<Variable> variables = new ArrayList<Variable>();
+
+    /** A dimension; the record dimension has length 0 in the header */
+    public static class Dimension
+    {
+        public final String name;
+        public final int length;
+        public final boolean isRecord;
+
+        Dimension(String name, int length)
+        {
+            this.name = name;
+            this.length = length;
+            isRecord = length == 0;
+        }
+    }
+
+    /** An attribute: a String for NC_CHAR, otherwise a byte[], short[], int[], float[] or double[] */
+    public static class Attribute
+    {
+        public final String name;
+        public final int type;
+        public final Object value;
+
+        Attribute(String name, int type, Object value)
+        {
+            this.name = name;
+            this.type = type;
+            this.value = value;
+        }
+
+        /**
+         * @return The first value as a double, or NaN for text or no values.
+         */
+        public double getNumber()
+        {
+            if (value instanceof String || java.lang.reflect.Array.getLength(value) == 0) return Double.NaN;
+            if (value instanceof byte[]) return ((byte[])value)[0];
+            if (value instanceof short[]) return ((short[])value)[0];
+            if (value instanceof int[]) return ((int[])value)[0];
+            if (value instanceof float[]) return ((float[])value)[0];
+            if (value instanceof double[]) return ((double[])value)[0];
+            return Double.NaN;
+        }
+    }
+
+    /** A variable */
+    public static class Variable
+    {
+        public final String name;
+        public final Dimension[] dimensions;
+        public final List<Attribute> attributes;
+        public final int type;
+        /** The bytes of the variable, or of one record of it, padded to 4 bytes */
+        public final long vsize;
+        /** The file offset of the data, or of the first record */
+        public final long begin;
+
+        Variable(String name, Dimension[] dimensions, List<Attribute> attributes, int type, long vsize, long begin)
+        {
+            this.name = name;
+            this.dimensions = dimensions;
+            this.attributes = attributes;
+            this.type = type;
+            this.vsize = vsize;
+            this.begin = begin;
+        }
+
+        /**
+         * @return true if the first dimension is the record dimension.
+         */
+        public boolean isRecord()
+        {
+            return dimensions.length > 0 && dimensions[0].isRecord;
+        }
+
+        /**
+         * @return The bytes of one value.
+         */
+        public int getElementSize()
+        {
+            return elementSize(type);
+        }
+    }
+
+    /**
+     * Read the header.
+     * @param file The file.
+     * @throws IOException If the file cannot be read or is not a NetCDF classic or 64-bit offset file.
+     */
+    public NetCDFFile(File file) throws IOException
+    {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            length = channel.size();
+            int guess = (int)Math.min(length, HEADER_GUESS);
+            while (true) {
+                ByteBuffer header = ByteBuffer.allocate(guess).order(ByteOrder.BIG_ENDIAN);
+                channel.read(header, 0);
+                header.flip();
+                dimensions.clear();
+                attributes.clear();
+                variables.clear();
+                try {
+                    readHeader(header);
+                    break;
+                } catch (BufferUnderflowException e) {
+                    if (guess >= length) throw new IOException(file + ": truncated NetCDF header");
+                    guess = (int)Math.min(length, Math.min((long)guess * 4, Integer.MAX_VALUE - 8));
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return The file.
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return true for the 64-bit offset format.
+     */
+    public boolean isOffset64()
+    {
+        return version == 2;
+    }
+
+    /**
+     * @return The number of records.
+     */
+    public long getNumRecords()
+    {
+        return numRecords;
+    }
+
+    /**
+     * @return The bytes from one record of a record variable to the next.
+     */
+    public long getRecordSize()
+    {
+        return recordSize;
+    }
+
+    public List<Dimension> getDimensions()
+    {
+        return Collections.unmodifiableList(dimensions);
+    }
+
+    /**
+     * @return The global attributes.
+     */
+    public List<Attribute> getAttributes()
+    {
+        return Collections.unmodifiableList(attributes);
+    }
+
+    public List<Variable> getVariables()
+    {
+        return Collections.unmodifiableList(variables);
+    }
+
+    /**
+     * @return The variable, or null.
+     */
+    public Variable getVariable(String name)
+    {
+        for (Variable v : variables) if (v.name.equals(name)) return v;
+        return null;
+    }
+
+    /**
+     * @return The global attribute, or null.
+     */
+    public Attribute getAttribute(String name)
+    {
+        return findAttribute(attributes, name);
+    }
+
+    /**
+     * @return The attribute in the list, or null.
+     */
+    public static Attribute findAttribute(List<Attribute> list, String name)
+    {
+        for (Attribute a : list) if (a.name.equals(name)) return a;
+        return null;
+    }
+
+    /**
+     * @return The bytes of one value of a type.
+     */
+    public static int elementSize(int type)
+    {
+        switch (type) {
+            case NC_BYTE:
+            case NC_CHAR: return 1;
+            case NC_SHORT: return 2;
+            case NC_INT:
+            case NC_FLOAT: return 4;
+            case NC_DOUBLE: return 8;
+            default: throw new IllegalArgumentException("NetCDF type " + type);
+        }
+    }
+
+    private void readHeader(ByteBuffer b) throws IOException
+    {
+        if (b.remaining() < 4 || b.get() != 'C' || b.get() != 'D' || b.get() != 'F')
+            throw new IOException(file + " is not a NetCDF file");
+        version = b.get();
+        if (version != 1 && version != 2)
+            throw new IOException(file + ": NetCDF format version " + version + " is not supported (HDF5-based NetCDF-4?)");
+        int n = b.getInt();
+        numRecords = n == STREAMING ? -1 : n & 0xffffffffL;
+        // dim_list
+        int tag = b.getInt();
+        int count = b.getInt();
+        if (tag != NC_DIMENSION && (tag != 0 || count != 0)) throw new IOException(file + ": bad dimension list");
+        for (int i = 0; i < count; i++) {
+            String name = readName(b);
+            dimensions.add(new Dimension(name, b.getInt()));
+        }
+        readAttributes(b, attributes);
+        // var_list
+        tag = b.getInt();
+        count = b.getInt();
+        if (tag != NC_VARIABLE && (tag != 0 || count != 0)) throw new IOException(file + ": bad variable list");
+        int numRecordVars = 0;
+        for (int i = 0; i < count; i++) {
+            String name = readName(b);
+            int rank = b.getInt();
+            Dimension[] dims = new Dimension[rank];
+            for (int d = 0; d < rank; d++) {
+                int id = b.getInt();
+                if (id < 0 || id >= dimensions.size()) throw new IOException(file + ": variable " + name + " has a bad dimension");
+                dims[d] = dimensions.get(id);
+            }
+            List<Attribute> varAttributes = new ArrayList<Attribute>();
+            readAttributes(b, varAttributes);
+            int type = b.getInt();
+            if (type < NC_BYTE || type > NC_DOUBLE) throw new IOException(file + ": variable " + name + " has bad type " + type);
+            long vsize = b.getInt() & 0xffffffffL;
+            long begin = version == 2 ? b.getLong() : b.getInt() & 0xffffffffL;
+            Variable v = new Variable(name, dims, varAttributes, type, vsize, begin);
+            variables.add(v);
+            if (v.isRecord()) {
+                numRecordVars++;
+                recordSize += vsize;
+            }
+        }
+        // With a single record variable the records are not padded
+        if (numRecordVars == 1) {
+            for (Variable v : variables) {
+                if (!v.isRecord()) continue;
+                long size = v.getElementSize();
+                for (int d = 1; d < v.dimensions.length; d++) size *= v.dimensions[d].length;
+                recordSize = size;
+            }
+        }
+        if (numRecords < 0) {
+            long firstRecord = Long.MAX_VALUE;
+            for (Variable v : variables) if (v.isRecord()) firstRecord = Math.min(firstRecord, v.begin);
+            numRecords = recordSize == 0 || firstRecord == Long.MAX_VALUE ? 0 : (length - firstRecord) / recordSize;
+        }
+    }
+
+    private void readAttributes(ByteBuffer b, List<Attribute> list) throws IOException
+    {
+        int tag = b.getInt();
+        int count = b.getInt();
+        if (tag != NC_ATTRIBUTE && (tag != 0 || count != 0)) throw new IOException(file + ": bad attribute list");
+        for (int i = 0; i < count; i++) {
+            String name = readName(b);
+            int type = b.getInt();
+            int n = b.getInt();
+            if (type < NC_BYTE || type > NC_DOUBLE) throw new IOException(file + ": attribute " + name + " has bad type " + type);
+            if (n < 0) throw new IOException(file + ": attribute " + name + " has bad length " + n);
+            if ((long)n * elementSize(type) > b.remaining()) throw new BufferUnderflowException();
+            Object value;
+            switch (type) {
+                case NC_BYTE: { byte[] v = new byte[n]; b.get(v); value = v; break; }
+                case NC_CHAR: {
+                    byte[] v = new byte[n];
+                    b.get(v);
+                    int end = n;
+                    while (end > 0 && v[end - 1] == 0) end--;
+                    value = new String(v, 0, end, StandardCharsets.UTF_8);
+                    break;
+                }
+                case NC_SHORT: { short[] v = new short[n]; b.asShortBuffer().get(v); b.position(b.position() + 2 * n); value = v; break; }
+                case NC_INT: { int[] v = new int[n]; b.asIntBuffer().get(v); b.position(b.position() + 4 * n); value = v; break; }
+                case NC_FLOAT: { float[] v = new float[n]; b.asFloatBuffer().get(v); b.position(b.position() + 4 * n); value = v; break; }
+                case NC_DOUBLE: { double[] v = new double[n]; b.asDoubleBuffer().get(v); b.position(b.position() + 8 * n); value = v; break; }
+                default: throw new IllegalStateException();
+            }
+            pad(b);
+            list.add(new Attribute(name, type, value));
+        }
+    }
+
+    private String readName(ByteBuffer b) throws IOException
+    {
+        int n = b.getInt();
+        if (n < 0) throw new IOException(file + ": bad name length " + n);
+        if (n > b.remaining()) throw new BufferUnderflowException();
+        byte[] bytes = new byte[n];
+        b.get(bytes);
+        pad(b);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Skip to the next 4-byte boundary
+    private static void pad(ByteBuffer b)
+    {
+        int p = (b.position() + 3) & ~3;
+        if (p > b.limit()) throw new BufferUnderflowException();
+        b.position(p);
+    }
+}
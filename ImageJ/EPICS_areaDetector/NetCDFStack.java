@@ -0,0 +1,312 @@
+// NetCDFStack.java
+//
+// A virtual stack of the frames of a variable in a NetCDF classic or 64-bit
+// offset file, read from a memory mapping of the file.
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * The frames of a NetCDF variable as an ImageJ virtual stack.
+ * <p>
+ * The last two dimensions of the variable are the height and width of the frames; every other index,
+ * records first, is a slice.  A record variable with one other dimension has frames of one row, one
+ * per record.  The file is mapped read-only in segments of SEGMENT_BYTES, which overlap
+ * by one frame so that every frame lies within one segment.  A segment is only mapped when a slice in it
+ * is first read, and getProcessor() only copies that slice out of the mapping, so opening a file takes
+ * the same time whatever its size and the heap only holds the slices that are displayed.
+ * <p>
+ * Bytes are read as unsigned, as images usually are, and shorts and ints as signed, as NetCDF defines
+ * them, unless an _Unsigned attribute of the variable or the dataType attribute that NDFileNetCDF writes
+ * says otherwise.  Unsigned bytes and shorts become 8-bit and 16-bit slices; all other types become
+ * 32-bit float slices.  If the file has a
+ * uniqueId record variable, as NDFileNetCDF writes, the slice labels are the uniqueIds.
+ */
+public class NetCDFStack extends VirtualStack
+{
+    /** The step between the starts of the mapped segments */
+    public static final long SEGMENT_BYTES = 1L << 30;
+
+    // NDDataType_t values in the dataType attribute of NDFileNetCDF
+    private static final int ND_INT8 = 0, ND_UINT16 = 3, ND_UINT32 = 5;
+
+    private final NetCDFFile netcdf;
+    private final NetCDFFile.Variable variable;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final boolean unsigned;
+    private final int frameBytes;
+    private final int slicesPerRecord;
+    private final int numSlices;
+    private final long fileLength;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final NetCDFFile.Variable uniqueId;
+
+    /**
+     * Constructor.  Opens the file but maps nothing yet.
+     * @param netcdf The header of the file.
+     * @param variable A variable of the file with at least two dimensions and a numeric type.
+     * @throws IOException If the file cannot be opened or the variable cannot be shown as a stack.
+     */
+    public NetCDFStack(NetCDFFile netcdf, NetCDFFile.Variable variable) throws IOException
+    {
+        super(frameWidth(variable), frameHeight(variable));
+        this.netcdf = netcdf;
+        this.variable = variable;
+        int rank = variable.dimensions.length;
+        width = frameWidth(variable);
+        height = frameHeight(variable);
+        if (variable.type == NetCDFFile.NC_CHAR) throw new IOException(variable.name + " is text");
+        long bytes = (long)width * height * variable.getElementSize();
+        if (bytes > Integer.MAX_VALUE - SEGMENT_BYTES) throw new IOException(variable.name + ": frame larger than 1 GB");
+        frameBytes = (int)bytes;
+        long perRecord = 1;
+        for (int d = variable.isRecord() ? 1 : 0; d < rank - 2; d++) perRecord *= variable.dimensions[d].length;
+        if (width < 1 || height < 1) throw new IOException(variable.name + ": frames of " + width + "x" + height + " pixels");
+        long slices = variable.isRecord() ? netcdf.getNumRecords() * perRecord : perRecord;
+        if (slices > Integer.MAX_VALUE) throw new IOException(variable.name + ": more than 2^31 frames");
+        slicesPerRecord = (int)perRecord;
+        numSlices = (int)slices;
+        unsigned = isUnsigned(netcdf, variable);
+        if (variable.type == NetCDFFile.NC_BYTE && unsigned)
+            bitDepth = 8;
+        else if (variable.type == NetCDFFile.NC_SHORT && unsigned)
+            bitDepth = 16;
+        else
+            bitDepth = 32;
+        NetCDFFile.Variable id = netcdf.getVariable("uniqueId");
+        uniqueId = id != null && id.isRecord() && id.dimensions.length == 1 && id.type == NetCDFFile.NC_INT
+            && variable.isRecord() ? id : null;
+        File file = netcdf.getFile();
+        fileLength = file.length();
+        segments = new MappedByteBuffer[(int)((fileLength + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+        channel = new RandomAccessFile(file, "r").getChannel();
+    }
+
+    /**
+     * @return true if bytes, shorts or ints of the variable are unsigned.
+     */
+    public static boolean isUnsigned(NetCDFFile netcdf, NetCDFFile.Variable variable)
+    {
+        NetCDFFile.Attribute u = NetCDFFile.findAttribute(variable.attributes, "_Unsigned");
+        if (u != null && u.value instanceof String) return ((String)u.value).equalsIgnoreCase("true");
+        NetCDFFile.Attribute dataType = netcdf.getAttribute("dataType");
+        if (dataType != null && !Double.isNaN(dataType.getNumber())) {
+            int t = (int)dataType.getNumber();
+            if (variable.type == NetCDFFile.NC_BYTE) return t != ND_INT8;
+            if (variable.type == NetCDFFile.NC_SHORT) return t == ND_UINT16;
+            if (variable.type == NetCDFFile.NC_INT) return t == ND_UINT32;
+            return false;
+        }
+        return variable.type == NetCDFFile.NC_BYTE;
+    }
+
+    /**
+     * @return The variable shown.
+     */
+    public NetCDFFile.Variable getVariable()
+    {
+        return variable;
+    }
+
+    /**
+     * @return The number of slices of each record, the product of the dimensions between the record
+     *         dimension and the frame.
+     */
+    public int getSlicesPerRecord()
+    {
+        return slicesPerRecord;
+    }
+
+    public int getSize()
+    {
+        return numSlices;
+    }
+
+    public int size()
+    {
+        return numSlices;
+    }
+
+    public int getBitDepth()
+    {
+        return bitDepth;
+    }
+
+    public String getSliceLabel(int n)
+    {
+        checkSlice(n);
+        if (uniqueId == null) return variable.name + ":" + n;
+        long record = (n - 1) / slicesPerRecord;
+        ByteBuffer b = view(uniqueId.begin + record * netcdf.getRecordSize(), 4);
+        String label = "" + b.getInt();
+        if (slicesPerRecord > 1) label += "." + ((n - 1) % slicesPerRecord + 1);
+        return label;
+    }
+
+    public void setSliceLabel(String label, int n)
+    {
+    }
+
+    public String getFileName(int n)
+    {
+        return getSliceLabel(n);
+    }
+
+    public String getDirectory()
+    {
+        File dir = netcdf.getFile().getAbsoluteFile().getParentFile();
+        return dir != null ? dir.getPath() + File.separator : null;
+    }
+
+    /**
+     * @return A processor with a copy of slice n, 1 &lt;= n &lt;= getSize().
+     */
+    public ImageProcessor getProcessor(int n)
+    {
+        Object pixels = getPixels(n);
+        switch (bitDepth) {
+            case 8: return new ByteProcessor(width, height, (byte[])pixels);
+            case 16: return new ShortProcessor(width, height, (short[])pixels, null);
+            default: return new FloatProcessor(width, height, (float[])pixels);
+        }
+    }
+
+    /**
+     * @return A copy of the pixels of slice n, 1 &lt;= n &lt;= getSize().
+     */
+    public Object getPixels(int n)
+    {
+        checkSlice(n);
+        ByteBuffer b = view(offset(n), frameBytes);
+        int size = width * height;
+        switch (variable.type) {
+            case NetCDFFile.NC_BYTE: {
+                byte[] bytes = new byte[size];
+                b.get(bytes);
+                if (bitDepth == 8) return bytes;
+                float[] pixels = new float[size];
+                for (int i = 0; i < size; i++) pixels[i] = bytes[i];
+                return pixels;
+            }
+            case NetCDFFile.NC_SHORT: {
+                short[] shorts = new short[size];
+                b.asShortBuffer().get(shorts);
+                if (bitDepth == 16) return shorts;
+                float[] pixels = new float[size];
+                for (int i = 0; i < size; i++) pixels[i] = shorts[i];
+                return pixels;
+            }
+            case NetCDFFile.NC_INT: {
+                int[] ints = new int[size];
+                b.asIntBuffer().get(ints);
+                float[] pixels = new float[size];
+                if (unsigned)
+                    for (int i = 0; i < size; i++) pixels[i] = ints[i] & 0xffffffffL;
+                else
+                    for (int i = 0; i < size; i++) pixels[i] = ints[i];
+                return pixels;
+            }
+            case NetCDFFile.NC_FLOAT: {
+                float[] pixels = new float[size];
+                b.asFloatBuffer().get(pixels);
+                return pixels;
+            }
+            default: {
+                double[] doubles = new double[size];
+                b.asDoubleBuffer().get(doubles);
+                float[] pixels = new float[size];
+                for (int i = 0; i < size; i++) pixels[i] = (float)doubles[i];
+                return pixels;
+            }
+        }
+    }
+
+    /**
+     * Unmap the file.  The mappings are released when they are garbage collected.
+     */
+    public void close()
+    {
+        synchronized (segments) {
+            for (int i = 0; i < segments.length; i++) segments[i] = null;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    public String toString()
+    {
+        return netcdf.getFile().getName() + ":" + variable.name + ": " + width + "x" + height + ", "
+            + bitDepth + "-bit, " + numSlices + " frames";
+    }
+
+    private static int frameWidth(NetCDFFile.Variable variable)
+    {
+        int rank = variable.dimensions.length;
+        if (rank < 2) throw new IllegalArgumentException(variable.name + " has fewer than 2 dimensions");
+        return variable.dimensions[rank - 1].length;
+    }
+
+    // The record dimension has no length in the header, so a record variable of rank 2 has frames of one row
+    private static int frameHeight(NetCDFFile.Variable variable)
+    {
+        int rank = variable.dimensions.length;
+        if (rank < 2) throw new IllegalArgumentException(variable.name + " has fewer than 2 dimensions");
+        return variable.isRecord() && rank == 2 ? 1 : variable.dimensions[rank - 2].length;
+    }
+
+    private void checkSlice(int n)
+    {
+        if (n < 1 || n > numSlices)
+            throw new IllegalArgumentException("Argument out of range: " + n);
+    }
+
+    // The file offset of slice n
+    private long offset(int n)
+    {
+        if (!variable.isRecord()) return variable.begin + (long)(n - 1) * frameBytes;
+        long record = (n - 1) / slicesPerRecord;
+        int k = (n - 1) % slicesPerRecord;
+        return variable.begin + record * netcdf.getRecordSize() + (long)k * frameBytes;
+    }
+
+    // A big-endian view of length bytes at a file offset, from the segment that holds them
+    private ByteBuffer view(long offset, int length)
+    {
+        if (offset < 0 || offset + length > fileLength)
+            throw new IllegalStateException(netcdf.getFile() + " is truncated at " + offset);
+        int s = (int)(offset / SEGMENT_BYTES);
+        MappedByteBuffer segment;
+        synchronized (segments) {
+            segment = segments[s];
+            if (segment == null) {
+                long start = s * SEGMENT_BYTES;
+                long size = Math.min(fileLength - start, SEGMENT_BYTES + Math.max(frameBytes, 8));
+                try {
+                    segment = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot map " + netcdf.getFile() + ": " + e.getMessage(), e);
+                }
+                segments[s] = segment;
+            }
+        }
+        ByteBuffer b = segment.duplicate();
+        b.position((int)(offset - (long)s * SEGMENT_BYTES));
+        b.limit(b.position() + length);
+        return b.slice().order(ByteOrder.BIG_ENDIAN);
+    }
+}
@@ -0,0 +1,60 @@
+import ij.*;
+import ij.plugin.PlugIn;
+import ij.io.OpenDialog;
+import ij.gui.GenericDialog;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This plugin opens a NetCDF classic or 64-bit offset file, such as those written by NDFileNetCDF,
+ * as a virtual stack that is read from a memory mapping of the file (see NetCDFStack).
+ * Only the header is read when the file is opened, so multi-GB captures open at once and do not
+ * need to fit in the heap.  The variable shown is array_data if the file has one; otherwise the
+ * user chooses among the numeric variables with at least two dimensions.
+ */
+public class NetCDF_Mapped_Reader implements PlugIn {
+    private static final String DATA_VARIABLE = "array_data";     //the variable NDFileNetCDF writes
+
+    public void run(String arg) {
+        OpenDialog od = new OpenDialog("Open NetCDF File", arg);
+        if (od.getFileName()==null) return;
+        File file = new File(od.getDirectory(), od.getFileName());
+        long start = System.nanoTime();
+        NetCDFFile netcdf;
+        try {
+            netcdf = new NetCDFFile(file);
+        } catch (Exception e) {
+            IJ.error("NetCDF Mapped Reader", e.getMessage()); return;
+        }
+        List<String> names = new ArrayList<String>();
+        for (NetCDFFile.Variable v : netcdf.getVariables())
+            if (v.dimensions.length>=2 && v.type!=NetCDFFile.NC_CHAR) names.add(v.name);
+        if (names.isEmpty()) {
+            IJ.error("NetCDF Mapped Reader", file.getName()+" has no variable with 2 or more dimensions"); return;
+        }
+        String name = names.contains(DATA_VARIABLE) ? DATA_VARIABLE : names.get(0);
+        if (!names.contains(DATA_VARIABLE) && names.size()>1) {
+            GenericDialog gd = new GenericDialog("NetCDF Mapped Reader");
+            gd.addChoice("Variable:", names.toArray(new String[0]), name);
+            gd.showDialog();
+            if (gd.wasCanceled()) return;
+            name = gd.getNextChoice();
+        }
+        NetCDFStack stack;
+        try {
+            stack = new NetCDFStack(netcdf, netcdf.getVariable(name));
+        } catch (Exception e) {
+            IJ.error("NetCDF Mapped Reader", e.getMessage()); return;
+        }
+        if (stack.getSize()==0) {
+            IJ.error("NetCDF Mapped Reader", file.getName()+": "+name+" has no frames"); return;
+        }
+        ImagePlus imp = new ImagePlus(file.getName(), stack);
+        if (stack.getSlicesPerRecord()>1)
+            imp.setDimensions(1, stack.getSlicesPerRecord(), stack.getSize()/stack.getSlicesPerRecord());
+        imp.show();
+        IJ.log(String.format("Opened %s: %s, %d frames of %dx%d in %.1f ms", file.getName(), name, stack.getSize(),
+            stack.getWidth(), stack.getHeight(), (System.nanoTime()-start)*1e-6));
+    }
+}
@@ -0,0 +1,192 @@
+// ProfileExtractor.java
+//
+// Fast extraction of line and rectangle profiles for the live profile plugins,
+// into arrays that are reused from one image to the next.
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import ij.gui.Line;
+import ij.gui.Roi;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Computes the same profiles as ImageJ's ProfilePlot without creating a new ProfilePlot,
+ * profile array and x array for every image:
+ * <ul>
+ * <li>For a rectangle, the average of each column (or of each row for a vertical profile).
+ *     The rectangle is read row by row straight from the pixel array, so a wide rectangle
+ *     costs one pass over its pixels.
+ * <li>For a straight line, the values sampled at unit spacing along the line as
+ *     ImageProcessor.getLine() does, interpolated or nearest pixel.  A line wider than one
+ *     pixel is averaged over samples perpendicular to it.
+ * </ul>
+ * The profile and x arrays keep their size while the profile length is unchanged, so they can be
+ * passed straight to Plot.  They are overwritten by the next call, and an extractor is not thread safe.
+ */
+public class ProfileExtractor
+{
+    private double[] profile = new double[0];
+    private double[] x = new double[0];
+    private int length;
+
+    /**
+     * Extract the profile of a selection.
+     * @param ip The image.
+     * @param roi The selection, a rectangle or a straight line.
+     * @param vertical For a rectangle, average the rows instead of the columns.
+     * @param interpolate For a line, interpolate between pixels instead of using the nearest pixel.
+     * @return The number of points in the profile, or 0 for other selections and empty rectangles.
+     */
+    public int extract(ImageProcessor ip, Roi roi, boolean vertical, boolean interpolate)
+    {
+        length = 0;
+        if (roi.getType() == Roi.RECTANGLE) {
+            Rectangle r = roi.getBounds().intersection(new Rectangle(ip.getWidth(), ip.getHeight()));
+            if (r.width < 1 || r.height < 1) return 0;
+            if (vertical)
+                rowAverages(ip, r);
+            else
+                columnAverages(ip, r);
+        } else if (roi.getType() == Roi.LINE) {
+            Line line = (Line)roi;
+            lineProfile(ip, line.x1d, line.y1d, line.x2d, line.y2d,
+                        Math.max(1, Math.round(roi.getStrokeWidth())), interpolate);
+        }
+        return length;
+    }
+
+    /**
+     * @return The profile from the last extract(), with exactly as many elements as it returned.
+     */
+    public double[] getProfile()
+    {
+        return profile;
+    }
+
+    /**
+     * Fill the x axis for the last profile.
+     * @param start The x value of the first point.
+     * @param inc The x increment between points.
+     * @return The x values, with as many elements as the profile.
+     */
+    public double[] getX(double start, double inc)
+    {
+        if (x.length != length) x = new double[length];
+        for (int i = 0; i < length; i++) x[i] = start + i * inc;
+        return x;
+    }
+
+    private void setLength(int n)
+    {
+        length = n;
+        if (profile.length != n) profile = new double[n];
+    }
+
+    private void columnAverages(ImageProcessor ip, Rectangle r)
+    {
+        setLength(r.width);
+        Arrays.fill(profile, 0.);
+        Object pixels = ip.getPixels();
+        float[] cTable = ip.getCalibrationTable();
+        int width = ip.getWidth();
+        if (cTable == null && pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            for (int y = r.y; y < r.y + r.height; y++) {
+                int offset = y * width + r.x;
+                for (int i = 0; i < r.width; i++) profile[i] += p[offset + i] & 0xffff;
+            }
+        } else if (cTable == null && pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            for (int y = r.y; y < r.y + r.height; y++) {
+                int offset = y * width + r.x;
+                for (int i = 0; i < r.width; i++) profile[i] += p[offset + i] & 0xff;
+            }
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[])pixels;
+            for (int y = r.y; y < r.y + r.height; y++) {
+                int offset = y * width + r.x;
+                for (int i = 0; i < r.width; i++) profile[i] += p[offset + i];
+            }
+        } else {
+            for (int y = r.y; y < r.y + r.height; y++)
+                for (int i = 0; i < r.width; i++) profile[i] += value(ip, pixels, cTable, y * width + r.x + i);
+        }
+        double scale = 1.0 / r.height;
+        for (int i = 0; i < r.width; i++) profile[i] *= scale;
+    }
+
+    private void rowAverages(ImageProcessor ip, Rectangle r)
+    {
+        setLength(r.height);
+        Object pixels = ip.getPixels();
+        float[] cTable = ip.getCalibrationTable();
+        int width = ip.getWidth();
+        for (int j = 0; j < r.height; j++) {
+            int offset = (r.y + j) * width + r.x;
+            double sum = 0;
+            if (cTable == null && pixels instanceof short[]) {
+                short[] p = (short[])pixels;
+                for (int i = 0; i < r.width; i++) sum += p[offset + i] & 0xffff;
+            } else if (cTable == null && pixels instanceof byte[]) {
+                byte[] p = (byte[])pixels;
+                for (int i = 0; i < r.width; i++) sum += p[offset + i] & 0xff;
+            } else if (pixels instanceof float[]) {
+                float[] p = (float[])pixels;
+                for (int i = 0; i < r.width; i++) sum += p[offset + i];
+            } else {
+                for (int i = 0; i < r.width; i++) sum += value(ip, pixels, cTable, offset + i);
+            }
+            profile[j] = sum / r.width;
+        }
+    }
+
+    // The value of one pixel as ImageProcessor.getPixelValue() returns it
+    private static double value(ImageProcessor ip, Object pixels, float[] cTable, int index)
+    {
+        if (pixels instanceof byte[]) {
+            int v = ((byte[])pixels)[index] & 0xff;
+            return cTable == null ? v : cTable[v];
+        }
+        if (pixels instanceof short[]) {
+            int v = ((short[])pixels)[index] & 0xffff;
+            return cTable == null ? v : cTable[v];
+        }
+        if (pixels instanceof float[]) return ((float[])pixels)[index];
+        int c = ((int[])pixels)[index];
+        double[] w = ColorProcessor.getWeightingFactors();
+        return ((c >> 16) & 0xff) * w[0] + ((c >> 8) & 0xff) * w[1] + (c & 0xff) * w[2];
+    }
+
+    // Samples at unit spacing from (x1, y1) to (x2, y2), with the same number of points as ImageProcessor.getLine()
+    private void lineProfile(ImageProcessor ip, double x1, double y1, double x2, double y2,
+                             int lineWidth, boolean interpolate)
+    {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        int n = (int)Math.round(Math.sqrt(dx * dx + dy * dy));
+        double xinc = n > 0 ? dx / n : 0;
+        double yinc = n > 0 ? dy / n : 0;
+        if (!((xinc == 0 && n == ip.getHeight()) || (yinc == 0 && n == ip.getWidth())))
+            n++;
+        setLength(n);
+        // Unit vector perpendicular to the line, for lines wider than one pixel
+        double px = -yinc, py = xinc;
+        double norm = Math.sqrt(px * px + py * py);
+        if (norm > 0) {
+            px /= norm;
+            py /= norm;
+        }
+        double first = -0.5 * (lineWidth - 1);
+        for (int i = 0; i < n; i++) {
+            double sum = 0;
+            for (int k = 0; k < lineWidth; k++) {
+                double rx = x1 + i * xinc + (first + k) * px;
+                double ry = y1 + i * yinc + (first + k) * py;
+                sum += interpolate ? ip.getInterpolatedValue(rx, ry)
+                                   : ip.getPixelValue((int)Math.round(rx), (int)Math.round(ry));
+            }
+            profile[i] = sum / lineWidth;
+        }
+    }
+}
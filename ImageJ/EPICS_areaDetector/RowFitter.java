@@ -0,0 +1,320 @@
+// RowFitter.java
+//
+// Fits a Gaussian peak or a slit independently to every row (or column) of a
+// rectangular region of an image, for spectroscopic images where each detector
+// row is a separate profile.  The profiles are divided among threads.
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Fits a model to each row of a rectangle, or to each column, and returns the parameters of every profile
+ * in the order of getColumns().  The x coordinate of a profile point is its pixel index in the image, so
+ * the centers and widths are in image pixel coordinates.  The models are:
+ * <ul>
+ * <li>GAUSSIAN: y = a + (b-a)*exp(-(x-c)^2/(2*d^2)), with a GaussianEstimator; the results are the center,
+ *     FWHM, amplitude, background and goodness, as FitHistory.COLUMNS.
+ * <li>SLIT_POSITIVE and SLIT_NEGATIVE: the bright or dark slit of SlitFitter; the results are the center,
+ *     the width of the slit in place of the FWHM, its height as the amplitude, the background at the
+ *     center, the goodness and the standard deviation of the edges, EDGE_SIGMA.
+ * </ul>
+ * <p>
+ * The profiles are divided into one stripe per thread.  Each stripe has its own estimator, slit fitter and
+ * profile arrays, and writes the results of its own profiles, so the result does not depend on the number
+ * of threads.  The closed-form estimate costs a few passes over each profile, so thousands of rows can be
+ * fitted at the camera rate; a slit fit is a Levenberg-Marquardt fit with up to SlitFitter.MAX_ITERATIONS
+ * iterations per attempt, so it is much slower.
+ * <p>
+ * An instance owns a thread pool and reuses its stripe tasks, so one instance should be
+ * created per analysis and used from one thread at a time.  Call shutdown() when done.
+ */
+public class RowFitter
+{
+    // Distance from the center, in standard deviations, beyond which the Gaussian is taken as 0
+    // by the goodness and the Levenberg-Marquardt step
+    private static final double TAIL_SIGMAS = 6;
+    // Columns read together in one pass down the rectangle, so that each image row is read
+    // in runs instead of one pixel per cache line
+    private static final int COLUMN_BLOCK = 16;
+
+    /** The Gaussian model */
+    public static final int GAUSSIAN = 0;
+    /** A bright slit */
+    public static final int SLIT_POSITIVE = 1;
+    /** A dark slit */
+    public static final int SLIT_NEGATIVE = 2;
+    /** The result column of the standard deviation of the edges of a slit, after the FitHistory columns */
+    public static final int EDGE_SIGMA = FitHistory.COLUMNS.length;
+    private static final String[] SLIT_COLUMNS =
+        {"Center", "Width", "Height", "Background", "Goodness", "Edge Sigma"};
+
+    private final ExecutorService executor;
+    private final List<Stripe> stripes = new ArrayList<Stripe>();
+
+    // The input and output of the current fit, shared by the stripe tasks
+    private ImageProcessor ip;
+    private Object pixels;
+    private float[] cTable;
+    private int imageWidth;
+    private Rectangle rect;
+    private boolean columns;
+    private float[][] results;
+    private boolean polish;
+    private int model = GAUSSIAN;
+
+    /**
+     * Constructor
+     * @param numThreads The number of stripes and threads, at least 1.
+     */
+    public RowFitter(int numThreads)
+    {
+        numThreads = Math.max(1, numThreads);
+        executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "RowFitter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (int i = 0; i < numThreads; i++) stripes.add(new Stripe());
+    }
+
+    /**
+     * @param polish If true, refine each closed-form estimate with one Levenberg-Marquardt step.
+     */
+    public void setPolish(boolean polish)
+    {
+        this.polish = polish;
+    }
+
+    /**
+     * @param model GAUSSIAN, SLIT_POSITIVE or SLIT_NEGATIVE.
+     */
+    public void setModel(int model)
+    {
+        this.model = model;
+    }
+
+    /**
+     * @param model GAUSSIAN, SLIT_POSITIVE or SLIT_NEGATIVE.
+     * @return The names of the results fit() returns for the model, in order.
+     */
+    public static String[] getColumns(int model)
+    {
+        return model == GAUSSIAN ? FitHistory.COLUMNS : SLIT_COLUMNS;
+    }
+
+    /**
+     * Stop the threads.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * @param r The rectangle.
+     * @param columns Fit the columns instead of the rows.
+     * @return The number of profiles fit() produces for the rectangle.
+     */
+    public static int getNumProfiles(Rectangle r, boolean columns)
+    {
+        return columns ? r.width : r.height;
+    }
+
+    /**
+     * Fit every row or column of a rectangle.
+     * @param ip The image.  Byte, short, float and RGB (as ImageProcessor.getPixelValue() returns it) are supported.
+     * @param r The rectangle, which must lie inside the image and be at least 3 pixels long in the fit direction.
+     * @param columns Fit the columns instead of the rows.
+     * @param results Receives the results, indexed by the FitHistory column constants (and EDGE_SIGMA for a
+     *                slit) and then by profile, the first row or column of the rectangle first.  There must be
+     *                an array for each of getColumns(), with at least getNumProfiles() elements.  A profile
+     *                without a Gaussian peak gets its moment estimate and a goodness of NaN; a profile too
+     *                short for a slit fit gets NaN.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for the stripes.
+     */
+    public void fit(ImageProcessor ip, Rectangle r, boolean columns, float[][] results) throws InterruptedException
+    {
+        this.ip = ip;
+        pixels = ip.getPixels();
+        cTable = ip.getCalibrationTable();
+        imageWidth = ip.getWidth();
+        rect = r;
+        this.columns = columns;
+        this.results = results;
+        int numProfiles = getNumProfiles(r, columns);
+        int numStripes = Math.min(stripes.size(), numProfiles);
+        int perStripe = (numProfiles + numStripes - 1) / numStripes;
+        List<Stripe> tasks = stripes.subList(0, numStripes);
+        for (int i = 0; i < numStripes; i++) {
+            Stripe s = tasks.get(i);
+            s.first = i * perStripe;
+            s.last = Math.min(numProfiles, (i + 1) * perStripe);
+        }
+        try {
+            for (java.util.concurrent.Future<Void> f : executor.invokeAll(tasks)) f.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            this.ip = null;
+            pixels = null;
+            this.results = null;
+        }
+    }
+
+    // Fits the profiles first to last-1
+    private class Stripe implements Callable<Void>
+    {
+        final GaussianEstimator estimator = new GaussianEstimator();
+        final double[] params = new double[GaussianEstimator.NUM_PARAMS];
+        final SlitFitter slitFitter = new SlitFitter();
+        final double[] slitParams = new double[SlitFitter.NUM_PARAMS];
+        double[] x = new double[0];
+        double[] y = new double[0];
+        double[] xWindow = new double[0];
+        double[] yWindow = new double[0];
+        double[] block = new double[0];
+        int first, last;
+
+        public Void call()
+        {
+            int n = columns ? rect.height : rect.width;
+            int start = columns ? rect.y : rect.x;
+            if (x.length != n) {
+                x = new double[n];
+                y = new double[n];
+            }
+            for (int i = 0; i < n; i++) x[i] = start + i;
+            if (!columns) {
+                for (int k = first; k < last; k++) {
+                    readRow(rect.x, rect.y + k, n, y);
+                    fitProfile(k, n);
+                }
+                return null;
+            }
+            if (block.length != COLUMN_BLOCK * n) block = new double[COLUMN_BLOCK * n];
+            for (int k0 = first; k0 < last; k0 += COLUMN_BLOCK) {
+                int count = Math.min(COLUMN_BLOCK, last - k0);
+                readColumns(rect.x + k0, count, rect.y, n);
+                for (int j = 0; j < count; j++) {
+                    System.arraycopy(block, j * n, y, 0, n);
+                    fitProfile(k0 + j, n);
+                }
+            }
+            return null;
+        }
+
+        void fitProfile(int k, int n)
+        {
+            if (model != GAUSSIAN) {
+                fitSlit(k, n);
+                return;
+            }
+            boolean peak = estimator.estimate(x, y, n, params);
+            if (peak && polish) refine(n);
+            double sigma = Math.abs(params[3]);
+            results[FitHistory.CENTER][k] = (float)params[2];
+            results[FitHistory.FWHM][k] = (float)(2 * Math.sqrt(2 * Math.log(2)) * sigma);
+            results[FitHistory.AMPLITUDE][k] = (float)(params[1] - params[0]);
+            results[FitHistory.BACKGROUND][k] = (float)params[0];
+            if (!peak || !(sigma > 0)) {
+                results[FitHistory.GOODNESS][k] = Float.NaN;
+                return;
+            }
+            // FitHistory.goodness() without storing the fitted curve.  Beyond TAIL_SIGMAS from the
+            // center the Gaussian is the background to within 2e-8 of the amplitude, so the exp()
+            // is only evaluated near the peak.
+            double sum = 0, sum2 = 0, sse = 0;
+            double near = TAIL_SIGMAS * sigma;
+            for (int i = 0; i < n; i++) {
+                sum += y[i];
+                sum2 += y[i] * y[i];
+                double d = y[i] - (Math.abs(x[i] - params[2]) < near ? GaussianEstimator.f(params, x[i]) : params[0]);
+                sse += d * d;
+            }
+            double ssd = sum2 - sum * sum / n;
+            int numParams = GaussianEstimator.NUM_PARAMS;
+            results[FitHistory.GOODNESS][k] = (n > numParams && ssd > 0)
+                ? (float)(1.0 - (sse / (n - numParams)) / ssd * (n - 1)) : Float.NaN;
+        }
+
+        void fitSlit(int k, int n)
+        {
+            if (n <= SlitFitter.NUM_PARAMS) {
+                for (float[] r : results) r[k] = Float.NaN;
+                return;
+            }
+            double[] p = slitParams;
+            slitFitter.fit(x, y, n, model == SLIT_POSITIVE, p);
+            results[FitHistory.CENTER][k] = (float)p[2];
+            results[FitHistory.FWHM][k] = (float)p[3];
+            results[FitHistory.AMPLITUDE][k] = (float)p[4];
+            results[FitHistory.BACKGROUND][k] = (float)(p[0] + p[1] * p[2]);
+            results[FitHistory.GOODNESS][k] = (float)slitFitter.getGoodness();
+            results[EDGE_SIGMA][k] = (float)p[5];
+        }
+
+        // The Levenberg-Marquardt step of GaussianEstimator, on the points within TAIL_SIGMAS of the center only,
+        // since the far tails cost as much as the peak but hardly change the fit
+        void refine(int n)
+        {
+            double near = TAIL_SIGMAS * Math.abs(params[3]);
+            int start = (int)x[0];
+            int i0 = Math.max(0, (int)Math.floor(params[2] - near) - start);
+            int i1 = Math.min(n, (int)Math.ceil(params[2] + near) - start + 1);
+            if (i1 - i0 <= GaussianEstimator.NUM_PARAMS) return;
+            if (xWindow.length < i1 - i0) {
+                xWindow = new double[n];
+                yWindow = new double[n];
+            }
+            System.arraycopy(x, i0, xWindow, 0, i1 - i0);
+            System.arraycopy(y, i0, yWindow, 0, i1 - i0);
+            estimator.refine(xWindow, yWindow, i1 - i0, params);
+        }
+
+        void readRow(int x0, int row, int n, double[] y)
+        {
+            int offset = row * imageWidth + x0;
+            if (cTable == null && pixels instanceof short[]) {
+                short[] p = (short[])pixels;
+                for (int i = 0; i < n; i++) y[i] = p[offset + i] & 0xffff;
+            } else if (cTable == null && pixels instanceof byte[]) {
+                byte[] p = (byte[])pixels;
+                for (int i = 0; i < n; i++) y[i] = p[offset + i] & 0xff;
+            } else if (pixels instanceof float[]) {
+                float[] p = (float[])pixels;
+                for (int i = 0; i < n; i++) y[i] = p[offset + i];
+            } else {
+                for (int i = 0; i < n; i++) y[i] = ip.getPixelValue(x0 + i, row);
+            }
+        }
+
+        // Read count columns starting at column0 into block, column j at j*n
+        void readColumns(int column0, int count, int y0, int n)
+        {
+            for (int i = 0; i < n; i++) {
+                int offset = (y0 + i) * imageWidth + column0;
+                if (cTable == null && pixels instanceof short[]) {
+                    short[] p = (short[])pixels;
+                    for (int j = 0; j < count; j++) block[j * n + i] = p[offset + j] & 0xffff;
+                } else if (cTable == null && pixels instanceof byte[]) {
+                    byte[] p = (byte[])pixels;
+                    for (int j = 0; j < count; j++) block[j * n + i] = p[offset + j] & 0xff;
+                } else if (pixels instanceof float[]) {
+                    float[] p = (float[])pixels;
+                    for (int j = 0; j < count; j++) block[j * n + i] = p[offset + j];
+                } else {
+                    for (int j = 0; j < count; j++) block[j * n + i] = ip.getPixelValue(column0 + j, y0 + i);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+import ij.*;
+import ij.plugin.PlugIn;
+import ij.process.*;
+import ij.gui.*;
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * This plugin fits a Gaussian peak, or a slit, independently to every row, or every column, inside a
+ * rectangular selection of a live image, for dispersive spectra where each detector row is a separate
+ * profile.  Each time the image or the selection changes all the profiles are fitted in parallel (see
+ * RowFitter), with the closed-form GaussianEstimator and optionally one Levenberg-Marquardt step, or with
+ * a SlitFitter per thread for the slit models.
+ *
+ * The results are shown as parameter images: a 32-bit stack with one slice each for the center, FWHM,
+ * amplitude, background and goodness of fit (the FitHistory columns).  The slit models fit a bright or dark
+ * slit with SlitFitter instead, and their slices are the center, width, height, background at the center,
+ * goodness and the standard deviation of the edges (RowFitter.getColumns()).  Each fitted frame adds one line
+ * per slice, so the images show the parameters of every profile against time over the last
+ * "history" frames.  For rows the profiles run down the image, aligned with the selection, and time runs
+ * to the right; for columns the profiles run across and time runs down.  A plot shows the center and the
+ * center +- FWHM/2 (or width/2 of a slit) of every profile of the latest frame.  Centers and widths are in pixels.
+ *
+ * On the image of a viewer that publishes on a FrameBus every frame the viewer receives is fitted, also
+ * the frames that the display skips, so each line of the parameter images is a frame of the source.
+ * When the fits fall behind by more than FrameBus.MAX_QUEUED frames the newer ones are dropped, and the
+ * status line counts them.  On other images the frames that arrive while a frame is being fitted are
+ * merged: the next fit uses the newest frame, so each line is a fitted frame rather than a frame of the
+ * source.  The images and the plot are redrawn at most DISPLAY_RATE times per second.
+ * The plugin stops when the image or the parameter images are closed.
+ */
+public class Row_Fitter implements PlugIn, ImageListener, RoiListener, Runnable, FrameBus.Subscriber {
+    //ImageListener: listens to changes (updateAndDraw) and closing of an image
+    //RoiListener: listens to changes of the selection
+    //Runnable: for background thread
+    //FrameBus.Subscriber: receives every frame of a viewer, also those that are not displayed
+    private ImagePlus imp;                  //the ImagePlus that we listen to
+    private Thread bgThread;                //thread for the fits (in the background)
+    private boolean doUpdate;               //tells the background thread to update
+    private FrameBus.Subscription subscription; //every frame of the viewer of imp, if it publishes them
+    private final Object fitLock = new Object(); //one fit at a time, from the frames or the selection
+    private boolean isClosed;               //set when the background thread exits; no fit after that
+    private RowFitter fitter;
+    private boolean columns;                //fit the columns instead of the rows
+    private int historyLength;              //number of frames in the parameter images
+    private Rectangle rect;                 //the rectangle of the current buffers
+    private String[] columnNames;           //the names of the fit results, RowFitter.getColumns()
+    private float[][] results;              //the latest fits, [column][profile]
+    private float[][] history;              //ring buffer of fits, [column][line*profiles + profile]
+    private int next;                       //next line of the ring buffer to write
+    private ImagePlus paramImp;             //the parameter images
+    private Plot plot;                      //center and width of each profile
+    private double[] xPlot, center, low, high;
+    private long lastDisplay;               //time the results were last shown, nanoseconds
+    private long rateStart;                 //start of the current rate measurement, nanoseconds
+    private int rateCount;                  //fits since rateStart
+    private double fitRate;                 //frames fitted per second
+    private double fitTime;                 //time to fit one frame, smoothed, milliseconds
+    private String lastError;               //the last failure logged, so a repeated one is logged once
+    private static final double DISPLAY_RATE = 10;
+    private static final String[] PROFILES = {"Rows", "Columns"};
+    private static final String[] FIT_METHODS = {"Fast estimate", "Fast estimate + LM step",
+            "Slit - Positive", "Slit - Negative"};
+    private static final String PROFILES_PREF = "row_fitter.profiles";
+    private static final String METHOD_PREF = "row_fitter.method";
+    private static final String HISTORY_PREF = "row_fitter.history";
+    private static final String THREADS_PREF = "row_fitter.threads";
+
+    /* Initialization and first fit. Later on, updates are triggered by the listeners **/
+    public void run(String arg) {
+        imp = WindowManager.getCurrentImage();
+        if (imp==null) {
+            IJ.noImage(); return;
+        }
+        if (!isSelection()) {
+            IJ.error("Row Fitter","Rectangular Selection Required"); return;
+        }
+        GenericDialog gd = new GenericDialog("Row Fitter");
+        gd.addChoice("Fit each of the:", PROFILES, Prefs.get(PROFILES_PREF, PROFILES[0]));
+        gd.addChoice("Fit method:", FIT_METHODS, Prefs.get(METHOD_PREF, FIT_METHODS[0]));
+        gd.addNumericField("History:", Prefs.get(HISTORY_PREF, 200), 0, 6, "frames");
+        gd.addNumericField("Threads:", Prefs.get(THREADS_PREF, Prefs.getThreads()), 0);
+        gd.showDialog();
+        if (gd.wasCanceled()) return;
+        columns = gd.getNextChoiceIndex() == 1;
+        int method = gd.getNextChoiceIndex();
+        historyLength = Math.max(1, (int)gd.getNextNumber());
+        int threads = Math.max(1, (int)gd.getNextNumber());
+        Prefs.set(PROFILES_PREF, PROFILES[columns ? 1 : 0]);
+        Prefs.set(METHOD_PREF, FIT_METHODS[method]);
+        Prefs.set(HISTORY_PREF, historyLength);
+        Prefs.set(THREADS_PREF, threads);
+        fitter = new RowFitter(threads);
+        fitter.setPolish(method == 1);
+        int model = method == 2 ? RowFitter.SLIT_POSITIVE
+            : method == 3 ? RowFitter.SLIT_NEGATIVE : RowFitter.GAUSSIAN;
+        fitter.setModel(model);
+        columnNames = RowFitter.getColumns(model);
+                                            // thread for the fits in the background
+        bgThread = new Thread(this, "Row Fitter");
+        bgThread.start();
+        FrameBus bus = FrameBus.find(imp.getTitle());
+        if (bus != null)
+            subscription = bus.subscribe(this, false, null);
+        imp.addImageListener(this);
+        Roi.addRoiListener(this);
+        synchronized(this) {
+            doUpdate = true;
+            notify();
+        }
+    }
+
+    public void imageOpened(ImagePlus imp) {}
+
+    // this listener is activated if the image content is changed (by imp.updateAndDraw);
+    // with a subscription the frames come from the bus instead
+    public synchronized void imageUpdated(ImagePlus imp) {
+        if (imp == this.imp && subscription == null) {
+            doUpdate = true;
+            notify();
+        }
+    }
+
+    // this listener is activated if the selection is moved, resized or deleted
+    public synchronized void roiModified(ImagePlus imp, int id) {
+        if (imp == this.imp) {
+            doUpdate = true;
+            notify();
+        }
+    }
+
+    // if the image we are listening to or the parameter images are closed, exit
+    public void imageClosed(ImagePlus imp) {
+        if (imp == this.imp || (paramImp != null && imp == paramImp)) {
+            imp.removeImageListener(this);
+            Roi.removeRoiListener(this);
+            if (subscription != null)
+                subscription.close();
+            bgThread.interrupt();
+        }
+    }
+
+    // this listener is activated for each frame of the viewer that shows the image, on its own thread
+    public void onFrame(FrameBus.Frame f) {
+        try {
+            fitAndLog(f.getProcessor());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the background thread for the fits.
+    public void run() {
+        try {
+            while (true) {
+                synchronized(this) {
+                    while (!doUpdate) wait();       //notify wakes up the thread
+                    doUpdate = false;
+                }
+                fitAndLog(imp.getProcessor());
+            }
+        } catch (InterruptedException e) {          //interrupted tells the thread to exit
+        } finally {
+            synchronized(fitLock) {
+                isClosed = true;
+                fitter.shutdown();
+            }
+        }
+    }
+
+    /** fit an image unless the plugin has stopped; a failure is logged once until a fit succeeds */
+    void fitAndLog(ImageProcessor ip) throws InterruptedException {
+        synchronized(fitLock) {
+            if (isClosed) return;
+            try {
+                fit(ip);
+                lastError = null;
+            } catch (RuntimeException e) {          //a failed stripe; log it and go on with the next frame
+                String error = e.getCause() != null ? e.getCause().toString() : e.toString();
+                if (!error.equals(lastError)) IJ.log("Row Fitter: fit failed: "+error);
+                lastError = error;
+            }
+        }
+    }
+
+    /** fit every profile of the selection of an image or frame and show the results if they are due */
+    void fit(ImageProcessor ip) throws InterruptedException {
+        if (!isSelection()) return;
+        Roi roi = imp.getRoi();
+        if (ip == null || roi == null) return;      //these may change asynchronously
+        Rectangle r = roi.getBounds().intersection(new Rectangle(ip.getWidth(), ip.getHeight()));
+        if ((columns ? r.height : r.width) < 3 || RowFitter.getNumProfiles(r, columns) < 1) return;
+        if (!r.equals(rect)) allocate(r);
+        long start = System.nanoTime();
+        fitter.fit(ip, r, columns, results);
+        int n = RowFitter.getNumProfiles(r, columns);
+        for (int c=0; c<results.length; c++)
+            System.arraycopy(results[c], 0, history[c], next*n, n);
+        next = (next+1) % historyLength;
+        long now = System.nanoTime();
+        double ms = (now - start)*1e-6;
+        fitTime = fitTime==0 ? ms : 0.9*fitTime + 0.1*ms;
+        rateCount++;
+        if (rateStart == 0) rateStart = now;
+        double elapsed = (now - rateStart)*1e-9;
+        if (elapsed >= 1) {
+            fitRate = rateCount/elapsed;
+            rateCount = 0;
+            rateStart = now;
+        }
+        if ((now - lastDisplay)*1e-9 < 1/DISPLAY_RATE) return;
+        lastDisplay = now;
+        showResults();
+    }
+
+    /** (re)allocate the buffers, parameter images and plot arrays for a new rectangle; the history is cleared */
+    void allocate(Rectangle r) {
+        rect = r;
+        int n = RowFitter.getNumProfiles(r, columns);
+        int numColumns = columnNames.length;
+        results = new float[numColumns][n];
+        history = new float[numColumns][historyLength*n];
+        for (float[] h : history) Arrays.fill(h, Float.NaN);
+        next = 0;
+        int width = columns ? n : historyLength;
+        int height = columns ? historyLength : n;
+        ImageStack stack = new ImageStack(width, height);
+        for (int c=0; c<numColumns; c++)
+            stack.addSlice(columnNames[c], new FloatProcessor(width, height));
+        if (paramImp == null) {
+            paramImp = new ImagePlus("Row Fits of "+imp.getShortTitle(), stack);
+        } else
+            paramImp.setStack(stack);
+        xPlot = new double[n];
+        center = new double[n];
+        low = new double[n];
+        high = new double[n];
+        int first = columns ? r.x : r.y;
+        for (int k=0; k<n; k++) xPlot[k] = first + k;
+        plot = null;
+    }
+
+    /** copy the history into the parameter images, oldest first, and redraw them and the plot */
+    void showResults() {
+        int n = RowFitter.getNumProfiles(rect, columns);
+        ImageStack stack = paramImp.getStack();
+        for (int c=0; c<history.length; c++) {
+            float[] pixels = (float[])stack.getPixels(c+1);
+            float[] h = history[c];
+            for (int t=0; t<historyLength; t++) {
+                int line = (next + t) % historyLength;
+                if (columns)
+                    System.arraycopy(h, line*n, pixels, t*n, n);
+                else
+                    for (int k=0; k<n; k++) pixels[k*historyLength + t] = h[line*n + k];
+            }
+        }
+        ImageProcessor ip = paramImp.getProcessor();
+        ip.setPixels(stack.getPixels(paramImp.getCurrentSlice()));
+        ip.resetMinAndMax();
+        if (paramImp.getWindow() == null) paramImp.show();
+        paramImp.updateAndDraw();
+
+        for (int k=0; k<n; k++) {
+            center[k] = results[FitHistory.CENTER][k];
+            double halfWidth = 0.5*results[FitHistory.FWHM][k];
+            low[k] = center[k] - halfWidth;
+            high[k] = center[k] + halfWidth;
+        }
+        String xLabel = columns ? "Column" : "Row";
+        if (plot == null || plot.getImagePlus() == null || plot.getImagePlus().getWindow() == null) {
+            // The plot objects are 0: center, 1 and 2: center -+ FWHM/2
+            String yLabel = "Center +- "+columnNames[FitHistory.FWHM]+"/2 (pixels)";
+            plot = new Plot("Row Fit Centers of "+imp.getShortTitle(), xLabel, yLabel);
+            plot.setColor(Color.BLUE);
+            plot.add("line", xPlot, center);
+            plot.setColor(Color.GRAY);
+            plot.add("line", xPlot, low);
+            plot.add("line", xPlot, high);
+            plot.show();
+        } else {
+            plot.setColor(Color.BLUE);
+            plot.replace(0, "line", xPlot, center);
+            plot.setColor(Color.GRAY);
+            plot.replace(1, "line", xPlot, low);
+            plot.replace(2, "line", xPlot, high);
+            plot.setLimitsToFit(true);      //also redraws the plot
+        }
+        String dropped = subscription == null ? "" :
+            String.format(", %d dropped", subscription.getDroppedFrames());
+        IJ.showStatus(String.format("Row Fitter: %d %s, %.2f ms per frame, %.1f frames/s%s", n,
+            columns ? "columns" : "rows", fitTime, fitRate, dropped));
+    }
+
+    /** returns true if there is a rectangular selection */
+    boolean isSelection() {
+        if (imp==null)
+            return false;
+        Roi roi = imp.getRoi();
+        if (roi==null)
+            return false;
+        return roi.getType()==Roi.RECTANGLE;
+    }
+}
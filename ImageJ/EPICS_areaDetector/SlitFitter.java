@@ -0,0 +1,221 @@
+// SlitFitter.java
+//
+// Bounded Levenberg-Marquardt fit of the slit (difference of error functions)
+// model with analytic derivatives, for the live slit alignment fits.
+import ij.util.IJMath;
+
+/**
+ * Fits y = a + b*x + e/2*erf((x-c+d/2)/(f*sqrt(2))) - e/2*erf((x-c-d/2)/(f*sqrt(2))), a slit of width d
+ * centered at c with edges blurred by a Gaussian of standard deviation f, height e and a linear background.
+ * A positive slit has e > 0 (a bright band); a negative slit has e < 0 (a dark band).
+ * <p>
+ * The fit uses LMSolver with the analytic partial derivatives of the model, so each iteration costs
+ * two erf() and two exp() per point.  The bounds are the same as the bounds that
+ * LiveFitter_EPICSUserCalc checked in its CurveFitter user function, computed once per profile from the
+ * x range and the maximum of the profile instead of on every evaluation:
+ * 0 &lt;= a &lt;= max(y), -3 &lt;= b &lt;= 3, 0 &lt;= c &lt;= x[n-1], 0.01 &lt;= d &lt;= x[n-1]-x[0],
+ * 1 &lt;= e &lt;= max(y) for a positive slit and e &lt;= -1 for a negative one, and 0.5 &lt;= f &lt;= 30.
+ * <p>
+ * The starting point is the background from the ends of the profile, the height from the extreme value,
+ * the center from the centroid and the width from the area.  If the fit goodness is below
+ * MIN_GOODNESS the fit is restarted with a lower background, up to MAX_ATTEMPTS times, as the
+ * CurveFitter version did.
+ * <p>
+ * A fitter keeps its work arrays between calls, so it is not thread safe; use one per thread.
+ */
+public class SlitFitter
+{
+    /** The number of parameters, a to f */
+    public static final int NUM_PARAMS = 6;
+    /** The maximum number of Levenberg-Marquardt iterations of one attempt */
+    public static final int MAX_ITERATIONS = 100;
+    /** A fit with a goodness below this is restarted */
+    public static final double MIN_GOODNESS = 0.7;
+    /** The maximum number of attempts */
+    public static final int MAX_ATTEMPTS = 4;
+
+    private static final double SQRT2 = Math.sqrt(2);
+    private static final double TWO_OVER_SQRT_PI = 2 / Math.sqrt(Math.PI);
+
+    private final LMSolver solver = new LMSolver(NUM_PARAMS);
+    private final SlitModel model = new SlitModel();
+    private final double[] lower = new double[NUM_PARAMS];
+    private final double[] upper = new double[NUM_PARAMS];
+    private final double[] start = new double[NUM_PARAMS];
+    private double goodness;
+    private int iterations;
+    private int attempts;
+
+    /**
+     * Constructor
+     */
+    public SlitFitter()
+    {
+        solver.setBounds(lower, upper);
+    }
+
+    /**
+     * Fit the slit model to a profile.
+     * @param x The x coordinates, increasing.
+     * @param y The profile values.
+     * @param n The number of points used from x and y.
+     * @param positive true for a bright slit (e &gt; 0), false for a dark slit (e &lt; 0).
+     * @param params Receives {a, b, c, d, e, f}; must have at least NUM_PARAMS elements.
+     * @return The status of the last LMSolver.solve(): LMSolver.SUCCESS if the fit converged.
+     */
+    public int fit(double[] x, double[] y, int n, boolean positive, double[] params)
+    {
+        setBounds(x, y, n, positive);
+        initialParams(x, y, n, positive, start);
+        model.x = x;
+        iterations = 0;
+        goodness = Double.NaN;
+        int status = LMSolver.STEP_FAILED;
+        for (attempts = 1; attempts <= MAX_ATTEMPTS; attempts++) {
+            System.arraycopy(start, 0, params, 0, NUM_PARAMS);
+            status = solver.solve(model, y, null, n, params, MAX_ITERATIONS);
+            iterations += solver.getIterations();
+            goodness = goodness(y, n, solver.getChiSquared());
+            if (goodness >= MIN_GOODNESS) break;
+            start[0] *= 0.9;
+        }
+        if (attempts > MAX_ATTEMPTS) attempts = MAX_ATTEMPTS;
+        return status;
+    }
+
+    /**
+     * @return The goodness of the last fit, as FitHistory.goodness() defines it.
+     */
+    public double getGoodness()
+    {
+        return goodness;
+    }
+
+    /**
+     * @return The total number of Levenberg-Marquardt iterations of the last fit, over all attempts.
+     */
+    public int getIterations()
+    {
+        return iterations;
+    }
+
+    /**
+     * @return The number of attempts of the last fit, 1 if the first attempt was good enough.
+     */
+    public int getAttempts()
+    {
+        return attempts;
+    }
+
+    /**
+     * @param p {a, b, c, d, e, f}
+     * @param x The x coordinate.
+     * @return The value of the slit model at x.
+     */
+    public static double f(double[] p, double x)
+    {
+        double s = p[5] * SQRT2;
+        return p[0] + p[1] * x + p[4] / 2 * (IJMath.erf((x - p[2] + p[3] / 2) / s) - IJMath.erf((x - p[2] - p[3] / 2) / s));
+    }
+
+    /**
+     * Starting parameters from the background at the ends of the profile and the area of the slit.
+     * @param x The x coordinates.
+     * @param y The profile values.
+     * @param n The number of points used from x and y.
+     * @param positive true for a bright slit, false for a dark slit.
+     * @param params Receives {a, b, c, d, e, f}.
+     */
+    public static void initialParams(double[] x, double[] y, int n, boolean positive, double[] params)
+    {
+        int m = Math.max(1, n / 20);
+        double background = 0;
+        for (int i = 0; i < m; i++) background += y[i] + y[n - 1 - i];
+        background /= 2 * m;
+        double extreme = y[0];
+        for (int i = 1; i < n; i++)
+            if (positive ? y[i] > extreme : y[i] < extreme) extreme = y[i];
+        double height = extreme - background;
+        // Centroid and area of the slit above (or below) the background
+        double sum = 0, sumX = 0;
+        for (int i = 0; i < n; i++) {
+            double v = positive ? y[i] - background : background - y[i];
+            if (v <= 0) continue;
+            sum += v;
+            sumX += v * x[i];
+        }
+        double xInc = n > 1 ? (x[n - 1] - x[0]) / (n - 1) : 1;
+        params[0] = background;
+        params[1] = 0;
+        params[2] = sum > 0 ? sumX / sum : 0.5 * (x[0] + x[n - 1]);
+        params[3] = height != 0 ? sum * xInc / Math.abs(height) : 0.5 * (x[n - 1] - x[0]);
+        params[4] = height;
+        params[5] = Math.min(30, Math.max(0.5, 0.1 * params[3]));
+    }
+
+    // The bounds of the user function of the CurveFitter version
+    private void setBounds(double[] x, double[] y, int n, boolean positive)
+    {
+        double yMax = y[0];
+        for (int i = 1; i < n; i++)
+            if (y[i] > yMax) yMax = y[i];
+        double xMin = x[0];
+        double xMax = x[n - 1];
+        lower[0] = 0;                   upper[0] = yMax;
+        lower[1] = -3;                  upper[1] = 3;
+        lower[2] = 0;                   upper[2] = xMax;
+        lower[3] = 0.01;                upper[3] = xMax - xMin;
+        if (positive) {
+            lower[4] = 1;               upper[4] = yMax;
+        } else {
+            lower[4] = Double.NEGATIVE_INFINITY;
+            upper[4] = -1;
+        }
+        lower[5] = 0.5;                 upper[5] = 30;
+    }
+
+    // FitHistory.goodness() from the sum of squared residuals
+    private static double goodness(double[] y, int n, double sse)
+    {
+        if (n <= NUM_PARAMS) return Double.NaN;
+        double sum = 0, sum2 = 0;
+        for (int i = 0; i < n; i++) {
+            sum += y[i];
+            sum2 += y[i] * y[i];
+        }
+        double ssd = sum2 - sum * sum / n;
+        if (!(ssd > 0)) return Double.NaN;
+        return 1.0 - (sse / (n - NUM_PARAMS)) / ssd * (n - 1);
+    }
+
+    /**
+     * The slit model with its analytic derivatives.  With s = f*sqrt(2), u1 = (x-c+d/2)/s,
+     * u2 = (x-c-d/2)/s and g(u) = 2/sqrt(pi)*exp(-u^2), the derivative of erf(u):
+     * dy/da = 1, dy/db = x, dy/dc = -e/(2s)*(g(u1)-g(u2)), dy/dd = e/(4s)*(g(u1)+g(u2)),
+     * dy/de = (erf(u1)-erf(u2))/2 and dy/df = -e/(2f)*(u1*g(u1)-u2*g(u2)).
+     */
+    private static class SlitModel implements LMSolver.Model
+    {
+        double[] x;
+        public double evaluate(double[] p, int i, double[] gradient)
+        {
+            double xi = x[i];
+            double inv = 1 / (p[5] * SQRT2);
+            double u1 = (xi - p[2] + p[3] / 2) * inv;
+            double u2 = (xi - p[2] - p[3] / 2) * inv;
+            double erfDiff = IJMath.erf(u1) - IJMath.erf(u2);
+            if (gradient != null) {
+                double g1 = TWO_OVER_SQRT_PI * Math.exp(-u1 * u1);
+                double g2 = TWO_OVER_SQRT_PI * Math.exp(-u2 * u2);
+                double half = p[4] / 2;
+                gradient[0] = 1;
+                gradient[1] = xi;
+                gradient[2] = -half * inv * (g1 - g2);
+                gradient[3] = 0.5 * half * inv * (g1 + g2);
+                gradient[4] = 0.5 * erfDiff;
+                gradient[5] = -half / p[5] * (u1 * g1 - u2 * g2);
+            }
+            return p[0] + p[1] * xi + p[4] / 2 * erfDiff;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+// StackFitter.java
+//
+// Fits the profile of the same selection in every slice of a stack, in
+// parallel on a fork-join pool, for the batch modes of the fitting plugins.
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+
+/**
+ * Extracts the profile of a selection from each slice of a stack and fits it.
+ * The slices are divided recursively among the workers of a ForkJoinPool.  Each worker
+ * thread has its own ProfileExtractor, arrays and ProfileFit, created by a ProfileFitFactory
+ * when the worker fits its first slice, so the fitters do not need to be thread safe.
+ */
+public class StackFitter
+{
+    /**
+     * Fits one profile.  Each worker thread has its own instance.
+     */
+    public interface ProfileFit
+    {
+        /**
+         * @param x The x values.
+         * @param y The profile.
+         * @param n The number of points.
+         * @return The fit parameters, or null if the fit failed.
+         */
+        double[] fit(double[] x, double[] y, int n);
+
+        /**
+         * @param params Parameters returned by fit().
+         * @param x The x value.
+         * @return The fitted function at x.
+         */
+        double f(double[] params, double x);
+    }
+
+    /**
+     * Creates a ProfileFit for each worker thread.
+     */
+    public interface ProfileFitFactory
+    {
+        ProfileFit create();
+    }
+
+    /**
+     * The fits of all slices.
+     */
+    public static class Result
+    {
+        /** The parameters of each slice, null for slices that could not be fitted */
+        public final double[][] params;
+        /** The goodness of each fit as FitHistory.goodness() computes it, NaN if not fitted */
+        public final double[] goodness;
+        /** The time taken by the whole stack, seconds */
+        public final double elapsedTime;
+        /** The number of worker threads */
+        public final int parallelism;
+
+        Result(double[][] params, double[] goodness, double elapsedTime, int parallelism)
+        {
+            this.params = params;
+            this.goodness = goodness;
+            this.elapsedTime = elapsedTime;
+            this.parallelism = parallelism;
+        }
+
+        /**
+         * @return The number of slices fitted per second.
+         */
+        public double getSlicesPerSecond()
+        {
+            return elapsedTime > 0 ? params.length / elapsedTime : 0;
+        }
+
+        /**
+         * Put the results into a table with one row per slice.
+         * @param names The names of the parameter columns, in parameter order.  Parameters beyond the
+         *              names are ignored.
+         * @return The table.
+         */
+        public ResultsTable toResultsTable(String[] names)
+        {
+            ResultsTable rt = new ResultsTable();
+            for (int s = 0; s < params.length; s++) {
+                rt.incrementCounter();
+                rt.addValue("Slice", s + 1);
+                for (int j = 0; j < names.length; j++)
+                    rt.addValue(names[j], (params[s] != null && j < params[s].length) ? params[s][j] : Double.NaN);
+                rt.addValue("Goodness", goodness[s]);
+            }
+            return rt;
+        }
+    }
+
+    /** Slices per task below which a task is not split further */
+    private static final int MIN_SLICES_PER_TASK = 2;
+
+    private final int parallelism;
+
+    /**
+     * Constructor
+     * @param parallelism The number of worker threads, at least 1.
+     */
+    public StackFitter(int parallelism)
+    {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Fit the profile of a selection in every slice of a stack.
+     * @param stack The stack.
+     * @param roi The selection, a rectangle or a straight line, as for ProfileExtractor.
+     * @param vertical For a rectangle, average the rows instead of the columns.
+     * @param interpolate For a line, interpolate between pixels.
+     * @param xStart The x value of the first profile point.
+     * @param xInc The x increment between profile points.
+     * @param factory Creates the fitter of each worker.
+     * @return The fits.
+     */
+    public Result fitStack(ImageStack stack, Roi roi, boolean vertical, boolean interpolate,
+                           double xStart, double xInc, ProfileFitFactory factory)
+    {
+        int slices = stack.getSize();
+        double[][] params = new double[slices][];
+        double[] goodness = new double[slices];
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            ThreadLocal<Worker> workers = new ThreadLocal<Worker>();
+            pool.invoke(new SliceTask(new Job(stack, roi, vertical, interpolate, xStart, xInc, factory, workers,
+                                              params, goodness), 0, slices));
+        } finally {
+            pool.shutdown();
+        }
+        return new Result(params, goodness, (System.nanoTime() - start) * 1e-9, parallelism);
+    }
+
+    // The inputs and outputs shared by all tasks of one fitStack() call
+    private static class Job
+    {
+        final ImageStack stack;
+        final Roi roi;
+        final boolean vertical, interpolate;
+        final double xStart, xInc;
+        final ProfileFitFactory factory;
+        final ThreadLocal<Worker> workers;
+        final double[][] params;
+        final double[] goodness;
+
+        Job(ImageStack stack, Roi roi, boolean vertical, boolean interpolate, double xStart, double xInc,
+            ProfileFitFactory factory, ThreadLocal<Worker> workers, double[][] params, double[] goodness)
+        {
+            this.stack = stack;
+            this.roi = roi;
+            this.vertical = vertical;
+            this.interpolate = interpolate;
+            this.xStart = xStart;
+            this.xInc = xInc;
+            this.factory = factory;
+            this.workers = workers;
+            this.params = params;
+            this.goodness = goodness;
+        }
+    }
+
+    // The per-thread state: the extractor, the fitter and the fitted curve
+    private static class Worker
+    {
+        final ProfileExtractor extractor = new ProfileExtractor();
+        final ProfileFit fit;
+        double[] yFit = new double[0];
+
+        Worker(ProfileFit fit)
+        {
+            this.fit = fit;
+        }
+
+        void fitSlice(Job job, int slice)
+        {
+            ImageProcessor ip;
+            if (job.stack.isVirtual()) {
+                // Virtual stacks read from files and are not safe for concurrent access
+                synchronized (job.stack) {
+                    ip = job.stack.getProcessor(slice + 1);
+                }
+            } else
+                ip = job.stack.getProcessor(slice + 1);
+            job.goodness[slice] = Double.NaN;
+            int n = extractor.extract(ip, job.roi, job.vertical, job.interpolate);
+            if (n < 2) return;
+            double[] y = extractor.getProfile();
+            double[] x = extractor.getX(job.xStart, job.xInc);
+            double[] p = fit.fit(x, y, n);
+            if (p == null) return;
+            if (yFit.length != n) yFit = new double[n];
+            for (int i = 0; i < n; i++) yFit[i] = fit.f(p, x[i]);
+            job.params[slice] = p;
+            job.goodness[slice] = FitHistory.goodness(y, yFit, n, p.length);
+        }
+    }
+
+    private static class SliceTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private final Job job;
+        private final int first, last;
+
+        SliceTask(Job job, int first, int last)
+        {
+            this.job = job;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (last - first > MIN_SLICES_PER_TASK) {
+                int middle = (first + last) >>> 1;
+                invokeAll(new SliceTask(job, first, middle), new SliceTask(job, middle, last));
+                return;
+            }
+            Worker worker = job.workers.get();
+            if (worker == null) {
+                worker = new Worker(job.factory.create());
+                job.workers.set(worker);
+            }
+            for (int s = first; s < last; s++) worker.fitSlice(job, s);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+// TiffStreamWriter.java
+//
+// Streams live frames from the viewer plugins to a multi-page TIFF file on a
+// background thread, switching to BigTIFF when the file passes 4 GB.
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes frames to a multi-page TIFF file as they arrive.
+ * <p>
+ * write() copies a frame into a direct buffer of WRITE_CHUNK_BYTES (or one frame, if that is larger) and
+ * returns; when a buffer is full a background thread writes it to the file in one sequential write.  The
+ * buffers come from a pool with the memory budget given to the constructor.  If the disk falls so far
+ * behind that every buffer is waiting to be written, write() drops the frame and counts it rather than
+ * block the thread that displays the frames.
+ * <p>
+ * The pixels are stored contiguously, uncompressed and in the native byte order, from byte 16 of the file,
+ * and close() appends the IFDs of all the pages after them.  So the header can only be written at the end,
+ * when the size of the file is known: it is a classic TIFF if the file is under 4 GB and a BigTIFF
+ * otherwise.  The first page has an ImageJ ImageDescription, so ImageJ opens a classic TIFF as a stack;
+ * BigTIFF files are opened with Bio-Formats or any other BigTIFF reader.  Until close() the file is not a
+ * valid TIFF.
+ */
+public class TiffStreamWriter
+{
+    /** The extension of the files */
+    public static final String EXTENSION = ".tif";
+    /** The size of the buffers handed to the writer thread, when frames are smaller */
+    public static final int WRITE_CHUNK_BYTES = 16 * 1024 * 1024;
+
+    private static final int DATA_OFFSET = 16;      // room for either header
+    private static final long CLASSIC_LIMIT = 0xffffffffL;
+    private static final short ASCII = 2, SHORT = 3, LONG = 4, LONG8 = 16;   // IFD entry types
+
+    private final File file;
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final int frameBytes;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> full;
+    private final Thread writer;
+    private ByteBuffer current;             // the buffer being filled by write()
+    private int frameCount;
+    private int droppedFrames;
+    private volatile long bytesWritten;
+    private volatile IOException error;
+    private long startTime;                 // System.nanoTime() of the first frame
+    private long endTime;                   // System.nanoTime() when the last buffer was written
+    private boolean closed;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /**
+     * Constructor.  Creates the file, replacing any existing file, and starts the writer thread.
+     * @param file The file.
+     * @param width The frame width.
+     * @param height The frame height.
+     * @param bitDepth 8, 16, 32 (float) or 24 (RGB), as ImagePlus.getBitDepth() returns it.
+     * @param bufferMB The memory for frames waiting to be written, MB.  At least two buffers are allocated.
+     * @throws IOException If the file cannot be created.
+     */
+    public TiffStreamWriter(File file, int width, int height, int bitDepth, double bufferMB) throws IOException
+    {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        long bytes = (long)width * height * (bitDepth == 8 ? 1 : bitDepth == 16 ? 2 : bitDepth == 24 ? 3 : 4);
+        if (bytes > Integer.MAX_VALUE) throw new IOException("Frame larger than 2 GB");
+        frameBytes = (int)bytes;
+        int framesPerBuffer = Math.max(1, WRITE_CHUNK_BYTES / frameBytes);
+        int bufferBytes = framesPerBuffer * frameBytes;
+        int numBuffers = (int)Math.max(2, Math.min(1024, bufferMB * 1024 * 1024 / bufferBytes));
+        free = new ArrayBlockingQueue<ByteBuffer>(numBuffers);
+        full = new ArrayBlockingQueue<ByteBuffer>(numBuffers + 1);
+        for (int i = 0; i < numBuffers; i++)
+            free.add(ByteBuffer.allocateDirect(bufferBytes).order(ByteOrder.nativeOrder()));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        channel.position(DATA_OFFSET);
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeBuffers();
+            }
+        }, "TiffStreamWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return The file.
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return true if frames of this size and type can be written.
+     */
+    public boolean matches(int width, int height, int bitDepth)
+    {
+        return width == this.width && height == this.height && bitDepth == this.bitDepth;
+    }
+
+    /**
+     * @return The number of frames written or waiting to be written.
+     */
+    public synchronized int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * @return The number of frames dropped because the disk could not keep up.
+     */
+    public synchronized int getDroppedFrames()
+    {
+        return droppedFrames;
+    }
+
+    /**
+     * @return The bytes of pixels written to the file so far.
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * @return The sustained rate from the first frame to the last write, MB/s.
+     */
+    public synchronized double getMBPerSecond()
+    {
+        long end = closed ? endTime : System.nanoTime();
+        if (frameCount == 0 || end <= startTime) return 0;
+        return bytesWritten / 1048576. / ((end - startTime) * 1e-9);
+    }
+
+    /**
+     * Queue a frame for writing.
+     * @param pixels The pixels, a byte[], short[], float[] or int[] (RGB) of width*height elements matching the bit depth.
+     * @return false if the frame was dropped because every buffer is waiting to be written, or if the
+     *         writer is closed.
+     * @throws IOException If writing has failed.
+     */
+    public synchronized boolean write(Object pixels) throws IOException
+    {
+        if (error != null) throw error;
+        if (closed) return false;
+        if (current == null) {
+            current = free.poll();
+            if (current == null) {
+                droppedFrames++;
+                return false;
+            }
+            current.clear();
+        }
+        if (frameCount == 0) startTime = System.nanoTime();
+        int n = width * height;
+        switch (bitDepth) {
+            case 8: current.put((byte[])pixels, 0, n); break;
+            case 16: {
+                current.asShortBuffer().put((short[])pixels, 0, n);
+                current.position(current.position() + frameBytes);
+                break;
+            }
+            case 24: {
+                int[] rgb = (int[])pixels;
+                for (int i = 0; i < n; i++) {
+                    int v = rgb[i];
+                    current.put((byte)(v >> 16)).put((byte)(v >> 8)).put((byte)v);
+                }
+                break;
+            }
+            default: {
+                current.asFloatBuffer().put((float[])pixels, 0, n);
+                current.position(current.position() + frameBytes);
+                break;
+            }
+        }
+        frameCount++;
+        if (current.remaining() < frameBytes) {
+            current.flip();
+            full.add(current);
+            current = null;
+        }
+        return true;
+    }
+
+    /**
+     * Write the frames still in memory, then the IFDs and the header, and close the file.
+     * @throws IOException If writing failed.
+     */
+    public void close() throws IOException
+    {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            if (current != null && current.position() > 0) {
+                current.flip();
+                full.add(current);
+            }
+            current = null;
+            full.add(END);
+        }
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        try {
+            if (error != null) throw error;
+            synchronized (this) {
+                if (endTime == 0) endTime = System.nanoTime();
+            }
+            writeDirectories();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // The writer thread
+    private void writeBuffers()
+    {
+        while (true) {
+            ByteBuffer buffer;
+            try {
+                buffer = full.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (buffer == END) return;
+            try {
+                if (error == null) {
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    bytesWritten = channel.position() - DATA_OFFSET;
+                    synchronized (this) {
+                        endTime = System.nanoTime();
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            free.add(buffer);
+        }
+    }
+
+    // Append the IFDs of all the pages and write the header
+    private void writeDirectories() throws IOException
+    {
+        long dataEnd = DATA_OFFSET + (long)frameCount * frameBytes;
+        byte[] description = ("ImageJ=1.54f\nimages=" + frameCount + "\nslices=" + frameCount + "\nloop=false\n\0")
+            .getBytes(StandardCharsets.US_ASCII);
+        // The description and the RGB BitsPerSample come first, then the IFDs; only the first IFD has the description
+        long descriptionOffset = dataEnd;
+        long bitsOffset = align(descriptionOffset + description.length);
+        long firstIfd = align(bitsOffset + 6);
+        int numEntries = 10 + (bitDepth == 16 || bitDepth == 32 ? 1 : 0);
+        boolean big = firstIfd + ifdBytes(numEntries + 1, false) + (frameCount - 1L) * ifdBytes(numEntries, false) > CLASSIC_LIMIT;
+        long firstIfdBytes = ifdBytes(numEntries + 1, big);
+        long ifdBytes = ifdBytes(numEntries, big);
+        channel.position(dataEnd);
+        ByteBuffer out = ByteBuffer.allocate(WRITE_CHUNK_BYTES).order(ByteOrder.nativeOrder());
+        out.put(description);
+        while (dataEnd + out.position() < bitsOffset) out.put((byte)0);
+        out.putShort((short)8).putShort((short)8).putShort((short)8);
+        while (dataEnd + out.position() < firstIfd) out.put((byte)0);
+        for (int page = 0; page < frameCount; page++) {
+            if (out.remaining() < firstIfdBytes) flush(out);
+            long next = page + 1 < frameCount ? firstIfd + firstIfdBytes + page * ifdBytes : 0;
+            if (big)
+                out.putLong(page == 0 ? numEntries + 1 : numEntries);
+            else
+                out.putShort((short)(page == 0 ? numEntries + 1 : numEntries));
+            putEntry(out, big, 254, LONG, 1, 0);                            // NewSubfileType
+            putEntry(out, big, 256, LONG, 1, width);                        // ImageWidth
+            putEntry(out, big, 257, LONG, 1, height);                       // ImageLength
+            if (bitDepth != 24)
+                putEntry(out, big, 258, SHORT, 1, bitDepth);                // BitsPerSample
+            else if (big)
+                putInlineShorts(out, 258, 8, 3);
+            else
+                putEntry(out, big, 258, SHORT, 3, bitsOffset);
+            putEntry(out, big, 259, SHORT, 1, 1);                           // Compression: none
+            putEntry(out, big, 262, SHORT, 1, bitDepth == 24 ? 2 : 1);      // PhotometricInterpretation
+            if (page == 0)
+                putEntry(out, big, 270, ASCII, description.length, descriptionOffset);  // ImageDescription
+            putEntry(out, big, 273, big ? LONG8 : LONG, 1, DATA_OFFSET + (long)page * frameBytes);  // StripOffsets
+            putEntry(out, big, 277, SHORT, 1, bitDepth == 24 ? 3 : 1);      // SamplesPerPixel
+            putEntry(out, big, 278, LONG, 1, height);                       // RowsPerStrip
+            putEntry(out, big, 279, big ? LONG8 : LONG, 1, frameBytes);     // StripByteCounts
+            if (bitDepth == 16 || bitDepth == 32)
+                putEntry(out, big, 339, SHORT, 1, bitDepth == 32 ? 3 : 1);  // SampleFormat
+            if (big)
+                out.putLong(next);
+            else
+                out.putInt((int)next);
+        }
+        flush(out);
+        // The header
+        byte order = (byte)(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M');
+        out.put(order).put(order);
+        if (big)
+            out.putShort((short)43).putShort((short)8).putShort((short)0).putLong(frameCount > 0 ? firstIfd : 0);
+        else
+            out.putShort((short)42).putInt((int)(frameCount > 0 ? firstIfd : 0));
+        out.flip();
+        while (out.hasRemaining()) channel.write(out, out.position());
+    }
+
+    private void flush(ByteBuffer out) throws IOException
+    {
+        out.flip();
+        while (out.hasRemaining()) channel.write(out);
+        out.clear();
+    }
+
+    private static long align(long offset)
+    {
+        return offset + (offset & 1);
+    }
+
+    private static long ifdBytes(int numEntries, boolean big)
+    {
+        return big ? 8 + 20L * numEntries + 8 : 2 + 12L * numEntries + 4;
+    }
+
+    // An IFD entry with one value, or with the offset of its values.  Values are left-justified in the value field.
+    private static void putEntry(ByteBuffer out, boolean big, int tag, short type, long count, long value)
+    {
+        out.putShort((short)tag);
+        out.putShort(type);
+        if (big)
+            out.putLong(count);
+        else
+            out.putInt((int)count);
+        int fieldBytes = big ? 8 : 4;
+        int start = out.position();
+        if (type == SHORT && count == 1)
+            out.putShort((short)value);
+        else if (type == LONG && (count == 1 || big))
+            out.putInt((int)value);
+        else if (big)
+            out.putLong(value);
+        else
+            out.putInt((int)value);
+        while (out.position() < start + fieldBytes) out.put((byte)0);
+    }
+
+    // A BigTIFF entry with count copies of a SHORT value in its value field
+    private static void putInlineShorts(ByteBuffer out, int tag, int value, int count)
+    {
+        out.putShort((short)tag);
+        out.putShort(SHORT);
+        out.putLong(count);
+        for (int i = 0; i < 4; i++) out.putShort((short)(i < count ? value : 0));
+    }
+}